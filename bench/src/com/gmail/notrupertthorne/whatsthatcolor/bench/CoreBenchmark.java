@@ -0,0 +1,833 @@
+package com.gmail.notrupertthorne.whatsthatcolor.bench;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.BurstStacker;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorConversion;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorStabilizer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.DeltaE;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MultiPointSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.Nv21Sampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteExtractor;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SampleHistory;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SyntheticFrameSource;
+import com.gmail.notrupertthorne.whatsthatcolor.core.VisionFilter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
+
+/**
+ * This type is responsible for the benchmark cases of the color core, and
+ * for running them all, or those whose names start with a given prefix.
+ *
+ * Each case times one unit of work per iteration; one window, one frame,
+ * one conversion or one lookup. The frame cases run the whole live path of
+ * the app, from the NV21 preview frame to the named, steadied color, on the
+ * synthetic frame and on each NV21 frame of the corpus, so that they read
+ * as ns/frame.
+ *
+ * Usage: CoreBenchmark corpus-directory palette.pal [prefix]
+ */
+public final class CoreBenchmark
+{
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int[] SIZES = { 3, 16, 64 };
+  private static final int COLORS = 4096;
+  private static final int HISTORY_SAMPLES = 300000;
+
+  /**
+   * This field creates the threads of the benchmark executors, which must
+   * not keep the JVM alive.
+   */
+  private static final ThreadFactory DAEMONS = new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+      final Thread l_thread = new Thread(runnable);
+      l_thread.setDaemon(true);
+      return l_thread;
+    }
+  };
+
+  private CoreBenchmark()
+  {
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (2 > args.length || 3 < args.length)
+    {
+      System.err.println("Usage: CoreBenchmark corpus-directory palette.pal"
+          + " [prefix]");
+      System.exit(1);
+    }
+
+    final String l_prefix = 3 == args.length ? args[2] : "";
+    final Harness l_harness = new Harness(500000000L, 100000000L, 9);
+
+    System.out.println("# case\tmedian ns/op\tbest ns/op");
+    for (final Map.Entry<String, Harness.Case> l_case : cases(
+        new File(args[0]), readNamer(new File(args[1]))).entrySet())
+    {
+      if (l_case.getKey().startsWith(l_prefix))
+      {
+        System.out.println(l_harness.measure(l_case.getKey(),
+            l_case.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Read a palette, and index it for naming.
+   *
+   * @param palette The palette file.
+   * @return The namer.
+   * @throws IOException If the palette could not be read.
+   */
+  public static ColorNamer readNamer(File palette) throws IOException
+  {
+    final InputStream l_in = new FileInputStream(palette);
+    try
+    {
+      return new ColorNamer(ColorPalette.read(l_in));
+    }
+    finally
+    {
+      l_in.close();
+    }
+  }
+
+  /**
+   * Set up the benchmark cases.
+   *
+   * @param corpus The corpus directory, holding the recorded frames.
+   * @param namer The namer to look colors up in.
+   * @return The cases, by name, in the order to run them.
+   * @throws IOException If the corpus could not be read.
+   */
+  public static Map<String, Harness.Case> cases(File corpus,
+      final ColorNamer namer) throws IOException
+  {
+    final Map<String, Harness.Case> l_cases =
+        new LinkedHashMap<String, Harness.Case>();
+
+    final byte[] l_frame = Fixtures.toNv21(
+        Fixtures.scene(FRAME_WIDTH, FRAME_HEIGHT, 0), FRAME_WIDTH,
+        FRAME_HEIGHT);
+    final YuvFrame l_yuv = new YuvFrame().setNv21(l_frame, FRAME_WIDTH,
+        FRAME_HEIGHT);
+
+    for (final int l_size : SIZES)
+    {
+      l_cases.put("nv21.read." + l_size, new Harness.Case()
+      {
+        private final int[] m_pixels = new int[l_size * l_size];
+
+        @Override
+        public int run(int iterations)
+        {
+          int l_sum = 0;
+          for (int l_i = 0; l_i < iterations; ++l_i)
+          {
+            Nv21Sampler.readRegion(l_frame, FRAME_WIDTH, FRAME_HEIGHT,
+                (FRAME_WIDTH - l_size) / 2, (FRAME_HEIGHT - l_size) / 2,
+                l_size, l_size, m_pixels);
+            l_sum += m_pixels[l_i % m_pixels.length];
+          }
+          return l_sum;
+        }
+      });
+    }
+
+    for (final SamplingKernel.Statistic l_statistic
+        : SamplingKernel.Statistic.values())
+    {
+      for (final int l_size : SIZES)
+      {
+        l_cases.put("kernel." + l_statistic + "." + l_size,
+            new WindowCase(l_frame, FRAME_WIDTH, FRAME_HEIGHT, l_size,
+                l_statistic));
+      }
+    }
+
+    l_cases.put("kernel.MEAN.subwindow", new Harness.Case()
+    {
+      private final SamplingKernel m_kernel = new SamplingKernel();
+      private final int[] m_pixels =
+          new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+
+      {
+        Nv21Sampler.readRegion(l_frame, FRAME_WIDTH, FRAME_HEIGHT, 0, 0,
+            SamplingKernel.MAX_SIZE, SamplingKernel.MAX_SIZE, m_pixels);
+        m_kernel.configure(SamplingKernel.MAX_SIZE,
+            SamplingKernel.Statistic.MEAN);
+        m_kernel.sample(m_pixels, 0, SamplingKernel.MAX_SIZE,
+            SamplingKernel.MAX_SIZE, SamplingKernel.MAX_SIZE);
+      }
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += m_kernel.mean(l_i & 31, (l_i >> 5) & 31, 32, 32);
+        }
+        return l_sum;
+      }
+    });
+
+    // Points strewn over the frame, sampled in one pass, and one by one.
+    final int[] l_points = new int[2 * MultiPointSampler.MAX_POINTS];
+    for (int l_i = 0; l_i < MultiPointSampler.MAX_POINTS; ++l_i)
+    {
+      l_points[2 * l_i] = (2 * l_i + 1) * FRAME_WIDTH
+          / (2 * MultiPointSampler.MAX_POINTS);
+      l_points[2 * l_i + 1] = ((5 * l_i) % MultiPointSampler.MAX_POINTS)
+          * FRAME_HEIGHT / MultiPointSampler.MAX_POINTS + 8;
+    }
+
+    l_cases.put("points.8.16", new Harness.Case()
+    {
+      private final MultiPointSampler m_sampler = new MultiPointSampler();
+      private final int[] m_colors = new int[MultiPointSampler.MAX_POINTS];
+
+      {
+        m_sampler.configure(16, SamplingKernel.Statistic.MEAN);
+      }
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          m_sampler.sample(l_yuv, l_points, MultiPointSampler.MAX_POINTS,
+              m_colors);
+          l_sum += m_colors[l_i % MultiPointSampler.MAX_POINTS];
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("points.separate.8.16", new Harness.Case()
+    {
+      private final SamplingKernel m_kernel = new SamplingKernel();
+      private final int[] m_window = new int[4];
+      private final int[] m_pixels = new int[16 * 16];
+
+      {
+        m_kernel.configure(16, SamplingKernel.Statistic.MEAN);
+      }
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          for (int l_j = 0; l_j < MultiPointSampler.MAX_POINTS; ++l_j)
+          {
+            Nv21Sampler.clipSquare(FRAME_WIDTH, FRAME_HEIGHT,
+                l_points[2 * l_j], l_points[2 * l_j + 1], 16, m_window);
+            Nv21Sampler.readRegion(l_frame, FRAME_WIDTH, FRAME_HEIGHT,
+                m_window[0], m_window[1], m_window[2], m_window[3],
+                m_pixels);
+            l_sum += m_kernel.sample(m_pixels, 0, m_window[2], m_window[2],
+                m_window[3]);
+          }
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("frame.synthetic", new FrameCase(l_yuv, namer));
+
+    // The same frame, laid out in padded planes as an ImageReader would.
+    for (final SyntheticFrameSource.Layout l_layout
+        : SyntheticFrameSource.Layout.values())
+    {
+      if (SyntheticFrameSource.Layout.NV21 != l_layout)
+      {
+        l_cases.put("frame.synthetic." + l_layout, new FrameCase(
+            new SyntheticFrameSource(l_frame, FRAME_WIDTH, FRAME_HEIGHT,
+                l_layout, 32).getFrame(), namer));
+      }
+    }
+
+    l_cases.put("palette.serial", new PaletteCase(l_yuv, null, 1));
+
+    final int l_cores = Runtime.getRuntime().availableProcessors();
+    l_cases.put("palette.tiled", new PaletteCase(l_yuv,
+        Executors.newFixedThreadPool(l_cores, DAEMONS), l_cores));
+
+    l_cases.put("match.serial", new MatchCase(l_yuv, null, 1));
+    l_cases.put("match.tiled", new MatchCase(l_yuv,
+        Executors.newFixedThreadPool(l_cores, DAEMONS), l_cores));
+
+    l_cases.put("burst.serial", new BurstCase(l_yuv, null, 1));
+    l_cases.put("burst.tiled", new BurstCase(l_yuv,
+        Executors.newFixedThreadPool(l_cores, DAEMONS), l_cores));
+
+    l_cases.put("vision.serial", new VisionCase(l_yuv, null, 1));
+    l_cases.put("vision.tiled", new VisionCase(l_yuv,
+        Executors.newFixedThreadPool(l_cores, DAEMONS), l_cores));
+
+    for (final IlluminantEstimator.Method l_method
+        : IlluminantEstimator.Method.values())
+    {
+      l_cases.put("illuminant." + l_method, new Harness.Case()
+      {
+        private final IlluminantEstimator m_estimator =
+            new IlluminantEstimator();
+
+        @Override
+        public int run(int iterations)
+        {
+          m_estimator.setMethod(l_method);
+
+          int l_sum = 0;
+          for (int l_i = 0; l_i < iterations; ++l_i)
+          {
+            m_estimator.estimate(l_yuv);
+            l_sum += m_estimator.correct(0xff808080);
+          }
+          return l_sum;
+        }
+      });
+    }
+
+    final File[] l_files = corpus.listFiles();
+    if (null != l_files)
+    {
+      Arrays.sort(l_files);
+      final int[] l_size = new int[2];
+
+      for (final File l_file : l_files)
+      {
+        if (l_file.getName().endsWith(".nv21"))
+        {
+          Fixtures.nv21Size(l_file.getName(), l_size);
+          l_cases.put("frame." + l_file.getName(), new FrameCase(
+              new YuvFrame().setNv21(Fixtures.read(l_file), l_size[0],
+                  l_size[1]), namer));
+        }
+      }
+
+      final File l_jpeg = new File(corpus, "scene.jpg");
+      if (l_jpeg.isFile())
+      {
+        final byte[] l_picture = Fixtures.read(l_jpeg);
+
+        l_cases.put("jpeg.region.16", new Harness.Case()
+        {
+          private final SamplingKernel m_kernel = new SamplingKernel();
+          private final Rectangle m_window = new Rectangle(312, 232, 16, 16);
+          private final int[] m_pixels = new int[16 * 16];
+          private final int[] m_size = new int[2];
+
+          @Override
+          public int run(int iterations)
+          {
+            m_kernel.configure(16, SamplingKernel.Statistic.MEDIAN);
+
+            int l_sum = 0;
+            for (int l_i = 0; l_i < iterations; ++l_i)
+            {
+              try
+              {
+                Fixtures.decodeRegion(l_picture, m_window, m_pixels, m_size);
+              }
+              catch (final IOException e)
+              {
+                throw new IllegalStateException(e);
+              }
+              l_sum += m_kernel.sample(m_pixels, 0, m_size[0], m_size[0],
+                  m_size[1]);
+            }
+            return l_sum;
+          }
+        });
+      }
+    }
+
+    final int[] l_colors = new int[COLORS];
+    final Random l_random = new Random(0);
+    for (int l_i = 0; l_i < COLORS; ++l_i)
+    {
+      l_colors[l_i] = 0xff000000 | l_random.nextInt(0x1000000);
+    }
+
+    l_cases.put("convert.toLab", new Harness.Case()
+    {
+      private final int[] m_lab = new int[3 * COLORS];
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; l_i += COLORS)
+        {
+          final int l_count = Math.min(COLORS, iterations - l_i);
+          ColorConversion.toLab(l_colors, 0, l_count, m_lab, 0);
+          l_sum += m_lab[0];
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("convert.fromLab", new Harness.Case()
+    {
+      private final int[] m_lab = new int[3 * COLORS];
+
+      {
+        ColorConversion.toLab(l_colors, 0, COLORS, m_lab, 0);
+      }
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          final int l_index = 3 * (l_i & (COLORS - 1));
+          l_sum += ColorConversion.fromLab(m_lab[l_index],
+              m_lab[l_index + 1], m_lab[l_index + 2]);
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("convert.toHsv", new Harness.Case()
+    {
+      private final int[] m_hsv = new int[3];
+
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          ColorConversion.toHsv(l_colors[l_i & (COLORS - 1)], m_hsv, 0);
+          l_sum += m_hsv[0];
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("deltaE.cie2000", new Harness.Case()
+    {
+      @Override
+      public int run(int iterations)
+      {
+        double l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += DeltaE.cie2000(50, l_i & 63, -20, 60, 10, l_i & 31);
+        }
+        return (int) l_sum;
+      }
+    });
+
+    l_cases.put("namer.nearest", new Harness.Case()
+    {
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += namer.nearest(l_colors[l_i & (COLORS - 1)]);
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("namer.lookup", new Harness.Case()
+    {
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += namer.lookup(l_colors[l_i & (COLORS - 1)]);
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("history.append", new HistoryAppendCase(l_colors));
+
+    final SampleHistory l_history = history(l_colors);
+    final int[] l_labs = new int[3 * COLORS];
+    ColorConversion.toLab(l_colors, 0, COLORS, l_labs, 0);
+
+    l_cases.put("history.range", new Harness.Case()
+    {
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += l_history.indexOf(l_i % HISTORY_SAMPLES * 1000L);
+        }
+        return l_sum;
+      }
+    });
+
+    l_cases.put("history.nearest", new Harness.Case()
+    {
+      @Override
+      public int run(int iterations)
+      {
+        int l_sum = 0;
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          l_sum += l_history.nearest(l_labs, 3 * (l_i & (COLORS - 1)), 0,
+              HISTORY_SAMPLES);
+        }
+        return l_sum;
+      }
+    });
+
+    return l_cases;
+  }
+
+  /**
+   * Fill a history, in a temporary file, with HISTORY_SAMPLES samples a
+   * second apart.
+   */
+  private static SampleHistory history(int[] colors) throws IOException
+  {
+    final File l_file = File.createTempFile("history", ".bin");
+    l_file.deleteOnExit();
+
+    final SampleHistory l_history = new SampleHistory(l_file);
+    for (int l_i = 0; l_i < HISTORY_SAMPLES; ++l_i)
+    {
+      l_history.append(colors[l_i & (COLORS - 1)], l_i * 1000L, -1);
+    }
+    return l_history;
+  }
+
+  /**
+   * This type is responsible for timing the appending of samples to a
+   * history. The history is started over, in a new temporary file, every
+   * HISTORY_SAMPLES samples, so that the file stays bounded, at the cost
+   * of an open per as many appends.
+   */
+  private static final class HistoryAppendCase implements Harness.Case
+  {
+    private final int[] m_colors;
+    private File m_file;
+    private SampleHistory m_history;
+
+    HistoryAppendCase(int[] colors)
+    {
+      m_colors = colors;
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      try
+      {
+        for (int l_i = 0; l_i < iterations; ++l_i)
+        {
+          if (null == m_history || HISTORY_SAMPLES == m_history.size())
+          {
+            restart();
+          }
+          m_history.append(m_colors[l_i & (COLORS - 1)], l_i, -1);
+        }
+        return m_history.size();
+      }
+      catch (final IOException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private void restart() throws IOException
+    {
+      if (null != m_history)
+      {
+        m_history.close();
+        m_file.delete();
+      }
+
+      m_file = File.createTempFile("history", ".bin");
+      m_file.deleteOnExit();
+      m_history = new SampleHistory(m_file);
+    }
+  }
+
+  /**
+   * This type is responsible for timing the reduction of a window of a
+   * preview frame, read straight out of the NV21 buffer.
+   */
+  private static final class WindowCase implements Harness.Case
+  {
+    private final byte[] m_frame;
+    private final int m_width;
+    private final int m_height;
+    private final SamplingKernel m_kernel = new SamplingKernel();
+    private final int[] m_window = new int[4];
+    private final int[] m_pixels =
+        new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+
+    WindowCase(byte[] frame, int width, int height, int size,
+        SamplingKernel.Statistic statistic)
+    {
+      m_frame = frame;
+      m_width = width;
+      m_height = height;
+      m_kernel.configure(size, statistic);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      int l_sum = 0;
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        Nv21Sampler.clipSquare(m_width, m_height, m_width / 2, m_height / 2,
+            m_kernel.getSize(), m_window);
+        Nv21Sampler.readRegion(m_frame, m_width, m_height, m_window[0],
+            m_window[1], m_window[2], m_window[3], m_pixels);
+        l_sum += m_kernel.sample(m_pixels, 0, m_window[2], m_window[2],
+            m_window[3]);
+      }
+      return l_sum;
+    }
+  }
+
+  /**
+   * This type is responsible for timing the extraction of the dominant
+   * colors of a preview frame, warm started from the previous frame, as
+   * in the app.
+   */
+  private static final class PaletteCase implements Harness.Case
+  {
+    private final YuvFrame m_frame;
+    private final PaletteExtractor m_extractor;
+    private final int[] m_colors = new int[PaletteExtractor.MAX_COLORS];
+    private final int[] m_weights = new int[PaletteExtractor.MAX_COLORS];
+
+    PaletteCase(YuvFrame frame, ExecutorService executor, int tiles)
+    {
+      m_frame = frame;
+      m_extractor = new PaletteExtractor(6, executor, tiles);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      int l_sum = 0;
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        l_sum += m_extractor.extract(m_frame, m_colors, m_weights);
+        l_sum += m_colors[0];
+      }
+      return l_sum;
+    }
+  }
+
+  /**
+   * This type is responsible for timing the mapping of a preview frame
+   * against a reference color, once the table has been built, as in the
+   * app.
+   */
+  private static final class MatchCase implements Harness.Case
+  {
+    private final YuvFrame m_frame;
+    private final MatchMapper m_mapper;
+    private final byte[] m_mask = new byte[MatchMapper.MAX_CELLS];
+
+    MatchCase(YuvFrame frame, ExecutorService executor, int tiles)
+    {
+      m_frame = frame;
+      m_mapper = new MatchMapper(executor, tiles);
+      m_mapper.setReference(frame.pixel(frame.getWidth() / 2,
+          frame.getHeight() / 2), MatchMapper.DEFAULT_TOLERANCE);
+      m_mapper.map(frame, m_mask);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      int l_sum = 0;
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        l_sum += m_mapper.map(m_frame, m_mask);
+      }
+      return l_sum;
+    }
+  }
+
+  /**
+   * This type is responsible for timing the filtering of a preview frame
+   * for a color vision deficiency, once the lattice has been built, as in
+   * the app.
+   */
+  private static final class VisionCase implements Harness.Case
+  {
+    private final YuvFrame m_frame;
+    private final VisionFilter m_filter;
+    private final int[] m_image = new int[VisionFilter.MAX_PIXELS];
+
+    VisionCase(YuvFrame frame, ExecutorService executor, int tiles)
+    {
+      m_frame = frame;
+      m_filter = new VisionFilter(executor, tiles);
+      m_filter.configure(VisionFilter.Deficiency.DEUTAN, true);
+      m_filter.filter(frame, m_image);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      int l_sum = 0;
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        m_filter.filter(m_frame, m_image);
+        l_sum += m_image[l_i % m_image.length];
+      }
+      return l_sum;
+    }
+  }
+
+  /**
+   * This type is responsible for timing a burst reading of the largest
+   * window; adding each of its frames, and stacking them.
+   */
+  private static final class BurstCase implements Harness.Case
+  {
+    private static final int FRAMES = 8;
+
+    private final YuvFrame m_frame;
+    private final BurstStacker m_stacker;
+    private final int[] m_region =
+        new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+
+    BurstCase(YuvFrame frame, ExecutorService executor, int tiles)
+    {
+      m_frame = frame;
+      m_stacker = new BurstStacker(executor, tiles);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      final int l_side = SamplingKernel.MAX_SIZE;
+      final int l_left = (m_frame.getWidth() - l_side) / 2;
+      final int l_top = (m_frame.getHeight() - l_side) / 2;
+
+      int l_sum = 0;
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        m_stacker.begin(FRAMES, l_side, l_side);
+        while (!m_stacker.add(m_frame, l_left, l_top))
+        {
+        }
+        m_stacker.stack(m_region);
+        l_sum += m_stacker.getMean();
+      }
+      return l_sum;
+    }
+  }
+
+  /**
+   * This type is responsible for timing the live path of a preview frame;
+   * mapping the crosshair onto the frame, reducing the window under it by
+   * the median, steadying the color and naming it.
+   */
+  private static final class FrameCase implements Harness.Case
+  {
+    private static final int SIZE = 16;
+
+    private final YuvFrame m_frame;
+    private final ColorNamer m_namer;
+    private final SamplingKernel m_kernel = new SamplingKernel();
+    private final ColorStabilizer m_stabilizer = new ColorStabilizer();
+    private final int[] m_point = new int[2];
+    private final int[] m_window = new int[4];
+    private final int[] m_pixels = new int[SIZE * SIZE];
+
+    FrameCase(YuvFrame frame, ColorNamer namer)
+    {
+      m_frame = frame;
+      m_namer = namer;
+      m_kernel.configure(SIZE, SamplingKernel.Statistic.MEDIAN);
+    }
+
+    @Override
+    public int run(int iterations)
+    {
+      int l_sum = 0;
+      long l_time = 0;
+
+      for (int l_i = 0; l_i < iterations; ++l_i)
+      {
+        final int l_width = m_frame.getWidth();
+        final int l_height = m_frame.getHeight();
+        RegionMapper.toImage(540, 960, 1080, 1920, l_width, l_height, 90,
+            false, m_point);
+        Nv21Sampler.clipSquare(l_width, l_height, m_point[0], m_point[1],
+            SIZE, m_window);
+        m_frame.readRegion(m_window[0], m_window[1], m_window[2],
+            m_window[3], m_pixels);
+
+        final int l_color = m_kernel.sample(m_pixels, 0, m_window[2],
+            m_window[2], m_window[3]);
+
+        // Frames arrive at 30 per second.
+        l_time += 33333333L;
+        if (m_stabilizer.offer(l_color, l_time))
+        {
+          l_sum += m_namer.lookup(m_stabilizer.getColor());
+        }
+        l_sum += l_color;
+      }
+      return l_sum;
+    }
+  }
+}
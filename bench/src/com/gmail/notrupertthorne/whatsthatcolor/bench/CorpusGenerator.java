@@ -0,0 +1,128 @@
+package com.gmail.notrupertthorne.whatsthatcolor.bench;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * This type is responsible for (re)generating the golden corpus; the frame
+ * fixtures, and the expected colors and names sampled from them.
+ *
+ * The expectations follow from the scene itself, i.e. the known color of
+ * each patch, rather than from any output of the code under test. Each is
+ * checked with the largest CIEDE2000 error the statistic is allowed.
+ *
+ * Usage: CorpusGenerator corpus-directory
+ */
+public final class CorpusGenerator
+{
+  /**
+   * These fields provide the checks made at the center of each patch; the
+   * window size, the statistic and the largest error allowed.
+   */
+  private static final int[] SIZES = { 3, 16, 16, 16, 16, 64 };
+  private static final String[] STATISTICS = { "MEAN", "MEAN", "MEDIAN",
+      "TRIMMED_MEAN", "MODE", "MEDIAN" };
+  private static final double[] TOLERANCES = { 3.0, 3.5, 1.5, 1.5, 2.5,
+      1.0 };
+
+  private CorpusGenerator()
+  {
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (1 != args.length)
+    {
+      System.err.println("Usage: CorpusGenerator corpus-directory");
+      System.exit(1);
+    }
+
+    final File l_corpus = new File(args[0]);
+    final PrintWriter l_golden = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(new File(l_corpus, "golden.txt")), "UTF-8"));
+    try
+    {
+      l_golden.println("# Generated by CorpusGenerator. Each line reads:");
+      l_golden.println("# fixture x y size statistic #rrggbb max-delta-e"
+          + " name");
+
+      // A preview frame, and a second one as from a few frames later, with
+      // different noise.
+      writeNv21(l_corpus, 320, 240, 1, l_golden);
+      writeNv21(l_corpus, 320, 240, 2, l_golden);
+
+      // A still picture.
+      final int[] l_picture = Fixtures.scene(640, 480, 3);
+      write(new File(l_corpus, "scene.jpg"),
+          Fixtures.toJpeg(l_picture, 640, 480, 0.9f));
+      golden(l_golden, "scene.jpg", 640, 480);
+    }
+    finally
+    {
+      l_golden.close();
+    }
+  }
+
+  private static void writeNv21(File corpus, int width, int height,
+      long seed, PrintWriter golden) throws IOException
+  {
+    final String l_name = "scene" + seed + "_" + width + "x" + height
+        + ".nv21";
+    write(new File(corpus, l_name), Fixtures.toNv21(
+        Fixtures.scene(width, height, seed), width, height));
+    golden(golden, l_name, width, height);
+  }
+
+  private static void golden(PrintWriter golden, String fixture, int width,
+      int height)
+  {
+    for (int l_patch = 0; l_patch < Fixtures.PATCH_COLORS.length; ++l_patch)
+    {
+      for (int l_i = 0; l_i < SIZES.length; ++l_i)
+      {
+        golden.printf(Locale.ROOT, "%s %d %d %d %s #%06x %.1f %s%n", fixture,
+            Fixtures.patchCenterX(width, l_patch),
+            Fixtures.patchCenterY(height, l_patch), SIZES[l_i],
+            STATISTICS[l_i], Fixtures.PATCH_COLORS[l_patch],
+            TOLERANCES[l_i], Fixtures.PATCH_NAMES[l_patch]);
+      }
+    }
+  }
+
+  private static void write(File file, byte[] data) throws IOException
+  {
+    final OutputStream l_out = new FileOutputStream(file);
+    try
+    {
+      l_out.write(data);
+    }
+    finally
+    {
+      l_out.close();
+    }
+  }
+}
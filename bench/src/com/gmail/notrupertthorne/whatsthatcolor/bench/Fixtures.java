@@ -0,0 +1,327 @@
+package com.gmail.notrupertthorne.whatsthatcolor.bench;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorConversion;
+
+/**
+ * This type is responsible for the frames the benchmarks and the golden
+ * checks run on.
+ *
+ * The synthetic scene is a grid of flat patches of known palette colors,
+ * with sensor like noise, and a small specular highlight next to the center
+ * of each patch, which robust statistics are expected to ignore. It is
+ * deterministic given its seed, so that the corpus can be regenerated.
+ */
+public final class Fixtures
+{
+  /**
+   * These fields provide the colors, and palette names, of the patches of
+   * the scene, row by row.
+   */
+  public static final int[] PATCH_COLORS = { 0x4682b4, 0x6b8e23, 0xdaa520,
+      0xda70d6, 0x708090, 0x483d8b, 0xa0522d, 0x3cb371, 0x4169e1, 0xcd853f,
+      0xbdb76b, 0x20b2aa };
+  public static final String[] PATCH_NAMES = { "Steel Blue", "Olive Drab",
+      "Goldenrod", "Orchid", "Slate Gray", "Dark Slate Blue", "Sienna",
+      "Medium Sea Green", "Royal Blue", "Peru", "Dark Khaki",
+      "Light Sea Green" };
+  public static final int PATCH_COLUMNS = 4;
+  public static final int PATCH_ROWS = 3;
+
+  /**
+   * This field provides the standard deviation of the noise of each
+   * channel.
+   */
+  private static final double NOISE = 6.0;
+
+  /**
+   * These fields provide the side of the highlight, and its offset from
+   * the center of each patch.
+   */
+  private static final int HIGHLIGHT_SIZE = 3;
+  private static final int HIGHLIGHT_OFFSET = 3;
+
+  private Fixtures()
+  {
+  }
+
+  /**
+   * Render the synthetic scene.
+   *
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param seed The seed of the noise.
+   * @return The pixels, on the 0xAARRGGBB form, row by row.
+   */
+  public static int[] scene(int width, int height, long seed)
+  {
+    final Random l_random = new Random(seed);
+    final int[] l_pixels = new int[width * height];
+
+    for (int l_y = 0; l_y < height; ++l_y)
+    {
+      for (int l_x = 0; l_x < width; ++l_x)
+      {
+        final int l_color = PATCH_COLORS[patch(width, height, l_x, l_y)];
+
+        l_pixels[l_y * width + l_x] = ColorConversion.rgb(
+            noisy(ColorConversion.red(l_color), l_random),
+            noisy(ColorConversion.green(l_color), l_random),
+            noisy(ColorConversion.blue(l_color), l_random));
+      }
+    }
+
+    for (int l_patch = 0; l_patch < PATCH_COLORS.length; ++l_patch)
+    {
+      final int l_left = patchCenterX(width, l_patch) + HIGHLIGHT_OFFSET;
+      final int l_top = patchCenterY(height, l_patch) + HIGHLIGHT_OFFSET;
+
+      for (int l_y = l_top; l_y < l_top + HIGHLIGHT_SIZE; ++l_y)
+      {
+        for (int l_x = l_left; l_x < l_left + HIGHLIGHT_SIZE; ++l_x)
+        {
+          l_pixels[l_y * width + l_x] = 0xffffffff;
+        }
+      }
+    }
+
+    return l_pixels;
+  }
+
+  /**
+   * @return The column of the center of a patch.
+   */
+  public static int patchCenterX(int width, int patch)
+  {
+    return (2 * (patch % PATCH_COLUMNS) + 1) * width / (2 * PATCH_COLUMNS);
+  }
+
+  /**
+   * @return The row of the center of a patch.
+   */
+  public static int patchCenterY(int height, int patch)
+  {
+    return (2 * (patch / PATCH_COLUMNS) + 1) * height / (2 * PATCH_ROWS);
+  }
+
+  /**
+   * Convert pixels to an NV21 buffer, the way the camera delivers preview
+   * frames; full range BT.601, with each chroma pair the mean of a 2x2
+   * block.
+   *
+   * @param pixels The pixels, on the 0xAARRGGBB form, row by row.
+   * @param width The frame width, in pixels. It must be even.
+   * @param height The frame height, in pixels. It must be even.
+   * @return The NV21 buffer.
+   */
+  public static byte[] toNv21(int[] pixels, int width, int height)
+  {
+    final byte[] l_data = new byte[width * height * 3 / 2];
+
+    for (int l_y = 0; l_y < height; l_y += 2)
+    {
+      for (int l_x = 0; l_x < width; l_x += 2)
+      {
+        double l_cb = 0;
+        double l_cr = 0;
+
+        for (int l_i = 0; l_i < 4; ++l_i)
+        {
+          final int l_index = (l_y + l_i / 2) * width + l_x + l_i % 2;
+          final int l_r = ColorConversion.red(pixels[l_index]);
+          final int l_g = ColorConversion.green(pixels[l_index]);
+          final int l_b = ColorConversion.blue(pixels[l_index]);
+
+          l_data[l_index] = (byte) clamp(0.299 * l_r + 0.587 * l_g
+              + 0.114 * l_b);
+          l_cb += 128 - 0.168736 * l_r - 0.331264 * l_g + 0.5 * l_b;
+          l_cr += 128 + 0.5 * l_r - 0.418688 * l_g - 0.081312 * l_b;
+        }
+
+        final int l_chroma = width * height + (l_y / 2) * width + l_x;
+        l_data[l_chroma] = (byte) clamp(l_cr / 4);
+        l_data[l_chroma + 1] = (byte) clamp(l_cb / 4);
+      }
+    }
+
+    return l_data;
+  }
+
+  /**
+   * Compress pixels to a JPEG, the way the camera delivers still pictures.
+   *
+   * @param pixels The pixels, on the 0xAARRGGBB form, row by row.
+   * @param width The picture width, in pixels.
+   * @param height The picture height, in pixels.
+   * @param quality The compression quality, 0..1.
+   * @return The JPEG.
+   * @throws IOException If the JPEG could not be written.
+   */
+  public static byte[] toJpeg(int[] pixels, int width, int height,
+      float quality) throws IOException
+  {
+    final BufferedImage l_image = new BufferedImage(width, height,
+        BufferedImage.TYPE_INT_RGB);
+    l_image.setRGB(0, 0, width, height, pixels, 0, width);
+
+    final ImageWriter l_writer =
+        ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ImageWriteParam l_param = l_writer.getDefaultWriteParam();
+    l_param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    l_param.setCompressionQuality(quality);
+
+    final ByteArrayOutputStream l_out = new ByteArrayOutputStream();
+    final ImageOutputStream l_stream = ImageIO.createImageOutputStream(l_out);
+    try
+    {
+      l_writer.setOutput(l_stream);
+      l_writer.write(null, new IIOImage(l_image, null, null), l_param);
+    }
+    finally
+    {
+      l_stream.close();
+      l_writer.dispose();
+    }
+    return l_out.toByteArray();
+  }
+
+  /**
+   * Decode a window of a JPEG, and only that, the way the app does with
+   * BitmapRegionDecoder.
+   *
+   * @param jpeg The JPEG.
+   * @param window The window, which is clipped against the picture.
+   * @param out Receives the pixels, on the 0xAARRGGBB form, row by row.
+   * @param size Receives the width and height of the clipped window.
+   * @throws IOException If the JPEG could not be read.
+   */
+  public static void decodeRegion(byte[] jpeg, Rectangle window, int[] out,
+      int[] size) throws IOException
+  {
+    final ImageInputStream l_stream =
+        ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg));
+    final Iterator<ImageReader> l_readers = ImageIO.getImageReaders(l_stream);
+    if (!l_readers.hasNext())
+    {
+      throw new IOException("Not a picture");
+    }
+
+    final ImageReader l_reader = l_readers.next();
+    try
+    {
+      l_reader.setInput(l_stream, true, true);
+
+      final ImageReadParam l_param = l_reader.getDefaultReadParam();
+      l_param.setSourceRegion(window.intersection(new Rectangle(0, 0,
+          l_reader.getWidth(0), l_reader.getHeight(0))));
+
+      final BufferedImage l_region = l_reader.read(0, l_param);
+      size[0] = l_region.getWidth();
+      size[1] = l_region.getHeight();
+      l_region.getRGB(0, 0, size[0], size[1], out, 0, size[0]);
+    }
+    finally
+    {
+      l_reader.dispose();
+      l_stream.close();
+    }
+  }
+
+  /**
+   * Read a whole file, e.g. a recorded frame.
+   *
+   * @param file The file.
+   * @return The content.
+   * @throws IOException If the file could not be read.
+   */
+  public static byte[] read(File file) throws IOException
+  {
+    final byte[] l_data = new byte[(int) file.length()];
+    final DataInputStream l_in =
+        new DataInputStream(new FileInputStream(file));
+    try
+    {
+      l_in.readFully(l_data);
+    }
+    finally
+    {
+      l_in.close();
+    }
+    return l_data;
+  }
+
+  /**
+   * Get the frame size of an NV21 fixture from its name, which ends in
+   * _<width>x<height>.nv21.
+   *
+   * @param name The file name.
+   * @param out Receives the width and height.
+   * @throws IllegalArgumentException If the name holds no frame size.
+   */
+  public static void nv21Size(String name, int[] out)
+  {
+    final int l_underscore = name.lastIndexOf('_');
+    final int l_x = name.lastIndexOf('x');
+    final int l_dot = name.lastIndexOf('.');
+    if (0 > l_underscore || l_x < l_underscore || l_dot < l_x)
+    {
+      throw new IllegalArgumentException("No frame size: " + name);
+    }
+    out[0] = Integer.parseInt(name.substring(l_underscore + 1, l_x));
+    out[1] = Integer.parseInt(name.substring(l_x + 1, l_dot));
+  }
+
+  private static int patch(int width, int height, int x, int y)
+  {
+    return (y * PATCH_ROWS / height) * PATCH_COLUMNS
+        + x * PATCH_COLUMNS / width;
+  }
+
+  private static int noisy(int channel, Random random)
+  {
+    return (int) Math.round(channel + NOISE * random.nextGaussian());
+  }
+
+  private static int clamp(double value)
+  {
+    return (int) Math.max(0, Math.min(255, Math.round(value)));
+  }
+}
@@ -0,0 +1,2635 @@
+package com.gmail.notrupertthorne.whatsthatcolor.bench;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.BurstStacker;
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorConversion;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorFormatter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorStabilizer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.DeltaE;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FocusController;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameRecorder;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameReplay;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MultiPointSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.Nv21Sampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteExtractor;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SampleHistory;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+import com.gmail.notrupertthorne.whatsthatcolor.core.StartupSequencer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SyntheticFrameSource;
+import com.gmail.notrupertthorne.whatsthatcolor.core.VisionFilter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
+
+/**
+ * This type is responsible for checking the color core against the golden
+ * corpus.
+ *
+ * The NV21 conversion is checked against known YCbCr triplets, clamped at
+ * either end, and against frames of even and odd size, down to the chroma
+ * of their last row and column. RegionMapper must map every point of the
+ * view onto the image pixel shown there, for each display orientation,
+ * mirrored or not, clamping points off the view onto its edges.
+ *
+ * ColorConversion must be as close to double precision math, over every
+ * 7th color of the RGB cube, as its tables allow, and its HSV, HSL and
+ * CMYK must give the very colors back.
+ *
+ * Random colors must be named through the lookup table of a ColorNamer, of
+ * the palette as of a large random one, next to as well as by brute
+ * force.
+ *
+ * Every line of golden.txt samples a fixture the way the app does, and
+ * checks both that the color is within the given CIEDE2000 distance of the
+ * expected one, and that it is named as expected. Every line of
+ * budgets.txt names a benchmark case, and the most nanoseconds per
+ * iteration its median may take; these are kept loose enough for any
+ * reasonable build box, so that they catch regressions by multiples rather
+ * than noise. Every recorded frame is also read back through each layout
+ * of a SyntheticFrameSource, and must give the very same colors as read
+ * straight off the NV21 buffer, and mapped against a reference color the
+ * same whether tiled or not, and close to the CIEDE2000 of each sample.
+ * Bursts of synthetic frames, one of them covered by a passing highlight,
+ * must stack the same whether tiled or not, and closer to the patches than
+ * any one frame is. The FocusController is driven through a fake camera,
+ * and must map points onto the areas expected, and hold readings back
+ * until focused and exposed, refocusing only as the scene changes. Every
+ * vision filter must agree with its exact conversion across the RGB cube,
+ * exactly on the lattice, and filter each recorded frame the same whether
+ * tiled or not. The ColorStabilizer must lock onto steady readings once
+ * warmed up, and only then, unlock on noise beyond twice the lock
+ * distance, and publish no more often than its interval while unlocked.
+ * ColorFormatter must format every byte value of every channel as
+ * String.format does, and ColorMailbox must give back whatever was
+ * posted, unnamed or not, locked or not. PaletteExtractor must extract
+ * the very same palette whether tiled or not, frame after frame, and find
+ * the solid patches of a synthetic frame, in the shares they cover.
+ * A SampleHistory must keep its records, in time order, as it grows, is
+ * closed and reopened, find them by time and by color as a linear scan
+ * does, and answer queries while growing under them. IlluminantEstimator
+ * must correct the grays of a scene under a colored light back to
+ * neutral, by each method, whether read off colors or off an NV21 frame,
+ * and keep its gains within bounds under a light of no blue at all.
+ * MultiPointSampler must sample, in its one sweep, exactly what each point
+ * sampled on its own through a SamplingKernel gives, by every statistic,
+ * whether the windows overlap or are clipped at the edges of the frame.
+ * StartupSequencer must hold the crosshair until the preview has started,
+ * and the ads and Play Services, on their own executors, until both the
+ * crosshair and the first frame are in, unless released, and run tasks
+ * added later at once.
+ *
+ * Exits with status 1 if any check fails.
+ *
+ * Usage: GoldenCheck corpus-directory palette.pal
+ */
+public final class GoldenCheck
+{
+  private GoldenCheck()
+  {
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (2 != args.length)
+    {
+      System.err.println("Usage: GoldenCheck corpus-directory palette.pal");
+      System.exit(1);
+    }
+
+    final File l_corpus = new File(args[0]);
+    final ColorNamer l_namer = CoreBenchmark.readNamer(new File(args[1]));
+
+    final int l_failures = checkNv21() + checkRegions() + checkConversions()
+        + checkColors(l_corpus, l_namer) + checkLookups(l_namer)
+        + checkLayouts(l_corpus) + checkRecording(l_corpus)
+        + checkProfiles(l_corpus) + checkMatches(l_corpus) + checkBursts()
+        + checkFocus() + checkVision(l_corpus) + checkStabilizer()
+        + checkFormatting() + checkPalettes() + checkHistory()
+        + checkIlluminants() + checkPoints() + checkStartup()
+        + checkBudgets(l_corpus, l_namer);
+
+    System.out.println(0 == l_failures ? "OK" : l_failures + " failed");
+    System.exit(0 == l_failures ? 0 : 1);
+  }
+
+  /**
+   * @return The number of YCbCr triplets converted to other than the
+   *         expected RGB, or NV21 frames, of even or odd size, whose pixels
+   *         are read off other chroma than their own.
+   */
+  private static int checkNv21()
+  {
+    // Y, Cb, Cr and the RGB expected, clamped at either end.
+    final int[][] l_known = {
+        { 128, 128, 128, 0xff808080 },
+        { 0, 128, 128, 0xff000000 },
+        { 255, 128, 128, 0xffffffff },
+        { 0, 0, 0, 0xff008800 },
+        { 255, 255, 255, 0xffff79ff },
+        { 100, 90, 200, 0xffc83e20 },
+        { 76, 85, 255, 0xfffe0100 } };
+    int l_checks = 0;
+    int l_failures = 0;
+
+    for (final int[] l_case : l_known)
+    {
+      final int l_rgb = Nv21Sampler.toRgb(l_case[0], l_case[1], l_case[2]);
+      ++l_checks;
+      if (l_case[3] != l_rgb)
+      {
+        ++l_failures;
+        System.out.println(String.format(Locale.US,
+            "FAIL YCbCr %d %d %d: %08x, expected %08x", l_case[0],
+            l_case[1], l_case[2], l_rgb, l_case[3]));
+      }
+    }
+
+    // Across the cube, the fixed point transform, which truncates, must be
+    // within a level of the full range BT.601 one, give or take the
+    // precision of its coefficients.
+    double l_worst = 0;
+    for (int l_y = 0; l_y < 256; l_y += 5)
+    {
+      for (int l_cb = 0; l_cb < 256; l_cb += 5)
+      {
+        for (int l_cr = 0; l_cr < 256; l_cr += 5)
+        {
+          final int l_rgb = Nv21Sampler.toRgb(l_y, l_cb, l_cr);
+          final double l_red = l_y + 1.402 * (l_cr - 128);
+          final double l_green = l_y - 0.344136 * (l_cb - 128)
+              - 0.714136 * (l_cr - 128);
+          final double l_blue = l_y + 1.772 * (l_cb - 128);
+          l_worst = Math.max(l_worst, Math.max(
+              levelError(ColorConversion.red(l_rgb), l_red),
+              Math.max(levelError(ColorConversion.green(l_rgb), l_green),
+                  levelError(ColorConversion.blue(l_rgb), l_blue))));
+        }
+      }
+    }
+    ++l_checks;
+    if (1.01 < l_worst)
+    {
+      ++l_failures;
+      System.out.println("FAIL YCbCr off by " + l_worst + " levels");
+    }
+
+    // Every pixel, down to the last row and column, must be read off the
+    // VU pair of its own 2x2 block, whether the frame is of even or odd
+    // size.
+    final int[][] l_sizes = { { 4, 4 }, { 5, 4 }, { 4, 3 }, { 5, 3 } };
+    final int[] l_row = new int[5];
+    for (final int[] l_size : l_sizes)
+    {
+      final int l_width = l_size[0];
+      final int l_height = l_size[1];
+      final int l_chromaWidth = (l_width + 1) / 2;
+      final int l_chromaHeight = (l_height + 1) / 2;
+      final String l_name = l_width + "x" + l_height;
+
+      ++l_checks;
+      if (l_width * l_height + 2 * l_chromaWidth * l_chromaHeight
+          != Nv21Sampler.bufferSize(l_width, l_height))
+      {
+        ++l_failures;
+        System.out.println("FAIL NV21 " + l_name + " buffer size "
+            + Nv21Sampler.bufferSize(l_width, l_height));
+      }
+
+      final byte[] l_data = new byte[Nv21Sampler.bufferSize(l_width,
+          l_height)];
+      for (int l_i = 0; l_i < l_width * l_height; ++l_i)
+      {
+        l_data[l_i] = (byte) (40 + 11 * l_i);
+      }
+      for (int l_i = 0; l_i < l_chromaWidth * l_chromaHeight; ++l_i)
+      {
+        l_data[l_width * l_height + 2 * l_i] = (byte) (70 + 37 * l_i);
+        l_data[l_width * l_height + 2 * l_i + 1] = (byte) (200 - 29 * l_i);
+      }
+      final YuvFrame l_frame = new YuvFrame().setNv21(l_data, l_width,
+          l_height);
+
+      int l_wrong = 0;
+      for (int l_y = 0; l_y < l_height; ++l_y)
+      {
+        Nv21Sampler.readRow(l_data, l_width, l_height, 0, l_y, l_width,
+            l_row, 0);
+        for (int l_x = 0; l_x < l_width; ++l_x)
+        {
+          final int l_block = (l_y / 2) * l_chromaWidth + l_x / 2;
+          final int l_expected = Nv21Sampler.toRgb(
+              (40 + 11 * (l_y * l_width + l_x)) & 0xff,
+              (200 - 29 * l_block) & 0xff, (70 + 37 * l_block) & 0xff);
+          if (l_expected != Nv21Sampler.pixel(l_data, l_width, l_height,
+              l_x, l_y) || l_expected != l_row[l_x]
+              || l_expected != l_frame.pixel(l_x, l_y))
+          {
+            ++l_wrong;
+          }
+        }
+      }
+      ++l_checks;
+      if (0 != l_wrong)
+      {
+        ++l_failures;
+        System.out.println("FAIL NV21 " + l_name + " " + l_wrong
+            + " pixels");
+      }
+
+      final byte[] l_copy = new byte[l_data.length];
+      l_frame.copyNv21(l_copy);
+      ++l_checks;
+      if (!Arrays.equals(l_data, l_copy))
+      {
+        ++l_failures;
+        System.out.println("FAIL NV21 " + l_name + " copy");
+      }
+    }
+
+    System.out.println(l_checks + " NV21 checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of display orientations calculated other than
+   *         expected, or orientations, mirrored or not, mapping a view
+   *         point onto other than the image pixel shown there.
+   */
+  private static int checkRegions()
+  {
+    // Sensor orientation, display rotation, front facing and the display
+    // orientation expected.
+    final int[][] l_orientations = {
+        { 90, 0, 0, 90 }, { 90, 90, 0, 0 }, { 90, 180, 0, 270 },
+        { 90, 270, 0, 180 }, { 270, 0, 1, 90 }, { 270, 90, 1, 0 },
+        { 270, 180, 1, 270 }, { 270, 270, 1, 180 }, { 0, 0, 0, 0 } };
+    final int l_imageWidth = 8;
+    final int l_imageHeight = 6;
+    final int l_scale = 3;
+    final int[] l_out = new int[2];
+    final int[] l_corner = new int[2];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    for (final int[] l_case : l_orientations)
+    {
+      final int l_orientation = RegionMapper.displayOrientation(l_case[0],
+          l_case[1], 1 == l_case[2]);
+      ++l_checks;
+      if (l_case[3] != l_orientation)
+      {
+        ++l_failures;
+        System.out.println("FAIL orientation " + l_case[0] + " "
+            + l_case[1] + " " + l_case[2] + ": " + l_orientation);
+      }
+    }
+
+    for (int l_orientation = 0; l_orientation < 360; l_orientation += 90)
+    {
+      for (int l_mirror = 0; l_mirror < 2; ++l_mirror)
+      {
+        final boolean l_mirrored = 1 == l_mirror;
+        final boolean l_onSide = 90 == l_orientation || 270 == l_orientation;
+        final int l_viewWidth = l_scale
+            * (l_onSide ? l_imageHeight : l_imageWidth);
+        final int l_viewHeight = l_scale
+            * (l_onSide ? l_imageWidth : l_imageHeight);
+        final String l_name = l_orientation + (l_mirrored ? " mirrored"
+            : "");
+
+        // The image is mirrored, and then turned clockwise, onto the view,
+        // so each view pixel is turned back, and mirrored back.
+        int l_wrong = 0;
+        for (int l_y = 0; l_y < l_viewHeight; ++l_y)
+        {
+          for (int l_x = 0; l_x < l_viewWidth; ++l_x)
+          {
+            final int l_u = l_x / l_scale;
+            final int l_v = l_y / l_scale;
+            int l_imageX;
+            int l_imageY;
+            switch (l_orientation)
+            {
+              case 90:
+                l_imageX = l_v;
+                l_imageY = l_imageHeight - 1 - l_u;
+                break;
+              case 180:
+                l_imageX = l_imageWidth - 1 - l_u;
+                l_imageY = l_imageHeight - 1 - l_v;
+                break;
+              case 270:
+                l_imageX = l_imageWidth - 1 - l_v;
+                l_imageY = l_u;
+                break;
+              default:
+                l_imageX = l_u;
+                l_imageY = l_v;
+                break;
+            }
+            if (l_mirrored)
+            {
+              l_imageX = l_imageWidth - 1 - l_imageX;
+            }
+
+            RegionMapper.toImage(l_x, l_y, l_viewWidth, l_viewHeight,
+                l_imageWidth, l_imageHeight, l_orientation, l_mirrored,
+                l_out);
+            if (l_imageX != l_out[0] || l_imageY != l_out[1])
+            {
+              ++l_wrong;
+            }
+          }
+        }
+        ++l_checks;
+        if (0 != l_wrong)
+        {
+          ++l_failures;
+          System.out.println("FAIL region " + l_name + " " + l_wrong
+              + " of " + l_viewWidth * l_viewHeight + " points");
+        }
+
+        // Points off the view are clamped onto the nearest corner.
+        final int[][] l_corners = { { 0, 0, -5, -5 },
+            { l_viewWidth - 1, 0, l_viewWidth + 5, -1 },
+            { 0, l_viewHeight - 1, -1, l_viewHeight },
+            { l_viewWidth - 1, l_viewHeight - 1, l_viewWidth + 2,
+              l_viewHeight + 7 } };
+        int l_unclamped = 0;
+        for (final int[] l_point : l_corners)
+        {
+          RegionMapper.toImage(l_point[0], l_point[1], l_viewWidth,
+              l_viewHeight, l_imageWidth, l_imageHeight, l_orientation,
+              l_mirrored, l_corner);
+          RegionMapper.toImage(l_point[2], l_point[3], l_viewWidth,
+              l_viewHeight, l_imageWidth, l_imageHeight, l_orientation,
+              l_mirrored, l_out);
+          if (l_corner[0] != l_out[0] || l_corner[1] != l_out[1]
+              || (0 != l_corner[0] && l_imageWidth - 1 != l_corner[0])
+              || (0 != l_corner[1] && l_imageHeight - 1 != l_corner[1]))
+          {
+            ++l_unclamped;
+          }
+        }
+        ++l_checks;
+        if (0 != l_unclamped)
+        {
+          ++l_failures;
+          System.out.println("FAIL region " + l_name + " " + l_unclamped
+              + " corners");
+        }
+
+        // A view not scaled evenly must still map its corners onto the
+        // corners of the image, and nothing off it.
+        int l_outside = 0;
+        for (int l_y = 0; l_y < 1920; l_y += 7)
+        {
+          for (int l_x = 0; l_x < 1080; l_x += 7)
+          {
+            RegionMapper.toImage(l_x, l_y, 1080, 1920, 640, 480,
+                l_orientation, l_mirrored, l_out);
+            if (0 > l_out[0] || 640 <= l_out[0] || 0 > l_out[1]
+                || 480 <= l_out[1])
+            {
+              ++l_outside;
+            }
+          }
+        }
+        RegionMapper.toImage(1079, 1919, 1080, 1920, 640, 480,
+            l_orientation, l_mirrored, l_out);
+        ++l_checks;
+        if (0 != l_outside || (0 != l_out[0] && 639 != l_out[0])
+            || (0 != l_out[1] && 479 != l_out[1]))
+        {
+          ++l_failures;
+          System.out.println("FAIL region " + l_name + " uneven, "
+              + l_outside + " off the image");
+        }
+      }
+    }
+
+    System.out.println(l_checks + " region checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of ColorConversion conversions further off double
+   *         precision math than their tables allow, over every 7th color,
+   *         or not giving the color back once converted back.
+   */
+  private static int checkConversions()
+  {
+    final String[] l_names = { "Lab dE76", "Lab round trip", "HSV",
+        "HSL", "CMYK", "HSV round trip", "HSL round trip",
+        "CMYK round trip" };
+    // Lab and its round trip are bound by the f(t) table, and the others
+    // by rounding to tenths of degrees, and permille, alone.
+    final double[] l_slacks = { 0.1, 2, 0.51, 0.51, 0.51, 0, 0, 0 };
+    final double[] l_worst = new double[l_names.length];
+    final int[] l_fixed = new int[4];
+    final double[] l_exact = new double[4];
+
+    for (int l_color = 0; l_color < 1 << 24; l_color += 7)
+    {
+      final int l_red = ColorConversion.red(l_color);
+      final int l_green = ColorConversion.green(l_color);
+      final int l_blue = ColorConversion.blue(l_color);
+
+      ColorConversion.toLab(l_color, l_fixed, 0);
+      labExact(l_red, l_green, l_blue, l_exact);
+      l_worst[0] = Math.max(l_worst[0], Math.sqrt(
+          square(l_fixed[0] / (double) ColorConversion.LAB_SCALE
+              - l_exact[0])
+          + square(l_fixed[1] / (double) ColorConversion.LAB_SCALE
+              - l_exact[1])
+          + square(l_fixed[2] / (double) ColorConversion.LAB_SCALE
+              - l_exact[2])));
+      l_worst[1] = Math.max(l_worst[1], channelDistance(l_color,
+          ColorConversion.fromLab(l_fixed[0], l_fixed[1], l_fixed[2])));
+
+      ColorConversion.toHsv(l_color, l_fixed, 0);
+      hsvExact(l_red, l_green, l_blue, l_exact);
+      l_worst[2] = Math.max(l_worst[2], unitDistance(l_fixed, l_exact, 3));
+      l_worst[5] = Math.max(l_worst[5], channelDistance(l_color,
+          fromHsv(l_fixed[0], l_fixed[1], l_fixed[2])));
+
+      ColorConversion.toHsl(l_color, l_fixed, 0);
+      hslExact(l_red, l_green, l_blue, l_exact);
+      l_worst[3] = Math.max(l_worst[3], unitDistance(l_fixed, l_exact, 3));
+      l_worst[6] = Math.max(l_worst[6], channelDistance(l_color,
+          fromHsl(l_fixed[0], l_fixed[1], l_fixed[2])));
+
+      ColorConversion.toCmyk(l_color, l_fixed, 0);
+      cmykExact(l_red, l_green, l_blue, l_exact);
+      l_worst[4] = Math.max(l_worst[4], unitDistance(l_fixed, l_exact, 4));
+      l_worst[7] = Math.max(l_worst[7], channelDistance(l_color,
+          fromCmyk(l_fixed[0], l_fixed[1], l_fixed[2], l_fixed[3])));
+    }
+
+    int l_failures = 0;
+    for (int l_i = 0; l_i < l_names.length; ++l_i)
+    {
+      if (l_slacks[l_i] < l_worst[l_i])
+      {
+        ++l_failures;
+        System.out.println(String.format(Locale.US,
+            "FAIL %s off by %.3f", l_names[l_i], l_worst[l_i]));
+      }
+    }
+
+    System.out.println(l_names.length + " conversion checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The linear light, 0..1, of an 8 bit sRGB channel.
+   */
+  private static double linearExact(int channel)
+  {
+    final double l_c = channel / 255.0;
+    return 0.04045 >= l_c ? l_c / 12.92
+        : Math.pow((l_c + 0.055) / 1.055, 2.4);
+  }
+
+  /**
+   * @return The 8 bit sRGB channel, rounded and clamped, of _linear_ light.
+   */
+  private static int channelExact(double linear)
+  {
+    final double l_c = 0.0031308 >= linear ? linear * 12.92
+        : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+    return (int) Math.max(0, Math.min(255, Math.round(l_c * 255)));
+  }
+
+  /**
+   * @return The CIELAB f(t).
+   */
+  private static double labFExact(double t)
+  {
+    return 216.0 / 24389 < t ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+  }
+
+  /**
+   * Convert a color to CIELAB, under D65, in double precision.
+   */
+  private static void labExact(int red, int green, int blue, double[] out)
+  {
+    final double l_r = linearExact(red);
+    final double l_g = linearExact(green);
+    final double l_b = linearExact(blue);
+    final double l_fx = labFExact((0.4124564 * l_r + 0.3575761 * l_g
+        + 0.1804375 * l_b) / 0.95047);
+    final double l_fy = labFExact(0.2126729 * l_r + 0.7151522 * l_g
+        + 0.0721750 * l_b);
+    final double l_fz = labFExact((0.0193339 * l_r + 0.1191920 * l_g
+        + 0.9503041 * l_b) / 1.08883);
+
+    out[0] = 116 * l_fy - 16;
+    out[1] = 500 * (l_fx - l_fy);
+    out[2] = 200 * (l_fy - l_fz);
+  }
+
+  /**
+   * @return The hue, in tenths of degrees, of a color with the given
+   *         maximum channel and chroma, in double precision.
+   */
+  private static double hueExact(int red, int green, int blue, int max,
+      int chroma)
+  {
+    if (0 == chroma)
+    {
+      return 0;
+    }
+
+    double l_hue;
+    if (max == red)
+    {
+      l_hue = 600.0 * (green - blue) / chroma;
+    }
+    else if (max == green)
+    {
+      l_hue = 1200 + 600.0 * (blue - red) / chroma;
+    }
+    else
+    {
+      l_hue = 2400 + 600.0 * (red - green) / chroma;
+    }
+    return 0 > l_hue ? l_hue + 3600 : l_hue;
+  }
+
+  /**
+   * Convert a color to HSV, in tenths of degrees and permille, in double
+   * precision.
+   */
+  private static void hsvExact(int red, int green, int blue, double[] out)
+  {
+    final int l_max = Math.max(red, Math.max(green, blue));
+    final int l_min = Math.min(red, Math.min(green, blue));
+
+    out[0] = hueExact(red, green, blue, l_max, l_max - l_min);
+    out[1] = 0 == l_max ? 0 : 1000.0 * (l_max - l_min) / l_max;
+    out[2] = 1000.0 * l_max / 255;
+  }
+
+  /**
+   * Convert a color to HSL, in tenths of degrees and permille, in double
+   * precision.
+   */
+  private static void hslExact(int red, int green, int blue, double[] out)
+  {
+    final int l_max = Math.max(red, Math.max(green, blue));
+    final int l_min = Math.min(red, Math.min(green, blue));
+    final double l_lightness = (l_max + l_min) / 510.0;
+
+    out[0] = hueExact(red, green, blue, l_max, l_max - l_min);
+    out[1] = l_max == l_min ? 0 : 1000.0 * (l_max - l_min) / 255
+        / (1 - Math.abs(2 * l_lightness - 1));
+    out[2] = 1000 * l_lightness;
+  }
+
+  /**
+   * Convert a color to naive CMYK, in permille, in double precision.
+   */
+  private static void cmykExact(int red, int green, int blue, double[] out)
+  {
+    final int l_max = Math.max(red, Math.max(green, blue));
+
+    out[0] = 0 == l_max ? 0 : 1000.0 * (l_max - red) / l_max;
+    out[1] = 0 == l_max ? 0 : 1000.0 * (l_max - green) / l_max;
+    out[2] = 0 == l_max ? 0 : 1000.0 * (l_max - blue) / l_max;
+    out[3] = 1000.0 * (255 - l_max) / 255;
+  }
+
+  /**
+   * @return The color of a hue, in tenths of degrees, and a chroma and a
+   *         smallest channel, 0..1, as of HSV and HSL alike.
+   */
+  private static int fromHue(int hue, double chroma, double min)
+  {
+    final double l_sector = hue / 600.0;
+    final double l_x = chroma * (1 - Math.abs(l_sector % 2 - 1));
+    final double[] l_rgb;
+    switch ((int) l_sector)
+    {
+      case 0:
+        l_rgb = new double[] { chroma, l_x, 0 };
+        break;
+      case 1:
+        l_rgb = new double[] { l_x, chroma, 0 };
+        break;
+      case 2:
+        l_rgb = new double[] { 0, chroma, l_x };
+        break;
+      case 3:
+        l_rgb = new double[] { 0, l_x, chroma };
+        break;
+      case 4:
+        l_rgb = new double[] { l_x, 0, chroma };
+        break;
+      default:
+        l_rgb = new double[] { chroma, 0, l_x };
+        break;
+    }
+    return ColorConversion.rgb((int) Math.round(255 * (l_rgb[0] + min)),
+        (int) Math.round(255 * (l_rgb[1] + min)),
+        (int) Math.round(255 * (l_rgb[2] + min)));
+  }
+
+  private static int fromHsv(int hue, int saturation, int value)
+  {
+    final double l_chroma = value / 1000.0 * saturation / 1000.0;
+    return fromHue(hue, l_chroma, value / 1000.0 - l_chroma);
+  }
+
+  private static int fromHsl(int hue, int saturation, int lightness)
+  {
+    final double l_chroma = (1 - Math.abs(2 * lightness / 1000.0 - 1))
+        * saturation / 1000.0;
+    return fromHue(hue, l_chroma, lightness / 1000.0 - l_chroma / 2);
+  }
+
+  private static int fromCmyk(int cyan, int magenta, int yellow, int key)
+  {
+    final double l_max = 255 * (1 - key / 1000.0);
+    return ColorConversion.rgb(
+        (int) Math.round(l_max * (1 - cyan / 1000.0)),
+        (int) Math.round(l_max * (1 - magenta / 1000.0)),
+        (int) Math.round(l_max * (1 - yellow / 1000.0)));
+  }
+
+  /**
+   * @return The largest difference of the first _count_ of _fixed_ and
+   *         _exact_, the hue, if any, taken around the circle.
+   */
+  private static double unitDistance(int[] fixed, double[] exact, int count)
+  {
+    double l_worst = 0;
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      double l_distance = Math.abs(fixed[l_i] - exact[l_i]);
+      if (3 == count && 0 == l_i)
+      {
+        l_distance = Math.min(l_distance, 3600 - l_distance);
+      }
+      l_worst = Math.max(l_worst, l_distance);
+    }
+    return l_worst;
+  }
+
+  /**
+   * @return The largest difference of any channel of two colors.
+   */
+  private static int channelDistance(int first, int second)
+  {
+    return Math.max(Math.abs(ColorConversion.red(first)
+        - ColorConversion.red(second)), Math.max(
+        Math.abs(ColorConversion.green(first)
+            - ColorConversion.green(second)),
+        Math.abs(ColorConversion.blue(first)
+            - ColorConversion.blue(second))));
+  }
+
+  private static double square(double value)
+  {
+    return value * value;
+  }
+
+  /**
+   * @return How many levels _actual_ is off _expected_, clamped to 0..255.
+   */
+  private static double levelError(int actual, double expected)
+  {
+    return Math.abs(actual - Math.max(0, Math.min(255, expected)));
+  }
+
+  /**
+   * @return The number of palettes whose lookup table names random colors
+   *         much further off than the nearest entry, by brute force, or
+   *         does so too often.
+   */
+  private static int checkLookups(ColorNamer namer)
+  {
+    // The k-d tree only weighs the few nearest entries by CIEDE2000, so
+    // both it, and the table, may miss by a fraction of a unit, once in a
+    // while.
+    final double l_slack = 1.0;
+    final double l_missRate = 0.005;
+    final int l_queries = 4000;
+    final Random l_random = new Random(1);
+
+    final int[] l_colors = new int[1000];
+    final String[] l_names = new String[l_colors.length];
+    for (int l_i = 0; l_i < l_colors.length; ++l_i)
+    {
+      l_colors[l_i] = l_random.nextInt(1 << 24);
+      l_names[l_i] = Integer.toString(l_i);
+    }
+    final ColorNamer[] l_namers = { namer,
+        new ColorNamer(new ColorPalette(l_colors, l_names)) };
+
+    final int[] l_lab = new int[3];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    for (final ColorNamer l_namer : l_namers)
+    {
+      final ColorPalette l_palette = l_namer.getPalette();
+      final int[] l_entries = new int[3 * l_palette.size()];
+      for (int l_i = 0; l_i < l_palette.size(); ++l_i)
+      {
+        ColorConversion.toLab(l_palette.getColor(l_i), l_entries, 3 * l_i);
+      }
+
+      double l_worst = 0;
+      int l_misses = 0;
+      for (int l_q = 0; l_q < l_queries; ++l_q)
+      {
+        final int l_rgb = l_random.nextInt(1 << 24);
+        ColorConversion.toLab(l_rgb, l_lab, 0);
+
+        double l_best = Double.MAX_VALUE;
+        for (int l_i = 0; l_i < l_palette.size(); ++l_i)
+        {
+          l_best = Math.min(l_best, labDistance(l_lab, l_entries, 3 * l_i));
+        }
+        final double l_excess = labDistance(l_lab, l_entries,
+            3 * l_namer.lookup(l_rgb)) - l_best;
+        if (0 < l_excess)
+        {
+          ++l_misses;
+          l_worst = Math.max(l_worst, l_excess);
+        }
+      }
+
+      ++l_checks;
+      if (l_slack < l_worst || l_missRate * l_queries < l_misses)
+      {
+        ++l_failures;
+        System.out.println(String.format(Locale.US,
+            "FAIL lookup of %d entries: %d of %d missed, by up to %.2f",
+            l_palette.size(), l_misses, l_queries, l_worst));
+      }
+    }
+
+    System.out.println(l_checks + " lookup checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The CIEDE2000 between the Lab color _lab_ and the one at
+   *         _offset_ of _entries_, both as by ColorConversion.toLab().
+   */
+  private static double labDistance(int[] lab, int[] entries, int offset)
+  {
+    return DeltaE.cie2000((double) lab[0] / ColorConversion.LAB_SCALE,
+        (double) lab[1] / ColorConversion.LAB_SCALE,
+        (double) lab[2] / ColorConversion.LAB_SCALE,
+        (double) entries[offset] / ColorConversion.LAB_SCALE,
+        (double) entries[offset + 1] / ColorConversion.LAB_SCALE,
+        (double) entries[offset + 2] / ColorConversion.LAB_SCALE);
+  }
+
+  /**
+   * @return The number of failed color checks.
+   */
+  private static int checkColors(File corpus, ColorNamer namer)
+      throws IOException
+  {
+    final Map<String, byte[]> l_fixtures = new HashMap<String, byte[]>();
+    final SamplingKernel l_kernel = new SamplingKernel();
+    final int[] l_pixels =
+        new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+    final int[] l_window = new int[4];
+    final int[] l_lab = new int[6];
+
+    int l_checks = 0;
+    int l_failures = 0;
+
+    final BufferedReader l_reader = open(new File(corpus, "golden.txt"));
+    try
+    {
+      String l_line;
+      while (null != (l_line = l_reader.readLine()))
+      {
+        if (l_line.startsWith("#") || l_line.trim().isEmpty())
+        {
+          continue;
+        }
+
+        final String[] l_fields = l_line.trim().split(" ", 8);
+        final String l_fixture = l_fields[0];
+        final int l_x = Integer.parseInt(l_fields[1]);
+        final int l_y = Integer.parseInt(l_fields[2]);
+        final int l_size = Integer.parseInt(l_fields[3]);
+        final int l_expected = Integer.parseInt(l_fields[5].substring(1), 16);
+        final double l_tolerance = Double.parseDouble(l_fields[6]);
+        final String l_name = l_fields[7];
+
+        byte[] l_data = l_fixtures.get(l_fixture);
+        if (null == l_data)
+        {
+          l_data = Fixtures.read(new File(corpus, l_fixture));
+          l_fixtures.put(l_fixture, l_data);
+        }
+
+        l_kernel.configure(l_size,
+            SamplingKernel.Statistic.valueOf(l_fields[4]));
+
+        if (l_fixture.endsWith(".nv21"))
+        {
+          final int[] l_frameSize = new int[2];
+          Fixtures.nv21Size(l_fixture, l_frameSize);
+          Nv21Sampler.clipSquare(l_frameSize[0], l_frameSize[1], l_x, l_y,
+              l_kernel.getSize(), l_window);
+          Nv21Sampler.readRegion(l_data, l_frameSize[0], l_frameSize[1],
+              l_window[0], l_window[1], l_window[2], l_window[3], l_pixels);
+        }
+        else
+        {
+          Fixtures.decodeRegion(l_data, new Rectangle(
+              l_x - (l_size - 1) / 2, l_y - (l_size - 1) / 2, l_size,
+              l_size), l_pixels, l_window);
+          l_window[2] = l_window[0];
+          l_window[3] = l_window[1];
+        }
+
+        final int l_color = l_kernel.sample(l_pixels, 0, l_window[2],
+            l_window[2], l_window[3]);
+        final String l_found = namer.getName(namer.nearest(l_color));
+
+        ColorConversion.toLab(l_color, l_lab, 0);
+        ColorConversion.toLab(l_expected, l_lab, 3);
+        final double l_distance = DeltaE.cie2000(
+            (double) l_lab[0] / ColorConversion.LAB_SCALE,
+            (double) l_lab[1] / ColorConversion.LAB_SCALE,
+            (double) l_lab[2] / ColorConversion.LAB_SCALE,
+            (double) l_lab[3] / ColorConversion.LAB_SCALE,
+            (double) l_lab[4] / ColorConversion.LAB_SCALE,
+            (double) l_lab[5] / ColorConversion.LAB_SCALE);
+
+        ++l_checks;
+        if (l_distance > l_tolerance || !l_name.equals(l_found))
+        {
+          ++l_failures;
+          System.out.println(String.format(Locale.ROOT,
+              "FAIL %s: got #%06x (%s), %.2f from expected", l_line,
+              l_color & 0xffffff, l_found, l_distance));
+        }
+      }
+    }
+    finally
+    {
+      l_reader.close();
+    }
+
+    System.out.println(l_checks + " color checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of recorded frames, and layouts, read differently
+   *         than straight off the NV21 buffer.
+   */
+  private static int checkLayouts(File corpus) throws IOException
+  {
+    final File[] l_files = corpus.listFiles();
+    if (null == l_files)
+    {
+      return 0;
+    }
+    Arrays.sort(l_files);
+
+    final int[] l_size = new int[2];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    for (final File l_file : l_files)
+    {
+      if (!l_file.getName().endsWith(".nv21"))
+      {
+        continue;
+      }
+
+      Fixtures.nv21Size(l_file.getName(), l_size);
+      final byte[] l_data = Fixtures.read(l_file);
+      final int[] l_expected = new int[l_size[0] * l_size[1]];
+      new YuvFrame().setNv21(l_data, l_size[0], l_size[1]).readRegion(0, 0,
+          l_size[0], l_size[1], l_expected);
+
+      final int[] l_pixels = new int[l_expected.length];
+      for (final SyntheticFrameSource.Layout l_layout
+          : SyntheticFrameSource.Layout.values())
+      {
+        final YuvFrame l_frame = new SyntheticFrameSource(l_data, l_size[0],
+            l_size[1], l_layout, 24).getFrame();
+        l_frame.readRegion(0, 0, l_size[0], l_size[1], l_pixels);
+
+        // Points are read separately, e.g. by the palette extraction.
+        boolean l_same = Arrays.equals(l_expected, l_pixels);
+        for (int l_y = 0; l_same && l_y < l_size[1]; l_y += 7)
+        {
+          for (int l_x = 0; l_same && l_x < l_size[0]; l_x += 5)
+          {
+            l_same = l_expected[l_y * l_size[0] + l_x]
+                == l_frame.pixel(l_x, l_y);
+          }
+        }
+
+        ++l_checks;
+        if (!l_same)
+        {
+          ++l_failures;
+          System.out.println("FAIL " + l_file.getName() + " as " + l_layout);
+        }
+      }
+    }
+
+    System.out.println(l_checks + " layout checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of recorded frames, in any layout, replayed
+   *         differently than they were recorded.
+   */
+  private static int checkRecording(File corpus) throws IOException
+  {
+    final File[] l_files = corpus.listFiles();
+    if (null == l_files)
+    {
+      return 0;
+    }
+    Arrays.sort(l_files);
+
+    final File l_recording = File.createTempFile("golden", ".wtcf");
+    final int[] l_size = new int[2];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    try
+    {
+      for (final File l_file : l_files)
+      {
+        if (!l_file.getName().endsWith(".nv21"))
+        {
+          continue;
+        }
+
+        Fixtures.nv21Size(l_file.getName(), l_size);
+        final byte[] l_data = Fixtures.read(l_file);
+        final int[] l_expected = new int[l_size[0] * l_size[1]];
+        new YuvFrame().setNv21(l_data, l_size[0], l_size[1]).readRegion(0,
+            0, l_size[0], l_size[1], l_expected);
+
+        // Each layout is recorded as a frame of its own, a frame period
+        // apart.
+        final SyntheticFrameSource.Layout[] l_layouts =
+            SyntheticFrameSource.Layout.values();
+        final FrameRecorder l_recorder = new FrameRecorder(l_recording);
+        for (int l_i = 0; l_i < l_layouts.length; ++l_i)
+        {
+          final SyntheticFrameSource l_source = new SyntheticFrameSource(
+              l_data, l_size[0], l_size[1], l_layouts[l_i], 24);
+          l_source.setOrientation(90 * l_i, 1 == l_i % 2);
+          while (!l_recorder.record(l_source.getFrame(), l_i * 33000000L))
+          {
+            Thread.yield();
+          }
+        }
+        l_recorder.close();
+
+        final FrameReplay l_replay = new FrameReplay(l_recording);
+        try
+        {
+          final int[] l_pixels = new int[l_expected.length];
+          for (int l_i = 0; l_i < l_layouts.length; ++l_i)
+          {
+            boolean l_same = l_i < l_replay.size();
+            if (l_same)
+            {
+              final YuvFrame l_frame = l_replay.getFrame(l_i);
+              l_frame.readRegion(0, 0, l_size[0], l_size[1], l_pixels);
+              l_same = Arrays.equals(l_expected, l_pixels)
+                  && 90 * l_i == l_frame.getOrientation()
+                  && (1 == l_i % 2) == l_frame.isMirrored()
+                  && l_i * 33000000L == l_replay.getTime(l_i);
+            }
+
+            ++l_checks;
+            if (!l_same)
+            {
+              ++l_failures;
+              System.out.println("FAIL " + l_file.getName() + " recorded as "
+                  + l_layouts[l_i]);
+            }
+          }
+        }
+        finally
+        {
+          l_replay.close();
+        }
+      }
+    }
+    finally
+    {
+      l_recording.delete();
+    }
+
+    System.out.println(l_checks + " recording checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of capture profiles chosen differently than
+   *         expected for the recorded camera parameters.
+   */
+  private static int checkProfiles(File corpus) throws IOException
+  {
+    final Map<String, CaptureProfileSelector.Capabilities> l_cameras =
+        new HashMap<String, CaptureProfileSelector.Capabilities>();
+
+    int l_checks = 0;
+    int l_failures = 0;
+
+    final BufferedReader l_reader = open(new File(corpus, "profiles.txt"));
+    try
+    {
+      String l_line;
+      while (null != (l_line = l_reader.readLine()))
+      {
+        if (l_line.startsWith("#") || l_line.trim().isEmpty())
+        {
+          continue;
+        }
+
+        final String[] l_fields = l_line.trim().split("\\s+", 6);
+        CaptureProfileSelector.Capabilities l_capabilities =
+            l_cameras.get(l_fields[0]);
+        if (null == l_capabilities)
+        {
+          final BufferedReader l_params =
+              open(new File(new File(corpus, "cameras"), l_fields[0]));
+          try
+          {
+            l_capabilities = CaptureProfileSelector.Capabilities.parse(
+                l_params.readLine());
+          }
+          finally
+          {
+            l_params.close();
+          }
+          l_cameras.put(l_fields[0], l_capabilities);
+        }
+
+        final String l_found = CaptureProfileSelector.select(l_capabilities,
+            CaptureProfileSelector.Profile.valueOf(l_fields[1]),
+            Integer.parseInt(l_fields[2]), Integer.parseInt(l_fields[3]),
+            Integer.parseInt(l_fields[4])).toString();
+
+        ++l_checks;
+        if (!l_found.equals(l_fields[5]))
+        {
+          ++l_failures;
+          System.out.println("FAIL " + l_line + ": got " + l_found);
+        }
+      }
+    }
+    finally
+    {
+      l_reader.close();
+    }
+
+    System.out.println(l_checks + " profile checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of recorded frames mapped differently by tiles than
+   *         on one thread, or with cells whose match strength is off by
+   *         more than the quantization of the table allows.
+   */
+  private static int checkMatches(File corpus) throws IOException
+  {
+    final File[] l_files = corpus.listFiles();
+    if (null == l_files)
+    {
+      return 0;
+    }
+    Arrays.sort(l_files);
+
+    // The table cells are 4 levels per channel wide, which may shift the
+    // difference of a color by up to a couple of units.
+    final double l_slack = 2.0;
+    final int[] l_size = new int[2];
+    final int[] l_lab = new int[6];
+    final byte[] l_serial = new byte[MatchMapper.MAX_CELLS];
+    final byte[] l_tiled = new byte[MatchMapper.MAX_CELLS];
+    final ExecutorService l_executor = Executors.newFixedThreadPool(3);
+    int l_checks = 0;
+    int l_failures = 0;
+
+    try
+    {
+      for (final File l_file : l_files)
+      {
+        if (!l_file.getName().endsWith(".nv21"))
+        {
+          continue;
+        }
+
+        Fixtures.nv21Size(l_file.getName(), l_size);
+        final YuvFrame l_frame = new YuvFrame().setNv21(
+            Fixtures.read(l_file), l_size[0], l_size[1]);
+        final int l_reference = l_frame.pixel(l_size[0] / 2, l_size[1] / 2);
+
+        final MatchMapper l_serialMapper = new MatchMapper(null, 1);
+        final MatchMapper l_tiledMapper = new MatchMapper(l_executor, 3);
+        l_serialMapper.setReference(l_reference,
+            MatchMapper.DEFAULT_TOLERANCE);
+        l_tiledMapper.setReference(l_reference,
+            MatchMapper.DEFAULT_TOLERANCE);
+        final int l_matches = l_serialMapper.map(l_frame, l_serial);
+        final int l_cells = l_serialMapper.getWidth()
+            * l_serialMapper.getHeight();
+
+        ++l_checks;
+        if (l_matches != l_tiledMapper.map(l_frame, l_tiled)
+            || !Arrays.equals(l_serial, l_tiled) || 0 == l_matches)
+        {
+          ++l_failures;
+          System.out.println("FAIL " + l_file.getName() + " tiled");
+        }
+
+        // Every sample clearly within, or beyond, the tolerance must be
+        // told so by the table.
+        final int l_step = l_size[0] / l_serialMapper.getWidth();
+        ColorConversion.toLab(l_reference, l_lab, 0);
+        int l_wrong = 0;
+        for (int l_i = 0; l_i < l_cells; ++l_i)
+        {
+          final int l_x = l_i % l_serialMapper.getWidth();
+          final int l_y = l_i / l_serialMapper.getWidth();
+          ColorConversion.toLab(l_frame.pixel(l_x * l_step + l_step / 2,
+              l_y * l_step + l_step / 2), l_lab, 3);
+          final double l_deltaE = DeltaE.cie2000(
+              (double) l_lab[0] / ColorConversion.LAB_SCALE,
+              (double) l_lab[1] / ColorConversion.LAB_SCALE,
+              (double) l_lab[2] / ColorConversion.LAB_SCALE,
+              (double) l_lab[3] / ColorConversion.LAB_SCALE,
+              (double) l_lab[4] / ColorConversion.LAB_SCALE,
+              (double) l_lab[5] / ColorConversion.LAB_SCALE);
+
+          if ((0 == l_serial[l_i]
+              && MatchMapper.DEFAULT_TOLERANCE - l_slack > l_deltaE)
+              || (0 != l_serial[l_i]
+              && MatchMapper.DEFAULT_TOLERANCE + l_slack < l_deltaE))
+          {
+            ++l_wrong;
+          }
+        }
+
+        ++l_checks;
+        if (0 != l_wrong)
+        {
+          ++l_failures;
+          System.out.println("FAIL " + l_file.getName() + " " + l_wrong
+              + " of " + l_cells + " cells");
+        }
+      }
+    }
+    finally
+    {
+      l_executor.shutdown();
+    }
+
+    System.out.println(l_checks + " match checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of vision filters whose lattice strays from the
+   *         exact conversion, or which filter a recorded frame differently
+   *         by tiles than on one thread.
+   */
+  private static int checkVision(File corpus) throws IOException
+  {
+    final File[] l_files = corpus.listFiles();
+    if (null == l_files)
+    {
+      return 0;
+    }
+    Arrays.sort(l_files);
+
+    // Interpolating within the lattice cells, 16 levels per channel wide,
+    // strays the most near black, where they are the widest in CIEDE2000,
+    // though short of a difference just noticeable.
+    final double l_worstSlack = 2.5;
+    final double l_meanSlack = 0.25;
+    final int[] l_size = new int[2];
+    final int[] l_lab = new int[6];
+    final int[] l_serial = new int[VisionFilter.MAX_PIXELS];
+    final int[] l_tiled = new int[VisionFilter.MAX_PIXELS];
+    final ExecutorService l_executor = Executors.newFixedThreadPool(3);
+    int l_checks = 0;
+    int l_failures = 0;
+
+    try
+    {
+      for (final VisionFilter.Deficiency l_deficiency
+          : VisionFilter.Deficiency.values())
+      {
+        for (int l_daltonize = 0; l_daltonize < 2; ++l_daltonize)
+        {
+          final String l_name = l_deficiency
+              + (0 == l_daltonize ? "" : " daltonized");
+          final VisionFilter l_serialFilter = new VisionFilter(null, 1);
+          final VisionFilter l_tiledFilter = new VisionFilter(l_executor, 3);
+          l_serialFilter.configure(l_deficiency, 1 == l_daltonize);
+          l_tiledFilter.configure(l_deficiency, 1 == l_daltonize);
+
+          double l_worst = 0;
+          double l_total = 0;
+          int l_colors = 0;
+          int l_missed = 0;
+          for (int l_red = 0; l_red < 256; l_red += 5)
+          {
+            for (int l_green = 0; l_green < 256; l_green += 5)
+            {
+              for (int l_blue = 0; l_blue < 256; l_blue += 5)
+              {
+                final int l_color = ColorConversion.rgb(l_red, l_green,
+                    l_blue);
+                final int l_exact = VisionFilter.filter(l_deficiency,
+                    1 == l_daltonize, l_color);
+                final int l_lookup = l_serialFilter.lookup(l_color);
+                ColorConversion.toLab(l_exact, l_lab, 0);
+                ColorConversion.toLab(l_lookup, l_lab, 3);
+                final double l_deltaE = DeltaE.cie2000(
+                    (double) l_lab[0] / ColorConversion.LAB_SCALE,
+                    (double) l_lab[1] / ColorConversion.LAB_SCALE,
+                    (double) l_lab[2] / ColorConversion.LAB_SCALE,
+                    (double) l_lab[3] / ColorConversion.LAB_SCALE,
+                    (double) l_lab[4] / ColorConversion.LAB_SCALE,
+                    (double) l_lab[5] / ColorConversion.LAB_SCALE);
+                l_worst = Math.max(l_worst, l_deltaE);
+                l_total += l_deltaE;
+                ++l_colors;
+                if (0 == l_red % 16 && 0 == l_green % 16
+                    && 0 == l_blue % 16 && l_exact != l_lookup)
+                {
+                  ++l_missed;
+                }
+              }
+            }
+          }
+
+          ++l_checks;
+          if (l_worstSlack < l_worst || l_meanSlack < l_total / l_colors)
+          {
+            ++l_failures;
+            System.out.println("FAIL " + l_name + " off by " + l_worst
+                + " at worst, " + l_total / l_colors + " on average");
+          }
+
+          ++l_checks;
+          if (0 != l_missed)
+          {
+            ++l_failures;
+            System.out.println("FAIL " + l_name + " " + l_missed
+                + " lattice points");
+          }
+
+          for (final File l_file : l_files)
+          {
+            if (!l_file.getName().endsWith(".nv21"))
+            {
+              continue;
+            }
+
+            Fixtures.nv21Size(l_file.getName(), l_size);
+            final YuvFrame l_frame = new YuvFrame().setNv21(
+                Fixtures.read(l_file), l_size[0], l_size[1]);
+            l_serialFilter.filter(l_frame, l_serial);
+            l_tiledFilter.filter(l_frame, l_tiled);
+
+            ++l_checks;
+            if (l_size[0] != l_tiledFilter.getWidth()
+                || l_size[1] != l_tiledFilter.getHeight()
+                || !Arrays.equals(l_serial, l_tiled)
+                || l_serialFilter.lookup(l_frame.pixel(l_size[0] / 2,
+                    l_size[1] / 2)) != l_tiled[l_size[1] / 2 * l_size[0]
+                    + l_size[0] / 2])
+            {
+              ++l_failures;
+              System.out.println("FAIL " + l_file.getName() + " "
+                  + l_name + " tiled");
+            }
+          }
+        }
+      }
+    }
+    finally
+    {
+      l_executor.shutdown();
+    }
+
+    System.out.println(l_checks + " vision checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of bursts stacked differently by tiles than on one
+   *         thread, or no closer to the patch sampled than a single frame
+   *         of them, or not rejecting the highlight passing in one frame.
+   */
+  private static int checkBursts()
+  {
+    final int l_width = 320;
+    final int l_height = 240;
+    final int l_frames = 8;
+    final int l_side = 12;
+
+    final YuvFrame[] l_burst = new YuvFrame[l_frames];
+    for (int l_i = 0; l_i < l_frames; ++l_i)
+    {
+      final int[] l_pixels = Fixtures.scene(l_width, l_height, 100 + l_i);
+      if (3 == l_i)
+      {
+        // A highlight passing over the center of every patch.
+        for (int l_patch = 0; l_patch < Fixtures.PATCH_COLORS.length;
+            ++l_patch)
+        {
+          final int l_x = Fixtures.patchCenterX(l_width, l_patch);
+          final int l_y = Fixtures.patchCenterY(l_height, l_patch);
+          for (int l_row = l_y - l_side; l_row < l_y; ++l_row)
+          {
+            Arrays.fill(l_pixels, l_row * l_width + l_x - l_side,
+                l_row * l_width + l_x, 0xfff0f0f0);
+          }
+        }
+      }
+      l_burst[l_i] = new YuvFrame().setNv21(
+          Fixtures.toNv21(l_pixels, l_width, l_height), l_width, l_height);
+    }
+
+    final int[] l_serial = new int[l_side * l_side];
+    final int[] l_tiled = new int[l_side * l_side];
+    final int[] l_single = new int[l_side * l_side];
+    final ExecutorService l_executor = Executors.newFixedThreadPool(3);
+    final BurstStacker l_serialStacker = new BurstStacker(null, 1);
+    final BurstStacker l_tiledStacker = new BurstStacker(l_executor, 3);
+    int l_checks = 0;
+    int l_failures = 0;
+
+    try
+    {
+      for (int l_patch = 0; l_patch < Fixtures.PATCH_COLORS.length;
+          ++l_patch)
+      {
+        final int l_left = Fixtures.patchCenterX(l_width, l_patch) - l_side;
+        final int l_top = Fixtures.patchCenterY(l_height, l_patch) - l_side;
+        final int l_color = Fixtures.PATCH_COLORS[l_patch];
+
+        l_serialStacker.begin(l_frames, l_side, l_side);
+        l_tiledStacker.begin(l_frames, l_side, l_side);
+        for (final YuvFrame l_frame : l_burst)
+        {
+          l_serialStacker.add(l_frame, l_left, l_top);
+          l_tiledStacker.add(l_frame, l_left, l_top);
+        }
+        l_serialStacker.stack(l_serial);
+        l_tiledStacker.stack(l_tiled);
+
+        ++l_checks;
+        if (!Arrays.equals(l_serial, l_tiled)
+            || l_serialStacker.getRejected() != l_tiledStacker.getRejected()
+            // The variances are summed per tile, in another order.
+            || 1e-9 < Math.abs(l_serialStacker.getUncertainty()
+                - l_tiledStacker.getUncertainty()))
+        {
+          ++l_failures;
+          System.out.println("FAIL burst " + l_patch + " tiled");
+        }
+
+        // Stacking eight frames ought to cut the error well below that of
+        // the cleanest frame, had the highlight been kept.
+        l_burst[0].readRegion(l_left, l_top, l_side, l_side, l_single);
+        final double l_stackedError = squaredError(l_serial, l_color);
+        final double l_singleError = squaredError(l_single, l_color);
+
+        ++l_checks;
+        if (l_stackedError * 3 > l_singleError
+            || l_side * l_side > l_serialStacker.getRejected()
+            || l_side * l_side + l_serialStacker.getSamples() / 20
+                < l_serialStacker.getRejected()
+            || !(l_serialStacker.getUncertainty() < 1.0))
+        {
+          ++l_failures;
+          System.out.println(String.format(Locale.US,
+              "FAIL burst %d error %.1f of %.1f, %d rejected, +-%.2f",
+              l_patch, l_stackedError, l_singleError,
+              l_serialStacker.getRejected(),
+              l_serialStacker.getUncertainty()));
+        }
+      }
+
+      // A burst of the very same frame stacks to it, exactly.
+      l_serialStacker.begin(BurstStacker.MIN_FRAMES, l_side, l_side);
+      for (int l_i = 0; l_i < BurstStacker.MIN_FRAMES; ++l_i)
+      {
+        l_serialStacker.add(l_burst[0], 0, 0);
+      }
+      l_serialStacker.stack(l_serial);
+      l_burst[0].readRegion(0, 0, l_side, l_side, l_single);
+
+      ++l_checks;
+      if (!Arrays.equals(l_serial, l_single)
+          || 0 != l_serialStacker.getRejected()
+          || 0 != l_serialStacker.getUncertainty())
+      {
+        ++l_failures;
+        System.out.println("FAIL burst of one frame");
+      }
+    }
+    finally
+    {
+      l_executor.shutdown();
+    }
+
+    System.out.println(l_checks + " burst checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of points mapped onto other areas than expected,
+   *         and of steps of a scripted session with a fake camera ending
+   *         in another state, or with other calls to the camera, than
+   *         expected.
+   */
+  private static int checkFocus()
+  {
+    final int l_width = 320;
+    final int l_height = 240;
+    int l_checks = 0;
+    int l_failures = 0;
+
+    // Points, window side, and the areas expected; centered on the center
+    // of the pixel, at least a tenth of the frame, and within it.
+    final int[][] l_mappings = {
+        { 160, 120, 16, -97, -96, 103, 104 },
+        { 0, 0, 16, -1000, -1000, -800, -800 },
+        { 319, 239, 16, 800, 800, 1000, 1000 },
+        { 160, 120, 64, -197, -262, 203, 271 } };
+    final int[] l_area = new int[5];
+    for (final int[] l_mapping : l_mappings)
+    {
+      FocusController.toArea(l_mapping[0], l_mapping[1], l_mapping[2],
+          l_width, l_height, FocusController.MAX_WEIGHT, l_area, 0);
+
+      ++l_checks;
+      if (!Arrays.equals(Arrays.copyOfRange(l_mapping, 3, 7),
+          Arrays.copyOf(l_area, 4)))
+      {
+        ++l_failures;
+        System.out.println("FAIL focus area " + Arrays.toString(l_mapping)
+            + " " + Arrays.toString(l_area));
+      }
+    }
+
+    final FakeCamera l_camera = new FakeCamera(1, 2);
+    final FocusController l_focus = new FocusController(l_camera);
+    final int[] l_points = { 160, 120, 40, 40 };
+    final long l_frame = 33000000L;
+    long l_time = 0;
+
+    // Nothing set yet; nothing held back.
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 100),
+        l_time += l_frame, true, FocusController.State.IDLE, 0, 0);
+
+    // Setting the points focuses on them, once.
+    l_focus.setPoints(l_points, 2, 16, l_width, l_height);
+    l_focus.setPoints(l_points, 2, 16, l_width, l_height);
+    ++l_checks;
+    if (1 != l_camera.m_areaSets || 1 != l_camera.m_focusAreas
+        || 2 != l_camera.m_meteringAreas
+        || FocusController.MAX_WEIGHT != l_camera.m_areas[4])
+    {
+      ++l_failures;
+      System.out.println("FAIL focus areas set " + l_camera.m_areaSets);
+    }
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 100),
+        l_time += l_frame, false, FocusController.State.FOCUSING, 1, 0);
+
+    // Focused; the exposure converges, and holds, before readings pass.
+    l_camera.m_listener.onAutoFocus(true);
+    final int[] l_exposure = { 140, 120, 110, 111, 111, 112 };
+    for (int l_i = 0; l_i < l_exposure.length; ++l_i)
+    {
+      ++l_checks;
+      final boolean l_settled = l_exposure.length - 1 == l_i;
+      l_failures += step(l_focus, l_camera,
+          lumaFrame(l_width, l_height, l_exposure[l_i]), l_time += l_frame,
+          l_settled, l_settled ? FocusController.State.SETTLED
+              : FocusController.State.SETTLING, 1, 0);
+    }
+
+    // A flicker is held back, without refocusing.
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 200),
+        l_time += l_frame, false, FocusController.State.SETTLED, 1, 0);
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 115),
+        l_time += l_frame, true, FocusController.State.SETTLED, 1, 0);
+
+    // A new scene refocuses, and a stale result is ignored.
+    final FocusController.AutoFocusListener l_stale = l_camera.m_listener;
+    for (int l_i = 0; l_i < 3; ++l_i)
+    {
+      ++l_checks;
+      l_failures += step(l_focus, l_camera,
+          lumaFrame(l_width, l_height, 30), l_time += l_frame, false,
+          2 == l_i ? FocusController.State.FOCUSING
+              : FocusController.State.SETTLED, 2 == l_i ? 2 : 1, 0);
+    }
+    l_stale.onAutoFocus(true);
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 30),
+        l_time += l_frame, false, FocusController.State.FOCUSING, 2, 0);
+
+    // Moving a point refocuses, cancelling the focus in progress, and a
+    // camera that never answers is given up on.
+    l_points[2] = 200;
+    l_focus.setPoints(l_points, 2, 16, l_width, l_height);
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 30),
+        l_time += l_frame, false, FocusController.State.FOCUSING, 3, 1);
+    ++l_checks;
+    l_failures += step(l_focus, l_camera, lumaFrame(l_width, l_height, 30),
+        l_time += 2500000000L, false, FocusController.State.SETTLING, 3, 1);
+
+    System.out.println(l_checks + " focus checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * Tell a frame to a controller.
+   *
+   * @return 1 if the frame was not passed as expected, or the controller
+   *         or camera not in the state expected, or else 0.
+   */
+  private static int step(FocusController focus, FakeCamera camera,
+      YuvFrame frame, long time, boolean settled,
+      FocusController.State state, int focuses, int cancels)
+  {
+    final boolean l_settled = focus.onFrame(frame, time);
+    if (settled == l_settled && state == focus.getState()
+        && focuses == camera.m_focuses && cancels == camera.m_cancels)
+    {
+      return 0;
+    }
+
+    System.out.println("FAIL focus at " + time / 1000000 + " ms: "
+        + l_settled + " " + focus.getState() + ", " + camera.m_focuses
+        + " focuses, " + camera.m_cancels + " cancels");
+    return 1;
+  }
+
+  /**
+   * @return A gray frame of _luma_.
+   */
+  private static YuvFrame lumaFrame(int width, int height, int luma)
+  {
+    final byte[] l_data = new byte[width * height * 3 / 2];
+    Arrays.fill(l_data, 0, width * height, (byte) luma);
+    Arrays.fill(l_data, width * height, l_data.length, (byte) 128);
+    return new YuvFrame().setNv21(l_data, width, height);
+  }
+
+  /**
+   * This type is responsible for standing in for a camera, recording what
+   * it is told to do.
+   */
+  private static final class FakeCamera implements FocusController.Device
+  {
+    private final int m_maxFocusAreas;
+    private final int m_maxMeteringAreas;
+    private final int[] m_areas = new int[5 * FocusController.MAX_AREAS];
+    private int m_focusAreas;
+    private int m_meteringAreas;
+    private int m_areaSets;
+    private int m_focuses;
+    private int m_cancels;
+    private FocusController.AutoFocusListener m_listener;
+
+    FakeCamera(int maxFocusAreas, int maxMeteringAreas)
+    {
+      m_maxFocusAreas = maxFocusAreas;
+      m_maxMeteringAreas = maxMeteringAreas;
+    }
+
+    @Override
+    public int getMaxFocusAreas()
+    {
+      return m_maxFocusAreas;
+    }
+
+    @Override
+    public int getMaxMeteringAreas()
+    {
+      return m_maxMeteringAreas;
+    }
+
+    @Override
+    public void setAreas(int[] areas, int focusAreas, int meteringAreas)
+    {
+      System.arraycopy(areas, 0, m_areas, 0,
+          5 * Math.max(focusAreas, meteringAreas));
+      m_focusAreas = focusAreas;
+      m_meteringAreas = meteringAreas;
+      ++m_areaSets;
+    }
+
+    @Override
+    public void autoFocus(FocusController.AutoFocusListener listener)
+    {
+      m_listener = listener;
+      ++m_focuses;
+    }
+
+    @Override
+    public void cancelAutoFocus()
+    {
+      ++m_cancels;
+    }
+  }
+
+  /**
+   * @return The mean, over the pixels and channels, of the squared
+   *         difference of each pixel from a color.
+   */
+  private static double squaredError(int[] pixels, int color)
+  {
+    double l_sum = 0;
+    for (final int l_pixel : pixels)
+    {
+      for (int l_shift = 0; l_shift < 24; l_shift += 8)
+      {
+        final int l_difference = ((l_pixel >> l_shift) & 0xff)
+            - ((color >> l_shift) & 0xff);
+        l_sum += l_difference * l_difference;
+      }
+    }
+    return l_sum / (3 * pixels.length);
+  }
+
+  /**
+   * @return The number of scripted readings leaving a ColorStabilizer in
+   *         another lock state, or published otherwise, than expected.
+   */
+  private static int checkStabilizer()
+  {
+    final long l_frame = 33000000L;
+    final ColorStabilizer l_stabilizer = new ColorStabilizer();
+    int l_checks = 0;
+    int l_failures = 0;
+
+    // Steady readings, and readings within a fraction of the lock
+    // distance, lock on once warmed up, and publish as they do.
+    final int[][] l_steady = { { 0xff808080 },
+        { 0xff808080, 0xff818181 } };
+    for (final int[] l_colors : l_steady)
+    {
+      l_stabilizer.reset();
+      long l_time = 0;
+      for (int l_i = 1; l_i <= 2 * ColorStabilizer.WARMUP; ++l_i)
+      {
+        final boolean l_published = l_stabilizer.offer(
+            l_colors[l_i % l_colors.length], l_time += l_frame);
+        final boolean l_locked = ColorStabilizer.WARMUP <= l_i;
+        ++l_checks;
+        if (l_locked != l_stabilizer.isLocked()
+            || (ColorStabilizer.WARMUP == l_i) != (1 != l_i
+                && l_published))
+        {
+          ++l_failures;
+          System.out.println(String.format(Locale.US,
+              "FAIL stabilizer %08x reading %d: locked %b, published %b",
+              l_colors[l_colors.length - 1], l_i, l_stabilizer.isLocked(),
+              l_published));
+        }
+      }
+    }
+
+    // Noise well beyond twice the lock distance releases the lock at once,
+    // and the release is published.
+    long l_time = 2 * ColorStabilizer.WARMUP * l_frame;
+    final boolean l_released = l_stabilizer.offer(0xffc04040,
+        l_time += l_frame);
+    ++l_checks;
+    if (l_stabilizer.isLocked() || !l_released)
+    {
+      ++l_failures;
+      System.out.println("FAIL stabilizer not released by noise");
+    }
+
+    // While unlocked, readings flipping from red to blue every 10 ms are
+    // published no more often than every interval, yet still published.
+    l_stabilizer.reset();
+    long l_publishedAt = -ColorStabilizer.UNLOCKED_INTERVAL;
+    int l_publications = 0;
+    long l_shortest = Long.MAX_VALUE;
+    for (int l_i = 0; l_i < 200; ++l_i)
+    {
+      l_time = l_i * 10000000L;
+      if (l_stabilizer.offer(0 == l_i % 2 ? 0xffff0000 : 0xff0000ff,
+          l_time))
+      {
+        ++l_publications;
+        l_shortest = Math.min(l_shortest, l_time - l_publishedAt);
+        l_publishedAt = l_time;
+      }
+    }
+    ++l_checks;
+    if (l_stabilizer.isLocked() || ColorStabilizer.UNLOCKED_INTERVAL
+        > l_shortest || 2000 / 200 > l_publications)
+    {
+      ++l_failures;
+      System.out.println(String.format(Locale.US,
+          "FAIL stabilizer published %d times, %d ns apart at least",
+          l_publications, l_shortest));
+    }
+
+    System.out.println(l_checks + " stabilizer checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of colors formatted otherwise than by
+   *         String.format, and of results posted to a ColorMailbox not
+   *         taken back as posted.
+   */
+  private static int checkFormatting()
+  {
+    final char[] l_text = new char[2 + ColorFormatter.RGB_MAX_LENGTH];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    // Every byte value goes through each channel, under an alpha that is
+    // to be ignored, and at an offset into the text.
+    for (int l_i = 0; l_i < 256; ++l_i)
+    {
+      final int l_red = l_i;
+      final int l_green = (l_i + 85) & 0xff;
+      final int l_blue = (l_i + 170) & 0xff;
+      final int l_color = (l_i << 24) | ColorConversion.rgb(l_red, l_green,
+          l_blue);
+
+      final String l_hex = String.format(Locale.US, "#%02x%02x%02x", l_red,
+          l_green, l_blue);
+      final int l_hexLength = ColorFormatter.formatHex(l_color, l_text, 2);
+      ++l_checks;
+      if (!l_hex.equals(new String(l_text, 2, l_hexLength))
+          || !l_hex.equals(ColorFormatter.toHexString(l_color)))
+      {
+        ++l_failures;
+        System.out.println("FAIL hex " + l_hex + ": "
+            + new String(l_text, 2, l_hexLength));
+      }
+
+      final String l_rgb = String.format(Locale.US, "%d %d %d", l_red,
+          l_green, l_blue);
+      final int l_rgbLength = ColorFormatter.formatRgb(l_color, l_text, 2);
+      ++l_checks;
+      if (!l_rgb.equals(new String(l_text, 2, l_rgbLength)))
+      {
+        ++l_failures;
+        System.out.println("FAIL rgb " + l_rgb + ": "
+            + new String(l_text, 2, l_rgbLength));
+      }
+    }
+
+    // Colors with and without the sign bit, locked or not, unnamed, and
+    // named up to the largest index that fits.
+    final int[] l_colors = { 0, 0xff000000, 0x7fffffff, 0xffffffff,
+        0x80123456 };
+    final int[] l_names = { -1, 0, 1, 1234, (1 << 30) - 2 };
+    final ColorMailbox l_mailbox = new ColorMailbox();
+    for (final int l_color : l_colors)
+    {
+      for (final int l_name : l_names)
+      {
+        for (int l_lock = 0; l_lock < 2; ++l_lock)
+        {
+          final boolean l_locked = 1 == l_lock;
+          final boolean l_woken = l_mailbox.post(~l_color, !l_locked,
+              l_name);
+          final boolean l_replaced = !l_mailbox.post(l_color, l_locked,
+              l_name);
+          final long l_packed = l_mailbox.take();
+          ++l_checks;
+          if (!l_woken || !l_replaced || ColorMailbox.EMPTY == l_packed
+              || l_color != ColorMailbox.color(l_packed)
+              || l_locked != ColorMailbox.isLocked(l_packed)
+              || l_name != ColorMailbox.nameIndex(l_packed)
+              || ColorMailbox.EMPTY != l_mailbox.take())
+          {
+            ++l_failures;
+            System.out.println(String.format(Locale.US,
+                "FAIL mailbox %08x %b %d: %016x", l_color, l_locked,
+                l_name, l_packed));
+          }
+        }
+      }
+    }
+
+    System.out.println(l_checks + " formatting checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of synthetic frames whose palette differs whether
+   *         tiled or not, and of solid patches not extracted, or not in
+   *         the share of the frame they cover.
+   */
+  private static int checkPalettes()
+  {
+    final int l_width = 320;
+    final int l_height = 240;
+    final int l_clusters = 6;
+    final int[] l_serialColors = new int[l_clusters];
+    final int[] l_serialWeights = new int[l_clusters];
+    final int[] l_tiledColors = new int[l_clusters];
+    final int[] l_tiledWeights = new int[l_clusters];
+    final int[] l_lab = new int[6];
+    final ExecutorService l_executor = Executors.newFixedThreadPool(3);
+    int l_checks = 0;
+    int l_failures = 0;
+
+    try
+    {
+      // Frame after frame of a noisy scene, so that the centroids are
+      // carried over as well as seeded.
+      final PaletteExtractor l_serial = new PaletteExtractor(l_clusters,
+          null, 1);
+      final PaletteExtractor l_tiled = new PaletteExtractor(l_clusters,
+          l_executor, 3);
+      for (int l_seed = 1; l_seed <= 4; ++l_seed)
+      {
+        final YuvFrame l_frame = new YuvFrame().setNv21(Fixtures.toNv21(
+            Fixtures.scene(l_width, l_height, l_seed), l_width, l_height),
+            l_width, l_height);
+        final int l_count = l_serial.extract(l_frame, l_serialColors,
+            l_serialWeights);
+
+        ++l_checks;
+        if (0 == l_count
+            || l_count != l_tiled.extract(l_frame, l_tiledColors,
+                l_tiledWeights)
+            || !Arrays.equals(l_serialColors, l_tiledColors)
+            || !Arrays.equals(l_serialWeights, l_tiledWeights))
+        {
+          ++l_failures;
+          System.out.println("FAIL palette " + l_seed + " tiled: "
+              + Arrays.toString(l_serialColors) + " "
+              + Arrays.toString(l_tiledColors));
+        }
+      }
+
+      // Four solid patches, split off at (200, 90), covering 234, 141,
+      // 391 and 234 permille of the frame.
+      final int[] l_patches = { Fixtures.PATCH_COLORS[0],
+          Fixtures.PATCH_COLORS[1], Fixtures.PATCH_COLORS[2],
+          Fixtures.PATCH_COLORS[3] };
+      final int[] l_shares = { 234, 141, 391, 234 };
+      final int[] l_pixels = new int[l_width * l_height];
+      for (int l_y = 0; l_y < l_height; ++l_y)
+      {
+        for (int l_x = 0; l_x < l_width; ++l_x)
+        {
+          l_pixels[l_y * l_width + l_x] =
+              l_patches[(90 <= l_y ? 2 : 0) + (200 <= l_x ? 1 : 0)];
+        }
+      }
+      final YuvFrame l_frame = new YuvFrame().setNv21(
+          Fixtures.toNv21(l_pixels, l_width, l_height), l_width, l_height);
+
+      final PaletteExtractor l_extractor = new PaletteExtractor(
+          l_patches.length, l_executor, 3);
+      final int l_count = l_extractor.extract(l_frame, l_serialColors,
+          l_serialWeights);
+      ++l_checks;
+      if (l_patches.length != l_count)
+      {
+        ++l_failures;
+        System.out.println("FAIL palette patches: " + l_count);
+      }
+      int l_found = 0;
+      for (int l_i = 0; l_i < l_count; ++l_i)
+      {
+        // Each color is to be within the NV21 round trip of a patch, most
+        // dominant first.
+        int l_patch = 0;
+        double l_distance = Double.MAX_VALUE;
+        ColorConversion.toLab(l_serialColors[l_i], l_lab, 0);
+        for (int l_j = 0; l_j < l_patches.length; ++l_j)
+        {
+          ColorConversion.toLab(l_patches[l_j], l_lab, 3);
+          final double l_candidate = labDistance(l_lab, l_lab, 3);
+          if (l_candidate < l_distance)
+          {
+            l_patch = l_j;
+            l_distance = l_candidate;
+          }
+        }
+
+        ++l_checks;
+        if (2.0 < l_distance || 0 != (l_found & 1 << l_patch)
+            || 10 < Math.abs(l_shares[l_patch] - l_serialWeights[l_i])
+            || (0 < l_i && l_serialWeights[l_i - 1] < l_serialWeights[l_i]))
+        {
+          ++l_failures;
+          System.out.println(String.format(Locale.US,
+              "FAIL palette patch %06x: %08x, %d permille, %.2f off",
+              l_patches[l_patch], l_serialColors[l_i],
+              l_serialWeights[l_i], l_distance));
+        }
+        l_found |= 1 << l_patch;
+      }
+    }
+    finally
+    {
+      l_executor.shutdown();
+    }
+
+    System.out.println(l_checks + " palette checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of SampleHistory records not kept as appended, or
+   *         not found by time or color as by a linear scan, and of queries
+   *         failing while the history grows.
+   */
+  private static int checkHistory() throws IOException
+  {
+    final int l_samples = 20000;
+    final int[] l_colors = new int[l_samples + 1];
+    final long[] l_times = new long[l_samples + 1];
+    final int[] l_names = new int[l_samples + 1];
+    final Random l_random = new Random(1);
+    for (int l_i = 0; l_i < l_samples; ++l_i)
+    {
+      l_colors[l_i] = 0xff000000 | l_random.nextInt(0x1000000);
+      l_names[l_i] = l_i % 500 - 1;
+      l_times[l_i] = l_i * 1000L;
+    }
+
+    final File l_file = File.createTempFile("history", ".bin");
+    l_file.deleteOnExit();
+    int l_checks = 0;
+    int l_failures = 0;
+
+    // Query all along, from another thread, as the history grows.
+    final SampleHistory l_history = new SampleHistory(l_file);
+    final int[] l_lab = new int[3];
+    ColorConversion.toLab(l_colors[0], l_lab, 0);
+    final AtomicBoolean l_appending = new AtomicBoolean(true);
+    final RuntimeException[] l_error = new RuntimeException[1];
+    final Thread l_querying = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          while (l_appending.get())
+          {
+            l_history.indexOf(Long.MAX_VALUE);
+            l_history.nearest(l_lab, 0, 0, Integer.MAX_VALUE);
+          }
+        }
+        catch (final RuntimeException e)
+        {
+          l_error[0] = e;
+        }
+      }
+    });
+    l_querying.start();
+
+    for (int l_i = 0; l_i < l_samples; ++l_i)
+    {
+      // Every tenth sample is taken after the clock went backwards, and is
+      // to be kept at the time of the one before.
+      final boolean l_backwards = 9 == l_i % 10;
+      l_history.append(l_colors[l_i],
+          l_backwards ? l_times[l_i] - 5000 : l_times[l_i], l_names[l_i]);
+      if (l_backwards)
+      {
+        l_times[l_i] = l_times[l_i - 1];
+      }
+    }
+    l_appending.set(false);
+    try
+    {
+      l_querying.join();
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    ++l_checks;
+    if (null != l_error[0])
+    {
+      ++l_failures;
+      System.out.println("FAIL history queried while growing: "
+          + l_error[0]);
+    }
+    ++l_checks;
+    l_failures += checkRecords(l_history, l_colors, l_times, l_names,
+        l_samples, "appended");
+
+    // Reopened, the history carries on from its last time.
+    l_history.close();
+    l_history.append(l_colors[0], 0, -1);
+    final SampleHistory l_reopened = new SampleHistory(l_file);
+    l_colors[l_samples] = 0xff123456;
+    l_times[l_samples] = l_times[l_samples - 1];
+    l_names[l_samples] = 7;
+    l_reopened.append(l_colors[l_samples], 0, l_names[l_samples]);
+    ++l_checks;
+    l_failures += checkRecords(l_reopened, l_colors, l_times, l_names,
+        l_samples + 1, "reopened");
+
+    // Every time, before, between, on and after the samples, in order.
+    int l_expected = 0;
+    for (long l_time = -1000; l_time <= 1000L * l_samples + 1000;
+        l_time += 250)
+    {
+      while (l_samples + 1 > l_expected && l_times[l_expected] < l_time)
+      {
+        ++l_expected;
+      }
+
+      ++l_checks;
+      final int l_index = l_reopened.indexOf(l_time);
+      if (l_expected != l_index)
+      {
+        ++l_failures;
+        System.out.println("FAIL history time " + l_time + ": " + l_index
+            + ", expected " + l_expected);
+      }
+    }
+
+    // Random colors, within ranges partly out of bounds, or empty.
+    final int[] l_sampleLab = new int[3];
+    for (int l_i = 0; l_i < 200; ++l_i)
+    {
+      final int l_color = l_random.nextInt(0x1000000);
+      final int l_from = l_random.nextInt(l_samples + 10) - 5;
+      final int l_to = l_from + l_random.nextInt(3000) - 10;
+      ColorConversion.toLab(l_color, l_lab, 0);
+
+      int l_closest = -1;
+      long l_nearest = Long.MAX_VALUE;
+      for (int l_j = Math.max(0, l_from); l_j < Math.min(l_to,
+          l_samples + 1); ++l_j)
+      {
+        ColorConversion.toLab(l_colors[l_j], l_sampleLab, 0);
+        final long l_distance = squaredLab(l_sampleLab, l_lab);
+        if (l_distance < l_nearest)
+        {
+          l_nearest = l_distance;
+          l_closest = l_j;
+        }
+      }
+
+      ++l_checks;
+      final int l_index = l_reopened.nearest(l_lab, 0, l_from, l_to);
+      if (l_closest != l_index)
+      {
+        ++l_failures;
+        System.out.println(String.format(Locale.US,
+            "FAIL history nearest %06x in %d..%d: %d, expected %d",
+            l_color, l_from, l_to, l_index, l_closest));
+      }
+    }
+    l_reopened.close();
+
+    System.out.println(l_checks + " history checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return 1 if the first _count_ records of a history are not as
+   *         expected, else 0.
+   */
+  private static int checkRecords(SampleHistory history, int[] colors,
+      long[] times, int[] names, int count, String name)
+  {
+    if (count != history.size())
+    {
+      System.out.println("FAIL history " + name + ": " + history.size()
+          + " records, expected " + count);
+      return 1;
+    }
+
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      if (colors[l_i] != history.getColor(l_i)
+          || times[l_i] != history.getTime(l_i)
+          || names[l_i] != history.getNameIndex(l_i))
+      {
+        System.out.println(String.format(Locale.US,
+            "FAIL history %s record %d: %08x %d %d", name, l_i,
+            history.getColor(l_i), history.getTime(l_i),
+            history.getNameIndex(l_i)));
+        return 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return The squared CIE76 distance of two Lab triplets, times
+   *         ColorConversion.LAB_SCALE.
+   */
+  private static long squaredLab(int[] first, int[] second)
+  {
+    final long l_dl = first[0] - second[0];
+    final long l_da = first[1] - second[1];
+    final long l_db = first[2] - second[2];
+    return l_dl * l_dl + l_da * l_da + l_db * l_db;
+  }
+
+  /**
+   * @return The number of methods, and frame kinds, by which a gray scene
+   *         under a colored light is not corrected back to neutral, or
+   *         by which the gains exceed their bounds.
+   */
+  private static int checkIlluminants()
+  {
+    final int l_width = 256;
+    final int l_height = 192;
+    final int l_block = 8;
+    final Random l_random = new Random(1);
+    final int[] l_levels = new int[(l_width / l_block)
+        * (l_height / l_block)];
+    for (int l_i = 0; l_i < l_levels.length; ++l_i)
+    {
+      l_levels[l_i] = 30 + l_random.nextInt(150);
+    }
+
+    // Blocks of random grays, with edges between them, under a warm light,
+    // and under a light of next to no blue.
+    final double[] l_warm = { 1.25, 1.0, 0.6 };
+    final double[] l_starved = { 1.0, 1.0, 0.02 };
+    final int[] l_pixels = new int[l_width * l_height];
+    final IlluminantEstimator l_estimator = new IlluminantEstimator();
+    int l_checks = 0;
+    int l_failures = 0;
+
+    castScene(l_levels, l_block, l_warm, l_pixels, l_width, l_height);
+    final YuvFrame l_frame = new YuvFrame().setNv21(
+        Fixtures.toNv21(l_pixels, l_width, l_height), l_width, l_height);
+    final int[] l_probes = { 50, 100, 150 };
+    for (final IlluminantEstimator.Method l_method
+        : IlluminantEstimator.Method.values())
+    {
+      for (int l_source = 0; l_source < 2; ++l_source)
+      {
+        l_estimator.reset();
+        l_estimator.setMethod(l_method);
+        final boolean l_estimated = 0 == l_source
+            ? l_estimator.estimate(l_pixels, 0, l_width, l_width, l_height)
+            : l_estimator.estimate(l_frame);
+
+        // The channels of a corrected gray are to be within a few levels
+        // of each other; more so off NV21, which rounds the chroma.
+        int l_spread = 0;
+        for (final int l_probe : l_probes)
+        {
+          final int l_corrected = l_estimator.correct(cast(l_probe,
+              l_warm));
+          final int l_red = ColorConversion.red(l_corrected);
+          final int l_green = ColorConversion.green(l_corrected);
+          final int l_blue = ColorConversion.blue(l_corrected);
+          l_spread = Math.max(l_spread, Math.max(l_red, Math.max(l_green,
+              l_blue)) - Math.min(l_red, Math.min(l_green, l_blue)));
+        }
+
+        ++l_checks;
+        if (!l_estimated || (0 == l_source ? 2 : 3) < l_spread)
+        {
+          ++l_failures;
+          System.out.println(String.format(Locale.US,
+              "FAIL illuminant %s %s: %d levels off gray", l_method,
+              0 == l_source ? "colors" : "NV21", l_spread));
+        }
+      }
+    }
+
+    // Blue would need a gain of some 34, and is held at the bound.
+    castScene(l_levels, l_block, l_starved, l_pixels, l_width, l_height);
+    for (final IlluminantEstimator.Method l_method
+        : IlluminantEstimator.Method.values())
+    {
+      l_estimator.reset();
+      l_estimator.setMethod(l_method);
+      final boolean l_estimated = l_estimator.estimate(l_pixels, 0, l_width,
+          l_width, l_height);
+
+      ++l_checks;
+      if (!l_estimated || 4.0 != l_estimator.getGain(2)
+          || 0.25 > l_estimator.getGain(0) || 4.0 < l_estimator.getGain(0)
+          || 0.25 > l_estimator.getGain(1) || 4.0 < l_estimator.getGain(1))
+      {
+        ++l_failures;
+        System.out.println(String.format(Locale.US,
+            "FAIL illuminant %s gains %.3f %.3f %.3f", l_method,
+            l_estimator.getGain(0), l_estimator.getGain(1),
+            l_estimator.getGain(2)));
+      }
+    }
+
+    System.out.println(l_checks + " illuminant checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * Paint blocks of the given gray _levels_ under a light of the given
+   * linear _gains_.
+   */
+  private static void castScene(int[] levels, int block, double[] gains,
+      int[] pixels, int width, int height)
+  {
+    for (int l_y = 0; l_y < height; ++l_y)
+    {
+      for (int l_x = 0; l_x < width; ++l_x)
+      {
+        pixels[l_y * width + l_x] = cast(levels[l_y / block * (width
+            / block) + l_x / block], gains);
+      }
+    }
+  }
+
+  /**
+   * @return The color of a gray _level_ under a light of the given linear
+   *         _gains_.
+   */
+  private static int cast(int level, double[] gains)
+  {
+    final double l_linear = linearExact(level);
+    return ColorConversion.rgb(channelExact(l_linear * gains[0]),
+        channelExact(l_linear * gains[1]), channelExact(l_linear * gains[2]));
+  }
+
+  /**
+   * @return The number of sets of points, by statistic and window size,
+   *         sampled in one sweep otherwise than one by one.
+   */
+  private static int checkPoints()
+  {
+    final int l_width = 320;
+    final int l_height = 240;
+    final YuvFrame l_frame = new YuvFrame().setNv21(Fixtures.toNv21(
+        Fixtures.scene(l_width, l_height, 1), l_width, l_height), l_width,
+        l_height);
+
+    // Apart; overlapping, down to the same point twice, and out of order;
+    // and clipped at each edge and corner.
+    final int[][] l_sets = {
+        { 40, 40, 160, 120, 280, 200 },
+        { 100, 100, 104, 102, 100, 100, 96, 110, 101, 90 },
+        { 0, 0, 319, 239, 0, 239, 319, 0, 160, 0, 0, 120, 319, 120,
+            160, 239 } };
+    final int[] l_sizes = { SamplingKernel.MIN_SIZE, 17,
+        SamplingKernel.MAX_SIZE };
+    final MultiPointSampler l_sampler = new MultiPointSampler();
+    final SamplingKernel l_kernel = new SamplingKernel();
+    final int[] l_window = new int[4];
+    final int[] l_region =
+        new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+    final int[] l_swept = new int[MultiPointSampler.MAX_POINTS];
+    final int[] l_single = new int[MultiPointSampler.MAX_POINTS];
+    int l_checks = 0;
+    int l_failures = 0;
+
+    for (final SamplingKernel.Statistic l_statistic
+        : SamplingKernel.Statistic.values())
+    {
+      for (final int l_size : l_sizes)
+      {
+        l_sampler.configure(l_size, l_statistic);
+        l_kernel.configure(l_size, l_statistic);
+
+        for (final int[] l_points : l_sets)
+        {
+          final int l_count = l_points.length / 2;
+          l_sampler.sample(l_frame, l_points, l_count, l_swept);
+          for (int l_i = 0; l_i < l_count; ++l_i)
+          {
+            Nv21Sampler.clipSquare(l_width, l_height, l_points[2 * l_i],
+                l_points[2 * l_i + 1], l_size, l_window);
+            l_frame.readRegion(l_window[0], l_window[1], l_window[2],
+                l_window[3], l_region);
+            l_single[l_i] = l_kernel.sample(l_region, 0, l_window[2],
+                l_window[2], l_window[3]);
+          }
+
+          ++l_checks;
+          if (!Arrays.equals(Arrays.copyOf(l_single, l_count),
+              Arrays.copyOf(l_swept, l_count)))
+          {
+            ++l_failures;
+            System.out.println("FAIL points " + l_statistic + " "
+                + l_size + " " + Arrays.toString(l_points));
+          }
+        }
+      }
+    }
+
+    System.out.println(l_checks + " point checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * @return The number of starts whose tasks, and phases, came otherwise
+   *         than in their order.
+   */
+  private static int checkStartup()
+  {
+    final List<String> l_log = new ArrayList<String>();
+    final QueuedExecutor l_ui = new QueuedExecutor("ui", l_log);
+    final QueuedExecutor l_idle = new QueuedExecutor("idle", l_log);
+    final QueuedExecutor l_background =
+        new QueuedExecutor("background", l_log);
+    final StartupSequencer l_startup =
+        new StartupSequencer(l_ui, l_idle, l_background);
+    l_startup.setListener(new StartupSequencer.Listener()
+    {
+      @Override
+      public void onPhase(StartupSequencer.Start start,
+          StartupSequencer.Phase phase, long nanos, boolean overBudget)
+      {
+        l_log.add(phase.name());
+      }
+    });
+    int l_checks = 0;
+    int l_failures = 0;
+
+    // Nothing runs before the preview, the deferred tasks wait for the
+    // first frame, on their own executors, and later tasks run at once.
+    l_startup.begin(StartupSequencer.Start.COLD);
+    addStartupTasks(l_startup, l_log, "");
+    l_startup.mark(StartupSequencer.Phase.PREVIEW);
+    l_ui.runAll();
+    l_log.add("|");
+    l_startup.mark(StartupSequencer.Phase.FIRST_FRAME);
+    l_idle.runAll();
+    l_background.runAll();
+    addStartupTasks(l_startup, l_log, "late ");
+    l_ui.runAll();
+    l_idle.runAll();
+    l_background.runAll();
+    ++l_checks;
+    l_failures += checkStartupLog("frame", l_log, "PREVIEW", "to ui",
+        "crosshair", "CROSSHAIR", "|", "FIRST_FRAME", "to idle",
+        "to background", "idle", "background", "DEFERRED", "to ui",
+        "to idle", "to background", "late crosshair", "late idle",
+        "late background");
+
+    // A first frame before the crosshair still waits for it.
+    l_log.clear();
+    l_startup.begin(StartupSequencer.Start.WARM);
+    addStartupTasks(l_startup, l_log, "");
+    l_startup.mark(StartupSequencer.Phase.FIRST_FRAME);
+    l_startup.mark(StartupSequencer.Phase.PREVIEW);
+    l_log.add("|");
+    l_ui.runAll();
+    l_background.runAll();
+    l_idle.runAll();
+    ++l_checks;
+    l_failures += checkStartupLog("early frame", l_log, "FIRST_FRAME",
+        "PREVIEW", "to ui", "|", "crosshair", "CROSSHAIR", "to idle",
+        "to background", "background", "idle", "DEFERRED");
+
+    // Without a preview, or frame, the release lets everything run.
+    l_log.clear();
+    l_startup.begin(StartupSequencer.Start.HOT);
+    addStartupTasks(l_startup, l_log, "");
+    l_log.add("|");
+    l_startup.release();
+    l_ui.runAll();
+    l_idle.runAll();
+    l_background.runAll();
+    ++l_checks;
+    l_failures += checkStartupLog("release", l_log, "|", "to ui",
+        "crosshair", "CROSSHAIR", "to idle", "to background", "idle",
+        "background", "DEFERRED");
+
+    ++l_checks;
+    if (-1 != l_startup.getMillis(StartupSequencer.Start.HOT,
+        StartupSequencer.Phase.PREVIEW)
+        || 0 > l_startup.getMillis(StartupSequencer.Start.COLD,
+            StartupSequencer.Phase.DEFERRED))
+    {
+      ++l_failures;
+      System.out.println("FAIL startup timings");
+    }
+
+    System.out.println(l_checks + " startup checks, " + l_failures
+        + " failed");
+    return l_failures;
+  }
+
+  /**
+   * Queue a task of each priority, logging its name as it runs.
+   */
+  private static void addStartupTasks(StartupSequencer startup,
+      final List<String> log, String prefix)
+  {
+    for (final StartupSequencer.Priority l_priority
+        : StartupSequencer.Priority.values())
+    {
+      final String l_name =
+          prefix + l_priority.name().toLowerCase(Locale.US);
+      startup.add(l_priority, new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          log.add(l_name);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return 1, having said so, if _log_ differs from _expected_, else 0.
+   */
+  private static int checkStartupLog(String label, List<String> log,
+      String... expected)
+  {
+    if (Arrays.asList(expected).equals(log))
+    {
+      return 0;
+    }
+
+    System.out.println("FAIL startup " + label + " " + log);
+    return 1;
+  }
+
+  /**
+   * This type is responsible for holding the tasks handed to it until
+   * told to run them, logging each hand over.
+   */
+  private static final class QueuedExecutor implements Executor
+  {
+    private final String m_name;
+    private final List<String> m_log;
+    private final List<Runnable> m_tasks = new ArrayList<Runnable>();
+
+    QueuedExecutor(String name, List<String> log)
+    {
+      m_name = name;
+      m_log = log;
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+      m_log.add("to " + m_name);
+      m_tasks.add(task);
+    }
+
+    /**
+     * Run the tasks held, including any handed over meanwhile.
+     */
+    void runAll()
+    {
+      while (!m_tasks.isEmpty())
+      {
+        m_tasks.remove(0).run();
+      }
+    }
+  }
+
+  /**
+   * @return The number of benchmark cases over budget.
+   */
+  private static int checkBudgets(File corpus, ColorNamer namer)
+      throws IOException
+  {
+    final Map<String, Harness.Case> l_cases =
+        CoreBenchmark.cases(corpus, namer);
+    final Harness l_harness = new Harness(200000000L, 50000000L, 5);
+
+    int l_failures = 0;
+
+    final BufferedReader l_reader = open(new File(corpus, "budgets.txt"));
+    try
+    {
+      String l_line;
+      while (null != (l_line = l_reader.readLine()))
+      {
+        if (l_line.startsWith("#") || l_line.trim().isEmpty())
+        {
+          continue;
+        }
+
+        final String[] l_fields = l_line.trim().split("\\s+");
+        final Harness.Case l_case = l_cases.get(l_fields[0]);
+        if (null == l_case)
+        {
+          ++l_failures;
+          System.out.println("FAIL " + l_fields[0] + ": no such case");
+          continue;
+        }
+
+        final Harness.Result l_result =
+            l_harness.measure(l_fields[0], l_case);
+        final boolean l_over =
+            l_result.getMedian() > Double.parseDouble(l_fields[1]);
+        if (l_over)
+        {
+          ++l_failures;
+        }
+        System.out.println((l_over ? "FAIL " : "") + l_result + "\t"
+            + l_fields[1]);
+      }
+    }
+    finally
+    {
+      l_reader.close();
+    }
+    return l_failures;
+  }
+
+  private static BufferedReader open(File file) throws IOException
+  {
+    return new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), "UTF-8"));
+  }
+}
@@ -0,0 +1,157 @@
+package com.gmail.notrupertthorne.whatsthatcolor.bench;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This type is responsible for timing benchmark cases on a plain JVM.
+ *
+ * Each case is first calibrated to an iteration count that takes about one
+ * measurement round, then warmed up, so that it has been compiled, and
+ * then timed over a number of rounds. The median and the best time per
+ * iteration are reported, the median being the one to track.
+ */
+public final class Harness
+{
+  /**
+   * This type is responsible for running a benchmark case.
+   */
+  public interface Case
+  {
+    /**
+     * @param iterations The number of times to run the case.
+     * @return A value depending on the work done, which is consumed by the
+     *         harness so that the work can not be optimized away.
+     */
+    int run(int iterations);
+  }
+
+  /**
+   * This type holds the timing of a case.
+   */
+  public static final class Result
+  {
+    private final String m_name;
+    private final double m_median;
+    private final double m_best;
+
+    Result(String name, double median, double best)
+    {
+      m_name = name;
+      m_median = median;
+      m_best = best;
+    }
+
+    public String getName()
+    {
+      return m_name;
+    }
+
+    /**
+     * @return The median time per iteration, in nanoseconds.
+     */
+    public double getMedian()
+    {
+      return m_median;
+    }
+
+    /**
+     * @return The best time per iteration, in nanoseconds.
+     */
+    public double getBest()
+    {
+      return m_best;
+    }
+
+    /**
+     * @return The name, the median and the best time per iteration, tab
+     *         separated, so that results can be collected by scripts.
+     */
+    @Override
+    public String toString()
+    {
+      return String.format(Locale.ROOT, "%s\t%.1f\t%.1f", m_name, m_median,
+          m_best);
+    }
+  }
+
+  private final long m_warmup;
+  private final long m_round;
+  private final int m_rounds;
+
+  /**
+   * This field consumes the values returned by the cases.
+   */
+  private volatile int m_sink;
+
+  /**
+   * @param warmup The warmup time, in nanoseconds.
+   * @param round The time of each measurement round, in nanoseconds.
+   * @param rounds The number of measurement rounds.
+   */
+  public Harness(long warmup, long round, int rounds)
+  {
+    m_warmup = warmup;
+    m_round = round;
+    m_rounds = rounds;
+  }
+
+  /**
+   * Time a case.
+   *
+   * @param name The name of the case, as reported.
+   * @param benchmark The case.
+   * @return The timing.
+   */
+  public Result measure(String name, Case benchmark)
+  {
+    // Calibrate, doubling the iterations until a round is long enough.
+    int l_iterations = 1;
+    while (l_iterations < Integer.MAX_VALUE / 2)
+    {
+      final long l_start = System.nanoTime();
+      m_sink += benchmark.run(l_iterations);
+      if (m_round <= System.nanoTime() - l_start)
+      {
+        break;
+      }
+      l_iterations *= 2;
+    }
+
+    final long l_warmupEnd = System.nanoTime() + m_warmup;
+    while (System.nanoTime() < l_warmupEnd)
+    {
+      m_sink += benchmark.run(l_iterations);
+    }
+
+    final double[] l_times = new double[m_rounds];
+    for (int l_i = 0; l_i < m_rounds; ++l_i)
+    {
+      final long l_start = System.nanoTime();
+      m_sink += benchmark.run(l_iterations);
+      l_times[l_i] = (double) (System.nanoTime() - l_start) / l_iterations;
+    }
+    Arrays.sort(l_times);
+
+    return new Result(name, l_times[m_rounds / 2], l_times[0]);
+  }
+}
@@ -0,0 +1,110 @@
+package com.gmail.notrupertthorne.whatsthatcolor;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.PictureSampler;
+
+/**
+ * This type is responsible for decoding windows of a picture, for the
+ * PictureSampler, through a BitmapRegionDecoder. It sums the time spent
+ * decoding, so that it can be told apart from the sampling.
+ */
+final class BitmapPictureDecoder implements PictureSampler.Decoder
+{
+  private final BitmapRegionDecoder m_decoder;
+  private final BitmapFactory.Options m_options = new BitmapFactory.Options();
+  private final Rect m_window = new Rect();
+  private long m_decodingTime;
+
+  /**
+   * @param decoder The decoder of the picture. It is not recycled.
+   */
+  BitmapPictureDecoder(BitmapRegionDecoder decoder)
+  {
+    m_decoder = decoder;
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return m_decoder.getWidth();
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return m_decoder.getHeight();
+  }
+
+  @Override
+  public boolean decode(int left, int top, int width, int height,
+      int subsampling, int[] out, int[] size)
+  {
+    final long l_start = System.nanoTime();
+    try
+    {
+      m_window.set(left, top, left + width, top + height);
+      m_options.inSampleSize = subsampling;
+
+      final Bitmap l_bitmap = m_decoder.decodeRegion(m_window, m_options);
+      if (null == l_bitmap)
+      {
+        return false;
+      }
+
+      try
+      {
+        final int l_width = l_bitmap.getWidth();
+        final int l_height = l_bitmap.getHeight();
+        if (out.length < l_width * l_height)
+        {
+          return false;
+        }
+
+        l_bitmap.getPixels(out, 0, l_width, 0, 0, l_width, l_height);
+        size[0] = l_width;
+        size[1] = l_height;
+        return true;
+      }
+      finally
+      {
+        l_bitmap.recycle();
+      }
+    }
+    finally
+    {
+      m_decodingTime += System.nanoTime() - l_start;
+    }
+  }
+
+  /**
+   * @return The time, in nanoseconds, spent decoding so far.
+   */
+  long getDecodingTime()
+  {
+    return m_decodingTime;
+  }
+}
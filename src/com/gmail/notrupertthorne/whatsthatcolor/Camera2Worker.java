@@ -0,0 +1,1303 @@
+package com.gmail.notrupertthorne.whatsthatcolor;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FocusController;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameAnalyzer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameExchange;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
+
+/**
+ * This type is responsible for owning the hardware camera, through the
+ * camera2 API, as the FrameSource of devices that fully support it. It is
+ * only available as of Lollipop, so it must only be loaded there.
+ *
+ * The preview frames are delivered in YUV_420_888 by an ImageReader, and
+ * analyzed straight out of the plane buffers of the images, respecting
+ * their row and pixel strides, without being copied. As with CameraWorker,
+ * the images are handed over to a separate analysis thread through a
+ * FrameExchange, and only the latest is kept. Pictures are taken through a
+ * JPEG ImageReader of their own, without stopping the preview.
+ *
+ * The frame size, and the frame rate range, are chosen anew through a
+ * CaptureProfileSelector each time the preview starts, for the surface and
+ * the rotation of the display at the time; the format is always
+ * YUV_420_888. The preview surface is then sized to the largest of the
+ * aspect ratio of the frames the camera may show it at.
+ *
+ * The focus and metering areas are mapped onto the active array of the
+ * sensor, and set on the repeating request. An autofocus is triggered by a
+ * request of its own, and is done once the results that follow it report
+ * the focus locked.
+ *
+ * Whether the camera fully supports the API is probed off the UI thread,
+ * and kept for the build of the system it was probed on; until then, the
+ * legacy CameraWorker is used.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Worker implements FrameSource, Handler.Callback
+{
+  private static final String LOG_TAG = "Camera2Worker";
+
+  /**
+   * This field provides the number of preview images; one being filled by
+   * the camera, one waiting in the exchange, and one being analyzed.
+   */
+  private static final int IMAGE_COUNT = 3;
+
+  /**
+   * This field provides the most pixels of the preview shown.
+   */
+  private static final int MAX_PREVIEW_PIXELS = 1920 * 1080;
+
+  /**
+   * These fields name the preferences keeping whether the camera2 API is
+   * supported, and the build of the system that was probed.
+   */
+  private static final String PREFERENCES = "Camera2Worker";
+  private static final String PREFERENCE_SUPPORTED = "supported";
+  private static final String PREFERENCE_BUILD = "build";
+
+  private static final int MSG_RECYCLE = 1;
+  private static final int MSG_ANALYZE = 2;
+
+  private final CameraManager m_manager;
+  private final HandlerThread m_cameraThread;
+  private final HandlerThread m_analysisThread;
+  private final Handler m_cameraHandler;
+  private final Handler m_analysisHandler;
+  private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+
+  private final FrameAnalyzer m_analyzer;
+  private final PreviewListener m_previewListener;
+
+  /**
+   * This field is only accessed on the analysis thread.
+   */
+  private final YuvFrame m_frame = new YuvFrame();
+
+  private final FrameExchange<Image> m_exchange = new FrameExchange<Image>();
+  private final AtomicBoolean m_analysisPending = new AtomicBoolean();
+
+  /**
+   * These fields are only accessed on the camera thread. The camera is
+   * wanted from an open until the following release, and is opening while
+   * waiting for it to be opened.
+   */
+  private CameraDevice m_camera;
+  private boolean m_wanted;
+  private boolean m_opening;
+  private CameraCaptureSession m_session;
+  private ImageReader m_frameReader;
+  private ImageReader m_pictureReader;
+  private StreamConfigurationMap m_streams;
+  private int m_sensorOrientation;
+  private CaptureProfileSelector.Capabilities m_capabilities;
+  private CaptureProfileSelector.Profile m_profile =
+      CaptureProfileSelector.Profile.HIGH_ACCURACY;
+  private CaptureProfileSelector.Selection m_selection;
+  private SurfaceHolder m_holder;
+  private int m_surfaceWidth;
+  private int m_surfaceHeight;
+  private int m_displayRotation;
+  private PictureListener m_pictureListener;
+  private Rect m_activeArray;
+  private boolean m_autoFocus;
+  private MeteringRectangle[] m_focusRegions;
+  private MeteringRectangle[] m_meteringRegions;
+  private FocusController.AutoFocusListener m_focusListener;
+  private boolean m_focusTriggered;
+  private boolean m_awaitingFirstFrame;
+  private long m_openRequested;
+
+  /**
+   * These fields are published by the camera thread.
+   */
+  private volatile int m_displayOrientation;
+  private volatile boolean m_mirrored;
+  private volatile long m_timeToFirstFrame = -1;
+  private volatile int m_maxFocusAreas;
+  private volatile int m_maxMeteringAreas;
+
+  /**
+   * This listener is called on the camera thread for each preview image.
+   * It only publishes the image, and wakes the analysis thread up.
+   */
+  private final ImageReader.OnImageAvailableListener m_previewFrame =
+      new ImageReader.OnImageAvailableListener()
+  {
+    @Override
+    public void onImageAvailable(ImageReader reader)
+    {
+      final Image l_image;
+      try
+      {
+        l_image = reader.acquireNextImage();
+      }
+      catch (final IllegalStateException e)
+      {
+        // All images are in use; the analysis has fallen behind.
+        return;
+      }
+      if (null == l_image)
+      {
+        return;
+      }
+
+      if (m_awaitingFirstFrame)
+      {
+        m_awaitingFirstFrame = false;
+        m_timeToFirstFrame = SystemClock.elapsedRealtime() - m_openRequested;
+        Log.d(LOG_TAG, "Time to first frame: " + m_timeToFirstFrame + " ms");
+      }
+
+      final Image l_stale = m_exchange.offer(l_image);
+      if (null != l_stale)
+      {
+        l_stale.close();
+      }
+
+      if (m_analysisPending.compareAndSet(false, true))
+      {
+        m_analysisHandler.sendEmptyMessage(MSG_ANALYZE);
+      }
+    }
+  };
+
+  /**
+   * This handler is called on the analysis thread.
+   */
+  private final Handler.Callback m_analysis = new Handler.Callback()
+  {
+    @Override
+    public boolean handleMessage(Message msg)
+    {
+      if (MSG_ANALYZE != msg.what)
+      {
+        return false;
+      }
+
+      m_analysisPending.set(false);
+
+      final Image l_image = m_exchange.take();
+      if (null != l_image)
+      {
+        final long l_arrived = m_exchange.getOfferTime();
+        final Image.Plane[] l_planes = l_image.getPlanes();
+
+        // The planes are read in place; the chroma planes share strides.
+        m_frame.setPlanes(l_image.getWidth(), l_image.getHeight(),
+            l_planes[0].getBuffer(), l_planes[0].getRowStride(),
+            l_planes[1].getBuffer(), l_planes[2].getBuffer(),
+            l_planes[1].getRowStride(), l_planes[1].getPixelStride());
+        m_frame.setOrientation(m_displayOrientation, m_mirrored);
+        m_analyzer.analyze(m_frame, l_arrived);
+
+        m_cameraHandler.obtainMessage(MSG_RECYCLE, l_image).sendToTarget();
+      }
+      return true;
+    }
+  };
+
+  /**
+   * This callback is called on the camera thread as the camera opens, or
+   * fails.
+   */
+  private final CameraDevice.StateCallback m_cameraState =
+      new CameraDevice.StateCallback()
+  {
+    @Override
+    public void onOpened(CameraDevice camera)
+    {
+      m_opening = false;
+      if (!m_wanted)
+      {
+        // Released while opening.
+        camera.close();
+        closePictureReader();
+        return;
+      }
+
+      m_camera = camera;
+      startPreviewIfReady();
+    }
+
+    @Override
+    public void onDisconnected(CameraDevice camera)
+    {
+      Log.d(LOG_TAG, "Camera disconnected");
+      closeCamera(camera);
+    }
+
+    @Override
+    public void onError(CameraDevice camera, int error)
+    {
+      Log.d(LOG_TAG, "Camera error: " + error);
+      closeCamera(camera);
+    }
+  };
+
+  /**
+   * This callback is called on the camera thread once the preview session
+   * has been configured, or failed to.
+   */
+  private final CameraCaptureSession.StateCallback m_sessionState =
+      new CameraCaptureSession.StateCallback()
+  {
+    @Override
+    public void onConfigured(CameraCaptureSession session)
+    {
+      if (session.getDevice() != m_camera || null == m_holder)
+      {
+        // The camera, or surface, went away while configuring.
+        session.close();
+        return;
+      }
+
+      m_session = session;
+      try
+      {
+        startRepeating();
+        m_awaitingFirstFrame = -1 == m_timeToFirstFrame;
+        m_previewListener.onPreviewStarted();
+      }
+      catch (final CameraAccessException e)
+      {
+        Log.d(LOG_TAG, "Error starting camera preview: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void onConfigureFailed(CameraCaptureSession session)
+    {
+      Log.d(LOG_TAG, "Error configuring camera preview");
+    }
+  };
+
+  /**
+   * This listener is called on the camera thread once a picture taken has
+   * been compressed.
+   */
+  private final ImageReader.OnImageAvailableListener m_picture =
+      new ImageReader.OnImageAvailableListener()
+  {
+    @Override
+    public void onImageAvailable(ImageReader reader)
+    {
+      final Image l_image = reader.acquireNextImage();
+      if (null == l_image)
+      {
+        return;
+      }
+
+      final byte[] l_jpeg;
+      try
+      {
+        final ByteBuffer l_buffer = l_image.getPlanes()[0].getBuffer();
+        l_jpeg = new byte[l_buffer.remaining()];
+        l_buffer.get(l_jpeg);
+      }
+      finally
+      {
+        l_image.close();
+      }
+
+      deliverPicture(l_jpeg);
+    }
+  };
+
+  /**
+   * This callback is called on the camera thread as a picture is taken.
+   */
+  private final CameraCaptureSession.CaptureCallback m_capture =
+      new CameraCaptureSession.CaptureCallback()
+  {
+    @Override
+    public void onCaptureStarted(CameraCaptureSession session,
+        CaptureRequest request, long timestamp, long frameNumber)
+    {
+      if (null != m_pictureListener)
+      {
+        m_pictureListener.onShutter();
+      }
+    }
+
+    @Override
+    public void onCaptureFailed(CameraCaptureSession session,
+        CaptureRequest request, CaptureFailure failure)
+    {
+      Log.d(LOG_TAG, "Error taking picture: " + failure.getReason());
+      deliverPicture(null);
+    }
+  };
+
+  /**
+   * This callback is called on the camera thread with the result of each
+   * preview frame, and of an autofocus trigger. Once a trigger has been
+   * carried out, the first result reporting the focus locked ends the
+   * autofocus.
+   */
+  private final CameraCaptureSession.CaptureCallback m_focusResult =
+      new CameraCaptureSession.CaptureCallback()
+  {
+    @Override
+    public void onCaptureCompleted(CameraCaptureSession session,
+        CaptureRequest request, TotalCaptureResult result)
+    {
+      if (null == m_focusListener)
+      {
+        return;
+      }
+      if (!m_focusTriggered)
+      {
+        // Results of frames from before the trigger are of no use.
+        m_focusTriggered = Integer.valueOf(
+            CaptureRequest.CONTROL_AF_TRIGGER_START).equals(
+                request.get(CaptureRequest.CONTROL_AF_TRIGGER));
+        return;
+      }
+
+      final Integer l_state = result.get(CaptureResult.CONTROL_AF_STATE);
+      if (null != l_state
+          && (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == l_state
+          || CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == l_state))
+      {
+        deliverFocus(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+            == l_state);
+      }
+    }
+  };
+
+  /**
+   * @param context The context to get the camera service from.
+   * @param analyzer The analyzer to receive the preview frames.
+   * @param previewListener The listener told each time the preview has
+   *                        been started.
+   */
+  public Camera2Worker(Context context, FrameAnalyzer analyzer,
+      PreviewListener previewListener)
+  {
+    m_manager = (CameraManager) context
+        .getSystemService(Context.CAMERA_SERVICE);
+    m_analyzer = analyzer;
+    m_previewListener = previewListener;
+
+    m_cameraThread = new HandlerThread("Camera",
+        Process.THREAD_PRIORITY_DISPLAY);
+    m_cameraThread.start();
+    m_cameraHandler = new Handler(m_cameraThread.getLooper(), this);
+
+    m_analysisThread = new HandlerThread("Analysis",
+        Process.THREAD_PRIORITY_DEFAULT);
+    m_analysisThread.start();
+    m_analysisHandler = new Handler(m_analysisThread.getLooper(),
+        m_analysis);
+  }
+
+  /**
+   * Tell whether the camera2 API is to be used, which is only the case if
+   * the camera used is fully backed by it, rather than by the legacy API.
+   *
+   * Querying the camera service takes too long for the UI thread, so the
+   * answer is the one probed upon an earlier launch, on the same build of
+   * the system. Failing that, a probe is started in the background, and
+   * the legacy API is used for now.
+   *
+   * @param context The context to get the camera service from.
+   * @return True if the camera is better used through a Camera2Worker.
+   */
+  public static boolean isSupported(Context context)
+  {
+    final Context l_context = context.getApplicationContext();
+    final SharedPreferences l_preferences =
+        l_context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    if (Build.FINGERPRINT.equals(
+        l_preferences.getString(PREFERENCE_BUILD, null)))
+    {
+      return l_preferences.getBoolean(PREFERENCE_SUPPORTED, false);
+    }
+
+    final Thread l_probe = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        l_preferences.edit()
+            .putBoolean(PREFERENCE_SUPPORTED, probe(l_context))
+            .putString(PREFERENCE_BUILD, Build.FINGERPRINT).apply();
+      }
+    }, "Camera2Probe");
+    l_probe.setDaemon(true);
+    l_probe.start();
+    return false;
+  }
+
+  /**
+   * Query the camera service for whether the back facing camera is fully
+   * backed by the camera2 API. This blocks on the camera service.
+   */
+  private static boolean probe(Context context)
+  {
+    final CameraManager l_manager = (CameraManager) context
+        .getSystemService(Context.CAMERA_SERVICE);
+    try
+    {
+      final String l_id = findBackFacingCamera(l_manager);
+      if (null == l_id)
+      {
+        return false;
+      }
+
+      final Integer l_level = l_manager.getCameraCharacteristics(l_id).get(
+          CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+      return null != l_level && CameraCharacteristics
+          .INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY != l_level;
+    }
+    catch (final CameraAccessException e)
+    {
+      Log.d(LOG_TAG, "Error querying cameras: " + e.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public void open(final int displayRotation)
+  {
+    final long l_requested = SystemClock.elapsedRealtime();
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_wanted = true;
+        if (null == m_camera && !m_opening)
+        {
+          m_openRequested = l_requested;
+          m_displayRotation = displayRotation;
+          openOnCameraThread();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void release()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        releaseOnCameraThread();
+      }
+    });
+  }
+
+  @Override
+  public void setPreviewSurface(final SurfaceHolder holder, final int width,
+      final int height, final int displayRotation)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_holder = holder;
+        m_surfaceWidth = width;
+        m_surfaceHeight = height;
+        m_displayRotation = displayRotation;
+        stopPreviewOnCameraThread();
+        startPreviewIfReady();
+      }
+    });
+  }
+
+  @Override
+  public void setCaptureProfile(final CaptureProfileSelector.Profile profile)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (profile == m_profile)
+        {
+          return;
+        }
+
+        m_profile = profile;
+        if (null != m_session)
+        {
+          stopPreviewOnCameraThread();
+          startPreviewIfReady();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void clearPreviewSurface()
+  {
+    runAndWait(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        stopPreviewOnCameraThread();
+        m_holder = null;
+      }
+    });
+  }
+
+  /**
+   * Take a picture, while the preview keeps running. The listener is
+   * called on the camera thread.
+   *
+   * @param listener The listener to receive the picture.
+   */
+  @Override
+  public void takePicture(final PictureListener listener)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (null == m_session || null != m_pictureListener)
+        {
+          return;
+        }
+
+        try
+        {
+          final CaptureRequest.Builder l_request = m_camera
+              .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+          l_request.addTarget(m_pictureReader.getSurface());
+          m_pictureListener = listener;
+          m_session.capture(l_request.build(), m_capture, m_cameraHandler);
+        }
+        catch (final CameraAccessException e)
+        {
+          Log.d(LOG_TAG, "Error taking picture: " + e.getMessage());
+          m_pictureListener = null;
+        }
+      }
+    });
+  }
+
+  @Override
+  public int getMaxFocusAreas()
+  {
+    return m_maxFocusAreas;
+  }
+
+  @Override
+  public int getMaxMeteringAreas()
+  {
+    return m_maxMeteringAreas;
+  }
+
+  /**
+   * Set the focus and metering areas, applying them at once if
+   * previewing, and upon every following preview start.
+   */
+  @Override
+  public void setAreas(int[] areas, final int focusAreas,
+      final int meteringAreas)
+  {
+    final int[] l_areas = new int[5 * Math.max(focusAreas, meteringAreas)];
+    System.arraycopy(areas, 0, l_areas, 0, l_areas.length);
+
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (null == m_activeArray)
+        {
+          return;
+        }
+
+        m_focusRegions = toRegions(l_areas, focusAreas, m_activeArray);
+        m_meteringRegions = toRegions(l_areas, meteringAreas,
+            m_activeArray);
+        if (null != m_session)
+        {
+          try
+          {
+            startRepeating();
+          }
+          catch (final CameraAccessException e)
+          {
+            Log.d(LOG_TAG, "Error setting focus areas: " + e.getMessage());
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Focus once, while previewing. The listener is called on the camera
+   * thread.
+   */
+  @Override
+  public void autoFocus(final FocusController.AutoFocusListener listener)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        deliverFocus(false);
+        if (null == m_session || !m_autoFocus)
+        {
+          listener.onAutoFocus(false);
+          return;
+        }
+
+        try
+        {
+          final CaptureRequest.Builder l_request = createPreviewRequest();
+          l_request.set(CaptureRequest.CONTROL_AF_TRIGGER,
+              CaptureRequest.CONTROL_AF_TRIGGER_START);
+          m_focusListener = listener;
+          m_focusTriggered = false;
+          m_session.capture(l_request.build(), m_focusResult,
+              m_cameraHandler);
+        }
+        catch (final CameraAccessException e)
+        {
+          Log.d(LOG_TAG, "Error focusing: " + e.getMessage());
+          deliverFocus(false);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void cancelAutoFocus()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_focusListener = null;
+        if (null == m_session || !m_autoFocus)
+        {
+          return;
+        }
+
+        try
+        {
+          final CaptureRequest.Builder l_request = createPreviewRequest();
+          l_request.set(CaptureRequest.CONTROL_AF_TRIGGER,
+              CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+          m_session.capture(l_request.build(), null, m_cameraHandler);
+        }
+        catch (final CameraAccessException e)
+        {
+          Log.d(LOG_TAG, "Error cancelling focus: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  @Override
+  public void shutdown()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        releaseOnCameraThread();
+        m_cameraThread.quitSafely();
+        m_analysisThread.quitSafely();
+      }
+    });
+  }
+
+  @Override
+  public int getDisplayOrientation()
+  {
+    return m_displayOrientation;
+  }
+
+  @Override
+  public boolean isMirrored()
+  {
+    return m_mirrored;
+  }
+
+  @Override
+  public long getTimeToFirstFrame()
+  {
+    return m_timeToFirstFrame;
+  }
+
+  @Override
+  public FrameExchange<Image> getFrameExchange()
+  {
+    return m_exchange;
+  }
+
+  /**
+   * Closes the images handed back by the analysis thread.
+   */
+  @Override
+  public boolean handleMessage(Message msg)
+  {
+    if (MSG_RECYCLE != msg.what)
+    {
+      return false;
+    }
+
+    ((Image) msg.obj).close();
+    return true;
+  }
+
+  private void openOnCameraThread()
+  {
+    try
+    {
+      final String l_id = findBackFacingCamera(m_manager);
+      if (null == l_id)
+      {
+        Log.d(LOG_TAG, "Error opening camera: there is none");
+        return;
+      }
+
+      final CameraCharacteristics l_characteristics =
+          m_manager.getCameraCharacteristics(l_id);
+      final Integer l_facing =
+          l_characteristics.get(CameraCharacteristics.LENS_FACING);
+      final Integer l_orientation =
+          l_characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+
+      m_mirrored = null != l_facing
+          && CameraCharacteristics.LENS_FACING_FRONT == l_facing;
+      m_sensorOrientation = null == l_orientation ? 0 : l_orientation;
+
+      m_activeArray = l_characteristics.get(
+          CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+      m_autoFocus = contains(l_characteristics.get(
+          CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+          CameraCharacteristics.CONTROL_AF_MODE_AUTO);
+      m_maxFocusAreas = m_autoFocus ? get(l_characteristics,
+          CameraCharacteristics.CONTROL_MAX_REGIONS_AF) : 0;
+      m_maxMeteringAreas = get(l_characteristics,
+          CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+
+      m_streams = l_characteristics.get(
+          CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      m_capabilities = getCapabilities(l_characteristics, m_streams);
+
+      final Size l_pictureSize = largest(
+          m_streams.getOutputSizes(ImageFormat.JPEG), null,
+          Integer.MAX_VALUE);
+      closePictureReader();
+      m_pictureReader = ImageReader.newInstance(l_pictureSize.getWidth(),
+          l_pictureSize.getHeight(), ImageFormat.JPEG, 1);
+      m_pictureReader.setOnImageAvailableListener(m_picture,
+          m_cameraHandler);
+
+      m_timeToFirstFrame = -1;
+      m_opening = true;
+      m_manager.openCamera(l_id, m_cameraState, m_cameraHandler);
+    }
+    catch (final CameraAccessException e)
+    {
+      // Camera is not available (in use or does not exist)
+      Log.d(LOG_TAG, "Error opening camera: " + e.getMessage());
+      m_opening = false;
+      closePictureReader();
+    }
+    catch (final SecurityException e)
+    {
+      Log.d(LOG_TAG, "Error opening camera: " + e.getMessage());
+      m_opening = false;
+      closePictureReader();
+    }
+  }
+
+  private void releaseOnCameraThread()
+  {
+    m_wanted = false;
+    if (null != m_camera)
+    {
+      closeCamera(m_camera);
+    }
+  }
+
+  /**
+   * Close the camera, and its image readers once the analysis is done with
+   * them.
+   */
+  private void closeCamera(CameraDevice camera)
+  {
+    if (camera != m_camera)
+    {
+      camera.close();
+      if (m_opening)
+      {
+        // Failed before it opened, so that it may be opened anew.
+        m_opening = false;
+        closePictureReader();
+      }
+      return;
+    }
+
+    stopPreviewOnCameraThread();
+    m_camera.close();
+    m_camera = null;
+    deliverPicture(null);
+
+    // The analysis thread may still be reading an image.
+    final ImageReader l_frameReader = m_frameReader;
+    final ImageReader l_pictureReader = m_pictureReader;
+    m_frameReader = null;
+    m_pictureReader = null;
+    m_analysisHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (null != l_frameReader)
+        {
+          l_frameReader.close();
+        }
+        if (null != l_pictureReader)
+        {
+          l_pictureReader.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Close the picture reader, if any, of a camera that has not opened. Its
+   * images are only read on the camera thread, so it is closed at once.
+   */
+  private void closePictureReader()
+  {
+    if (null != m_pictureReader)
+    {
+      m_pictureReader.close();
+      m_pictureReader = null;
+    }
+  }
+
+  private void startPreviewIfReady()
+  {
+    if (null == m_camera || null == m_holder || null != m_session)
+    {
+      return;
+    }
+
+    m_displayOrientation = RegionMapper.displayOrientation(
+        m_sensorOrientation, m_displayRotation, m_mirrored);
+    m_selection = CaptureProfileSelector.select(m_capabilities, m_profile,
+        m_surfaceWidth, m_surfaceHeight, m_displayOrientation);
+    Log.d(LOG_TAG, "Capture profile " + m_profile + ": " + m_selection);
+
+    if (null == m_frameReader
+        || m_selection.getWidth() != m_frameReader.getWidth()
+        || m_selection.getHeight() != m_frameReader.getHeight())
+    {
+      // The analysis thread may still be reading an image of the old size.
+      final ImageReader l_stale = m_frameReader;
+      if (null != l_stale)
+      {
+        m_analysisHandler.post(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            l_stale.close();
+          }
+        });
+      }
+
+      m_frameReader = ImageReader.newInstance(m_selection.getWidth(),
+          m_selection.getHeight(), ImageFormat.YUV_420_888, IMAGE_COUNT);
+      m_frameReader.setOnImageAvailableListener(m_previewFrame,
+          m_cameraHandler);
+    }
+
+    final Size l_frameSize = new Size(m_selection.getWidth(),
+        m_selection.getHeight());
+    final Size l_previewSize = largest(
+        m_streams.getOutputSizes(SurfaceHolder.class), l_frameSize,
+        MAX_PREVIEW_PIXELS);
+    final Size l_size = null == l_previewSize ? l_frameSize : l_previewSize;
+
+    // The surface must be of a size the camera supports. Resizing it calls
+    // setPreviewSurface anew.
+    final Rect l_frame = m_holder.getSurfaceFrame();
+    if (l_size.getWidth() != l_frame.width()
+        || l_size.getHeight() != l_frame.height())
+    {
+      final SurfaceHolder l_holder = m_holder;
+      m_uiHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          l_holder.setFixedSize(l_size.getWidth(), l_size.getHeight());
+        }
+      });
+      return;
+    }
+
+    try
+    {
+      m_camera.createCaptureSession(Arrays.asList(m_holder.getSurface(),
+          m_frameReader.getSurface(), m_pictureReader.getSurface()),
+          m_sessionState, m_cameraHandler);
+    }
+    catch (final CameraAccessException e)
+    {
+      Log.d(LOG_TAG, "Error starting camera preview: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Create a request for the preview, at the frame rate range chosen, and
+   * with the focus and metering regions last set, if any.
+   */
+  private CaptureRequest.Builder createPreviewRequest()
+      throws CameraAccessException
+  {
+    final CaptureRequest.Builder l_request =
+        m_camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+    l_request.addTarget(m_holder.getSurface());
+    l_request.addTarget(m_frameReader.getSurface());
+    if (0 < m_selection.getMaxFps())
+    {
+      l_request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+          new Range<Integer>(m_selection.getMinFps() / 1000,
+              m_selection.getMaxFps() / 1000));
+    }
+    if (null != m_focusRegions)
+    {
+      // Focusing upon request takes the auto focus mode.
+      l_request.set(CaptureRequest.CONTROL_AF_MODE,
+          CaptureRequest.CONTROL_AF_MODE_AUTO);
+      l_request.set(CaptureRequest.CONTROL_AF_REGIONS, m_focusRegions);
+    }
+    if (null != m_meteringRegions)
+    {
+      l_request.set(CaptureRequest.CONTROL_AE_REGIONS, m_meteringRegions);
+    }
+    return l_request;
+  }
+
+  /**
+   * (Re)start the repeating preview request of the session.
+   */
+  private void startRepeating() throws CameraAccessException
+  {
+    m_session.setRepeatingRequest(createPreviewRequest().build(),
+        m_focusResult, m_cameraHandler);
+  }
+
+  /**
+   * Hand the result of an autofocus to the pending focus listener, if any.
+   */
+  private void deliverFocus(boolean focused)
+  {
+    final FocusController.AutoFocusListener l_listener = m_focusListener;
+    m_focusListener = null;
+    if (null != l_listener)
+    {
+      l_listener.onAutoFocus(focused);
+    }
+  }
+
+  private void stopPreviewOnCameraThread()
+  {
+    deliverFocus(false);
+    if (null != m_session)
+    {
+      m_session.close();
+      m_session = null;
+    }
+
+    // Any image still waiting for analysis is dropped.
+    final Image l_stale = m_exchange.clear();
+    if (null != l_stale)
+    {
+      l_stale.close();
+    }
+
+    Log.d(LOG_TAG, String.format("Frames received: %d, analyzed: %d, "
+        + "dropped: %d", m_exchange.getReceived(),
+        m_exchange.getAnalyzed(), m_exchange.getDropped()));
+  }
+
+  /**
+   * Hand a picture, or the lack of one, to the pending picture listener,
+   * if any.
+   */
+  private void deliverPicture(byte[] jpeg)
+  {
+    final PictureListener l_listener = m_pictureListener;
+    m_pictureListener = null;
+    if (null != l_listener)
+    {
+      l_listener.onPicture(jpeg);
+    }
+  }
+
+  /**
+   * Run _task_ on the camera thread, blocking until it has been run.
+   */
+  private void runAndWait(final Runnable task)
+  {
+    final CountDownLatch l_done = new CountDownLatch(1);
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          task.run();
+        }
+        finally
+        {
+          l_done.countDown();
+        }
+      }
+    });
+
+    boolean l_interrupted = false;
+    while (true)
+    {
+      try
+      {
+        l_done.await();
+        break;
+      }
+      catch (final InterruptedException e)
+      {
+        l_interrupted = true;
+      }
+    }
+
+    if (l_interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Tell what sizes, and frame rate ranges, a camera delivers YUV_420_888
+   * frames at.
+   */
+  private static CaptureProfileSelector.Capabilities getCapabilities(
+      CameraCharacteristics characteristics, StreamConfigurationMap streams)
+  {
+    final Size[] l_sizes = streams.getOutputSizes(ImageFormat.YUV_420_888);
+    final int[] l_sizePairs = new int[2 * l_sizes.length];
+    for (int l_i = 0; l_i < l_sizes.length; ++l_i)
+    {
+      l_sizePairs[2 * l_i] = l_sizes[l_i].getWidth();
+      l_sizePairs[2 * l_i + 1] = l_sizes[l_i].getHeight();
+    }
+
+    final Range<Integer>[] l_ranges = characteristics.get(
+        CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    final int[] l_rangePairs = new int[null == l_ranges ? 0
+        : 2 * l_ranges.length];
+    for (int l_i = 0; l_i < l_rangePairs.length / 2; ++l_i)
+    {
+      // The ranges are in frames per second.
+      l_rangePairs[2 * l_i] = 1000 * l_ranges[l_i].getLower();
+      l_rangePairs[2 * l_i + 1] = 1000 * l_ranges[l_i].getUpper();
+    }
+
+    return new CaptureProfileSelector.Capabilities(l_sizePairs,
+        Collections.<CaptureProfileSelector.Format>emptyList(), l_rangePairs);
+  }
+
+  /**
+   * Map areas onto the active array of the sensor.
+   *
+   * @param areas The areas, as quintuples of left, top, right, bottom and
+   *              weight, on the -1000..1000 grid.
+   * @param count The number of areas.
+   * @return The regions, or null if there are none.
+   */
+  private static MeteringRectangle[] toRegions(int[] areas, int count,
+      Rect activeArray)
+  {
+    if (0 == count)
+    {
+      return null;
+    }
+
+    final MeteringRectangle[] l_regions = new MeteringRectangle[count];
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      final int l_left = toSensor(areas[5 * l_i], activeArray.width());
+      final int l_top = toSensor(areas[5 * l_i + 1], activeArray.height());
+      l_regions[l_i] = new MeteringRectangle(activeArray.left + l_left,
+          activeArray.top + l_top,
+          toSensor(areas[5 * l_i + 2], activeArray.width()) - l_left,
+          toSensor(areas[5 * l_i + 3], activeArray.height()) - l_top,
+          areas[5 * l_i + 4]);
+    }
+    return l_regions;
+  }
+
+  /**
+   * @return The pixel of the active array at _coordinate_ of the
+   *         -1000..1000 grid over _extent_ pixels.
+   */
+  private static int toSensor(int coordinate, int extent)
+  {
+    return (coordinate - FocusController.AREA_MIN) * extent
+        / (FocusController.AREA_MAX - FocusController.AREA_MIN);
+  }
+
+  private static boolean contains(int[] values, int value)
+  {
+    if (null != values)
+    {
+      for (final int l_value : values)
+      {
+        if (value == l_value)
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int get(CameraCharacteristics characteristics,
+      CameraCharacteristics.Key<Integer> key)
+  {
+    final Integer l_value = characteristics.get(key);
+    return null == l_value ? 0 : l_value;
+  }
+
+  /**
+   * Find the first back facing camera, falling back on the first camera
+   * should there be none.
+   *
+   * @return The id of the camera, or null if there is none.
+   */
+  private static String findBackFacingCamera(CameraManager manager)
+      throws CameraAccessException
+  {
+    final String[] l_ids = manager.getCameraIdList();
+    for (final String l_id : l_ids)
+    {
+      final Integer l_facing = manager.getCameraCharacteristics(l_id).get(
+          CameraCharacteristics.LENS_FACING);
+      if (null != l_facing
+          && CameraCharacteristics.LENS_FACING_BACK == l_facing)
+      {
+        return l_id;
+      }
+    }
+    return 0 == l_ids.length ? null : l_ids[0];
+  }
+
+  /**
+   * Find the largest size of at most _maxPixels_ pixels, or the smallest
+   * size should all be larger.
+   *
+   * @param sizes The sizes.
+   * @param aspect The size whose aspect ratio must be matched, or null.
+   * @param maxPixels The most pixels.
+   * @return The size found, or null if none matches _aspect_.
+   */
+  private static Size largest(Size[] sizes, Size aspect, int maxPixels)
+  {
+    Size l_largest = null;
+    Size l_smallest = null;
+
+    for (final Size l_size : sizes)
+    {
+      if (null != aspect && (long) l_size.getWidth() * aspect.getHeight()
+          != (long) l_size.getHeight() * aspect.getWidth())
+      {
+        continue;
+      }
+
+      final long l_pixels = (long) l_size.getWidth() * l_size.getHeight();
+      if (l_pixels <= maxPixels && (null == l_largest || l_pixels
+          > (long) l_largest.getWidth() * l_largest.getHeight()))
+      {
+        l_largest = l_size;
+      }
+      if (null == l_smallest || l_pixels
+          < (long) l_smallest.getWidth() * l_smallest.getHeight())
+      {
+        l_smallest = l_size;
+      }
+    }
+    return null == l_largest ? l_smallest : l_largest;
+  }
+}
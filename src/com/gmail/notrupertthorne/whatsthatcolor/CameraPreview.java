@@ -19,24 +19,58 @@ You should have received a copy of the GNU General Public License
 along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
-import android.content.res.Configuration;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.hardware.Camera;
-import android.hardware.Camera.PictureCallback;
-import android.hardware.Camera.ShutterCallback;
+import android.graphics.BitmapRegionDecoder;
 import android.media.AudioManager;
-import android.os.Bundle;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.BurstStacker;
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorStabilizer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FilterMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FocusController;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameAnalyzer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameRecorder;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.LatencyStats;
+import com.gmail.notrupertthorne.whatsthatcolor.core.LatencyStats.Stage;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MultiPointSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.Nv21Sampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteExtractor;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PictureSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PointMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SampleHistory;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+import com.gmail.notrupertthorne.whatsthatcolor.core.StartupSequencer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.VisionFilter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.VisionFilter.Deficiency;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
 
 /**
  * This type is responsible for the camera preview View.
@@ -45,275 +79,1972 @@ public class CameraPreview extends SurfaceView implements
     SurfaceHolder.Callback
 {
   /**
-   * This field provides the string for the Bundle key.
+   * This type is responsible for receiving the sampled colors, on the UI
+   * thread.
+   */
+  public interface ColorListener
+  {
+    /**
+     * @param color The color, on the 0xAARRGGBB form.
+     * @param name The name of the color, or null if not yet known.
+     * @param locked True if the color is steady.
+     */
+    void onColorSampled(int color, String name, boolean locked);
+  }
+
+  /**
+   * This type is responsible for receiving the dominant colors of the
+   * preview, on the UI thread.
+   */
+  public interface PaletteListener
+  {
+    /**
+     * @param colors The colors, on the 0xAARRGGBB form, most dominant
+     *               first. The array is reused once this returns.
+     * @param weights The share of the frame of each color, in permille.
+     *                The array is reused once this returns.
+     * @param count The number of colors.
+     */
+    void onPalette(int[] colors, int[] weights, int count);
+  }
+
+  /**
+   * This type is responsible for receiving the neighbourhood of the
+   * crosshair, as sampled from each preview frame, on the UI thread.
+   */
+  public interface LoupeListener
+  {
+    /**
+     * @param region The pixels around, and including, the window reduced by
+     *               the sampling kernel, before any white balancing. It is
+     *               reused once this returns.
+     */
+    void onLoupe(RegionMailbox.Region region);
+  }
+
+  /**
+   * This type is responsible for receiving how closely each part of the
+   * preview matches the reference color, on the UI thread.
+   */
+  public interface MatchListener
+  {
+    /**
+     * @param mask The match strength of each part of the preview frame. It
+     *             is reused once this returns.
+     */
+    void onMatch(MatchMailbox.Mask mask);
+  }
+
+  /**
+   * This type is responsible for receiving the preview as filtered for a
+   * color vision deficiency, on the UI thread.
+   */
+  public interface FilterListener
+  {
+    /**
+     * @param image The filtered preview frame. It is reused once this
+     *              returns.
+     */
+    void onFilter(FilterMailbox.Image image);
+  }
+
+  /**
+   * This type is responsible for receiving how confident a burst reading
+   * is, on the UI thread, just after its color has been sent.
+   */
+  public interface BurstListener
+  {
+    /**
+     * @param uncertainty The CIEDE2000 difference within which the color is,
+     *                    with 95% confidence, as far as the noise goes.
+     * @param rejected The number of samples rejected as outliers.
+     * @param samples The number of samples stacked, rejected or not.
+     */
+    void onBurst(double uncertainty, int rejected, int samples);
+  }
+
+  /**
+   * This type is responsible for receiving the colors of the sample points,
+   * all sampled from the same preview frame, on the UI thread.
+   */
+  public interface PointsListener
+  {
+    /**
+     * @param points The points, as pairs of column and row, in fractions of
+     *               the view. The array is reused once this returns.
+     * @param colors The color of each point, on the 0xAARRGGBB form. The
+     *               array is reused once this returns.
+     * @param names The name of each color, or null if not yet known. The
+     *              array is reused once this returns.
+     * @param count The number of points.
+     */
+    void onPointsSampled(float[] points, int[] colors, String[] names,
+        int count);
+  }
+
+  /**
+   * This type is responsible for receiving, on the UI thread, that a
+   * recording of the preview frames has been stopped and written.
+   */
+  public interface RecordingListener
+  {
+    /**
+     * @param recorder The recorder stopped, to tell the frames recorded and
+     *                 dropped.
+     * @param error The error writing the recording, or null if written.
+     */
+    void onRecordingStopped(FrameRecorder recorder, IOException error);
+  }
+
+  /**
+   * This type is responsible for delivering the sampled results upon the
+   * next vsync, through the Choreographer, which is only available as of
+   * Jelly Bean. It is kept apart so that it is only loaded there.
    */
-  public static String COLORKEY = "color";
+  private final class VsyncDelivery implements Runnable,
+      Choreographer.FrameCallback
+  {
+    @Override
+    public void run()
+    {
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos)
+    {
+      deliverResults();
+    }
+  }
 
   private static String LOG_TAG = "CameraPreview";
 
-  private Camera m_camera;
+  /**
+   * This field provides the default side, in pixels, of the square that is
+   * reduced to a color when sampling.
+   */
+  public static final int DEFAULT_SAMPLE_SIZE = SamplingKernel.MIN_SIZE;
+
+  /**
+   * This field provides the number of dominant colors extracted.
+   */
+  private static final int PALETTE_COLORS = 6;
+
+  /**
+   * This field provides the least margin, in pixels, around the kernel
+   * window shown in the loupe. Larger windows get a quarter of their side.
+   */
+  private static final int LOUPE_MARGIN = 3;
+
+  /**
+   * This field provides the number of preview frames stacked into a burst
+   * reading, about a quarter of a second at 30 fps.
+   */
+  private static final int BURST_FRAMES = 8;
+
+  /**
+   * This field references the worker owning the hardware camera.
+   */
+  private final FrameSource m_worker;
+
+  /**
+   * This field steers the focus, and metering, of the m_worker to the
+   * crosshair and the sample points, and tells when readings may be taken.
+   * The points are only mapped on the analysis thread.
+   */
+  private final FocusController m_focus;
+  private final int[] m_focusPoints = new int[2 * FocusController.MAX_AREAS];
 
   /**
    * This field provides the context in which this view has been created.
    */
-  private final Context m_context;
+  private final Context m_context;
+  /**
+   * This field references the listener to which the colors are delivered.
+   */
+  private final ColorListener m_listener;
+
+  /**
+   * These fields hand the sampled colors, and palettes, over to the UI
+   * thread. Only the producer finding a mailbox empty posts m_wake, which
+   * delivers the latest results, so the UI is woken at most once per vsync
+   * and mailbox, however fast results are produced.
+   */
+  private final ColorMailbox m_mailbox = new ColorMailbox();
+  private final PaletteMailbox m_paletteMailbox = new PaletteMailbox();
+  private final RegionMailbox m_loupeMailbox = new RegionMailbox();
+  private final PointMailbox m_pointMailbox = new PointMailbox();
+  private final MatchMailbox m_matchMailbox = new MatchMailbox();
+  private final FilterMailbox m_filterMailbox = new FilterMailbox();
+  private final Handler m_uiHandler = new Handler();
+  private final Runnable m_wake;
+  private final SurfaceHolder m_holder;
+
+  /**
+   * This field tells whether to sample each preview frame, rather than
+   * taking a picture upon click.
+   */
+  private volatile boolean m_liveSampling;
+
+  /**
+   * This field references the namer of the sampled colors, once loaded.
+   */
+  private volatile ColorNamer m_namer;
+
+  /**
+   * This field references the history to which the sent colors are
+   * appended, once opened. It is only appended to on the analysis thread,
+   * which drops it should an append fail, while the colors of pictures,
+   * taken on the camera thread, are handed over in the m_pictureSamples.
+   * The history ignores appends once closed, so it may be closed under it.
+   */
+  private volatile SampleHistory m_history;
+
+  /**
+   * This field queues the color, time and palette index of the name of
+   * each picture taken, until the analysis thread appends them to the
+   * m_history.
+   */
+  private final ConcurrentLinkedQueue<long[]> m_pictureSamples =
+      new ConcurrentLinkedQueue<long[]>();
+
+  /**
+   * These fields hold the size of the preview surface, as read by the
+   * camera and analysis threads.
+   */
+  private volatile int m_viewWidth;
+  private volatile int m_viewHeight;
+
+  /**
+   * These fields hold the side of the sampled square, and the statistic
+   * it is reduced by, as read by the camera and analysis threads.
+   */
+  private volatile int m_sampleSize = DEFAULT_SAMPLE_SIZE;
+  private volatile SamplingKernel.Statistic m_statistic =
+      SamplingKernel.Statistic.MEAN;
+
+  /**
+   * This field holds the distance, in CIEDE2000 units, within which live
+   * readings must stay for the color to be considered steady.
+   */
+  private volatile double m_lockDeltaE = ColorStabilizer.DEFAULT_LOCK_DELTA_E;
+
+  /**
+   * This field holds the assumption the illuminant is estimated by, or null
+   * if the sampled colors are not corrected for it.
+   */
+  private volatile IlluminantEstimator.Method m_whiteBalance;
+
+  /**
+   * This field tells whether to send the neighbourhood of the crosshair to
+   * the m_loupeListener, while sampling live.
+   */
+  private volatile boolean m_loupe;
+  private volatile LoupeListener m_loupeListener;
+
+  /**
+   * This field holds the sample points placed by the user, as pairs of
+   * column and row in fractions of the view. It is replaced, never
+   * modified, so that the analysis thread may read it without locking.
+   */
+  private volatile float[] m_points = new float[0];
+  private volatile PointsListener m_pointsListener;
+
+  /**
+   * These fields hold where the latest touch of the preview went down, in
+   * pixels of the view, for a long press to place a sample point there.
+   */
+  private float m_touchX;
+  private float m_touchY;
+
+  /**
+   * This field records the latency of each stage of the pipeline, when
+   * performance monitoring is enabled.
+   */
+  private final LatencyStats m_stats = new LatencyStats();
+
+  /**
+   * This field references the recorder of the preview frames, if they are
+   * being recorded.
+   */
+  private volatile FrameRecorder m_recorder;
+
+  /**
+   * This field holds the profile the preview size, format and frame rate
+   * are chosen by.
+   */
+  private volatile CaptureProfileSelector.Profile m_captureProfile =
+      CaptureProfileSelector.Profile.HIGH_ACCURACY;
+
+  /**
+   * This field references the sequencer told of the preview, and of the
+   * first preview frame, of each start, if any.
+   */
+  private volatile StartupSequencer m_startup;
+
+  /**
+   * These fields hold the time, as by System.nanoTime(), of the latest tap,
+   * and of the latest color sent along with the time of the tap, or frame,
+   * it originates from.
+   */
+  private volatile long m_clickTime;
+  private volatile long m_sendTime;
+  private volatile long m_sendOrigin;
+
+  /**
+   * This field tells the analysis thread to forget its past readings, once
+   * the sampling settings have changed.
+   */
+  private final AtomicBoolean m_resetStabilizer = new AtomicBoolean();
+
+  /**
+   * This field tells whether to extract the dominant colors of each
+   * preview frame.
+   */
+  private volatile boolean m_extractPalette;
+
+  /**
+   * This field references the listener to which the dominant colors are
+   * delivered, if any.
+   */
+  private volatile PaletteListener m_paletteListener;
+
+  /**
+   * This field tells whether to map how closely each part of the preview
+   * frames matches the m_matchReference, and send the masks to the
+   * m_matchListener.
+   */
+  private volatile boolean m_matching;
+  private volatile int m_matchReference;
+  private volatile MatchListener m_matchListener;
+
+  /**
+   * These fields tell which deficiency, if any, to filter the preview
+   * frames for, and whether to daltonize rather than simulate it, and send
+   * the images to the m_filterListener.
+   */
+  private volatile Deficiency m_deficiency;
+  private volatile boolean m_daltonize;
+  private volatile FilterListener m_filterListener;
+
+  /**
+   * These fields run the palette extraction, the match mapping, and the
+   * vision filter, split into a tile per core. The extractor, mapper and
+   * filter are created on, and confined to, the analysis thread, while the
+   * executor threads are only started once first used.
+   */
+  private final ExecutorService m_paletteExecutor;
+  private final int m_paletteTiles;
+  private PaletteExtractor m_extractor;
+  private final AtomicBoolean m_resetExtractor = new AtomicBoolean();
+  private MatchMapper m_matcher;
+  private VisionFilter m_filter;
+
+  /**
+   * These fields tell whether a click stacks a burst of preview frames,
+   * rather than taking a picture, and ask the analysis thread to start
+   * one. The stacker, and the window and frame size of the burst being
+   * stacked, are confined to the analysis thread.
+   */
+  private volatile boolean m_burst;
+  private volatile BurstListener m_burstListener;
+  private final AtomicBoolean m_burstRequested = new AtomicBoolean();
+  private BurstStacker m_stacker;
+  private boolean m_bursting;
+  private final int[] m_burstWindow = new int[4];
+  private final int[] m_burstRegion =
+      new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+  private int m_burstFrameWidth;
+  private int m_burstFrameHeight;
+
+  /**
+   * These fields are scratch space for the sampling, kept in order not to
+   * allocate upon each sample. The frame fields are only used on the
+   * analysis thread, and the rest on the camera thread.
+   */
+  private final int[] m_framePoint = new int[2];
+  private final int[] m_frameWindow = new int[4];
+  private final int[] m_loupeWindow = new int[4];
+  private final int[] m_frameRegion =
+      new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+  private final SamplingKernel m_frameKernel = new SamplingKernel();
+  private final ColorStabilizer m_stabilizer = new ColorStabilizer();
+  private final IlluminantEstimator m_frameEstimator =
+      new IlluminantEstimator();
+  private final int[] m_imagePoint = new int[2];
+  private final PictureSampler m_pictureSampler = new PictureSampler();
+
+  /**
+   * These fields sample the points, and steady each of them, on the
+   * analysis thread. The stabilizers are reset whenever the points have
+   * been replaced, as told by m_framePoints. The names are only used on
+   * the UI thread.
+   */
+  private final MultiPointSampler m_pointSampler = new MultiPointSampler();
+  private final ColorStabilizer[] m_pointStabilizers =
+      new ColorStabilizer[MultiPointSampler.MAX_POINTS];
+  private final int[] m_pointCoordinates =
+      new int[2 * MultiPointSampler.MAX_POINTS];
+  private final int[] m_pointColors = new int[MultiPointSampler.MAX_POINTS];
+  private float[] m_framePoints;
+  private final String[] m_pointNames =
+      new String[MultiPointSampler.MAX_POINTS];
+
+  /**
+   * This analyzer is called on the analysis thread for each preview frame.
+   *
+   * The crosshair is mapped onto the frame, the window around it read
+   * straight out of it and reduced to a color, corrected for the light of
+   * the whole frame when white balancing is enabled. The colors are steadied
+   * across frames, and sent to the m_listener only when they have changed
+   * noticeably.
+   *
+   * When enabled, a wider neighbourhood of the crosshair is read instead,
+   * sampled from within, and sent as is to the m_loupeListener. The sample
+   * points are all sampled in one pass over the frame, and sent as one
+   * batch to the m_pointsListener. When enabled, the dominant colors of the
+   * whole frame are extracted too, and sent to the m_paletteListener, and
+   * how closely each part of the frame matches the reference color is sent
+   * to the m_matchListener. A burst requested by a click is stacked from
+   * the frames following it.
+   *
+   * The camera is steered to focus, and meter, on the crosshair and the
+   * sample points, and neither live readings nor bursts are taken of the
+   * frames until it has settled on them.
+   *
+   * The latency of each stage, and the allocations of each frame, are
+   * recorded in the m_stats. Once analyzed, the frame is recorded by the
+   * m_recorder, if recording.
+   */
+  private final FrameAnalyzer m_previewFrame = new FrameAnalyzer()
+  {
+    @Override
+    public void analyze(YuvFrame frame, long arrived)
+    {
+      final int l_width = frame.getWidth();
+      final int l_height = frame.getHeight();
+      final boolean l_monitoring = m_stats.isEnabled();
+      final int l_allocations = l_monitoring ? Debug.getThreadAllocCount() : 0;
+      long l_time = m_stats.recordSince(Stage.CAPTURE, arrived);
+
+      final StartupSequencer l_startup = m_startup;
+      if (null != l_startup)
+      {
+        l_startup.mark(StartupSequencer.Phase.FIRST_FRAME);
+      }
+
+      // No readings are taken until the camera has settled on the points.
+      final boolean l_settled = trackFocus(frame, arrived);
+
+      if (m_liveSampling && l_settled)
+      {
+        final int l_viewWidth = m_viewWidth;
+        final int l_viewHeight = m_viewHeight;
+
+        RegionMapper.toImage(l_viewWidth / 2, l_viewHeight / 2,
+            l_viewWidth, l_viewHeight, l_width, l_height,
+            frame.getOrientation(), frame.isMirrored(), m_framePoint);
+
+        m_frameKernel.configure(m_sampleSize, m_statistic);
+        final int l_size = m_frameKernel.getSize();
+        Nv21Sampler.clipSquare(l_width, l_height, m_framePoint[0],
+            m_framePoint[1], l_size, m_frameWindow);
+        l_time = m_stats.recordSince(Stage.ROTATE, l_time);
+
+        final RegionMailbox.Region l_loupe = m_loupe
+            ? m_loupeMailbox.acquire() : null;
+        int l_color;
+        if (null == l_loupe)
+        {
+          frame.readRegion(m_frameWindow[0], m_frameWindow[1],
+              m_frameWindow[2], m_frameWindow[3], m_frameRegion);
+          l_time = m_stats.recordSince(Stage.DECODE, l_time);
+
+          l_color = m_frameKernel.sample(m_frameRegion, 0,
+              m_frameWindow[2], m_frameWindow[2], m_frameWindow[3]);
+        }
+        else
+        {
+          readLoupe(frame, l_size, l_loupe);
+          l_time = m_stats.recordSince(Stage.DECODE, l_time);
+
+          // The kernel window lies within the neighbourhood.
+          l_color = m_frameKernel.sample(l_loupe.getPixels(),
+              l_loupe.getKernelTop() * l_loupe.getWidth()
+                  + l_loupe.getKernelLeft(), l_loupe.getWidth(),
+              m_frameWindow[2], m_frameWindow[3]);
+
+          if (m_loupeMailbox.post(l_loupe))
+          {
+            m_uiHandler.post(m_wake);
+          }
+        }
+
+        final IlluminantEstimator.Method l_whiteBalance =
+            estimateIlluminant(frame);
+        if (null != l_whiteBalance)
+        {
+          l_color = m_frameEstimator.correct(l_color);
+        }
+
+        final boolean l_reset = m_resetStabilizer.getAndSet(false);
+        if (l_reset)
+        {
+          m_stabilizer.reset();
+        }
+        m_stabilizer.setLockDeltaE(m_lockDeltaE);
+
+        final boolean l_changed = m_stabilizer.offer(l_color, l_time);
+
+        final float[] l_points = m_points;
+        if (0 < l_points.length)
+        {
+          samplePoints(frame, l_points, l_whiteBalance, l_reset, l_time);
+        }
+        m_stats.recordSince(Stage.SAMPLE, l_time);
+
+        if (l_changed)
+        {
+          sendColor(m_stabilizer.getColor(), m_stabilizer.isLocked(),
+              arrived);
+        }
+      }
+      else if (l_settled && (m_bursting || m_burstRequested.get()))
+      {
+        stackBurst(frame);
+      }
+
+      if (m_extractPalette)
+      {
+        extractPalette(frame);
+      }
+
+      if (m_matching)
+      {
+        mapMatches(frame);
+      }
+
+      if (null != m_deficiency)
+      {
+        filterFrame(frame);
+      }
+
+      long[] l_sample;
+      while (null != (l_sample = m_pictureSamples.poll()))
+      {
+        appendHistory((int) l_sample[0], l_sample[1], (int) l_sample[2]);
+      }
+
+      if (l_monitoring)
+      {
+        m_stats.recordAllocations(Debug.getThreadAllocCount()
+            - l_allocations);
+        m_stats.setFrames(m_worker.getFrameExchange().getReceived(),
+            m_worker.getFrameExchange().getDropped());
+      }
+
+      final FrameRecorder l_recorder = m_recorder;
+      if (null != l_recorder)
+      {
+        l_recorder.record(frame, arrived);
+      }
+    }
+  };
+
+  /**
+   * Map the crosshair, and the sample points, onto a preview frame, for
+   * the m_focus to focus, and meter, on. This is called on the analysis
+   * thread.
+   *
+   * @param time The time, as by System.nanoTime(), of the frame.
+   * @return True if readings may be taken of the frame.
+   */
+  private boolean trackFocus(YuvFrame frame, long time)
+  {
+    final int l_viewWidth = m_viewWidth;
+    final int l_viewHeight = m_viewHeight;
+    final float[] l_points = m_points;
+    final int l_count = 1 + l_points.length / 2;
+
+    for (int l_i = 0; l_i < l_count; ++l_i)
+    {
+      // The crosshair first, then the points.
+      final int l_x = 0 == l_i ? l_viewWidth / 2
+          : (int) (l_points[2 * l_i - 2] * l_viewWidth);
+      final int l_y = 0 == l_i ? l_viewHeight / 2
+          : (int) (l_points[2 * l_i - 1] * l_viewHeight);
+      RegionMapper.toImage(l_x, l_y, l_viewWidth, l_viewHeight,
+          frame.getWidth(), frame.getHeight(), frame.getOrientation(),
+          frame.isMirrored(), m_framePoint);
+      m_focusPoints[2 * l_i] = m_framePoint[0];
+      m_focusPoints[2 * l_i + 1] = m_framePoint[1];
+    }
+
+    m_focus.setPoints(m_focusPoints, l_count, m_sampleSize, frame.getWidth(),
+        frame.getHeight());
+    return m_focus.onFrame(frame, time);
+  }
+
+  /**
+   * Update the m_frameEstimator with the light of a preview frame, if
+   * white balancing. This is called on the analysis thread.
+   *
+   * @return The assumption the illuminant was estimated by, or null if the
+   *         colors are not to be corrected.
+   */
+  private IlluminantEstimator.Method estimateIlluminant(YuvFrame frame)
+  {
+    final IlluminantEstimator.Method l_whiteBalance = m_whiteBalance;
+    if (null != l_whiteBalance)
+    {
+      if (l_whiteBalance != m_frameEstimator.getMethod())
+      {
+        m_frameEstimator.setMethod(l_whiteBalance);
+        m_frameEstimator.reset();
+      }
+      m_frameEstimator.estimate(frame);
+    }
+    return l_whiteBalance;
+  }
+
+  /**
+   * Add the window under the crosshair of a preview frame to the burst
+   * requested, starting it if need be. Once BURST_FRAMES frames have been
+   * added, they are stacked, the stacked window reduced by the sampling
+   * kernel and corrected for the light of the last frame, and the color
+   * sent to the m_listener, with its confidence sent to the
+   * m_burstListener. This is called on the analysis thread.
+   */
+  private void stackBurst(YuvFrame frame)
+  {
+    final int l_width = frame.getWidth();
+    final int l_height = frame.getHeight();
+
+    if (m_bursting
+        && (l_width != m_burstFrameWidth || l_height != m_burstFrameHeight))
+    {
+      // The preview has been restarted with another size; start over.
+      m_bursting = false;
+      m_burstRequested.set(true);
+    }
+
+    if (!m_bursting)
+    {
+      m_burstRequested.set(false);
+      if (null == m_stacker)
+      {
+        m_stacker = new BurstStacker(m_paletteExecutor, m_paletteTiles);
+      }
+
+      final int l_viewWidth = m_viewWidth;
+      final int l_viewHeight = m_viewHeight;
+      RegionMapper.toImage(l_viewWidth / 2, l_viewHeight / 2, l_viewWidth,
+          l_viewHeight, l_width, l_height, frame.getOrientation(),
+          frame.isMirrored(), m_framePoint);
+      m_frameKernel.configure(m_sampleSize, m_statistic);
+      Nv21Sampler.clipSquare(l_width, l_height, m_framePoint[0],
+          m_framePoint[1], m_frameKernel.getSize(), m_burstWindow);
+
+      m_stacker.begin(BURST_FRAMES, m_burstWindow[2], m_burstWindow[3]);
+      m_burstFrameWidth = l_width;
+      m_burstFrameHeight = l_height;
+      m_bursting = true;
+    }
+
+    if (!m_stacker.add(frame, m_burstWindow[0], m_burstWindow[1]))
+    {
+      return;
+    }
+    m_bursting = false;
+
+    try
+    {
+      if (!m_stacker.stack(m_burstRegion))
+      {
+        return;
+      }
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // Shutting down.
+      return;
+    }
+
+    int l_color = m_frameKernel.sample(m_burstRegion, 0, m_burstWindow[2],
+        m_burstWindow[2], m_burstWindow[3]);
+    if (null != estimateIlluminant(frame))
+    {
+      l_color = m_frameEstimator.correct(l_color);
+    }
+
+    final long l_click = m_clickTime;
+    m_stats.recordSince(Stage.CAPTURE, l_click);
+    sendColor(l_color, true, l_click);
+
+    final BurstListener l_listener = m_burstListener;
+    if (null != l_listener)
+    {
+      final double l_uncertainty = m_stacker.getUncertainty();
+      final int l_rejected = m_stacker.getRejected();
+      final int l_samples = m_stacker.getSamples();
+      m_uiHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          l_listener.onBurst(l_uncertainty, l_rejected, l_samples);
+        }
+      });
+    }
+  }
+
+  /**
+   * Read the neighbourhood of the kernel window, m_frameWindow, around the
+   * crosshair, m_framePoint, into a loupe region. This is called on the
+   * analysis thread.
+   *
+   * @param size The side of the kernel window, before clipping.
+   */
+  private void readLoupe(YuvFrame frame, int size,
+      RegionMailbox.Region loupe)
+  {
+    Nv21Sampler.clipSquare(frame.getWidth(), frame.getHeight(),
+        m_framePoint[0], m_framePoint[1],
+        size + 2 * Math.max(LOUPE_MARGIN, size / 4), m_loupeWindow);
+    frame.readRegion(m_loupeWindow[0], m_loupeWindow[1], m_loupeWindow[2],
+        m_loupeWindow[3], loupe.getPixels());
+
+    loupe.setSize(m_loupeWindow[2], m_loupeWindow[3]);
+    loupe.setKernel(m_frameWindow[0] - m_loupeWindow[0],
+        m_frameWindow[1] - m_loupeWindow[1], m_frameWindow[2],
+        m_frameWindow[3]);
+    loupe.setOrientation(frame.getOrientation(), frame.isMirrored());
+  }
+
+  /**
+   * Sample the points placed by the user out of a preview frame, in a
+   * single pass over it, and send their colors to the m_pointsListener as
+   * one batch, if any of them has changed noticeably. This is called on the
+   * analysis thread.
+   *
+   * @param points The points, as pairs of column and row, in fractions of
+   *               the view.
+   * @param whiteBalance The assumption the m_frameEstimator was updated by,
+   *                     or null if the colors are not to be corrected.
+   * @param reset True if past readings are to be forgotten.
+   * @param time The time, as by System.nanoTime(), of the readings.
+   */
+  private void samplePoints(YuvFrame frame, float[] points,
+      IlluminantEstimator.Method whiteBalance, boolean reset, long time)
+  {
+    final int l_viewWidth = m_viewWidth;
+    final int l_viewHeight = m_viewHeight;
+    final int l_count = points.length / 2;
+
+    for (int l_i = 0; l_i < l_count; ++l_i)
+    {
+      RegionMapper.toImage((int) (points[2 * l_i] * l_viewWidth),
+          (int) (points[2 * l_i + 1] * l_viewHeight), l_viewWidth,
+          l_viewHeight, frame.getWidth(), frame.getHeight(),
+          frame.getOrientation(), frame.isMirrored(), m_framePoint);
+      m_pointCoordinates[2 * l_i] = m_framePoint[0];
+      m_pointCoordinates[2 * l_i + 1] = m_framePoint[1];
+    }
+
+    m_pointSampler.configure(m_sampleSize, m_statistic);
+    m_pointSampler.sample(frame, m_pointCoordinates, l_count, m_pointColors);
+
+    final boolean l_replaced = points != m_framePoints;
+    m_framePoints = points;
+
+    boolean l_changed = false;
+    for (int l_i = 0; l_i < l_count; ++l_i)
+    {
+      if (null == m_pointStabilizers[l_i])
+      {
+        m_pointStabilizers[l_i] = new ColorStabilizer();
+      }
+      final ColorStabilizer l_stabilizer = m_pointStabilizers[l_i];
+      if (reset || l_replaced)
+      {
+        l_stabilizer.reset();
+      }
+      l_stabilizer.setLockDeltaE(m_lockDeltaE);
+
+      final int l_color = null == whiteBalance ? m_pointColors[l_i]
+          : m_frameEstimator.correct(m_pointColors[l_i]);
+      // Every point is offered, so that each keeps steadying.
+      l_changed |= l_stabilizer.offer(l_color, time);
+    }
+
+    if (!l_changed && !l_replaced)
+    {
+      return;
+    }
+
+    final PointMailbox.Batch l_batch = m_pointMailbox.acquire();
+    System.arraycopy(points, 0, l_batch.getPoints(), 0, 2 * l_count);
+    for (int l_i = 0; l_i < l_count; ++l_i)
+    {
+      final int l_color = m_pointStabilizers[l_i].getColor();
+      l_batch.getColors()[l_i] = l_color;
+      l_batch.getNameIndices()[l_i] = nameIndexOf(l_color);
+    }
+    l_batch.setCount(l_count);
+
+    if (m_pointMailbox.post(l_batch))
+    {
+      m_uiHandler.post(m_wake);
+    }
+  }
+
+  /**
+   * This listener tells the startup sequencer, if any, that the preview
+   * has been started, so the crosshair only follows the preview.
+   */
+  private final FrameSource.PreviewListener m_previewStarted =
+      new FrameSource.PreviewListener()
+  {
+    @Override
+    public void onPreviewStarted()
+    {
+      final StartupSequencer l_startup = m_startup;
+      if (null != l_startup)
+      {
+        l_startup.mark(StartupSequencer.Phase.PREVIEW);
+      }
+    }
+  };
+
+  /**
+   * This listener is to be used when calling FrameSource.takePicture.
+   *
+   * A shutter sound is played as the picture is taken. When a compressed
+   * JPEG is available, we'll inspect the target pixel, sending its color to
+   * the m_listener.
+   */
+  private final FrameSource.PictureListener m_picture =
+      new FrameSource.PictureListener()
+  {
+    @Override
+    public void onShutter()
+    {
+      m_stats.recordSince(Stage.SHUTTER, m_clickTime);
+
+      // TODO: Are there any error cases to handle here?
+      // Play a sound when taking the picture..
+      final AudioManager mgr = (AudioManager) m_context
+          .getSystemService(Context.AUDIO_SERVICE);
+      mgr.playSoundEffect(AudioManager.FLAG_PLAY_SOUND);
+    }
+
+    @Override
+    public void onPicture(byte[] data)
+    {
+      Log.d(LOG_TAG, "Got a picture..");
+
+      final long l_click = m_clickTime;
+      m_stats.recordSince(Stage.CAPTURE, l_click);
+
+      if (null != data)
+      {
+        final int l_color = getPixelValue(data);
+        Log.d(LOG_TAG, String.format("Color: #%08x", l_color));
+
+        if (0 != l_color)
+        {
+          sendPicture(l_color, l_click);
+        }
+      }
+    }
+    // TODO: Is this even neeeded??
+
+    /**
+     * Get the color of the pixels under the crosshair, as reduced by the
+     * sampling kernel.
+     *
+     * Rather than decoding, and rotating, the whole picture, the crosshair
+     * is mapped onto the picture, and the m_pictureSampler decodes only the
+     * window around it, and when white balancing is enabled, a heavily
+     * subsampled decode of the whole picture to estimate the light from.
+     *
+     * @return The color on the 0xAARRGGBB form, or 0 if the picture could
+     *         not be decoded.
+     */
+    private final int getPixelValue(byte[] data)
+    {
+      final long l_start = System.nanoTime();
+
+      final BitmapRegionDecoder l_regionDecoder;
+      try
+      {
+        l_regionDecoder = BitmapRegionDecoder.newInstance(data, 0,
+            data.length, false);
+      }
+      catch (final IOException e)
+      {
+        Log.d(LOG_TAG, "Error decoding picture: " + e.getMessage());
+        return 0;
+      }
+      final long l_opened = System.nanoTime();
+
+      final BitmapPictureDecoder l_decoder =
+          new BitmapPictureDecoder(l_regionDecoder);
+      long l_rotating = 0;
+      int l_color;
+      try
+      {
+        m_pictureSampler.configure(m_sampleSize, m_statistic);
+        m_pictureSampler.setWhiteBalance(m_whiteBalance);
+        final boolean l_balanced =
+            m_pictureSampler.estimateIlluminant(l_decoder);
+
+        final long l_time = System.nanoTime();
+        final int l_viewWidth = m_viewWidth;
+        final int l_viewHeight = m_viewHeight;
+
+        RegionMapper.toImage(l_viewWidth / 2, l_viewHeight / 2,
+            l_viewWidth, l_viewHeight, l_decoder.getWidth(),
+            l_decoder.getHeight(), m_worker.getDisplayOrientation(),
+            m_worker.isMirrored(), m_imagePoint);
+        l_rotating = m_stats.recordSince(Stage.ROTATE, l_time) - l_time;
+
+        l_color = m_pictureSampler.samplePoint(l_decoder, m_imagePoint[0],
+            m_imagePoint[1]);
+        if (0 != l_color && l_balanced)
+        {
+          l_color = m_pictureSampler.correct(l_color);
+        }
+      }
+      catch (final IOException e)
+      {
+        Log.d(LOG_TAG, "Error decoding picture: " + e.getMessage());
+        l_color = 0;
+      }
+      finally
+      {
+        l_regionDecoder.recycle();
+      }
+
+      // The decoding is interleaved with the other stages, so it is summed.
+      final long l_decoding = l_opened - l_start
+          + l_decoder.getDecodingTime();
+      m_stats.record(Stage.DECODE, l_decoding);
+      m_stats.record(Stage.SAMPLE,
+          System.nanoTime() - l_start - l_decoding - l_rotating);
+      return l_color;
+    }
+  };
+
+  /**
+   * @param context The context in which this type is instantiated.
+   * @param listener The listener to receive the sampled colors.
+   */
+  public CameraPreview(Context context, ColorListener listener)
+  {
+    super(context);
+
+    m_listener = listener;
+    m_context = context;
+
+    if (Build.VERSION_CODES.JELLY_BEAN <= Build.VERSION.SDK_INT)
+    {
+      m_wake = new VsyncDelivery();
+    }
+    else
+    {
+      m_wake = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          deliverResults();
+        }
+      };
+    }
+
+    m_paletteTiles = Runtime.getRuntime().availableProcessors();
+    m_paletteExecutor = Executors.newFixedThreadPool(m_paletteTiles,
+        new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable runnable)
+          {
+            final Thread l_thread = new Thread(runnable, "Tile");
+            l_thread.setDaemon(true);
+            return l_thread;
+          }
+        });
+
+    // The camera2 API is only used where the camera fully supports it,
+    // since it is merely emulated on top of the legacy API elsewhere.
+    if (Build.VERSION_CODES.LOLLIPOP <= Build.VERSION.SDK_INT
+        && Camera2Worker.isSupported(context))
+    {
+      m_worker = new Camera2Worker(context, m_previewFrame,
+          m_previewStarted);
+    }
+    else
+    {
+      m_worker = new CameraWorker(m_previewFrame, m_previewStarted);
+    }
+    m_worker.setCaptureProfile(m_captureProfile);
+    m_focus = new FocusController(m_worker);
+    openCamera();
+
+    // Install a SurfaceHolder.Callback so we get notified when the
+    // underlying surface is created and destroyed.
+    m_holder = getHolder();
+    m_holder.addCallback(this);
+
+    setClickable(true);
+    setLongClickable(true);
+  }
+
+  /**
+   * Open the hardware camera, on the camera thread, without waiting for it
+   * to be opened.
+   */
+  public void openCamera()
+  {
+    // Focus, and meter, anew on whatever the camera now faces.
+    m_focus.reset();
+    m_worker.open(getDisplayRotation());
+  }
+
+  /**
+   * @return The rotation of the display, in degrees.
+   */
+  private int getDisplayRotation()
+  {
+    final WindowManager l_manager = (WindowManager) m_context
+        .getSystemService(Context.WINDOW_SERVICE);
+
+    switch (l_manager.getDefaultDisplay().getRotation())
+    {
+      case Surface.ROTATION_90:
+        return 90;
+      case Surface.ROTATION_180:
+        return 180;
+      case Surface.ROTATION_270:
+        return 270;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Take a picture, or stack a burst of preview frames, when the preview
+   * has been clicked.
+   *
+   * Clicks are ignored while live sampling, since the color is then kept
+   * up to date from the preview frames.
+   */
+  @Override
+  public boolean performClick()
+  {
+    if (!m_liveSampling)
+    {
+      m_clickTime = System.nanoTime();
+      if (m_burst)
+      {
+        m_burstRequested.set(true);
+      }
+      else
+      {
+        m_worker.takePicture(m_picture);
+      }
+    }
+    return super.performClick();
+  }
+
+  /**
+   * Remember where the preview is touched, for a long press to place a
+   * sample point there.
+   */
+  @Override
+  public boolean onTouchEvent(MotionEvent event)
+  {
+    if (MotionEvent.ACTION_DOWN == event.getActionMasked())
+    {
+      m_touchX = event.getX();
+      m_touchY = event.getY();
+    }
+    return super.onTouchEvent(event);
+  }
+
+  /**
+   * Place a sample point where the preview is long pressed, while live
+   * sampling.
+   */
+  @Override
+  public boolean performLongClick()
+  {
+    if (m_liveSampling && addSamplePoint(m_touchX, m_touchY))
+    {
+      performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+      return true;
+    }
+    return super.performLongClick();
+  }
+
+  /**
+   * Place a sample point, which is sampled from each preview frame, along
+   * with the crosshair, while live sampling.
+   *
+   * @param x The column of the point, in pixels of the view.
+   * @param y The row of the point, in pixels of the view.
+   * @return True if the point was placed, or false if there already are
+   *         MultiPointSampler.MAX_POINTS points.
+   */
+  public boolean addSamplePoint(float x, float y)
+  {
+    final int l_width = getWidth();
+    final int l_height = getHeight();
+    final float[] l_points = m_points;
+    if (2 * MultiPointSampler.MAX_POINTS <= l_points.length || 0 == l_width
+        || 0 == l_height)
+    {
+      return false;
+    }
+
+    final float[] l_added = new float[l_points.length + 2];
+    System.arraycopy(l_points, 0, l_added, 0, l_points.length);
+    l_added[l_points.length] = Math.max(0, Math.min(1, x / l_width));
+    l_added[l_points.length + 1] = Math.max(0, Math.min(1, y / l_height));
+    m_points = l_added;
+    return true;
+  }
+
+  /**
+   * Remove all sample points.
+   */
+  public void clearSamplePoints()
+  {
+    m_points = new float[0];
+  }
+
+  /**
+   * @return The sample points, as pairs of column and row, in fractions of
+   *         the view. The array must not be modified.
+   */
+  public float[] getSamplePoints()
+  {
+    return m_points;
+  }
+
+  /**
+   * @param points The sample points, as pairs of column and row, in
+   *               fractions of the view. Any beyond
+   *               MultiPointSampler.MAX_POINTS are dropped.
+   */
+  public void setSamplePoints(float[] points)
+  {
+    final float[] l_points = new float[Math.min(
+        2 * MultiPointSampler.MAX_POINTS, points.length & ~1)];
+    System.arraycopy(points, 0, l_points, 0, l_points.length);
+    m_points = l_points;
+  }
+
+  /**
+   * @param listener The listener to receive the colors of the sample
+   *                 points, or null.
+   */
+  public void setPointsListener(PointsListener listener)
+  {
+    m_pointsListener = listener;
+  }
+
+  /**
+   * Enable or disable sampling of the preview frames.
+   *
+   * @param enabled True if each preview frame shall be sampled.
+   */
+  public void setLiveSampling(boolean enabled)
+  {
+    m_resetStabilizer.set(true);
+    m_liveSampling = enabled;
+  }
+
+  /**
+   * @return True if each preview frame is sampled.
+   */
+  public boolean isLiveSampling()
+  {
+    return m_liveSampling;
+  }
+
+  /**
+   * Set how the square under the crosshair is sampled. This takes effect
+   * from the next sample on.
+   *
+   * @param size The side of the square, in pixels. It is clamped to
+   *             SamplingKernel.MIN_SIZE..SamplingKernel.MAX_SIZE.
+   * @param statistic The statistic the square is reduced by.
+   */
+  public void setSampling(int size, SamplingKernel.Statistic statistic)
+  {
+    m_sampleSize = Math.max(SamplingKernel.MIN_SIZE,
+        Math.min(SamplingKernel.MAX_SIZE, size));
+    m_statistic = statistic;
+    m_resetStabilizer.set(true);
+  }
+
+  /**
+   * Set how steady the live readings must be for the color to be
+   * considered locked on. This also is the smallest change sent on.
+   *
+   * @param deltaE The distance, in CIEDE2000 units, within which the
+   *               readings must stay.
+   */
+  public void setLockDeltaE(double deltaE)
+  {
+    if (0 >= deltaE)
+    {
+      throw new IllegalArgumentException("Lock distance: " + deltaE);
+    }
+    m_lockDeltaE = deltaE;
+  }
+
+  /**
+   * @return The side, in pixels, of the sampled square.
+   */
+  public int getSampleSize()
+  {
+    return m_sampleSize;
+  }
+
+  /**
+   * @return The statistic the sampled square is reduced by.
+   */
+  public SamplingKernel.Statistic getSampleStatistic()
+  {
+    return m_statistic;
+  }
+
+  /**
+   * Set how the sampled colors are corrected for the light they are seen
+   * in. This takes effect from the next sample on.
+   *
+   * @param method The assumption to estimate the light by, or null to
+   *               leave the colors as the camera sees them.
+   */
+  public void setWhiteBalance(IlluminantEstimator.Method method)
+  {
+    m_whiteBalance = method;
+    m_resetStabilizer.set(true);
+  }
+
+  /**
+   * @return The assumption the light is estimated by, or null if the
+   *         sampled colors are not corrected for it.
+   */
+  public IlluminantEstimator.Method getWhiteBalance()
+  {
+    return m_whiteBalance;
+  }
+
+  /**
+   * @param startup The sequencer to tell of the preview, and of the first
+   *                preview frame, of each start, or null.
+   */
+  public void setStartupSequencer(StartupSequencer startup)
+  {
+    m_startup = startup;
+  }
+
+  /**
+   * Set the profile the preview size, format and frame rate are chosen by.
+   * The preview is restarted, if it has already started.
+   *
+   * @param profile Whether to spend less power, or sample more accurately.
+   */
+  public void setCaptureProfile(CaptureProfileSelector.Profile profile)
+  {
+    m_captureProfile = profile;
+    m_worker.setCaptureProfile(profile);
+  }
+
+  /**
+   * @return The profile the preview size, format and frame rate are chosen
+   *         by.
+   */
+  public CaptureProfileSelector.Profile getCaptureProfile()
+  {
+    return m_captureProfile;
+  }
+
+  /**
+   * Enable or disable sending the neighbourhood of the crosshair, as
+   * sampled from each preview frame, to the loupe listener. It is only
+   * sent while sampling live.
+   *
+   * @param enabled True if the neighbourhood shall be sent.
+   */
+  public void setLoupe(boolean enabled)
+  {
+    m_loupe = enabled;
+  }
+
+  /**
+   * @return True if the neighbourhood of the crosshair is sent.
+   */
+  public boolean isLoupe()
+  {
+    return m_loupe;
+  }
+
+  /**
+   * @param listener The listener to receive the neighbourhood of the
+   *                 crosshair, or null.
+   */
+  public void setLoupeListener(LoupeListener listener)
+  {
+    m_loupeListener = listener;
+  }
+
+  /**
+   * Enable or disable the recording of the latency of each stage of the
+   * pipeline, and of the allocations of each preview frame. Counting the
+   * allocations slows the app down somewhat.
+   *
+   * @param enabled True if the performance is to be monitored.
+   */
+  public void setPerformanceMonitoring(boolean enabled)
+  {
+    if (enabled == m_stats.isEnabled())
+    {
+      return;
+    }
+
+    if (enabled)
+    {
+      Debug.startAllocCounting();
+    }
+    else
+    {
+      Debug.stopAllocCounting();
+    }
+    m_stats.setEnabled(enabled);
+  }
+
+  /**
+   * @return True if the performance is monitored.
+   */
+  public boolean isPerformanceMonitoring()
+  {
+    return m_stats.isEnabled();
+  }
+
+  /**
+   * @return The latency of each stage of the pipeline, as recorded while
+   *         the performance is monitored.
+   */
+  public LatencyStats getLatencyStats()
+  {
+    return m_stats;
+  }
+
   /**
-   * This field references the handler to which the RGB is to be sent.
+   * Start recording the preview frames, for them to be replayed by a
+   * FrameReplay. Any recording in progress is stopped first, waiting for
+   * it to be written; stop it with stopRecording() beforehand to not wait.
+   *
+   * @param file The file to record to. It is replaced.
+   * @throws IOException If the file could not be created, or the recording
+   *                     in progress could not be written.
    */
-  private final Handler m_handler;
-  private final SurfaceHolder m_holder;
+  public void startRecording(File file) throws IOException
+  {
+    // The file may well be that of the recording in progress, so that is
+    // written in full before it is replaced.
+    final FrameRecorder l_recorder = m_recorder;
+    m_recorder = null;
+    if (null != l_recorder)
+    {
+      l_recorder.close();
+    }
+    m_recorder = new FrameRecorder(file);
+  }
 
   /**
-   * This callback is to be used when calling Camera.takePicture.
-   * 
-   * When a compressed JPEG is available, we'll inspect the target pixel,
-   * sending its stringified RGB color to the m_handler.
+   * Stop recording the preview frames, without waiting for those recorded
+   * to be written. They are written, and the file closed, on a thread of
+   * its own, since that may take long on slow storage.
+   *
+   * @param listener The listener to tell once the recording has been
+   *                 written, on the UI thread, or null to only log any
+   *                 error.
+   * @return True if a recording was stopped, false if not recording.
    */
-  private final PictureCallback m_JPEGPicture = new PictureCallback()
+  public boolean stopRecording(final RecordingListener listener)
   {
-    @Override
-    public void onPictureTaken(byte[] data, Camera camera)
+    final FrameRecorder l_recorder = m_recorder;
+    m_recorder = null;
+    if (null == l_recorder)
     {
-      Log.d(LOG_TAG, "Got a picture..");
+      return false;
+    }
 
-      if (null != data)
+    final Thread l_closer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
       {
-        final String l_hex = getPixelValue(data);
-        Log.d(LOG_TAG, String.format("Color: %s", l_hex));
+        IOException l_error = null;
+        try
+        {
+          l_recorder.close();
+        }
+        catch (final IOException e)
+        {
+          Log.d(LOG_TAG, "Error writing recording: " + e.getMessage());
+          l_error = e;
+        }
 
-        // Send the RGB code to the handler.
-        final Message l_msg = m_handler.obtainMessage();
-        final Bundle l_bundle = new Bundle();
-        l_bundle.putString(COLORKEY, l_hex);
-        l_msg.setData(l_bundle);
-        m_handler.sendMessage(l_msg);
+        if (null != listener)
+        {
+          final IOException l_result = l_error;
+          m_uiHandler.post(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              listener.onRecordingStopped(l_recorder, l_result);
+            }
+          });
+        }
       }
-      camera.startPreview();
-    }
-    // TODO: Is this even neeeded??
+    }, "RecordingCloser");
+    l_closer.setDaemon(true);
+    l_closer.start();
+    return true;
+  }
 
-    private final String getPixelValue(byte[] data)
-    {
-      Bitmap l_bitmap = BitmapFactory.decodeByteArray(data, 0,
-          data.length);
+  /**
+   * @return True if the preview frames are being recorded.
+   */
+  public boolean isRecording()
+  {
+    return null != m_recorder;
+  }
 
-      final int l_width = l_bitmap.getWidth();
-      final int l_height = l_bitmap.getHeight();
+  /**
+   * Enable or disable the extraction of the dominant colors of the preview
+   * frames.
+   *
+   * @param enabled True if the dominant colors of each preview frame shall
+   *                be extracted.
+   */
+  public void setPaletteExtraction(boolean enabled)
+  {
+    m_resetExtractor.set(true);
+    m_extractPalette = enabled;
+  }
 
-      if (Configuration.ORIENTATION_PORTRAIT ==
-          getResources().getConfiguration().orientation)
-      {
-        Log.d(LOG_TAG, "Rotating bitmap..");
+  /**
+   * @return True if the dominant colors of each preview frame are
+   *         extracted.
+   */
+  public boolean isPaletteExtraction()
+  {
+    return m_extractPalette;
+  }
 
-        Matrix l_matrix = new Matrix();
-        l_matrix.setRotate(90, l_width/2, l_height/2);
+  /**
+   * @param listener The listener to receive the dominant colors, or null.
+   */
+  public void setPaletteListener(PaletteListener listener)
+  {
+    m_paletteListener = listener;
+  }
 
-        l_bitmap = Bitmap.createBitmap(l_bitmap, 0, 0,
-            l_width, l_height, l_matrix, true);
-      }
+  /**
+   * Start mapping how closely each part of the preview frames matches a
+   * reference color, or change the reference.
+   *
+   * @param color The reference color, on the 0xAARRGGBB form.
+   */
+  public void setMatchReference(int color)
+  {
+    m_matchReference = color;
+    m_matching = true;
+  }
 
-      // Get the average color value of the nine centermost pixels
-      final int l_startX = (l_bitmap.getWidth() / 2) - 1;
-      final int l_startY = (l_bitmap.getHeight() / 2) - 1;
+  /**
+   * Stop mapping the preview frames against the reference color.
+   */
+  public void clearMatchReference()
+  {
+    m_matching = false;
+  }
 
-      int l_r = 0;
-      int l_g = 0;
-      int l_b = 0;
+  /**
+   * @return True if the preview frames are mapped against a reference
+   *         color.
+   */
+  public boolean isMatching()
+  {
+    return m_matching;
+  }
 
-      int l_pixels = 0;
+  /**
+   * @return The reference color, on the 0xAARRGGBB form, while matching.
+   */
+  public int getMatchReference()
+  {
+    return m_matchReference;
+  }
 
-      for (int l_y = 0; l_y < 3; ++l_y)
-      {
-        for (int l_x = 0; l_x < 3; ++l_x)
-        {
-          // Get the target (center) pixel.
-          final int l_pixel = l_bitmap.getPixel(
-              l_startX + l_x,
-              l_startY + l_y);
+  /**
+   * @param listener The listener to receive the match masks, or null.
+   */
+  public void setMatchListener(MatchListener listener)
+  {
+    m_matchListener = listener;
+  }
 
-          l_r += Color.red(l_pixel);
-          l_g += Color.green(l_pixel);
-          l_b += Color.blue(l_pixel);
+  /**
+   * Start filtering the preview frames for a color vision deficiency, or
+   * stop doing so.
+   *
+   * @param deficiency The deficiency, or null to stop filtering.
+   * @param daltonize True to daltonize the frames for the deficiency,
+   *                  rather than simulate it.
+   */
+  public void setVisionFilter(Deficiency deficiency, boolean daltonize)
+  {
+    m_daltonize = daltonize;
+    m_deficiency = deficiency;
+  }
 
-          ++l_pixels;
-        }
-      }
+  /**
+   * @return The deficiency the preview frames are filtered for, or null.
+   */
+  public Deficiency getDeficiency()
+  {
+    return m_deficiency;
+  }
 
-      l_r /= l_pixels;
-      l_g /= l_pixels;
-      l_b /= l_pixels;
+  /**
+   * @return True if the preview frames are daltonized, rather than
+   *         simulated, for the deficiency.
+   */
+  public boolean isDaltonizing()
+  {
+    return m_daltonize;
+  }
 
-      // Convert the pixel Color to a hexified String.
-      final String l_hex = String.format("#%02x%02x%02x", l_r, l_g, l_b);
+  /**
+   * @param listener The listener to receive the filtered images, or null.
+   */
+  public void setFilterListener(FilterListener listener)
+  {
+    m_filterListener = listener;
+  }
 
-      return l_hex;
-    }
+  /**
+   * Enable or disable burst readings. While enabled, a click stacks the
+   * window under the crosshair of BURST_FRAMES preview frames, rejecting
+   * outliers, rather than taking a picture.
+   *
+   * @param enabled True if clicks shall stack bursts.
+   */
+  public void setBurst(boolean enabled)
+  {
+    m_burst = enabled;
+  }
 
-  };
+  /**
+   * @return True if clicks stack bursts of preview frames.
+   */
+  public boolean isBurst()
+  {
+    return m_burst;
+  }
+
+  /**
+   * @param listener The listener to receive the confidence of the burst
+   *                 readings, or null.
+   */
+  public void setBurstListener(BurstListener listener)
+  {
+    m_burstListener = listener;
+  }
 
   /**
-   * This callback is used to add a shutter sound to Camera.takePicture
+   * Set the namer used to name the sampled colors. Until one is set, the
+   * colors are sent without names.
    *
-   * @todo Is this even needed?? Shutter sound plays anyway.
+   * @param namer The namer.
    */
-  private final ShutterCallback mShutter = new ShutterCallback()
+  public void setColorNamer(ColorNamer namer)
   {
-    @Override
-    public void onShutter()
-    {
-      // TODO: Are there any error cases to handle here?
-      // Play a sound when taking the picture..
-      final AudioManager mgr = (AudioManager) m_context
-          .getSystemService(Context.AUDIO_SERVICE);
-      mgr.playSoundEffect(AudioManager.FLAG_PLAY_SOUND);
-    }
-  };
+    m_namer = namer;
+  }
 
   /**
-   * @param context The context in which this type is instantiated.
-   * @param handler The Handler to receive the RGB message.
+   * Set the history to which the sent colors are appended. Until one is
+   * set, the colors are not kept.
+   *
+   * @param history The history, or null.
    */
-  public CameraPreview(Context context, Handler handler)
+  public void setSampleHistory(SampleHistory history)
   {
-    super(context);
+    m_history = history;
+  }
 
-    m_handler = handler;
-    m_context = context;
+  /**
+   * Send a color, along with the palette index of its name, to the
+   * m_listener, without blocking, and append it to the m_history. This is
+   * called on the analysis thread.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @param locked True if the color is steady.
+   * @param origin The time, as by System.nanoTime(), of the tap, or preview
+   *               frame, the color originates from.
+   */
+  private void sendColor(int color, boolean locked, long origin)
+  {
+    final long l_start = System.nanoTime();
+    final int l_nameIndex = nameIndexOf(color);
+    m_stats.recordSince(Stage.FORMAT, l_start);
 
-    openCamera();
+    appendHistory(color, System.currentTimeMillis(), l_nameIndex);
+    postColor(color, locked, l_nameIndex, origin);
+  }
 
-    // Install a SurfaceHolder.Callback so we get notified when the
-    // underlying surface is created and destroyed.
-    m_holder = getHolder();
-    m_holder.addCallback(this);
-    // deprecated setting, but required on Android versions prior to 3.0
-    m_holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+  /**
+   * Send the color of a picture, along with the palette index of its name,
+   * to the m_listener, without blocking, and queue it for the analysis
+   * thread to append to the m_history. This is called on the camera thread.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @param origin The time, as by System.nanoTime(), of the tap.
+   */
+  private void sendPicture(int color, long origin)
+  {
+    final long l_start = System.nanoTime();
+    final int l_nameIndex = nameIndexOf(color);
+    m_stats.recordSince(Stage.FORMAT, l_start);
 
-    setClickable(true);
+    if (null != m_history)
+    {
+      m_pictureSamples.offer(new long[] { color,
+          System.currentTimeMillis(), l_nameIndex });
+    }
+    postColor(color, true, l_nameIndex, origin);
   }
 
   /**
-   * Open the hardware camera, instantiating a Camera field.
+   * Append a color to the m_history, if any, dropping the history should
+   * it fail. This is called on the analysis thread.
    */
-  public void openCamera()
+  private void appendHistory(int color, long time, int nameIndex)
   {
-    if (m_camera == null)
+    final SampleHistory l_history = m_history;
+    if (null != l_history)
     {
-      Camera c = null;
       try
       {
-        c = Camera.open(); // attempt to get a Camera instance
-      }
-      catch (final Exception e)
-      {
-        // Camera is not available (in use or does not exist)
+        l_history.append(color, time, nameIndex);
       }
-      m_camera = c;
-
-      if (m_camera != null)
+      catch (final IOException e)
       {
-        if (Configuration.ORIENTATION_PORTRAIT ==
-            getResources().getConfiguration().orientation)
-        {
-          // Rotate the camera 90 degrees.
-          m_camera.setDisplayOrientation(90);
-        }
+        Log.d(LOG_TAG, "Could not append to sample history: "
+            + e.getMessage());
+        m_history = null;
       }
     }
   }
 
   /**
-   * Take a picture, when the preview has been clicked.
+   * Post a color, along with the palette index of its name, to the
+   * m_mailbox, and wake the UI thread to deliver it.
    */
-  @Override
-  public boolean performClick()
+  private void postColor(int color, boolean locked, int nameIndex,
+      long origin)
   {
-    if (m_camera != null)
+    m_sendOrigin = origin;
+    m_sendTime = System.nanoTime();
+    if (m_mailbox.post(color, locked, nameIndex))
     {
-      m_camera.takePicture(mShutter, null, null, m_JPEGPicture);
+      m_uiHandler.post(m_wake);
     }
-    return super.performClick();
   }
 
   /**
-   * Release the associated Camera, if opened.
+   * @param color The color, on the 0xAARRGGBB form.
+   * @return The palette index of the name of the color, or -1 if no namer
+   *         has been set.
    */
-  public void relaseCamera()
+  private int nameIndexOf(int color)
   {
-    if (m_camera != null)
+    final ColorNamer l_namer = m_namer;
+    if (null == l_namer)
+    {
+      return -1;
+    }
+
+    // The namer is not thread safe.
+    synchronized (l_namer)
     {
-      m_camera.release();
-      m_camera = null;
+      return l_namer.lookup(color);
     }
   }
 
-  @Override
-  public void surfaceChanged(SurfaceHolder holder, int format, int w, int h)
+  /**
+   * Extract the dominant colors of a preview frame, and send them to the
+   * m_paletteListener, without blocking. This is called on the analysis
+   * thread.
+   */
+  private void extractPalette(YuvFrame frame)
   {
-    if (m_holder.getSurface() == null)
+    if (null == m_extractor)
     {
-      // preview surface does not exist
-      return;
+      m_extractor = new PaletteExtractor(PALETTE_COLORS, m_paletteExecutor,
+          m_paletteTiles);
+    }
+    if (m_resetExtractor.getAndSet(false))
+    {
+      m_extractor.reset();
     }
 
-    // stop preview before making changes
+    final PaletteMailbox.Palette l_palette = m_paletteMailbox.acquire();
     try
     {
-      m_camera.stopPreview();
+      l_palette.setCount(m_extractor.extract(frame, l_palette.getColors(),
+          l_palette.getWeights()));
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // Shutting down.
+      return;
     }
-    catch (final Exception e)
+
+    if (m_paletteMailbox.post(l_palette))
     {
-      // ignore: tried to stop a non-existent preview
+      m_uiHandler.post(m_wake);
     }
+  }
 
-    // TODO: Update for screen rotation..
+  /**
+   * Map how closely each part of a preview frame matches the reference
+   * color, and send the mask to the m_matchListener, without blocking. This
+   * is called on the analysis thread.
+   */
+  private void mapMatches(YuvFrame frame)
+  {
+    if (null == m_matcher)
+    {
+      m_matcher = new MatchMapper(m_paletteExecutor, m_paletteTiles);
+    }
+    m_matcher.setReference(m_matchReference, MatchMapper.DEFAULT_TOLERANCE);
 
-    // start preview with new settings
+    final MatchMailbox.Mask l_mask = m_matchMailbox.acquire();
     try
     {
-      m_camera.setPreviewDisplay(m_holder);
-      m_camera.startPreview();
-
+      final int l_matches = m_matcher.map(frame, l_mask.getStrengths());
+      l_mask.setSize(m_matcher.getWidth(), m_matcher.getHeight(),
+          l_matches);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // Shutting down.
+      return;
     }
-    catch (final Exception e)
+    l_mask.setOrientation(frame.getOrientation(), frame.isMirrored());
+
+    if (m_matchMailbox.post(l_mask))
     {
-      Log.d(LOG_TAG, "Error starting camera preview: " + e.getMessage());
+      m_uiHandler.post(m_wake);
     }
   }
 
-  @Override
-  public void surfaceCreated(SurfaceHolder holder)
+  /**
+   * Filter a preview frame for the deficiency, and send the image to the
+   * m_filterListener, without blocking. This is called on the analysis
+   * thread.
+   */
+  private void filterFrame(YuvFrame frame)
   {
-    // The Surface has been created, now tell the camera where to draw the
-    // preview.
+    final Deficiency l_deficiency = m_deficiency;
+    if (null == l_deficiency)
+    {
+      return;
+    }
+    if (null == m_filter)
+    {
+      m_filter = new VisionFilter(m_paletteExecutor, m_paletteTiles);
+    }
+    m_filter.configure(l_deficiency, m_daltonize);
+
+    final FilterMailbox.Image l_image = m_filterMailbox.acquire();
     try
     {
-      if (null != m_camera)
+      if (!m_filter.filter(frame, l_image.getPixels()))
       {
-        m_camera.setPreviewDisplay(holder);
-        m_camera.startPreview();
+        return;
       }
-      else
+      l_image.setSize(m_filter.getWidth(), m_filter.getHeight());
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // Shutting down.
+      return;
+    }
+    l_image.setOrientation(frame.getOrientation(), frame.isMirrored());
+
+    if (m_filterMailbox.post(l_image))
+    {
+      m_uiHandler.post(m_wake);
+    }
+  }
+
+  /**
+   * Deliver the latest color, palette, loupe region, sample points, match
+   * mask and filtered image, if any, to the listeners. This is called on
+   * the UI thread.
+   */
+  private void deliverResults()
+  {
+    final long l_result = m_mailbox.take();
+    if (ColorMailbox.EMPTY != l_result)
+    {
+      // Names are read straight off the immutable palette, so the namer
+      // needs no locking here.
+      final ColorNamer l_namer = m_namer;
+      final String l_name = null == l_namer ? null
+          : l_namer.getName(ColorMailbox.nameIndex(l_result));
+
+      final long l_delivered = m_stats.recordSince(Stage.DELIVER,
+          m_sendTime);
+      m_listener.onColorSampled(ColorMailbox.color(l_result), l_name,
+          ColorMailbox.isLocked(l_result));
+
+      // The views are drawn upon the next frame, which is not included.
+      final long l_rendered = m_stats.recordSince(Stage.RENDER, l_delivered);
+      m_stats.record(Stage.TOTAL, l_rendered - m_sendOrigin);
+    }
+
+    final PaletteMailbox.Palette l_palette = m_paletteMailbox.take();
+    if (null != l_palette)
+    {
+      final PaletteListener l_listener = m_paletteListener;
+      if (null != l_listener)
+      {
+        l_listener.onPalette(l_palette.getColors(), l_palette.getWeights(),
+            l_palette.getCount());
+      }
+      m_paletteMailbox.release(l_palette);
+    }
+
+    final RegionMailbox.Region l_loupe = m_loupeMailbox.take();
+    if (null != l_loupe)
+    {
+      final LoupeListener l_listener = m_loupeListener;
+      if (null != l_listener && m_loupe)
+      {
+        l_listener.onLoupe(l_loupe);
+      }
+      m_loupeMailbox.release(l_loupe);
+    }
+
+    final PointMailbox.Batch l_batch = m_pointMailbox.take();
+    if (null != l_batch)
+    {
+      final PointsListener l_listener = m_pointsListener;
+      if (null != l_listener)
+      {
+        final ColorNamer l_namer = m_namer;
+        for (int l_i = 0; l_i < l_batch.getCount(); ++l_i)
+        {
+          m_pointNames[l_i] = null == l_namer ? null
+              : l_namer.getName(l_batch.getNameIndices()[l_i]);
+        }
+        l_listener.onPointsSampled(l_batch.getPoints(), l_batch.getColors(),
+            m_pointNames, l_batch.getCount());
+      }
+      m_pointMailbox.release(l_batch);
+    }
+
+    final MatchMailbox.Mask l_mask = m_matchMailbox.take();
+    if (null != l_mask)
+    {
+      final MatchListener l_listener = m_matchListener;
+      if (null != l_listener && m_matching)
+      {
+        l_listener.onMatch(l_mask);
+      }
+      m_matchMailbox.release(l_mask);
+    }
+
+    final FilterMailbox.Image l_image = m_filterMailbox.take();
+    if (null != l_image)
+    {
+      final FilterListener l_listener = m_filterListener;
+      if (null != l_listener && null != m_deficiency)
       {
-        Log.d(LOG_TAG,
-            "Camera not open upon surface creation. Attempting open.");
-        openCamera();
+        l_listener.onFilter(l_image);
       }
+      m_filterMailbox.release(l_image);
     }
-    catch (final IOException e)
+  }
+
+  /**
+   * Release the associated Camera, if opened.
+   */
+  public void relaseCamera()
+  {
+    m_worker.release();
+  }
+
+  /**
+   * Release the associated Camera, and stop the camera, analysis and
+   * palette threads.
+   */
+  public void shutdown()
+  {
+    m_worker.shutdown();
+    m_paletteExecutor.shutdown();
+    m_uiHandler.removeCallbacks(m_wake);
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int w, int h)
+  {
+    if (m_holder.getSurface() == null)
     {
-      Log.d(LOG_TAG, "Error setting camera preview: " + e.getMessage());
+      // preview surface does not exist
+      return;
     }
+
+    // The surface may have been given a fixed size, to match the preview
+    // frames, so the size of the view itself is what the samples map to.
+    m_viewWidth = getWidth();
+    m_viewHeight = getHeight();
+
+    // (re)start preview with new settings, once the camera is open. The
+    // preview is chosen anew for the rotation of the display.
+    m_worker.setPreviewSurface(m_holder, m_viewWidth, m_viewHeight,
+        getDisplayRotation());
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder)
+  {
+    // The Surface has been created, now tell the camera where to draw the
+    // preview. The preview starts as soon as the camera has been opened.
+    m_viewWidth = getWidth();
+    m_viewHeight = getHeight();
+    m_worker.setPreviewSurface(holder, m_viewWidth, m_viewHeight,
+        getDisplayRotation());
   }
 
   @Override
   public void surfaceDestroyed(SurfaceHolder holder)
   {
     // Surface will be destroyed when we return, so stop the preview.
-    if (m_camera != null)
-    {
-      // Call stopPreview() to stop updating the preview surface.
-      m_camera.stopPreview();
-    }
+    m_worker.clearPreviewSurface();
   }
 }
@@ -0,0 +1,948 @@
+package com.gmail.notrupertthorne.whatsthatcolor;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.CameraInfo;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FocusController;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameAnalyzer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameExchange;
+import com.gmail.notrupertthorne.whatsthatcolor.core.Nv21Sampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
+
+/**
+ * This type is responsible for owning the hardware camera, through the
+ * legacy camera API, as the FrameSource of older devices.
+ *
+ * The camera is opened on, and thus delivers all its callbacks to, a
+ * dedicated camera thread. Preview frames are handed over to a separate
+ * analysis thread through a FrameExchange, and the frame buffers are
+ * recycled from a fixed pool, so that the steady state frame path neither
+ * allocates nor touches the UI thread.
+ *
+ * Opening, configuring and starting the camera never blocks the caller.
+ * The commands are serialized on the camera thread, and the preview is
+ * started once both the camera is open and the preview surface is ready,
+ * in whichever order that happens. Each start chooses the preview size,
+ * format and frame rate range anew, through a CaptureProfileSelector, for
+ * the surface and the rotation of the display at the time, and applies
+ * the focus and metering areas last set.
+ */
+public class CameraWorker implements FrameSource, Handler.Callback
+{
+  private static final String LOG_TAG = "CameraWorker";
+
+  /**
+   * This field provides the number of preview buffers; one being filled by
+   * the camera, one waiting in the exchange, and one being analyzed.
+   */
+  private static final int BUFFER_COUNT = 3;
+
+  private static final int MSG_RECYCLE = 1;
+  private static final int MSG_ANALYZE = 2;
+
+  private final HandlerThread m_cameraThread;
+  private final HandlerThread m_analysisThread;
+  private final Handler m_cameraHandler;
+  private final Handler m_analysisHandler;
+
+  private final FrameAnalyzer m_analyzer;
+  private final PreviewListener m_previewListener;
+
+  /**
+   * This field is only accessed on the analysis thread.
+   */
+  private final YuvFrame m_frame = new YuvFrame();
+
+  private final FrameExchange<byte[]> m_exchange =
+      new FrameExchange<byte[]>();
+  private final AtomicBoolean m_analysisPending = new AtomicBoolean();
+
+  /**
+   * These fields are only accessed on the camera thread.
+   */
+  private Camera m_camera;
+  private final CameraInfo m_info = new CameraInfo();
+  private boolean m_capturing;
+  private CaptureProfileSelector.Capabilities m_capabilities;
+  private CaptureProfileSelector.Profile m_profile =
+      CaptureProfileSelector.Profile.HIGH_ACCURACY;
+  private SurfaceHolder m_holder;
+  private int m_surfaceWidth;
+  private int m_surfaceHeight;
+  private int m_displayRotation;
+  private boolean m_previewing;
+  private boolean m_awaitingFirstFrame;
+  private long m_openRequested;
+  private final byte[][] m_buffers = new byte[BUFFER_COUNT][];
+  /**
+   * This field tells which buffers have been handed over to the analysis,
+   * and must not be given to the camera until recycled.
+   */
+  private final boolean[] m_inFlight = new boolean[BUFFER_COUNT];
+
+  /**
+   * These fields hold the focus and metering areas last set, and whether
+   * the camera focuses upon request. They are only accessed on the camera
+   * thread.
+   */
+  private final List<Camera.Area> m_focusAreas = new ArrayList<Camera.Area>();
+  private final List<Camera.Area> m_meteringAreas =
+      new ArrayList<Camera.Area>();
+  private boolean m_autoFocus;
+
+  /**
+   * These fields are published by the camera thread.
+   */
+  private volatile int m_frameWidth;
+  private volatile int m_frameHeight;
+  private volatile CaptureProfileSelector.Format m_frameFormat =
+      CaptureProfileSelector.Format.NV21;
+  private volatile int m_displayOrientation;
+  private volatile boolean m_mirrored;
+  private volatile long m_timeToFirstFrame = -1;
+  private volatile int m_maxFocusAreas;
+  private volatile int m_maxMeteringAreas;
+
+  /**
+   * This callback is called on the camera thread. It only publishes the
+   * frame, and wakes the analysis thread up.
+   */
+  private final PreviewCallback m_previewFrame = new PreviewCallback()
+  {
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera)
+    {
+      final int l_index = indexOf(data);
+      if (0 > l_index)
+      {
+        return;
+      }
+      m_inFlight[l_index] = true;
+
+      if (m_awaitingFirstFrame)
+      {
+        m_awaitingFirstFrame = false;
+        m_timeToFirstFrame = SystemClock.elapsedRealtime() - m_openRequested;
+        Log.d(LOG_TAG, "Time to first frame: " + m_timeToFirstFrame + " ms");
+      }
+
+      final byte[] l_stale = m_exchange.offer(data);
+      if (null != l_stale)
+      {
+        recycle(l_stale);
+      }
+
+      if (m_analysisPending.compareAndSet(false, true))
+      {
+        m_analysisHandler.sendEmptyMessage(MSG_ANALYZE);
+      }
+    }
+  };
+
+  /**
+   * This handler is called on the analysis thread.
+   */
+  private final Handler.Callback m_analysis = new Handler.Callback()
+  {
+    @Override
+    public boolean handleMessage(Message msg)
+    {
+      if (MSG_ANALYZE != msg.what)
+      {
+        return false;
+      }
+
+      m_analysisPending.set(false);
+
+      final byte[] l_frame = m_exchange.take();
+      if (null != l_frame)
+      {
+        final long l_arrived = m_exchange.getOfferTime();
+        final int l_width = m_frameWidth;
+        final int l_height = m_frameHeight;
+        final boolean l_yv12 =
+            CaptureProfileSelector.Format.YV12 == m_frameFormat;
+
+        // Frames from before a preview size change are simply dropped.
+        if (l_frame.length == bufferSize(l_yv12, l_width, l_height))
+        {
+          if (l_yv12)
+          {
+            m_frame.setYv12(l_frame, l_width, l_height);
+          }
+          else
+          {
+            m_frame.setNv21(l_frame, l_width, l_height);
+          }
+          m_frame.setOrientation(m_displayOrientation, m_mirrored);
+          m_analyzer.analyze(m_frame, l_arrived);
+        }
+
+        m_cameraHandler.obtainMessage(MSG_RECYCLE, l_frame).sendToTarget();
+      }
+      return true;
+    }
+  };
+
+  /**
+   * @param analyzer The analyzer to receive the preview frames.
+   * @param previewListener The listener told each time the preview has
+   *                        been started.
+   */
+  public CameraWorker(FrameAnalyzer analyzer,
+      PreviewListener previewListener)
+  {
+    m_analyzer = analyzer;
+    m_previewListener = previewListener;
+
+    m_cameraThread = new HandlerThread("Camera",
+        Process.THREAD_PRIORITY_DISPLAY);
+    m_cameraThread.start();
+    m_cameraHandler = new Handler(m_cameraThread.getLooper(), this);
+
+    m_analysisThread = new HandlerThread("Analysis",
+        Process.THREAD_PRIORITY_DEFAULT);
+    m_analysisThread.start();
+    m_analysisHandler = new Handler(m_analysisThread.getLooper(),
+        m_analysis);
+  }
+
+  /**
+   * Open the hardware camera, without waiting for it to be opened. The
+   * preview is started as soon as there is a preview surface.
+   *
+   * @param displayRotation The rotation of the display, in degrees.
+   */
+  @Override
+  public void open(final int displayRotation)
+  {
+    final long l_requested = SystemClock.elapsedRealtime();
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (null == m_camera)
+        {
+          m_openRequested = l_requested;
+          m_displayRotation = displayRotation;
+          openOnCameraThread();
+          startPreviewIfReady();
+        }
+      }
+    });
+  }
+
+  /**
+   * Release the hardware camera, without waiting for it to be released.
+   * Since the commands are serialized, a following open is only carried out
+   * once the camera has been released.
+   */
+  @Override
+  public void release()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        releaseOnCameraThread();
+      }
+    });
+  }
+
+  /**
+   * Set the surface to show the preview upon. The preview is (re)started
+   * as soon as the camera is open.
+   */
+  @Override
+  public void setPreviewSurface(final SurfaceHolder holder, final int width,
+      final int height, final int displayRotation)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_holder = holder;
+        m_surfaceWidth = width;
+        m_surfaceHeight = height;
+        m_displayRotation = displayRotation;
+        stopPreviewOnCameraThread();
+        startPreviewIfReady();
+      }
+    });
+  }
+
+  @Override
+  public void setCaptureProfile(final CaptureProfileSelector.Profile profile)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (profile == m_profile)
+        {
+          return;
+        }
+
+        m_profile = profile;
+        if (m_previewing)
+        {
+          stopPreviewOnCameraThread();
+          startPreviewIfReady();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop the preview, and forget about the preview surface, waiting until
+   * done, since the surface is about to go away.
+   */
+  @Override
+  public void clearPreviewSurface()
+  {
+    runAndWait(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        stopPreviewOnCameraThread();
+        m_holder = null;
+      }
+    });
+  }
+
+  /**
+   * Take a picture. The listener is called on the camera thread, after
+   * which the preview is restarted. Taps while a picture is being taken
+   * are ignored.
+   *
+   * @param listener The listener to receive the picture.
+   */
+  @Override
+  public void takePicture(final PictureListener listener)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (null == m_camera || m_capturing)
+        {
+          return;
+        }
+
+        final ShutterCallback l_shutter = new ShutterCallback()
+        {
+          @Override
+          public void onShutter()
+          {
+            listener.onShutter();
+          }
+        };
+
+        final PictureCallback l_picture = new PictureCallback()
+        {
+          @Override
+          public void onPictureTaken(byte[] data, Camera camera)
+          {
+            m_capturing = false;
+            listener.onPicture(data);
+            if (camera != m_camera)
+            {
+              // Released meanwhile.
+              return;
+            }
+
+            // Taking the picture stopped the preview; restart it with a
+            // fresh buffer queue.
+            try
+            {
+              stopPreviewOnCameraThread();
+              startPreviewOnCameraThread();
+            }
+            catch (final RuntimeException e)
+            {
+              Log.d(LOG_TAG, "Error restarting camera preview: "
+                  + e.getMessage());
+            }
+          }
+        };
+
+        try
+        {
+          m_capturing = true;
+          m_camera.takePicture(l_shutter, null, null, l_picture);
+        }
+        catch (final RuntimeException e)
+        {
+          m_capturing = false;
+          Log.d(LOG_TAG, "Error taking picture: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  @Override
+  public int getMaxFocusAreas()
+  {
+    return m_maxFocusAreas;
+  }
+
+  @Override
+  public int getMaxMeteringAreas()
+  {
+    return m_maxMeteringAreas;
+  }
+
+  /**
+   * Set the focus and metering areas, applying them at once if
+   * previewing, and upon every following preview start.
+   */
+  @Override
+  public void setAreas(int[] areas, final int focusAreas,
+      final int meteringAreas)
+  {
+    final int[] l_areas = new int[5 * Math.max(focusAreas, meteringAreas)];
+    System.arraycopy(areas, 0, l_areas, 0, l_areas.length);
+
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_focusAreas.clear();
+        m_meteringAreas.clear();
+        for (int l_i = 0; 5 * l_i < l_areas.length; ++l_i)
+        {
+          final Camera.Area l_area = new Camera.Area(new Rect(
+              l_areas[5 * l_i], l_areas[5 * l_i + 1], l_areas[5 * l_i + 2],
+              l_areas[5 * l_i + 3]), l_areas[5 * l_i + 4]);
+          if (l_i < focusAreas)
+          {
+            m_focusAreas.add(l_area);
+          }
+          if (l_i < meteringAreas)
+          {
+            m_meteringAreas.add(l_area);
+          }
+        }
+
+        if (m_previewing)
+        {
+          final Camera.Parameters l_parameters = m_camera.getParameters();
+          applyAreas(l_parameters);
+          try
+          {
+            m_camera.setParameters(l_parameters);
+          }
+          catch (final RuntimeException e)
+          {
+            Log.d(LOG_TAG, "Error setting focus areas: " + e.getMessage());
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Focus once, while previewing. The listener is called on the camera
+   * thread.
+   */
+  @Override
+  public void autoFocus(final FocusController.AutoFocusListener listener)
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (!m_previewing || !m_autoFocus)
+        {
+          listener.onAutoFocus(false);
+          return;
+        }
+
+        try
+        {
+          m_camera.autoFocus(new AutoFocusCallback()
+          {
+            @Override
+            public void onAutoFocus(boolean success, Camera camera)
+            {
+              listener.onAutoFocus(success);
+            }
+          });
+        }
+        catch (final RuntimeException e)
+        {
+          Log.d(LOG_TAG, "Error focusing: " + e.getMessage());
+          listener.onAutoFocus(false);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void cancelAutoFocus()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (m_previewing && m_autoFocus)
+        {
+          m_camera.cancelAutoFocus();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void shutdown()
+  {
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        releaseOnCameraThread();
+        m_cameraThread.quit();
+        m_analysisThread.quit();
+      }
+    });
+  }
+
+  @Override
+  public int getDisplayOrientation()
+  {
+    return m_displayOrientation;
+  }
+
+  @Override
+  public boolean isMirrored()
+  {
+    return m_mirrored;
+  }
+
+  @Override
+  public long getTimeToFirstFrame()
+  {
+    return m_timeToFirstFrame;
+  }
+
+  @Override
+  public FrameExchange<byte[]> getFrameExchange()
+  {
+    return m_exchange;
+  }
+
+  /**
+   * Recycles the frame buffers handed back by the analysis thread.
+   */
+  @Override
+  public boolean handleMessage(Message msg)
+  {
+    if (MSG_RECYCLE != msg.what)
+    {
+      return false;
+    }
+
+    recycle((byte[]) msg.obj);
+    return true;
+  }
+
+  private void openOnCameraThread()
+  {
+    if (null != m_camera)
+    {
+      return;
+    }
+
+    final int l_id = findBackFacingCamera(m_info);
+
+    try
+    {
+      m_camera = Camera.open(l_id); // attempt to get a Camera instance
+    }
+    catch (final Exception e)
+    {
+      // Camera is not available (in use or does not exist)
+      Log.d(LOG_TAG, "Error opening camera: " + e.getMessage());
+      return;
+    }
+
+    m_timeToFirstFrame = -1;
+
+    if (null != m_camera)
+    {
+      m_mirrored = CameraInfo.CAMERA_FACING_FRONT == m_info.facing;
+
+      final Camera.Parameters l_parameters = m_camera.getParameters();
+      final List<String> l_focusModes =
+          l_parameters.getSupportedFocusModes();
+      m_autoFocus = null != l_focusModes
+          && l_focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO);
+      // Focus and metering areas only came with Ice Cream Sandwich.
+      if (Build.VERSION_CODES.ICE_CREAM_SANDWICH <= Build.VERSION.SDK_INT)
+      {
+        m_maxFocusAreas =
+            m_autoFocus ? l_parameters.getMaxNumFocusAreas() : 0;
+        m_maxMeteringAreas = l_parameters.getMaxNumMeteringAreas();
+      }
+      else
+      {
+        m_maxFocusAreas = 0;
+        m_maxMeteringAreas = 0;
+      }
+
+      try
+      {
+        m_capabilities = CaptureProfileSelector.Capabilities.parse(
+            l_parameters.flatten());
+      }
+      catch (final IllegalArgumentException e)
+      {
+        // The preview is left at the camera's defaults.
+        Log.d(LOG_TAG, "Error reading camera parameters: " + e.getMessage());
+        m_capabilities = null;
+      }
+    }
+  }
+
+  /**
+   * Fall back on the defaults of the camera, in NV21.
+   *
+   * @return The parameters the camera is left with.
+   */
+  private Camera.Parameters applyDefaults()
+  {
+    final Camera.Parameters l_parameters = m_camera.getParameters();
+    l_parameters.setPreviewFormat(ImageFormat.NV21);
+    try
+    {
+      m_camera.setParameters(l_parameters);
+      return l_parameters;
+    }
+    catch (final RuntimeException e)
+    {
+      // Carry on with whatever the camera is set to.
+      Log.d(LOG_TAG, "Error applying camera defaults: " + e.getMessage());
+      return m_camera.getParameters();
+    }
+  }
+
+  private void releaseOnCameraThread()
+  {
+    // A picture being taken is dropped along with the camera.
+    m_capturing = false;
+    if (null != m_camera)
+    {
+      stopPreviewOnCameraThread();
+      m_camera.release();
+      m_camera = null;
+    }
+  }
+
+  private void startPreviewIfReady()
+  {
+    if (null == m_camera || null == m_holder)
+    {
+      return;
+    }
+
+    try
+    {
+      m_camera.setPreviewDisplay(m_holder);
+      startPreviewOnCameraThread();
+    }
+    catch (final IOException e)
+    {
+      Log.d(LOG_TAG, "Error setting camera preview: " + e.getMessage());
+    }
+    catch (final RuntimeException e)
+    {
+      Log.d(LOG_TAG, "Error starting camera preview: " + e.getMessage());
+    }
+  }
+
+  private void startPreviewOnCameraThread()
+  {
+    // The orientation may only be changed while the preview is stopped.
+    m_displayOrientation = RegionMapper.displayOrientation(
+        m_info.orientation, m_displayRotation, m_mirrored);
+    m_camera.setDisplayOrientation(m_displayOrientation);
+
+    Camera.Parameters l_parameters = m_camera.getParameters();
+    CaptureProfileSelector.Format l_format =
+        CaptureProfileSelector.Format.NV21;
+    if (null != m_capabilities && 0 < m_surfaceWidth && 0 < m_surfaceHeight)
+    {
+      final CaptureProfileSelector.Selection l_selection =
+          CaptureProfileSelector.select(m_capabilities, m_profile,
+              m_surfaceWidth, m_surfaceHeight, m_displayOrientation);
+      Log.d(LOG_TAG, "Capture profile " + m_profile + ": " + l_selection);
+
+      l_format = l_selection.getFormat();
+      l_parameters.setPreviewSize(l_selection.getWidth(),
+          l_selection.getHeight());
+      if (0 < l_selection.getMaxFps())
+      {
+        l_parameters.setPreviewFpsRange(l_selection.getMinFps(),
+            l_selection.getMaxFps());
+      }
+    }
+    l_parameters.setPreviewFormat(
+        CaptureProfileSelector.Format.YV12 == l_format ? ImageFormat.YV12
+            : ImageFormat.NV21);
+    applyAreas(l_parameters);
+    try
+    {
+      m_camera.setParameters(l_parameters);
+    }
+    catch (final RuntimeException e)
+    {
+      // Some cameras reject what they claim to support; fall back on their
+      // defaults.
+      Log.d(LOG_TAG, "Error applying capture profile: " + e.getMessage());
+      l_parameters = applyDefaults();
+      l_format = ImageFormat.YV12 == l_parameters.getPreviewFormat()
+          ? CaptureProfileSelector.Format.YV12
+          : CaptureProfileSelector.Format.NV21;
+    }
+
+    final Camera.Size l_size = l_parameters.getPreviewSize();
+    final int l_bufferSize = bufferSize(
+        CaptureProfileSelector.Format.YV12 == l_format, l_size.width,
+        l_size.height);
+
+    m_frameWidth = l_size.width;
+    m_frameHeight = l_size.height;
+    m_frameFormat = l_format;
+
+    // The pool is only reallocated when the preview size changes.
+    for (int l_i = 0; l_i < BUFFER_COUNT; ++l_i)
+    {
+      if (null == m_buffers[l_i] || l_bufferSize != m_buffers[l_i].length)
+      {
+        m_buffers[l_i] = new byte[l_bufferSize];
+        m_inFlight[l_i] = false;
+      }
+    }
+
+    m_camera.setPreviewCallbackWithBuffer(m_previewFrame);
+    for (int l_i = 0; l_i < BUFFER_COUNT; ++l_i)
+    {
+      if (!m_inFlight[l_i])
+      {
+        m_camera.addCallbackBuffer(m_buffers[l_i]);
+      }
+    }
+
+    m_camera.startPreview();
+    m_previewing = true;
+    m_awaitingFirstFrame = -1 == m_timeToFirstFrame;
+    m_previewListener.onPreviewStarted();
+  }
+
+  private void stopPreviewOnCameraThread()
+  {
+    if (null == m_camera)
+    {
+      return;
+    }
+
+    m_previewing = false;
+    try
+    {
+      // Clearing the callback also clears the camera's buffer queue.
+      m_camera.setPreviewCallbackWithBuffer(null);
+      m_camera.stopPreview();
+    }
+    catch (final Exception e)
+    {
+      // ignore: tried to stop a non-existent preview
+    }
+
+    // Any frame still waiting for analysis is dropped.
+    recycle(m_exchange.clear());
+
+    Log.d(LOG_TAG, String.format("Frames received: %d, analyzed: %d, "
+        + "dropped: %d", m_exchange.getReceived(),
+        m_exchange.getAnalyzed(), m_exchange.getDropped()));
+  }
+
+  /**
+   * Apply the focus and metering areas last set, if any, to _parameters_.
+   * Focusing upon request takes the auto focus mode. Nothing is applied
+   * before Ice Cream Sandwich, which has no areas.
+   */
+  private void applyAreas(Camera.Parameters parameters)
+  {
+    if (Build.VERSION_CODES.ICE_CREAM_SANDWICH > Build.VERSION.SDK_INT)
+    {
+      return;
+    }
+
+    if (m_autoFocus && !m_focusAreas.isEmpty())
+    {
+      parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+      parameters.setFocusAreas(m_focusAreas);
+    }
+    if (!m_meteringAreas.isEmpty())
+    {
+      parameters.setMeteringAreas(m_meteringAreas);
+    }
+  }
+
+  /**
+   * @return The size, in bytes, of a frame buffer.
+   */
+  private static int bufferSize(boolean yv12, int width, int height)
+  {
+    return yv12 ? YuvFrame.yv12BufferSize(width, height)
+        : Nv21Sampler.bufferSize(width, height);
+  }
+
+  /**
+   * Hand a frame buffer back to the camera, or keep it until the next
+   * preview start should the preview be stopped.
+   */
+  private void recycle(byte[] frame)
+  {
+    final int l_index = indexOf(frame);
+    if (0 > l_index)
+    {
+      // A buffer from before a preview size change, or no buffer at all.
+      return;
+    }
+
+    m_inFlight[l_index] = false;
+    if (m_previewing)
+    {
+      m_camera.addCallbackBuffer(frame);
+    }
+  }
+
+  private int indexOf(byte[] frame)
+  {
+    for (int l_i = 0; l_i < BUFFER_COUNT; ++l_i)
+    {
+      if (null != frame && m_buffers[l_i] == frame)
+      {
+        return l_i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Run _task_ on the camera thread, blocking until it has been run.
+   */
+  private void runAndWait(final Runnable task)
+  {
+    final CountDownLatch l_done = new CountDownLatch(1);
+    m_cameraHandler.post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          task.run();
+        }
+        finally
+        {
+          l_done.countDown();
+        }
+      }
+    });
+
+    boolean l_interrupted = false;
+    while (true)
+    {
+      try
+      {
+        l_done.await();
+        break;
+      }
+      catch (final InterruptedException e)
+      {
+        l_interrupted = true;
+      }
+    }
+
+    if (l_interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Find the first back facing camera, falling back on the first camera
+   * should there be none.
+   *
+   * @param info Receives the information about the camera found.
+   * @return The id of the camera.
+   */
+  private static int findBackFacingCamera(CameraInfo info)
+  {
+    final int l_cameras = Camera.getNumberOfCameras();
+    for (int l_id = 0; l_id < l_cameras; ++l_id)
+    {
+      Camera.getCameraInfo(l_id, info);
+      if (CameraInfo.CAMERA_FACING_BACK == info.facing)
+      {
+        return l_id;
+      }
+    }
+
+    Camera.getCameraInfo(0, info);
+    return 0;
+  }
+}
@@ -19,17 +19,40 @@ You should have received a copy of the GNU General Public License
 along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.nio.ByteBuffer;
+
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.Log;
 import android.view.View;
 
+import com.gmail.notrupertthorne.whatsthatcolor.core.FilterMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MultiPointSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMailbox;
+
 /**
  * This type is responsible for the drawing of the crosshair
  * that is shown on top of the preview.
+ *
+ * The crosshair is static, so it is drawn once, into a cached alpha layer,
+ * whenever the view changes size. Next to it, a loupe may show the
+ * neighbourhood of the crosshair as enlarged pixels, with the window
+ * reduced by the sampling kernel outlined. The loupe is refreshed at frame
+ * rate from a single reused bitmap, and only its own rectangle is
+ * invalidated. Likewise, each sample point is marked by a swatch of its
+ * latest color, and only the markers are invalidated as they change.
+ *
+ * Beneath it all, the parts of the preview matching a reference color may
+ * be highlighted; the match mask is copied into a reused alpha bitmap, one
+ * pixel per cell, which is stretched over the view, filtered, and tinted.
  */
 public class CrosshairView extends View
 { // implements SurfaceHolder.Callback {
@@ -37,6 +60,90 @@ public class CrosshairView extends View
   private final String LOG_TAG = "CrosshairView";
   private final Paint m_paint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
+  /**
+   * These fields provide the side of the loupe, and its distance from the
+   * crosshair, in density independent pixels.
+   */
+  private static final int LOUPE_SIZE_DP = 120;
+  private static final int LOUPE_OFFSET_DP = 16;
+
+  /**
+   * This field provides the radius of the marker of a sample point, in
+   * density independent pixels.
+   */
+  private static final int MARKER_RADIUS_DP = 12;
+
+  /**
+   * This field holds the crosshair, as drawn into an alpha bitmap the size
+   * of the view, or null until the view has a size.
+   */
+  private Bitmap m_layer;
+
+  /**
+   * These fields paint the loupe; the pixels unfiltered, so that they
+   * stay sharp when enlarged.
+   */
+  private final Paint m_pixelPaint = new Paint();
+  private final Paint m_backgroundPaint = new Paint();
+  private final Paint m_outlinePaint = new Paint();
+  private final Paint m_borderPaint = new Paint();
+
+  /**
+   * These fields hold the loupe; the bitmap of the neighbourhood, created
+   * once first shown, its part in use, and where it is drawn, before being
+   * rotated and mirrored as the preview, around the center of m_loupeRect.
+   */
+  private Bitmap m_loupeBitmap;
+  private boolean m_showLoupe;
+  private final Rect m_loupeRect = new Rect();
+  private final Rect m_source = new Rect();
+  private final RectF m_target = new RectF();
+  private final RectF m_kernel = new RectF();
+  private int m_orientation;
+  private boolean m_mirrored;
+
+  /**
+   * These fields hold the markers of the sample points; their positions,
+   * in fractions of the view, and colors, numbered in order of placement.
+   */
+  private final float[] m_markers = new float[2 * MultiPointSampler.MAX_POINTS];
+  private final int[] m_markerColors = new int[MultiPointSampler.MAX_POINTS];
+  private int m_markerCount;
+  private final float m_markerRadius;
+  private final Paint m_swatchPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint m_ringPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint m_labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+  /**
+   * These fields hold the match overlay; the alpha bitmap of the mask,
+   * created anew only when the mask changes size, the buffer it is copied
+   * from, and how it is turned as the preview.
+   */
+  private Bitmap m_matchBitmap;
+  private final byte[] m_matchStrengths = new byte[MatchMapper.MAX_CELLS];
+  private final ByteBuffer m_matchBuffer = ByteBuffer.wrap(m_matchStrengths);
+  private final Paint m_matchPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private boolean m_showMatches;
+  private int m_matchOrientation;
+  private boolean m_matchMirrored;
+
+  /**
+   * These fields hold the filtered preview; the bitmap of the image,
+   * created anew only when the image changes size, and how it is turned as
+   * the preview. It covers the preview, under the other overlays.
+   */
+  private Bitmap m_filterBitmap;
+  private final Paint m_filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private boolean m_showFiltered;
+  private int m_filterOrientation;
+  private boolean m_filterMirrored;
+
+  /**
+   * This field holds where a preview sized bitmap is drawn, before being
+   * turned as the preview.
+   */
+  private final RectF m_previewTarget = new RectF();
+
   public CrosshairView(Context context)
   {
     super(context);
@@ -44,10 +151,299 @@ public class CrosshairView extends View
     m_paint.setColor(Color.BLUE);
     m_paint.setStyle(Style.FILL);
 
+    final float l_density = getResources().getDisplayMetrics().density;
+
+    m_backgroundPaint.setColor(Color.BLACK);
+    m_backgroundPaint.setStyle(Style.FILL);
+    m_outlinePaint.setColor(Color.WHITE);
+    m_outlinePaint.setStyle(Style.STROKE);
+    m_outlinePaint.setStrokeWidth(l_density);
+    m_borderPaint.setColor(Color.BLUE);
+    m_borderPaint.setStyle(Style.STROKE);
+    m_borderPaint.setStrokeWidth(2 * l_density);
+
+    m_markerRadius = MARKER_RADIUS_DP * l_density;
+    m_swatchPaint.setStyle(Style.FILL);
+    m_ringPaint.setColor(Color.BLUE);
+    m_ringPaint.setStyle(Style.STROKE);
+    m_ringPaint.setStrokeWidth(2 * l_density);
+    m_labelPaint.setTextAlign(Paint.Align.CENTER);
+    m_labelPaint.setTextSize(m_markerRadius);
+    m_matchPaint.setColor(Color.MAGENTA);
+    m_matchPaint.setAlpha(0xc0);
+
     // Signal that we'll do some drawing on the view.
     setWillNotDraw(false);
   }
 
+  /**
+   * Show a neighbourhood of the crosshair in the loupe.
+   *
+   * @param region The neighbourhood. Its pixels are copied, so it may be
+   *               reused.
+   */
+  public void setLoupe(RegionMailbox.Region region)
+  {
+    final int l_width = region.getWidth();
+    final int l_height = region.getHeight();
+    if (0 == l_width || 0 == l_height || m_loupeRect.isEmpty())
+    {
+      return;
+    }
+
+    if (null == m_loupeBitmap)
+    {
+      m_loupeBitmap = Bitmap.createBitmap(RegionMailbox.MAX_SIDE,
+          RegionMailbox.MAX_SIDE, Bitmap.Config.ARGB_8888);
+    }
+    m_loupeBitmap.setPixels(region.getPixels(), 0, l_width, 0, 0, l_width,
+        l_height);
+    m_source.set(0, 0, l_width, l_height);
+
+    // Fit the neighbourhood in the loupe, whichever way it is rotated.
+    final float l_scale = (float) m_loupeRect.width()
+        / Math.max(l_width, l_height);
+    final float l_left = (m_loupeRect.left + m_loupeRect.right
+        - l_scale * l_width) / 2;
+    final float l_top = (m_loupeRect.top + m_loupeRect.bottom
+        - l_scale * l_height) / 2;
+
+    m_target.set(l_left, l_top, l_left + l_scale * l_width,
+        l_top + l_scale * l_height);
+    m_kernel.set(l_left + l_scale * region.getKernelLeft(),
+        l_top + l_scale * region.getKernelTop(),
+        l_left + l_scale * (region.getKernelLeft()
+            + region.getKernelWidth()),
+        l_top + l_scale * (region.getKernelTop()
+            + region.getKernelHeight()));
+    m_orientation = region.getOrientation();
+    m_mirrored = region.isMirrored();
+
+    m_showLoupe = true;
+    invalidateLoupe();
+  }
+
+  /**
+   * Hide the loupe.
+   */
+  public void clearLoupe()
+  {
+    if (m_showLoupe)
+    {
+      m_showLoupe = false;
+      invalidateLoupe();
+    }
+  }
+
+  /**
+   * Highlight the parts of the preview matching the reference color.
+   *
+   * @param mask The match mask. Its strengths are copied, so it may be
+   *             reused.
+   */
+  public void setMatches(MatchMailbox.Mask mask)
+  {
+    final int l_width = mask.getWidth();
+    final int l_height = mask.getHeight();
+    if (0 == l_width || 0 == l_height)
+    {
+      return;
+    }
+
+    if (null == m_matchBitmap || l_width != m_matchBitmap.getWidth()
+        || l_height != m_matchBitmap.getHeight())
+    {
+      if (null != m_matchBitmap)
+      {
+        m_matchBitmap.recycle();
+      }
+      m_matchBitmap = Bitmap.createBitmap(l_width, l_height,
+          Bitmap.Config.ALPHA_8);
+    }
+
+    System.arraycopy(mask.getStrengths(), 0, m_matchStrengths, 0,
+        l_width * l_height);
+    m_matchBuffer.rewind();
+    m_matchBitmap.copyPixelsFromBuffer(m_matchBuffer);
+
+    m_matchOrientation = mask.getOrientation();
+    m_matchMirrored = mask.isMirrored();
+    m_showMatches = true;
+    invalidate();
+  }
+
+  /**
+   * Remove the match overlay.
+   */
+  public void clearMatches()
+  {
+    if (m_showMatches)
+    {
+      m_showMatches = false;
+      invalidate();
+    }
+  }
+
+  /**
+   * Show the preview as filtered for a color vision deficiency.
+   *
+   * @param image The filtered image. Its pixels are copied, so it may be
+   *              reused.
+   */
+  public void setFiltered(FilterMailbox.Image image)
+  {
+    final int l_width = image.getWidth();
+    final int l_height = image.getHeight();
+    if (0 == l_width || 0 == l_height)
+    {
+      return;
+    }
+
+    if (null == m_filterBitmap || l_width != m_filterBitmap.getWidth()
+        || l_height != m_filterBitmap.getHeight())
+    {
+      if (null != m_filterBitmap)
+      {
+        m_filterBitmap.recycle();
+      }
+      m_filterBitmap = Bitmap.createBitmap(l_width, l_height,
+          Bitmap.Config.ARGB_8888);
+    }
+    m_filterBitmap.setPixels(image.getPixels(), 0, l_width, 0, 0, l_width,
+        l_height);
+
+    m_filterOrientation = image.getOrientation();
+    m_filterMirrored = image.isMirrored();
+    m_showFiltered = true;
+    invalidate();
+  }
+
+  /**
+   * Remove the filtered preview.
+   */
+  public void clearFiltered()
+  {
+    if (m_showFiltered)
+    {
+      m_showFiltered = false;
+      invalidate();
+    }
+  }
+
+  /**
+   * This method will draw a preview sized _bitmap_ upon the _canvas_,
+   * stretched over the view as the preview frames are, turned as the
+   * preview is.
+   */
+  private void drawPreviewBitmap(Canvas canvas, Bitmap bitmap,
+      int orientation, boolean mirrored, Paint paint)
+  {
+    final float l_centerX = getWidth() / 2f;
+    final float l_centerY = getHeight() / 2f;
+
+    // The bitmap is turned around the center, so on its side it spans the
+    // width of the view vertically, and the height horizontally.
+    if (90 == orientation || 270 == orientation)
+    {
+      m_previewTarget.set(l_centerX - l_centerY, l_centerY - l_centerX,
+          l_centerX + l_centerY, l_centerY + l_centerX);
+    }
+    else
+    {
+      m_previewTarget.set(0, 0, getWidth(), getHeight());
+    }
+
+    canvas.save();
+    canvas.rotate(orientation, l_centerX, l_centerY);
+    if (mirrored)
+    {
+      canvas.scale(-1, 1, l_centerX, l_centerY);
+    }
+    canvas.drawBitmap(bitmap, null, m_previewTarget, paint);
+    canvas.restore();
+  }
+
+  /**
+   * Mark the sample points with their latest colors.
+   *
+   * @param points The points, as pairs of column and row, in fractions of
+   *               the view. They are copied, so the array may be reused.
+   * @param colors The color of each point, on the 0xAARRGGBB form. They are
+   *               copied, so the array may be reused.
+   * @param count The number of points.
+   */
+  public void setSamplePoints(float[] points, int[] colors, int count)
+  {
+    // Both the markers left, and those placed, need redrawing.
+    invalidateMarkers();
+    m_markerCount = Math.min(MultiPointSampler.MAX_POINTS, count);
+    System.arraycopy(points, 0, m_markers, 0, 2 * m_markerCount);
+    System.arraycopy(colors, 0, m_markerColors, 0, m_markerCount);
+    invalidateMarkers();
+  }
+
+  /**
+   * Remove the markers of the sample points.
+   */
+  public void clearSamplePoints()
+  {
+    invalidateMarkers();
+    m_markerCount = 0;
+  }
+
+  /**
+   * Invalidate the markers only, including their rings.
+   */
+  private void invalidateMarkers()
+  {
+    final int l_reach = (int) Math.ceil(m_markerRadius
+        + m_ringPaint.getStrokeWidth());
+    for (int l_i = 0; l_i < m_markerCount; ++l_i)
+    {
+      final int l_x = (int) (m_markers[2 * l_i] * getWidth());
+      final int l_y = (int) (m_markers[2 * l_i + 1] * getHeight());
+      invalidate(l_x - l_reach, l_y - l_reach, l_x + l_reach, l_y + l_reach);
+    }
+  }
+
+  /**
+   * This method will draw the markers of the sample points upon the
+   * _canvas_; a swatch of each color, ringed and numbered.
+   */
+  private void drawMarkers(Canvas canvas)
+  {
+    final float l_baseline = (m_labelPaint.descent() - m_labelPaint.ascent())
+        / 2 - m_labelPaint.descent();
+
+    for (int l_i = 0; l_i < m_markerCount; ++l_i)
+    {
+      final float l_x = m_markers[2 * l_i] * getWidth();
+      final float l_y = m_markers[2 * l_i + 1] * getHeight();
+      final int l_color = m_markerColors[l_i];
+
+      m_swatchPaint.setColor(0xff000000 | l_color);
+      canvas.drawCircle(l_x, l_y, m_markerRadius, m_swatchPaint);
+      canvas.drawCircle(l_x, l_y, m_markerRadius, m_ringPaint);
+
+      // Number the marker in black or white, whichever stands out.
+      final int l_luma = (299 * Color.red(l_color)
+          + 587 * Color.green(l_color) + 114 * Color.blue(l_color)) / 1000;
+      m_labelPaint.setColor(128 <= l_luma ? Color.BLACK : Color.WHITE);
+      canvas.drawText(Integer.toString(l_i + 1), l_x, l_y + l_baseline,
+          m_labelPaint);
+    }
+  }
+
+  /**
+   * Invalidate the loupe only, including its border.
+   */
+  private void invalidateLoupe()
+  {
+    final int l_border = (int) Math.ceil(m_borderPaint.getStrokeWidth());
+    invalidate(m_loupeRect.left - l_border, m_loupeRect.top - l_border,
+        m_loupeRect.right + l_border, m_loupeRect.bottom + l_border);
+  }
+
   /**
    * This method will draw the crosshair upon the _canvas_.
    * 
@@ -72,10 +468,87 @@ public class CrosshairView extends View
     }
   }
 
+  /**
+   * This method will draw the loupe upon the _canvas_, with the
+   * neighbourhood turned as the preview is.
+   */
+  private void drawLoupe(Canvas canvas)
+  {
+    final float l_centerX = (m_loupeRect.left + m_loupeRect.right) / 2f;
+    final float l_centerY = (m_loupeRect.top + m_loupeRect.bottom) / 2f;
+
+    canvas.drawRect(m_loupeRect, m_backgroundPaint);
+
+    canvas.save();
+    canvas.rotate(m_orientation, l_centerX, l_centerY);
+    if (m_mirrored)
+    {
+      canvas.scale(-1, 1, l_centerX, l_centerY);
+    }
+    canvas.drawBitmap(m_loupeBitmap, m_source, m_target, m_pixelPaint);
+    canvas.drawRect(m_kernel, m_outlinePaint);
+    canvas.restore();
+
+    canvas.drawRect(m_loupeRect, m_borderPaint);
+  }
+
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh)
+  {
+    super.onSizeChanged(w, h, oldw, oldh);
+
+    if (null != m_layer)
+    {
+      m_layer.recycle();
+      m_layer = null;
+    }
+    if (0 < w && 0 < h)
+    {
+      m_layer = Bitmap.createBitmap(w, h, Bitmap.Config.ALPHA_8);
+      drawCrosshair(new Canvas(m_layer));
+    }
+
+    // Place the loupe above and to the right of the crosshair, or to its
+    // left should it not fit.
+    final float l_density = getResources().getDisplayMetrics().density;
+    final int l_size = Math.min(Math.min(w, h) / 2,
+        (int) (LOUPE_SIZE_DP * l_density));
+    final int l_offset = (int) (LOUPE_OFFSET_DP * l_density);
+
+    int l_left = w / 2 + l_offset;
+    if (w < l_left + l_size)
+    {
+      l_left = Math.max(0, w / 2 - l_offset - l_size);
+    }
+    final int l_top = Math.max(0, h / 2 - l_offset - l_size);
+
+    m_loupeRect.set(l_left, l_top, l_left + l_size, l_top + l_size);
+    m_showLoupe = false;
+  }
+
   @Override
   protected void onDraw(Canvas canvas)
   {
     super.onDraw(canvas);
-    drawCrosshair(canvas);
+
+    if (m_showFiltered)
+    {
+      drawPreviewBitmap(canvas, m_filterBitmap, m_filterOrientation,
+          m_filterMirrored, m_filterPaint);
+    }
+    if (m_showMatches)
+    {
+      drawPreviewBitmap(canvas, m_matchBitmap, m_matchOrientation,
+          m_matchMirrored, m_matchPaint);
+    }
+    if (null != m_layer)
+    {
+      canvas.drawBitmap(m_layer, 0, 0, m_paint);
+    }
+    drawMarkers(canvas);
+    if (m_showLoupe)
+    {
+      drawLoupe(canvas);
+    }
   }
 }
@@ -0,0 +1,152 @@
+package com.gmail.notrupertthorne.whatsthatcolor;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import android.view.SurfaceHolder;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameAnalyzer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameExchange;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FocusController;
+
+/**
+ * This type is responsible for owning a camera, showing its preview, and
+ * delivering its preview frames to a FrameAnalyzer, on an analysis thread
+ * of its own, as YuvFrames.
+ *
+ * It is implemented over the legacy camera API by CameraWorker, and over
+ * the camera2 API by Camera2Worker. The analysis only ever sees the
+ * frames, so that it may equally be fed by a SyntheticFrameSource.
+ *
+ * It is also the Device a FocusController steers; the focus and metering
+ * areas set are kept, and applied anew whenever the preview is restarted.
+ *
+ * None of the methods block, unless stated otherwise; the commands are
+ * carried out in order on a camera thread.
+ */
+public interface FrameSource extends FocusController.Device
+{
+  /**
+   * This type is responsible for receiving a picture taken. It is called
+   * on the camera thread.
+   */
+  interface PictureListener
+  {
+    /**
+     * Called as the picture is taken.
+     */
+    void onShutter();
+
+    /**
+     * @param jpeg The picture, as a JPEG, or null if it could not be taken.
+     *             It is neither rotated nor mirrored.
+     */
+    void onPicture(byte[] jpeg);
+  }
+
+  /**
+   * This type is responsible for being told each time the preview has
+   * been started. It is called on the camera thread.
+   */
+  interface PreviewListener
+  {
+    /**
+     * Called once the camera has been asked to deliver preview frames.
+     */
+    void onPreviewStarted();
+  }
+
+  /**
+   * Open the camera. The preview is started as soon as there is a preview
+   * surface.
+   *
+   * @param displayRotation The rotation of the display, in degrees.
+   */
+  void open(int displayRotation);
+
+  /**
+   * Release the camera. A following open is only carried out once the
+   * camera has been released.
+   */
+  void release();
+
+  /**
+   * Set the surface to show the preview upon, e.g. as it has been created,
+   * or has changed with the rotation of the display. The preview is
+   * (re)started, with a capture profile chosen for the surface, as soon as
+   * the camera is open.
+   *
+   * @param holder The holder of the preview surface.
+   * @param width The width of the surface, in pixels.
+   * @param height The height of the surface, in pixels.
+   * @param displayRotation The rotation of the display, in degrees.
+   */
+  void setPreviewSurface(SurfaceHolder holder, int width, int height,
+      int displayRotation);
+
+  /**
+   * Set what to favour when choosing how the camera delivers its preview
+   * frames. The preview is restarted if running.
+   *
+   * @param profile The profile.
+   */
+  void setCaptureProfile(CaptureProfileSelector.Profile profile);
+
+  /**
+   * Stop the preview, and forget about the preview surface, waiting until
+   * done, since the surface is about to go away.
+   */
+  void clearPreviewSurface();
+
+  /**
+   * Take a picture.
+   *
+   * @param listener The listener to receive the picture.
+   */
+  void takePicture(PictureListener listener);
+
+  /**
+   * Release the camera, and stop the threads once it has been released.
+   */
+  void shutdown();
+
+  /**
+   * @return The clockwise rotation of the preview, in degrees.
+   */
+  int getDisplayOrientation();
+
+  /**
+   * @return True if the preview is mirrored.
+   */
+  boolean isMirrored();
+
+  /**
+   * @return The time, in milliseconds, from the latest open request until
+   *         the first preview frame arrived, or -1 if none has yet.
+   */
+  long getTimeToFirstFrame();
+
+  /**
+   * @return The exchange the frames are handed to the analysis through,
+   *         holding the frame statistics.
+   */
+  FrameExchange<?> getFrameExchange();
+}
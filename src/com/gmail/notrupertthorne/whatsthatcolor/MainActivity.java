@@ -19,18 +19,30 @@ You should have received a copy of the GNU General Public License
 along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.app.Dialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
+import android.content.res.AssetManager;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v7.app.ActionBarActivity;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -38,6 +50,21 @@ import android.widget.FrameLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.gmail.notrupertthorne.whatsthatcolor.core.CaptureProfileSelector;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorFormatter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FilterMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameRecorder;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.MatchMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMailbox;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SampleHistory;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+import com.gmail.notrupertthorne.whatsthatcolor.core.StartupSequencer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.StartupSequencer.Phase;
+import com.gmail.notrupertthorne.whatsthatcolor.core.StartupSequencer.Priority;
+import com.gmail.notrupertthorne.whatsthatcolor.core.VisionFilter;
 import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.AdView;
 import com.google.android.gms.common.ConnectionResult;
@@ -49,52 +76,518 @@ import com.google.android.gms.common.GooglePlayServicesUtil;
 public class MainActivity extends ActionBarActivity
 {
   /**
-   * This type is responsible for receiving a _Message_
-   * from the camera preview, containing the color code
-   * of the selected pixel.
+   * This type is responsible for loading the palettes of named colors, i.e.
+   * all files in the palettes asset directory, and indexing them, off the
+   * UI thread.
    */
-  private static class HandlerClass extends Handler
+  private static class PaletteLoader extends AsyncTask<Void, Void, ColorNamer>
   {
-    private final WeakReference<MainActivity> m_weakMain;
+    private static final String PALETTE_DIR = "palettes";
 
-    public HandlerClass(MainActivity context)
+    private final AssetManager m_assets;
+    private final WeakReference<CameraPreview> m_weakPreview;
+
+    public PaletteLoader(AssetManager assets, CameraPreview preview)
     {
-      // Store a weak reference to the main activity, in
-      // order to be able to fetch widgets.
-      m_weakMain = new WeakReference<MainActivity>(context);
+      m_assets = assets;
+      m_weakPreview = new WeakReference<CameraPreview>(preview);
     }
 
-    /**
-     * Updates the widgets once a Message has been received.
-     */
     @Override
-    public void handleMessage(Message msg)
+    protected ColorNamer doInBackground(Void... params)
     {
-      final MainActivity l_main = m_weakMain.get();
-      if (null != l_main)
+      final List<ColorPalette> l_palettes = new ArrayList<ColorPalette>();
+      try
+      {
+        for (final String l_file : m_assets.list(PALETTE_DIR))
+        {
+          final InputStream l_in = m_assets.open(PALETTE_DIR + "/" + l_file);
+          try
+          {
+            l_palettes.add(ColorPalette.read(l_in));
+          }
+          finally
+          {
+            l_in.close();
+          }
+        }
+      }
+      catch (final IOException e)
       {
-        final String colorString = msg.getData().getString(
-            CameraPreview.COLORKEY);
-        l_main.updateSampledColor(colorString);
+        Log.e(LOG_TAG, "Error loading palettes", e);
+      }
+
+      return new ColorNamer(ColorPalette.join(
+          l_palettes.toArray(new ColorPalette[l_palettes.size()])));
+    }
+
+    @Override
+    protected void onPostExecute(ColorNamer namer)
+    {
+      final CameraPreview l_preview = m_weakPreview.get();
+      if (null != l_preview)
+      {
+        l_preview.setColorNamer(namer);
       }
     }
   }
 
+  /**
+   * This type is responsible for opening the history of sampled colors off
+   * the UI thread, and handing it to the activity, unless that has since
+   * been destroyed.
+   */
+  private static class HistoryLoader
+      extends AsyncTask<Void, Void, SampleHistory>
+  {
+    private final File m_file;
+    private final WeakReference<MainActivity> m_weakActivity;
+
+    public HistoryLoader(File file, MainActivity activity)
+    {
+      m_file = file;
+      m_weakActivity = new WeakReference<MainActivity>(activity);
+    }
+
+    @Override
+    protected SampleHistory doInBackground(Void... params)
+    {
+      try
+      {
+        return new SampleHistory(m_file);
+      }
+      catch (final IOException e)
+      {
+        Log.e(LOG_TAG, "Error opening sample history", e);
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(SampleHistory history)
+    {
+      if (null == history)
+      {
+        return;
+      }
+
+      final MainActivity l_activity = m_weakActivity.get();
+      if (null != l_activity && !l_activity.m_destroyed)
+      {
+        l_activity.m_history = history;
+        l_activity.m_preview.setSampleHistory(history);
+      }
+      else
+      {
+        closeHistory(history);
+      }
+    }
+  }
+
+  private static final String LOG_TAG = "MainActivity";
+
+  /**
+   * This field provides the name of the sample history file.
+   */
+  private static final String HISTORY_FILE = "history.bin";
+
   private int REQUEST_CODE = 42;
 
-  private CrosshairView m_crosshair;
+  /**
+   * This field provides the time, in milliseconds, after which the
+   * deferred startup work runs even if no preview frame has arrived.
+   */
+  private static final long STARTUP_RELEASE = 3000;
+
+  /**
+   * This field tells whether an activity has been created in this process
+   * before, i.e. whether a start is warm rather than cold.
+   */
+  private static boolean s_started;
+
+  /**
+   * This field provides the Bundle key for the live sampling state.
+   */
+  private static final String LIVEKEY = "live";
+
+  /**
+   * This field provides the Bundle key for the palette extraction state.
+   */
+  private static final String PALETTEKEY = "palette";
+
+  /**
+   * This field provides the Bundle key for the burst reading state.
+   */
+  private static final String BURSTKEY = "burst";
+
+  /**
+   * This field provides the Bundle key for the loupe state.
+   */
+  private static final String LOUPEKEY = "loupe";
+
+  /**
+   * This field provides the Bundle key for the reference color matched,
+   * present only while matching.
+   */
+  private static final String MATCHKEY = "match";
+
+  /**
+   * This field provides the Bundle key for the sample points, as a float
+   * array of pairs of column and row, in fractions of the preview.
+   */
+  private static final String POINTSKEY = "points";
+
+  /**
+   * These fields provide the Bundle keys for the sampled color, as an int,
+   * and its name.
+   */
+  private static final String COLORKEY = "color";
+  private static final String NAMEKEY = "name";
+
+  /**
+   * These fields provide the Bundle keys for the sampling settings.
+   */
+  private static final String SIZEKEY = "sampleSize";
+  private static final String STATISTICKEY = "statistic";
+  private static final String WHITEBALANCEKEY = "whiteBalance";
+
+  /**
+   * This field provides the Bundle key for the capture profile.
+   */
+  private static final String CAPTUREPROFILEKEY = "captureProfile";
+
+  /**
+   * These fields provide the Bundle keys for the vision filter.
+   */
+  private static final String VISIONKEY = "vision";
+  private static final String DALTONIZEKEY = "daltonize";
+
+  /**
+   * This field provides the Bundle key for the performance overlay state.
+   */
+  private static final String PERFORMANCEKEY = "performance";
+
+  /**
+   * This field provides the time, in milliseconds, between updates of the
+   * performance overlay.
+   */
+  private static final long PERFORMANCE_INTERVAL = 500;
+
+  /**
+   * This field provides the name, less the extension, of the performance
+   * report files.
+   */
+  private static final String PERFORMANCE_REPORT = "latency";
+
+  /**
+   * This field provides the name of the file the preview frames are
+   * recorded to.
+   */
+  private static final String FRAME_RECORDING = "frames.wtcf";
+
+  /**
+   * These fields provide the opacity of the color readout, depending on
+   * whether the color is steady.
+   */
+  private static final float LOCKED_ALPHA = 1.0f;
+  private static final float UNLOCKED_ALPHA = 0.6f;
+
+  /**
+   * These fields map the sample size menu items onto sizes, index by index.
+   */
+  private static final int[] SIZE_ITEMS = { R.id.sample_size_3,
+      R.id.sample_size_8, R.id.sample_size_16, R.id.sample_size_32,
+      R.id.sample_size_64 };
+  private static final int[] SIZES = { 3, 8, 16, 32, 64 };
+
+  /**
+   * This field maps the sample statistic menu items onto the statistics,
+   * in declaration order.
+   */
+  private static final int[] STATISTIC_ITEMS = { R.id.statistic_mean,
+      R.id.statistic_median, R.id.statistic_trimmed_mean,
+      R.id.statistic_mode };
+
+  /**
+   * This field maps the white balance menu items onto the illuminant
+   * estimation methods, in declaration order, following the item that
+   * disables white balancing.
+   */
+  private static final int[] WHITE_BALANCE_ITEMS = { R.id.white_balance_off,
+      R.id.white_balance_gray_world, R.id.white_balance_white_patch,
+      R.id.white_balance_gray_edge };
+
+  /**
+   * This field maps the capture profile menu items onto the profiles, in
+   * declaration order.
+   */
+  private static final int[] CAPTURE_PROFILE_ITEMS = {
+      R.id.capture_profile_low_power, R.id.capture_profile_high_accuracy };
 
-  private HandlerClass m_handler;
+  /**
+   * This field maps the vision filter menu items onto the deficiencies, in
+   * declaration order, following the item that disables the filter.
+   */
+  private static final int[] VISION_FILTER_ITEMS = { R.id.vision_filter_off,
+      R.id.vision_filter_protan, R.id.vision_filter_deutan,
+      R.id.vision_filter_tritan };
+
+  private CrosshairView m_crosshair;
 
   private CameraPreview m_preview;
 
-  private String m_colorString;
+  /**
+   * These fields order the work of each start, so that the camera and
+   * preview come first, the crosshair once the preview has started, and
+   * the ads and Play Services only once the first preview frame has
+   * arrived. Each start begins in onCreate, or in onResume if not just
+   * created, and ends at the latest with m_releaseStartup.
+   */
+  private final Handler m_handler = new Handler();
+  private StartupSequencer m_startup;
+  private boolean m_startupBegun;
+  private final Runnable m_releaseStartup = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      m_startup.release();
+    }
+  };
+
+  private final StartupSequencer.Listener m_startupListener =
+      new StartupSequencer.Listener()
+  {
+    @Override
+    public void onPhase(StartupSequencer.Start start, Phase phase,
+        long nanos, boolean overBudget)
+    {
+      final String l_message = start + " start: " + phase + " after "
+          + nanos / 1000000 + " ms";
+      if (overBudget)
+      {
+        Log.w(LOG_TAG, l_message + ", over budget");
+      }
+      else
+      {
+        Log.i(LOG_TAG, l_message);
+      }
+    }
+  };
+
+  /**
+   * This executor runs tasks upon the UI thread once it has nothing else
+   * to do, i.e. once the pending layouts and draws are done.
+   */
+  private final Executor m_idleExecutor = new Executor()
+  {
+    @Override
+    public void execute(final Runnable command)
+    {
+      // The queue must be that of the UI thread.
+      m_handler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler()
+          {
+            @Override
+            public boolean queueIdle()
+            {
+              command.run();
+              return false;
+            }
+          });
+        }
+      });
+    }
+  };
+
+  private final Executor m_uiExecutor = new Executor()
+  {
+    @Override
+    public void execute(Runnable command)
+    {
+      m_handler.post(command);
+    }
+  };
+
+  /**
+   * This field tells whether a Play Services check is queued, so that
+   * resuming repeatedly before it runs queues only one.
+   */
+  private boolean m_checkingPlayServices;
+
+  private PaletteView m_palette;
+
+  /**
+   * This field references the history of sampled colors, once opened.
+   */
+  private SampleHistory m_history;
+
+  /**
+   * This field tells whether the activity has been destroyed, so that a
+   * history opened after the fact is closed at once.
+   */
+  private boolean m_destroyed;
+
+  /**
+   * This field references the container of the m_palette, which is hidden
+   * unless the dominant colors are extracted.
+   */
+  private FrameLayout m_paletteFrame;
+
+  /**
+   * These fields show the latency of each stage of the pipeline, while the
+   * performance overlay is enabled. The text is built into a reused buffer.
+   */
+  private TextView m_performanceText;
+  private final StringBuilder m_performanceReport = new StringBuilder();
+  private final Runnable m_performanceUpdate = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      m_performanceReport.setLength(0);
+      m_preview.getLatencyStats().writeText(m_performanceReport);
+      m_performanceText.setText(m_performanceReport);
+      m_performanceText.postDelayed(this, PERFORMANCE_INTERVAL);
+    }
+  };
+
+  /**
+   * These fields reference the views showing the sampled color, looked up
+   * once.
+   */
+  private TextView m_colorText;
+  private TextView m_nameText;
+  private FrameLayout m_colorSample;
+
+  /**
+   * This field is scratch space for the color code shown.
+   */
+  private final char[] m_colorChars = new char[ColorFormatter.HEX_LENGTH];
+
+  private boolean m_sampled;
+
+  private int m_color;
+
+  private String m_colorName;
+
+  private final CameraPreview.ColorListener m_colorListener =
+      new CameraPreview.ColorListener()
+  {
+    @Override
+    public void onColorSampled(int color, String name, boolean locked)
+    {
+      m_startup.mark(Phase.FIRST_READING);
+      updateSampledColor(color, name, locked);
+    }
+  };
+
+  private final CameraPreview.PaletteListener m_paletteListener =
+      new CameraPreview.PaletteListener()
+  {
+    @Override
+    public void onPalette(int[] colors, int[] weights, int count)
+    {
+      m_palette.setPalette(colors, weights, count);
+    }
+  };
+
+  private final CameraPreview.LoupeListener m_loupeListener =
+      new CameraPreview.LoupeListener()
+  {
+    @Override
+    public void onLoupe(RegionMailbox.Region region)
+    {
+      m_crosshair.setLoupe(region);
+    }
+  };
+
+  private final CameraPreview.MatchListener m_matchListener =
+      new CameraPreview.MatchListener()
+  {
+    @Override
+    public void onMatch(MatchMailbox.Mask mask)
+    {
+      m_crosshair.setMatches(mask);
+    }
+  };
+
+  private final CameraPreview.FilterListener m_filterListener =
+      new CameraPreview.FilterListener()
+  {
+    @Override
+    public void onFilter(FilterMailbox.Image image)
+    {
+      m_crosshair.setFiltered(image);
+    }
+  };
+
+  private final CameraPreview.BurstListener m_burstListener =
+      new CameraPreview.BurstListener()
+  {
+    @Override
+    public void onBurst(double uncertainty, int rejected, int samples)
+    {
+      Toast.makeText(getApplicationContext(), String.format(
+          "\u00b1%.1f \u0394E, %d%% of samples rejected", uncertainty,
+          100 * rejected / samples), Toast.LENGTH_SHORT).show();
+    }
+  };
+
+  private final CameraPreview.PointsListener m_pointsListener =
+      new CameraPreview.PointsListener()
+  {
+    @Override
+    public void onPointsSampled(float[] points, int[] colors, String[] names,
+        int count)
+    {
+      m_crosshair.setSamplePoints(points, colors, count);
+    }
+  };
 
   @Override
   public boolean onCreateOptionsMenu(Menu menu)
   {
     // Inflate the menu; this adds items to the action bar if it is present.
     getMenuInflater().inflate(R.menu.main, menu);
+    menu.findItem(R.id.action_live_sampling).setChecked(
+        m_preview.isLiveSampling());
+    menu.findItem(R.id.action_burst).setChecked(m_preview.isBurst());
+    menu.findItem(R.id.action_palette).setChecked(
+        m_preview.isPaletteExtraction());
+    menu.findItem(R.id.action_loupe).setChecked(m_preview.isLoupe());
+    menu.findItem(R.id.action_match).setChecked(m_preview.isMatching());
+    menu.findItem(R.id.action_performance_overlay).setChecked(
+        m_preview.isPerformanceMonitoring());
+    menu.findItem(R.id.action_record_frames).setChecked(
+        m_preview.isRecording());
+
+    for (int l_i = 0; l_i < SIZES.length; ++l_i)
+    {
+      if (SIZES[l_i] == m_preview.getSampleSize())
+      {
+        menu.findItem(SIZE_ITEMS[l_i]).setChecked(true);
+      }
+    }
+    menu.findItem(STATISTIC_ITEMS[m_preview.getSampleStatistic().ordinal()])
+        .setChecked(true);
+
+    final IlluminantEstimator.Method l_whiteBalance =
+        m_preview.getWhiteBalance();
+    menu.findItem(WHITE_BALANCE_ITEMS[null == l_whiteBalance ? 0
+        : 1 + l_whiteBalance.ordinal()]).setChecked(true);
+    menu.findItem(CAPTURE_PROFILE_ITEMS[m_preview.getCaptureProfile()
+        .ordinal()]).setChecked(true);
+
+    final VisionFilter.Deficiency l_deficiency = m_preview.getDeficiency();
+    menu.findItem(VISION_FILTER_ITEMS[null == l_deficiency ? 0
+        : 1 + l_deficiency.ordinal()]).setChecked(true);
+    menu.findItem(R.id.vision_filter_daltonize).setChecked(
+        m_preview.isDaltonizing());
     return true;
   }
 
@@ -107,12 +600,108 @@ public class MainActivity extends ActionBarActivity
     final int id = item.getItemId();
     switch (id)
     {
+      case R.id.action_live_sampling:
+        item.setChecked(!item.isChecked());
+        m_preview.setLiveSampling(item.isChecked());
+        if (!item.isChecked())
+        {
+          m_crosshair.clearLoupe();
+        }
+        return true;
+      case R.id.action_burst:
+        item.setChecked(!item.isChecked());
+        m_preview.setBurst(item.isChecked());
+        return true;
+      case R.id.action_loupe:
+        item.setChecked(!item.isChecked());
+        setLoupe(item.isChecked());
+        return true;
+      case R.id.action_match:
+        item.setChecked(setMatching(!item.isChecked()));
+        return true;
+      case R.id.action_clear_points:
+        m_preview.clearSamplePoints();
+        m_crosshair.clearSamplePoints();
+        return true;
+      case R.id.action_palette:
+        item.setChecked(!item.isChecked());
+        setPaletteExtraction(item.isChecked());
+        return true;
+      case R.id.vision_filter_daltonize:
+        item.setChecked(!item.isChecked());
+        setVisionFilter(m_preview.getDeficiency(), item.isChecked());
+        return true;
+      case R.id.action_performance_overlay:
+        item.setChecked(!item.isChecked());
+        setPerformanceOverlay(item.isChecked());
+        return true;
+      case R.id.action_performance_report:
+        savePerformanceReport();
+        return true;
+      case R.id.action_record_frames:
+        item.setChecked(setFrameRecording(!item.isChecked()));
+        return true;
       case R.id.action_about:
         launchAboutActivity();
         return true;
       case R.id.action_license:
         launchLicenseActivity();
     }
+
+    for (int l_i = 0; l_i < SIZE_ITEMS.length; ++l_i)
+    {
+      if (SIZE_ITEMS[l_i] == id)
+      {
+        item.setChecked(true);
+        m_preview.setSampling(SIZES[l_i], m_preview.getSampleStatistic());
+        return true;
+      }
+    }
+
+    for (int l_i = 0; l_i < STATISTIC_ITEMS.length; ++l_i)
+    {
+      if (STATISTIC_ITEMS[l_i] == id)
+      {
+        item.setChecked(true);
+        m_preview.setSampling(m_preview.getSampleSize(),
+            SamplingKernel.Statistic.values()[l_i]);
+        return true;
+      }
+    }
+
+    for (int l_i = 0; l_i < WHITE_BALANCE_ITEMS.length; ++l_i)
+    {
+      if (WHITE_BALANCE_ITEMS[l_i] == id)
+      {
+        item.setChecked(true);
+        m_preview.setWhiteBalance(0 == l_i ? null
+            : IlluminantEstimator.Method.values()[l_i - 1]);
+        return true;
+      }
+    }
+
+    for (int l_i = 0; l_i < CAPTURE_PROFILE_ITEMS.length; ++l_i)
+    {
+      if (CAPTURE_PROFILE_ITEMS[l_i] == id)
+      {
+        item.setChecked(true);
+        m_preview.setCaptureProfile(
+            CaptureProfileSelector.Profile.values()[l_i]);
+        return true;
+      }
+    }
+
+    for (int l_i = 0; l_i < VISION_FILTER_ITEMS.length; ++l_i)
+    {
+      if (VISION_FILTER_ITEMS[l_i] == id)
+      {
+        item.setChecked(true);
+        setVisionFilter(0 == l_i ? null
+            : VisionFilter.Deficiency.values()[l_i - 1],
+            m_preview.isDaltonizing());
+        return true;
+      }
+    }
     return super.onOptionsItemSelected(item);
   }
 
@@ -121,56 +710,435 @@ public class MainActivity extends ActionBarActivity
   {
     super.onPause();
     m_preview.relaseCamera();
+    m_performanceText.removeCallbacks(m_performanceUpdate);
+    m_handler.removeCallbacks(m_releaseStartup);
   }
 
   @Override
-  public void onResume()
+  protected void onDestroy()
+  {
+    super.onDestroy();
+    m_preview.stopRecording(null);
+    m_preview.shutdown();
+
+    m_destroyed = true;
+    if (null != m_history)
+    {
+      closeHistory(m_history);
+      m_history = null;
+    }
+  }
+
+  /**
+   * Check whether Play Services are available, off the UI thread, and ask
+   * the user to resolve it upon the UI thread if not.
+   */
+  private void checkPlayServices()
   {
-    int l_result = GooglePlayServicesUtil.isGooglePlayServicesAvailable(this);
-    if (ConnectionResult.SUCCESS != l_result)
+    final int l_result =
+        GooglePlayServicesUtil.isGooglePlayServicesAvailable(this);
+    runOnUiThread(new Runnable()
     {
-      Dialog l_dialog = GooglePlayServicesUtil.getErrorDialog(l_result, this, REQUEST_CODE);
-      if (null != l_dialog)
+      @Override
+      public void run()
       {
-        l_dialog.show();
+        m_checkingPlayServices = false;
+        if (ConnectionResult.SUCCESS == l_result || m_destroyed
+            || isFinishing())
+        {
+          return;
+        }
+
+        final Dialog l_dialog = GooglePlayServicesUtil.getErrorDialog(
+            l_result, MainActivity.this, REQUEST_CODE);
+        if (null != l_dialog)
+        {
+          l_dialog.show();
+        }
       }
+    });
+  }
+
+  /**
+   * Close a history, logging any failure.
+   */
+  private static void closeHistory(SampleHistory history)
+  {
+    try
+    {
+      history.close();
+    }
+    catch (final IOException e)
+    {
+      Log.e(LOG_TAG, "Error closing sample history", e);
     }
+  }
+
+  @Override
+  public void onResume()
+  {
     super.onResume();
+    if (!m_startupBegun)
+    {
+      m_startup.begin(StartupSequencer.Start.HOT);
+    }
+    m_startupBegun = false;
+
     m_preview.openCamera();
+    m_handler.removeCallbacks(m_releaseStartup);
+    m_handler.postDelayed(m_releaseStartup, STARTUP_RELEASE);
+
+    if (!m_checkingPlayServices)
+    {
+      m_checkingPlayServices = true;
+      m_startup.add(Priority.BACKGROUND, new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          checkPlayServices();
+        }
+      });
+    }
+
+    if (m_preview.isPerformanceMonitoring())
+    {
+      m_performanceText.removeCallbacks(m_performanceUpdate);
+      m_performanceText.post(m_performanceUpdate);
+    }
   }
 
   @Override
   protected void onCreate(Bundle savedInstanceState)
   {
     super.onCreate(savedInstanceState);
-    setContentView(R.layout.activity_main);
+    m_startup = new StartupSequencer(m_uiExecutor, m_idleExecutor,
+        AsyncTask.THREAD_POOL_EXECUTOR);
+    m_startup.setListener(m_startupListener);
+    m_startup.begin(s_started ? StartupSequencer.Start.WARM
+        : StartupSequencer.Start.COLD);
+    m_startupBegun = true;
+    s_started = true;
 
-    m_handler = new HandlerClass(this);
-
-    // Look up the AdView as a resource and load a request.
-    AdView adView = (AdView) this.findViewById(R.id.adView);
-    AdRequest adRequest = new AdRequest.Builder()
-    .addTestDevice(AdRequest.DEVICE_ID_EMULATOR)       // Emulator
-    .addTestDevice("A5B23121C2B1DA201B438621179B3FD8") // .. to get from logcat.
-    .build();
-    adView.loadAd(adRequest);
+    setContentView(R.layout.activity_main);
 
+    m_colorText = (TextView) findViewById(R.id.color_textbox);
+    m_nameText = (TextView) findViewById(R.id.color_name);
+    m_colorSample = (FrameLayout) findViewById(R.id.color_sample);
+    m_performanceText = (TextView) findViewById(R.id.performance_overlay);
 
     // Create the preview view, and set it as content of this Activity.
-    m_preview = new CameraPreview(this, m_handler);
+    m_preview = new CameraPreview(this, m_colorListener);
+    m_preview.setStartupSequencer(m_startup);
     final FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
     preview.addView(m_preview);
 
-    // Create the crosshair view, and set it as content of this Activity.
+    // Create the crosshair, and palette, views, but only lay them out once
+    // the preview has started.
     m_crosshair = new CrosshairView(this);
-    final FrameLayout crosshair = (FrameLayout) findViewById(R.id.crosshair_view);
-    crosshair.addView(m_crosshair);
+    m_palette = new PaletteView(this);
+    m_paletteFrame = (FrameLayout) findViewById(R.id.palette_view);
+    m_startup.add(Priority.CROSSHAIR, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final FrameLayout crosshair =
+            (FrameLayout) findViewById(R.id.crosshair_view);
+        crosshair.addView(m_crosshair);
+        m_paletteFrame.addView(m_palette);
+      }
+    });
+
+    // Load the ads once the first preview frame is in.
+    m_startup.add(Priority.IDLE, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (m_destroyed)
+        {
+          return;
+        }
+
+        // Look up the AdView as a resource and load a request.
+        AdView adView = (AdView) findViewById(R.id.adView);
+        AdRequest adRequest = new AdRequest.Builder()
+        .addTestDevice(AdRequest.DEVICE_ID_EMULATOR)       // Emulator
+        .addTestDevice("A5B23121C2B1DA201B438621179B3FD8") // .. to get from logcat.
+        .build();
+        adView.loadAd(adRequest);
+      }
+    });
+
+    m_preview.setPaletteListener(m_paletteListener);
+    m_preview.setLoupeListener(m_loupeListener);
+    m_preview.setPointsListener(m_pointsListener);
+    m_preview.setMatchListener(m_matchListener);
+    m_preview.setFilterListener(m_filterListener);
+    m_preview.setBurstListener(m_burstListener);
 
     if (null != savedInstanceState && 
-        savedInstanceState.containsKey(CameraPreview.COLORKEY))
+        savedInstanceState.containsKey(COLORKEY))
     {
-      updateSampledColor(savedInstanceState.getString(CameraPreview.COLORKEY));
+      updateSampledColor(savedInstanceState.getInt(COLORKEY),
+          savedInstanceState.getString(NAMEKEY), true);
     }
+
+    new PaletteLoader(getAssets(), m_preview).execute();
+    new HistoryLoader(new File(getFilesDir(), HISTORY_FILE), this).execute();
+
+    if (null != savedInstanceState)
+    {
+      m_preview.setLiveSampling(savedInstanceState.getBoolean(LIVEKEY));
+      m_preview.setBurst(savedInstanceState.getBoolean(BURSTKEY));
+      setPaletteExtraction(savedInstanceState.getBoolean(PALETTEKEY));
+      setLoupe(savedInstanceState.getBoolean(LOUPEKEY));
+      if (savedInstanceState.containsKey(MATCHKEY))
+      {
+        m_preview.setMatchReference(savedInstanceState.getInt(MATCHKEY));
+      }
+      final float[] l_points = savedInstanceState.getFloatArray(POINTSKEY);
+      if (null != l_points)
+      {
+        m_preview.setSamplePoints(l_points);
+      }
+      setPerformanceOverlay(savedInstanceState.getBoolean(PERFORMANCEKEY));
+
+      final String l_statistic = savedInstanceState.getString(STATISTICKEY);
+      m_preview.setSampling(savedInstanceState.getInt(SIZEKEY,
+          CameraPreview.DEFAULT_SAMPLE_SIZE),
+          null == l_statistic ? SamplingKernel.Statistic.MEAN
+              : SamplingKernel.Statistic.valueOf(l_statistic));
+
+      final String l_whiteBalance =
+          savedInstanceState.getString(WHITEBALANCEKEY);
+      if (null != l_whiteBalance)
+      {
+        m_preview.setWhiteBalance(
+            IlluminantEstimator.Method.valueOf(l_whiteBalance));
+      }
+
+      final String l_captureProfile =
+          savedInstanceState.getString(CAPTUREPROFILEKEY);
+      if (null != l_captureProfile)
+      {
+        m_preview.setCaptureProfile(
+            CaptureProfileSelector.Profile.valueOf(l_captureProfile));
+      }
+
+      final String l_vision = savedInstanceState.getString(VISIONKEY);
+      setVisionFilter(null == l_vision ? null
+          : VisionFilter.Deficiency.valueOf(l_vision),
+          savedInstanceState.getBoolean(DALTONIZEKEY));
+    }
+  }
+
+  /**
+   * Set the deficiency, if any, the preview is filtered for, and whether
+   * it is daltonized for, rather than simulated.
+   *
+   * @param deficiency The deficiency, or null to show the preview as is.
+   * @param daltonize True if the preview shall be daltonized.
+   */
+  private void setVisionFilter(VisionFilter.Deficiency deficiency,
+      boolean daltonize)
+  {
+    m_preview.setVisionFilter(deficiency, daltonize);
+    if (null == deficiency)
+    {
+      m_crosshair.clearFiltered();
+    }
+  }
+
+  /**
+   * Enable or disable the extraction, and showing, of the dominant colors
+   * of the preview.
+   *
+   * @param enabled True if the dominant colors shall be shown.
+   */
+  void setPaletteExtraction(boolean enabled)
+  {
+    m_preview.setPaletteExtraction(enabled);
+    m_paletteFrame.setVisibility(enabled ? View.VISIBLE : View.GONE);
+  }
+
+  /**
+   * Enable or disable the loupe, showing the neighbourhood of the
+   * crosshair as enlarged pixels while sampling live.
+   *
+   * @param enabled True if the loupe shall be shown.
+   */
+  void setLoupe(boolean enabled)
+  {
+    m_preview.setLoupe(enabled);
+    if (!enabled)
+    {
+      m_crosshair.clearLoupe();
+    }
+  }
+
+  /**
+   * Start, or stop, highlighting the parts of the preview matching the
+   * latest sampled color.
+   *
+   * @param enabled True if the matching parts shall be highlighted.
+   * @return True if they are highlighted, i.e. a color has been sampled
+   *         and _enabled_ is true.
+   */
+  boolean setMatching(boolean enabled)
+  {
+    if (enabled && !m_sampled)
+    {
+      Toast.makeText(getApplicationContext(),
+          "Sample a color to match first.", Toast.LENGTH_LONG).show();
+      return false;
+    }
+
+    if (enabled)
+    {
+      m_preview.setMatchReference(m_color);
+    }
+    else
+    {
+      m_preview.clearMatchReference();
+      m_crosshair.clearMatches();
+    }
+    return enabled;
+  }
+
+  /**
+   * Enable or disable the monitoring, and showing, of the latency of each
+   * stage of the pipeline.
+   *
+   * @param enabled True if the performance overlay shall be shown.
+   */
+  void setPerformanceOverlay(boolean enabled)
+  {
+    m_preview.setPerformanceMonitoring(enabled);
+    m_performanceText.setVisibility(enabled ? View.VISIBLE : View.GONE);
+
+    m_performanceText.removeCallbacks(m_performanceUpdate);
+    if (enabled)
+    {
+      m_performanceText.post(m_performanceUpdate);
+    }
+  }
+
+  /**
+   * Save the latency of each stage of the pipeline, as a text and a binary
+   * report, in the external files directory, from which they can be pulled
+   * for comparing devices and releases.
+   */
+  void savePerformanceReport()
+  {
+    final File l_directory = getReportDirectory();
+
+    final StringBuilder l_text = new StringBuilder();
+    l_text.append(String.format("%s %s, Android %s%n", Build.MANUFACTURER,
+        Build.MODEL, Build.VERSION.RELEASE));
+    m_preview.getLatencyStats().writeText(l_text);
+    m_startup.writeText(l_text);
+
+    CharSequence l_message;
+    try
+    {
+      final File l_textFile = new File(l_directory, PERFORMANCE_REPORT
+          + ".txt");
+      OutputStream l_out = new FileOutputStream(l_textFile);
+      try
+      {
+        l_out.write(l_text.toString().getBytes("UTF-8"));
+      }
+      finally
+      {
+        l_out.close();
+      }
+
+      l_out = new FileOutputStream(new File(l_directory, PERFORMANCE_REPORT
+          + ".bin"));
+      try
+      {
+        m_preview.getLatencyStats().writeBinary(l_out);
+      }
+      finally
+      {
+        l_out.close();
+      }
+
+      l_message = "Performance report saved to " + l_directory + ".";
+    }
+    catch (final IOException e)
+    {
+      Log.e(LOG_TAG, "Error saving performance report", e);
+      l_message = "Could not save performance report.";
+    }
+
+    Toast.makeText(getApplicationContext(), l_message, Toast.LENGTH_LONG)
+        .show();
+  }
+
+  /**
+   * Start or stop recording the preview frames, in the external files
+   * directory, from which they can be pulled and replayed by FrameReplayer
+   * on a machine without a camera.
+   *
+   * @param enabled True if the preview frames shall be recorded.
+   * @return True if the preview frames are being recorded.
+   */
+  boolean setFrameRecording(boolean enabled)
+  {
+    final File l_file = new File(getReportDirectory(), FRAME_RECORDING);
+
+    if (!enabled)
+    {
+      // The recording is written off the UI thread, and told of once done.
+      final CameraPreview.RecordingListener l_listener =
+          new CameraPreview.RecordingListener()
+      {
+        @Override
+        public void onRecordingStopped(FrameRecorder recorder,
+            IOException error)
+        {
+          Toast.makeText(getApplicationContext(), null == error
+              ? String.format("Recorded %d frames, dropped %d, to %s.",
+                  recorder.getRecorded(), recorder.getDropped(), l_file)
+              : "Could not record frames.", Toast.LENGTH_LONG).show();
+        }
+      };
+      if (!m_preview.stopRecording(l_listener))
+      {
+        Toast.makeText(getApplicationContext(), "Not recording frames.",
+            Toast.LENGTH_LONG).show();
+      }
+      return m_preview.isRecording();
+    }
+
+    CharSequence l_message;
+    try
+    {
+      m_preview.startRecording(l_file);
+      l_message = "Recording frames to " + l_file + ".";
+    }
+    catch (final IOException e)
+    {
+      Log.e(LOG_TAG, "Error recording frames", e);
+      l_message = "Could not record frames.";
+    }
+
+    Toast.makeText(getApplicationContext(), l_message, Toast.LENGTH_LONG)
+        .show();
+    return m_preview.isRecording();
+  }
+
+  /**
+   * @return The directory to save reports and recordings in; the external
+   *         files directory if available.
+   */
+  private File getReportDirectory()
+  {
+    final File l_directory = getExternalFilesDir(null);
+    return null == l_directory ? getFilesDir() : l_directory;
   }
 
   void launchAboutActivity()
@@ -185,19 +1153,70 @@ public class MainActivity extends ActionBarActivity
     startActivity(intent);
   }
 
-  void updateSampledColor(String colorString)
+  /**
+   * Show a sampled color.
+   *
+   * This allocates nothing, so that it may be called at frame rate.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @param colorName The name of the color, or null if unknown.
+   * @param locked True if the color is steady. Unsteady colors are shown
+   *               dimmed.
+   */
+  void updateSampledColor(int color, String colorName, boolean locked)
   {
-    final TextView textView = (TextView) findViewById(R.id.color_textbox);
-    textView.setText(colorString);
-    final FrameLayout sampleFrame = (FrameLayout) findViewById(R.id.color_sample);
-    sampleFrame.setBackgroundColor(Color.parseColor(colorString));
-    m_colorString = colorString;
+    final float l_alpha = locked ? LOCKED_ALPHA : UNLOCKED_ALPHA;
+
+    m_colorText.setText(m_colorChars, 0,
+        ColorFormatter.formatHex(color, m_colorChars, 0));
+    m_colorText.setAlpha(l_alpha);
+
+    // The names are shared palette strings, so an identity check suffices.
+    if (colorName != m_colorName)
+    {
+      m_nameText.setText(colorName);
+    }
+    m_nameText.setAlpha(l_alpha);
+
+    m_colorSample.setBackgroundColor(0xff000000 | color);
+
+    m_sampled = true;
+    m_color = color;
+    m_colorName = colorName;
   }
 
   @Override
   protected void onSaveInstanceState(Bundle outState)
   {
-    outState.putString(CameraPreview.COLORKEY, m_colorString);
+    if (m_sampled)
+    {
+      outState.putInt(COLORKEY, m_color);
+      outState.putString(NAMEKEY, m_colorName);
+    }
+    outState.putBoolean(LIVEKEY, m_preview.isLiveSampling());
+    outState.putBoolean(BURSTKEY, m_preview.isBurst());
+    outState.putBoolean(PALETTEKEY, m_preview.isPaletteExtraction());
+    outState.putBoolean(LOUPEKEY, m_preview.isLoupe());
+    if (m_preview.isMatching())
+    {
+      outState.putInt(MATCHKEY, m_preview.getMatchReference());
+    }
+    outState.putFloatArray(POINTSKEY, m_preview.getSamplePoints());
+    outState.putBoolean(PERFORMANCEKEY, m_preview.isPerformanceMonitoring());
+    outState.putInt(SIZEKEY, m_preview.getSampleSize());
+    outState.putString(STATISTICKEY, m_preview.getSampleStatistic().name());
+    if (null != m_preview.getWhiteBalance())
+    {
+      outState.putString(WHITEBALANCEKEY,
+          m_preview.getWhiteBalance().name());
+    }
+    outState.putString(CAPTUREPROFILEKEY,
+        m_preview.getCaptureProfile().name());
+    if (null != m_preview.getDeficiency())
+    {
+      outState.putString(VISIONKEY, m_preview.getDeficiency().name());
+    }
+    outState.putBoolean(DALTONIZEKEY, m_preview.isDaltonizing());
   }
 
   public void onColorTextViewClick(View v)
@@ -205,7 +1224,8 @@ public class MainActivity extends ActionBarActivity
     final ClipboardManager l_clipboard = 
         (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
     final ClipData l_clip = 
-        ClipData.newPlainText("Color code", m_colorString);
+        ClipData.newPlainText("Color code",
+            ColorFormatter.toHexString(m_color));
     l_clipboard.setPrimaryClip(l_clip);
 
     final Context l_context = getApplicationContext();
@@ -0,0 +1,102 @@
+package com.gmail.notrupertthorne.whatsthatcolor;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.view.View;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteExtractor;
+
+/**
+ * This type is responsible for showing the dominant colors of the preview,
+ * as a bar of swatches as wide as their shares of the frame.
+ */
+public class PaletteView extends View
+{
+  private final Paint m_paint = new Paint();
+
+  /**
+   * These fields hold the palette shown.
+   */
+  private final int[] m_colors = new int[PaletteExtractor.MAX_COLORS];
+  private final int[] m_weights = new int[PaletteExtractor.MAX_COLORS];
+  private int m_count;
+
+  public PaletteView(Context context)
+  {
+    super(context);
+
+    m_paint.setStyle(Style.FILL);
+
+    // Signal that we'll do some drawing on the view.
+    setWillNotDraw(false);
+  }
+
+  /**
+   * Show a palette. The arrays are copied, so they may be reused.
+   *
+   * @param colors The colors, on the 0xAARRGGBB form.
+   * @param weights The share of each color, in any unit.
+   * @param count The number of colors.
+   */
+  public void setPalette(int[] colors, int[] weights, int count)
+  {
+    m_count = Math.min(count, PaletteExtractor.MAX_COLORS);
+    System.arraycopy(colors, 0, m_colors, 0, m_count);
+    System.arraycopy(weights, 0, m_weights, 0, m_count);
+    invalidate();
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas)
+  {
+    super.onDraw(canvas);
+
+    int l_total = 0;
+    for (int l_i = 0; l_i < m_count; ++l_i)
+    {
+      l_total += m_weights[l_i];
+    }
+    if (0 >= l_total)
+    {
+      return;
+    }
+
+    final int l_width = getWidth();
+    final int l_height = getHeight();
+
+    int l_weight = 0;
+    int l_left = 0;
+    for (int l_i = 0; l_i < m_count; ++l_i)
+    {
+      // Round the edges from the running total, so that the swatches
+      // always fill the whole width.
+      l_weight += m_weights[l_i];
+      final int l_right = (int) ((long) l_width * l_weight / l_total);
+
+      m_paint.setColor(0xff000000 | m_colors[l_i]);
+      canvas.drawRect(l_left, 0, l_right, l_height, m_paint);
+      l_left = l_right;
+    }
+  }
+}
@@ -0,0 +1,492 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * This type is responsible for stacking the same region of a burst of
+ * preview frames into one, less noisy, region, along with an estimate of
+ * how far the color of the region may still be off.
+ *
+ * Only the region is read out of each frame, into a slot of its own, and
+ * each channel of each pixel is summed, and summed squared, in longs as
+ * the frames arrive. Once the burst is complete, each sample is compared
+ * to the mean, and deviation, of the other samples of its pixel, as taken
+ * from the sums less itself, and a sample off by more than four deviations
+ * in any channel, e.g. of something passing by, is rejected.
+ * The pixels are the means of the samples kept, in 8.8 fixed point, split
+ * into bands of rows which are clipped in parallel on an executor.
+ *
+ * Memory is thus proportional to the region times the frames, however
+ * large the frames. An instance is meant to be confined to one thread,
+ * e.g. the analysis thread.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class BurstStacker
+{
+  public static final int MIN_FRAMES = 3;
+  public static final int MAX_FRAMES = 16;
+
+  /**
+   * This field provides the number of deviations beyond which a sample is
+   * rejected, squared.
+   */
+  private static final int CLIP_SIGMA_SQUARED = 4 * 4;
+
+  /**
+   * This field provides the least variance, in squared levels, assumed of
+   * a pixel, so that quantization alone does not reject samples.
+   */
+  private static final int NOISE_FLOOR = 1;
+
+  /**
+   * This field provides the channel step, in levels, over which the
+   * sensitivity of CIEDE2000 to each channel is measured.
+   */
+  private static final int SENSITIVITY_STEP = 4;
+
+  /**
+   * This field provides the number of standard errors of the confidence
+   * interval, i.e. 95% for a normal distribution.
+   */
+  private static final double CONFIDENCE_ERRORS = 1.96;
+
+  private final ExecutorService m_executor;
+  private final Tile[] m_tiles;
+  private final List<Tile> m_tasks;
+
+  /**
+   * These fields describe the burst being stacked.
+   */
+  private int m_frames;
+  private int m_count;
+  private int m_width;
+  private int m_height;
+
+  /**
+   * These fields hold the region of each frame in turn, and the sum, and
+   * sum of squares, of each channel of each pixel, red, green and blue in
+   * turn.
+   */
+  private int[] m_regions = new int[0];
+  private long[] m_sums = new long[0];
+  private long[] m_squares = new long[0];
+
+  /**
+   * These fields hold the results of the latest stack.
+   */
+  private int[] m_out;
+  private int m_mean;
+  private int m_rejected;
+  private double m_uncertainty;
+  private final int[] m_lab = new int[6];
+
+  /**
+   * @param executor The executor to run the tiles on, or null to run them
+   *                 on the calling thread.
+   * @param tiles The number of tiles to split each region into, e.g. the
+   *              number of threads of the executor.
+   */
+  public BurstStacker(ExecutorService executor, int tiles)
+  {
+    if (1 > tiles)
+    {
+      throw new IllegalArgumentException("Tiles: " + tiles);
+    }
+
+    m_executor = executor;
+    m_tiles = new Tile[tiles];
+    m_tasks = new ArrayList<Tile>(tiles);
+    for (int l_i = 0; l_i < tiles; ++l_i)
+    {
+      m_tiles[l_i] = new Tile();
+      m_tasks.add(m_tiles[l_i]);
+    }
+  }
+
+  /**
+   * Begin a burst, forgetting any previous one.
+   *
+   * @param frames The number of frames, MIN_FRAMES..MAX_FRAMES.
+   * @param width The width of the region, in pixels.
+   * @param height The height of the region, in pixels.
+   */
+  public void begin(int frames, int width, int height)
+  {
+    if (MIN_FRAMES > frames || MAX_FRAMES < frames)
+    {
+      throw new IllegalArgumentException("Frames: " + frames);
+    }
+    if (1 > width || 1 > height)
+    {
+      throw new IllegalArgumentException("Region: " + width + "x" + height);
+    }
+
+    final int l_pixels = width * height;
+    if (m_regions.length < frames * l_pixels)
+    {
+      m_regions = new int[frames * l_pixels];
+    }
+    if (m_sums.length < 3 * l_pixels)
+    {
+      m_sums = new long[3 * l_pixels];
+      m_squares = new long[3 * l_pixels];
+    }
+    for (int l_i = 0; l_i < 3 * l_pixels; ++l_i)
+    {
+      m_sums[l_i] = 0;
+      m_squares[l_i] = 0;
+    }
+
+    m_frames = frames;
+    m_count = 0;
+    m_width = width;
+    m_height = height;
+  }
+
+  /**
+   * Add the region of the next frame of the burst.
+   *
+   * @param frame The frame.
+   * @param left The leftmost column of the region within the frame.
+   * @param top The topmost row of the region within the frame.
+   * @return True if the burst is complete.
+   */
+  public boolean add(YuvFrame frame, int left, int top)
+  {
+    if (m_count == m_frames)
+    {
+      return true;
+    }
+
+    final int l_pixels = m_width * m_height;
+    final int l_offset = m_count * l_pixels;
+    for (int l_y = 0; l_y < m_height; ++l_y)
+    {
+      frame.readRow(left, top + l_y, m_width, m_regions,
+          l_offset + l_y * m_width);
+    }
+
+    for (int l_i = 0; l_i < l_pixels; ++l_i)
+    {
+      final int l_color = m_regions[l_offset + l_i];
+      accumulate(3 * l_i, (l_color >> 16) & 0xff);
+      accumulate(3 * l_i + 1, (l_color >> 8) & 0xff);
+      accumulate(3 * l_i + 2, l_color & 0xff);
+    }
+
+    return ++m_count == m_frames;
+  }
+
+  /**
+   * @return The number of frames added to the current burst.
+   */
+  public int getCount()
+  {
+    return m_count;
+  }
+
+  /**
+   * Stack the frames added, rejecting outlying samples.
+   *
+   * @param out Receives the stacked pixels, on the 0xAARRGGBB form, row by
+   *            row, the width of the region apart.
+   * @return False if interrupted, or fewer than MIN_FRAMES frames have been
+   *         added.
+   */
+  public boolean stack(int[] out)
+  {
+    if (MIN_FRAMES > m_count)
+    {
+      return false;
+    }
+
+    m_out = out;
+    for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+    {
+      m_tiles[l_i].setRows(m_height * l_i / m_tiles.length,
+          m_height * (l_i + 1) / m_tiles.length);
+    }
+
+    try
+    {
+      run();
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      m_out = null;
+    }
+
+    // The mean of the region is that of the stacked pixels, and its
+    // variance the sum of theirs, over the pixels squared.
+    final long[] l_sums = new long[3];
+    final double[] l_variances = new double[3];
+    m_rejected = 0;
+    for (final Tile l_tile : m_tiles)
+    {
+      for (int l_c = 0; l_c < 3; ++l_c)
+      {
+        l_sums[l_c] += l_tile.m_means[l_c];
+        l_variances[l_c] += l_tile.m_variances[l_c];
+      }
+      m_rejected += l_tile.m_rejected;
+    }
+
+    final int l_pixels = m_width * m_height;
+    final int[] l_mean = new int[3];
+    final double[] l_errors = new double[3];
+    for (int l_c = 0; l_c < 3; ++l_c)
+    {
+      l_mean[l_c] = (int) ((l_sums[l_c] + 128L * l_pixels) / (256L * l_pixels));
+      l_errors[l_c] = Math.sqrt(l_variances[l_c]) / l_pixels;
+    }
+    m_mean = ColorConversion.rgb(l_mean[0], l_mean[1], l_mean[2]);
+    m_uncertainty = uncertainty(l_mean, l_errors);
+    return true;
+  }
+
+  /**
+   * @return The mean color of the stacked region, on the 0xAARRGGBB form.
+   */
+  public int getMean()
+  {
+    return m_mean;
+  }
+
+  /**
+   * @return The CIEDE2000 difference within which the mean color of the
+   *         stacked region is, with 95% confidence, from that of the
+   *         scene, as far as the noise of the frames goes.
+   */
+  public double getUncertainty()
+  {
+    return m_uncertainty;
+  }
+
+  /**
+   * @return The number of samples rejected as outliers.
+   */
+  public int getRejected()
+  {
+    return m_rejected;
+  }
+
+  /**
+   * @return The number of samples stacked, rejected or not.
+   */
+  public int getSamples()
+  {
+    return m_count * m_width * m_height;
+  }
+
+  private void accumulate(int index, int value)
+  {
+    m_sums[index] += value;
+    m_squares[index] += value * value;
+  }
+
+  /**
+   * Run all tiles, and wait for them to finish.
+   */
+  private void run() throws InterruptedException
+  {
+    if (null == m_executor || 1 == m_tiles.length)
+    {
+      for (final Tile l_tile : m_tiles)
+      {
+        l_tile.call();
+      }
+      return;
+    }
+
+    for (final Future<Void> l_future : m_executor.invokeAll(m_tasks))
+    {
+      try
+      {
+        l_future.get();
+      }
+      catch (final ExecutionException e)
+      {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Propagate the standard error of each channel to a CIEDE2000
+   * difference, by the sensitivity of the difference to each channel
+   * around the mean, and widen it to the confidence interval.
+   */
+  private double uncertainty(int[] mean, double[] errors)
+  {
+    final int l_color = ColorConversion.rgb(mean[0], mean[1], mean[2]);
+    ColorConversion.toLab(l_color, m_lab, 0);
+
+    double l_sum = 0;
+    for (int l_c = 0; l_c < 3; ++l_c)
+    {
+      // Step away from the nearer end of the channel.
+      final int l_step = 128 > mean[l_c] ? SENSITIVITY_STEP
+          : -SENSITIVITY_STEP;
+      final int l_shift = 8 * (2 - l_c);
+      ColorConversion.toLab(l_color + (l_step << l_shift), m_lab, 3);
+
+      final double l_sensitivity = DeltaE.cie2000(
+          (double) m_lab[0] / ColorConversion.LAB_SCALE,
+          (double) m_lab[1] / ColorConversion.LAB_SCALE,
+          (double) m_lab[2] / ColorConversion.LAB_SCALE,
+          (double) m_lab[3] / ColorConversion.LAB_SCALE,
+          (double) m_lab[4] / ColorConversion.LAB_SCALE,
+          (double) m_lab[5] / ColorConversion.LAB_SCALE)
+          / SENSITIVITY_STEP;
+      final double l_difference = l_sensitivity * errors[l_c];
+      l_sum += l_difference * l_difference;
+    }
+
+    return CONFIDENCE_ERRORS * Math.sqrt(l_sum);
+  }
+
+  /**
+   * This type is responsible for clipping, and stacking, a band of rows of
+   * the region.
+   */
+  private final class Tile implements Callable<Void>
+  {
+    private int m_from;
+    private int m_to;
+
+    /**
+     * These fields hold, per channel, the sum of the stacked pixels, in
+     * 8.8 fixed point, and the sum of their variances, in squared levels,
+     * along with the number of samples rejected, of the band.
+     */
+    private final long[] m_means = new long[3];
+    private final double[] m_variances = new double[3];
+    private int m_rejected;
+
+    /**
+     * These fields are scratch space for the sums of the samples kept of
+     * a pixel.
+     */
+    private final long[] m_kept = new long[3];
+    private final long[] m_keptSquares = new long[3];
+
+    void setRows(int from, int to)
+    {
+      m_from = from;
+      m_to = to;
+    }
+
+    @Override
+    public Void call()
+    {
+      for (int l_c = 0; l_c < 3; ++l_c)
+      {
+        m_means[l_c] = 0;
+        m_variances[l_c] = 0;
+      }
+      m_rejected = 0;
+
+      final int l_pixels = m_width * m_height;
+      for (int l_i = m_from * m_width; l_i < m_to * m_width; ++l_i)
+      {
+        for (int l_c = 0; l_c < 3; ++l_c)
+        {
+          m_kept[l_c] = m_sums[3 * l_i + l_c];
+          m_keptSquares[l_c] = m_squares[3 * l_i + l_c];
+        }
+
+        int l_kept = m_count;
+        for (int l_frame = 0; l_frame < m_count; ++l_frame)
+        {
+          final int l_color = m_regions[l_frame * l_pixels + l_i];
+          if (isOutlier(l_i, l_color))
+          {
+            for (int l_c = 0; l_c < 3; ++l_c)
+            {
+              final int l_value = (l_color >> (8 * (2 - l_c))) & 0xff;
+              m_kept[l_c] -= l_value;
+              m_keptSquares[l_c] -= l_value * l_value;
+            }
+            --l_kept;
+            ++m_rejected;
+          }
+        }
+
+        int l_color = 0xff000000;
+        for (int l_c = 0; l_c < 3; ++l_c)
+        {
+          final long l_sum = m_kept[l_c];
+          m_means[l_c] += ((l_sum << 8) + l_kept / 2) / l_kept;
+          if (1 < l_kept)
+          {
+            m_variances[l_c] += (m_keptSquares[l_c]
+                - (double) l_sum * l_sum / l_kept) / (l_kept - 1) / l_kept;
+          }
+          l_color |= (int) ((2 * l_sum + l_kept) / (2 * l_kept))
+              << (8 * (2 - l_c));
+        }
+        m_out[l_i] = l_color;
+      }
+      return null;
+    }
+
+    /**
+     * @return True if any channel of a sample of pixel _index_ is off the
+     *         mean of the other samples of the pixel by more than
+     *         four deviations of theirs.
+     */
+    private boolean isOutlier(int index, int color)
+    {
+      final long l_others = m_count - 1;
+
+      for (int l_c = 0; l_c < 3; ++l_c)
+      {
+        final long l_value = (color >> (8 * (2 - l_c))) & 0xff;
+        final long l_sum = m_sums[3 * index + l_c] - l_value;
+        final long l_squares = m_squares[3 * index + l_c]
+            - l_value * l_value;
+
+        // (x - mean)^2 > k^2 var, times the others squared.
+        final long l_deviation = l_others * l_value - l_sum;
+        final long l_variance = Math.max(l_others * l_squares - l_sum * l_sum,
+            l_others * l_others * NOISE_FLOOR);
+        if (l_deviation * l_deviation > CLIP_SIGMA_SQUARED * l_variance)
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This type is responsible for choosing how the camera is to deliver its
+ * preview frames; the size, the pixel format and the frame rate range that
+ * cost the least per frame while still showing, and sampling, the preview
+ * at the precision of a Profile.
+ *
+ * The size is the smallest, of about the aspect ratio of the view, that has
+ * at least the detail of the profile along its short side; a third of the
+ * view's pixels when saving power, and as many frame pixels as there are
+ * view pixels, up to full HD, when accuracy matters. Should no size be
+ * large enough, the largest is chosen. Sizes of other aspect ratios are
+ * only considered should there be none of about that of the view.
+ *
+ * The format is NV21, unless not supported, since the analysis reads its
+ * interleaved chroma at half the memory accesses of YV12. The frame rate
+ * range is the one of the lowest maximum that reaches the rate of the
+ * profile, and of those, the lowest minimum, so that the exposure may
+ * lengthen in dim light rather than the frames grow noisy.
+ *
+ * The capabilities of a camera are parsed from the flattened form of its
+ * Camera.Parameters, so that the choice may be checked against those
+ * recorded from devices.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class CaptureProfileSelector
+{
+  /**
+   * This type enumerates what to favour when choosing.
+   */
+  public enum Profile
+  {
+    /**
+     * The fewest pixels, at the lowest frame rate, that still show the
+     * preview decently.
+     */
+    LOW_POWER(1 / 3.0, 240, 15000),
+    /**
+     * A frame pixel per view pixel, at a smooth frame rate.
+     */
+    HIGH_ACCURACY(1.0, 480, 30000);
+
+    private final double m_detail;
+    private final int m_minShortSide;
+    private final int m_fps;
+
+    Profile(double detail, int minShortSide, int fps)
+    {
+      m_detail = detail;
+      m_minShortSide = minShortSide;
+      m_fps = fps;
+    }
+  }
+
+  /**
+   * This type enumerates the pixel formats the analysis reads in place,
+   * along with their names in Camera.Parameters.
+   */
+  public enum Format
+  {
+    NV21("yuv420sp"), YV12("yuv420p");
+
+    private final String m_name;
+
+    Format(String name)
+    {
+      m_name = name;
+    }
+
+    /**
+     * @return The name of the format in Camera.Parameters.
+     */
+    public String getName()
+    {
+      return m_name;
+    }
+  }
+
+  /**
+   * This field provides the longest short side worth paying for, since no
+   * screen shows more.
+   */
+  public static final int MAX_SHORT_SIDE = 1080;
+
+  /**
+   * This field provides by how much the aspect ratio of a size may differ
+   * from that of the view, as a fraction, for the preview not to look
+   * noticeably stretched.
+   */
+  private static final double ASPECT_TOLERANCE = 0.1;
+
+  /**
+   * This type holds what a camera can deliver.
+   */
+  public static final class Capabilities
+  {
+    private final int[] m_sizes;
+    private final List<Format> m_formats;
+    private final int[] m_fpsRanges;
+
+    /**
+     * @param sizes The preview sizes, as pairs of width and height.
+     * @param formats The preview formats, of those the analysis reads.
+     * @param fpsRanges The frame rate ranges, as pairs of minimum and
+     *                  maximum, in frames per 1000 seconds.
+     */
+    public Capabilities(int[] sizes, List<Format> formats, int[] fpsRanges)
+    {
+      m_sizes = sizes;
+      m_formats = formats;
+      m_fpsRanges = fpsRanges;
+    }
+
+    /**
+     * Parse the capabilities out of the flattened form of
+     * Camera.Parameters, i.e. key=value pairs separated by semicolons.
+     *
+     * Older cameras, that do not tell frame rate ranges, have each of
+     * their frame rates taken as a fixed range.
+     *
+     * @param flattened The flattened parameters.
+     * @return The capabilities.
+     * @throws IllegalArgumentException If no preview size is given, or a
+     *                                  value is malformed.
+     */
+    public static Capabilities parse(String flattened)
+    {
+      String l_sizes = null;
+      String l_formats = null;
+      String l_ranges = null;
+      String l_rates = null;
+
+      for (final String l_pair : flattened.split(";"))
+      {
+        final int l_equals = l_pair.indexOf('=');
+        if (0 > l_equals)
+        {
+          continue;
+        }
+
+        final String l_key = l_pair.substring(0, l_equals);
+        final String l_value = l_pair.substring(l_equals + 1);
+        if ("preview-size-values".equals(l_key))
+        {
+          l_sizes = l_value;
+        }
+        else if ("preview-format-values".equals(l_key))
+        {
+          l_formats = l_value;
+        }
+        else if ("preview-fps-range-values".equals(l_key))
+        {
+          l_ranges = l_value;
+        }
+        else if ("preview-frame-rate-values".equals(l_key))
+        {
+          l_rates = l_value;
+        }
+      }
+
+      if (null == l_sizes || l_sizes.isEmpty())
+      {
+        throw new IllegalArgumentException("No preview sizes");
+      }
+
+      final String[] l_sizeValues = l_sizes.split(",");
+      final int[] l_sizePairs = new int[2 * l_sizeValues.length];
+      for (int l_i = 0; l_i < l_sizeValues.length; ++l_i)
+      {
+        final String[] l_dimensions = l_sizeValues[l_i].split("x");
+        if (2 != l_dimensions.length)
+        {
+          throw new IllegalArgumentException("Malformed preview size: "
+              + l_sizeValues[l_i]);
+        }
+        l_sizePairs[2 * l_i] = Integer.parseInt(l_dimensions[0].trim());
+        l_sizePairs[2 * l_i + 1] = Integer.parseInt(l_dimensions[1].trim());
+      }
+
+      final List<Format> l_formatList = new ArrayList<Format>();
+      if (null != l_formats)
+      {
+        for (final String l_name : l_formats.split(","))
+        {
+          for (final Format l_format : Format.values())
+          {
+            if (l_format.getName().equals(l_name.trim()))
+            {
+              l_formatList.add(l_format);
+            }
+          }
+        }
+      }
+
+      int[] l_rangePairs;
+      if (null != l_ranges && !l_ranges.isEmpty())
+      {
+        // E.g. (15000,30000),(30000,30000)
+        final String[] l_numbers = l_ranges.replaceAll("[()\\s]", "")
+            .split(",");
+        if (0 != l_numbers.length % 2)
+        {
+          throw new IllegalArgumentException("Malformed frame rate ranges: "
+              + l_ranges);
+        }
+        l_rangePairs = new int[l_numbers.length];
+        for (int l_i = 0; l_i < l_numbers.length; ++l_i)
+        {
+          l_rangePairs[l_i] = Integer.parseInt(l_numbers[l_i]);
+        }
+      }
+      else if (null != l_rates && !l_rates.isEmpty())
+      {
+        final String[] l_numbers = l_rates.split(",");
+        l_rangePairs = new int[2 * l_numbers.length];
+        for (int l_i = 0; l_i < l_numbers.length; ++l_i)
+        {
+          l_rangePairs[2 * l_i] = 1000 * Integer.parseInt(l_numbers[l_i]
+              .trim());
+          l_rangePairs[2 * l_i + 1] = l_rangePairs[2 * l_i];
+        }
+      }
+      else
+      {
+        l_rangePairs = new int[0];
+      }
+
+      return new Capabilities(l_sizePairs, l_formatList, l_rangePairs);
+    }
+  }
+
+  /**
+   * This type holds a choice of size, format and frame rate range.
+   */
+  public static final class Selection
+  {
+    private final int m_width;
+    private final int m_height;
+    private final Format m_format;
+    private final int m_minFps;
+    private final int m_maxFps;
+
+    Selection(int width, int height, Format format, int minFps, int maxFps)
+    {
+      m_width = width;
+      m_height = height;
+      m_format = format;
+      m_minFps = minFps;
+      m_maxFps = maxFps;
+    }
+
+    /**
+     * @return The frame width, in pixels.
+     */
+    public int getWidth()
+    {
+      return m_width;
+    }
+
+    /**
+     * @return The frame height, in pixels.
+     */
+    public int getHeight()
+    {
+      return m_height;
+    }
+
+    /**
+     * @return The pixel format.
+     */
+    public Format getFormat()
+    {
+      return m_format;
+    }
+
+    /**
+     * @return The lowest frame rate, in frames per 1000 seconds, or 0 if
+     *         the camera does not tell its frame rates.
+     */
+    public int getMinFps()
+    {
+      return m_minFps;
+    }
+
+    /**
+     * @return The highest frame rate, in frames per 1000 seconds, or 0 if
+     *         the camera does not tell its frame rates.
+     */
+    public int getMaxFps()
+    {
+      return m_maxFps;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_width + "x" + m_height + " " + m_format + " " + m_minFps
+          + "," + m_maxFps;
+    }
+  }
+
+  private CaptureProfileSelector()
+  {
+  }
+
+  /**
+   * Choose how the camera is to deliver its preview frames.
+   *
+   * @param capabilities What the camera can deliver.
+   * @param profile What to favour.
+   * @param viewWidth The width of the view showing the preview, in pixels.
+   * @param viewHeight The height of the view showing the preview, in
+   *                   pixels.
+   * @param orientation The clockwise rotation, in degrees, of the frames
+   *                    as shown in the view.
+   * @return The choice.
+   */
+  public static Selection select(Capabilities capabilities, Profile profile,
+      int viewWidth, int viewHeight, int orientation)
+  {
+    // The view as the sensor sees it.
+    final boolean l_turned = 0 != orientation % 180;
+    final int l_width = Math.max(1, l_turned ? viewHeight : viewWidth);
+    final int l_height = Math.max(1, l_turned ? viewWidth : viewHeight);
+    final double l_aspect = (double) l_width / l_height;
+
+    final int[] l_sizes = capabilities.m_sizes;
+
+    boolean l_anyFits = false;
+    for (int l_i = 0; l_i < l_sizes.length; l_i += 2)
+    {
+      l_anyFits |= ASPECT_TOLERANCE
+          >= aspectError(l_sizes[l_i], l_sizes[l_i + 1], l_aspect);
+    }
+
+    final int l_required = Math.max(profile.m_minShortSide,
+        Math.min(MAX_SHORT_SIDE,
+            (int) Math.ceil(profile.m_detail * Math.min(l_width, l_height))));
+
+    int l_chosen = -1;
+    boolean l_enough = false;
+    for (int l_i = 0; l_i < l_sizes.length; l_i += 2)
+    {
+      if (l_anyFits && ASPECT_TOLERANCE
+          < aspectError(l_sizes[l_i], l_sizes[l_i + 1], l_aspect))
+      {
+        continue;
+      }
+
+      final long l_pixels = (long) l_sizes[l_i] * l_sizes[l_i + 1];
+      final boolean l_large = l_required
+          <= Math.min(l_sizes[l_i], l_sizes[l_i + 1]);
+      final long l_chosenPixels = -1 == l_chosen ? 0
+          : (long) l_sizes[l_chosen] * l_sizes[l_chosen + 1];
+
+      // The smallest of those large enough, or else the largest.
+      if (-1 == l_chosen || (l_large && !l_enough)
+          || (l_large == l_enough && (l_large ? l_pixels < l_chosenPixels
+              : l_pixels > l_chosenPixels)))
+      {
+        l_chosen = l_i;
+        l_enough = l_large;
+      }
+    }
+
+    final List<Format> l_formats = capabilities.m_formats;
+    final Format l_format = l_formats.contains(Format.NV21)
+        || l_formats.isEmpty() ? Format.NV21 : l_formats.get(0);
+
+    final int[] l_ranges = capabilities.m_fpsRanges;
+    int l_range = -1;
+    boolean l_fast = false;
+    for (int l_i = 0; l_i < l_ranges.length; l_i += 2)
+    {
+      final boolean l_reaches = profile.m_fps <= l_ranges[l_i + 1];
+      // The slowest of those fast enough, or else the fastest.
+      if (-1 == l_range || (l_reaches && !l_fast)
+          || (l_reaches == l_fast && isBetterRange(l_ranges, l_i, l_range,
+              l_reaches ? 1 : -1)))
+      {
+        l_range = l_i;
+        l_fast = l_reaches;
+      }
+    }
+
+    return new Selection(l_sizes[l_chosen], l_sizes[l_chosen + 1],
+        l_format, -1 == l_range ? 0 : l_ranges[l_range],
+        -1 == l_range ? 0 : l_ranges[l_range + 1]);
+  }
+
+  /**
+   * @return The relative difference between the aspect ratio of a size and
+   *         _aspect_.
+   */
+  private static double aspectError(int width, int height, double aspect)
+  {
+    return Math.abs((double) width / height / aspect - 1);
+  }
+
+  /**
+   * @param direction 1 if lower maxima are better, -1 if higher are.
+   * @return True if the range at _index_ has a better maximum than that at
+   *         _other_, or the same maximum and a lower minimum.
+   */
+  private static boolean isBetterRange(int[] ranges, int index, int other,
+      int direction)
+  {
+    return direction * ranges[index + 1] < direction * ranges[other + 1]
+        || (ranges[index + 1] == ranges[other + 1]
+            && ranges[index] < ranges[other]);
+  }
+}
@@ -0,0 +1,417 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for converting colors between sRGB and other
+ * color spaces, using integer arithmetic and lookup tables only.
+ *
+ * All colors are packed ints on the 0xAARRGGBB form (any alpha is ignored),
+ * and results are written into caller provided int arrays, so that no
+ * conversion allocates. The fixed point scales of the results are:
+ *
+ * - linear RGB and XYZ: 0..LINEAR_ONE, with XYZ normalized to the D65
+ *   white point, i.e. white is (LINEAR_ONE, LINEAR_ONE, LINEAR_ONE);
+ * - Lab: L, a and b times LAB_SCALE, i.e. hundredths;
+ * - HSV and HSL: hue in tenths of degrees, 0..3599, and the rest in
+ *   0..PERMILLE;
+ * - CMYK: 0..PERMILLE.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorConversion
+{
+  public static final int LINEAR_BITS = 16;
+  public static final int LINEAR_ONE = (1 << LINEAR_BITS) - 1;
+  public static final int LAB_SCALE = 100;
+  public static final int PERMILLE = 1000;
+
+  /**
+   * This field maps each 8 bit sRGB channel value to linear light.
+   */
+  private static final int[] SRGB_TO_LINEAR = new int[256];
+
+  /**
+   * This field maps linear light, in steps of LINEAR_STEP, to 8 bit sRGB.
+   */
+  private static final int LINEAR_STEP_BITS = 4;
+  private static final int[] LINEAR_TO_SRGB =
+      new int[(LINEAR_ONE >> LINEAR_STEP_BITS) + 2];
+
+  /**
+   * This field maps normalized XYZ, in steps of LINEAR_STEP, to the CIELAB
+   * f(t) function, in 16 bit fixed point. Values in between are linearly
+   * interpolated.
+   */
+  private static final int[] LAB_F =
+      new int[(LINEAR_ONE >> LINEAR_STEP_BITS) + 2];
+
+  /**
+   * These fields hold the sRGB to XYZ matrix, with the rows divided by the
+   * D65 white point, in 16 bit fixed point.
+   */
+  private static final int MATRIX_BITS = 16;
+  private static final int[] RGB_TO_XYZ = fixed(new double[] {
+      0.4124564 / 0.95047, 0.3575761 / 0.95047, 0.1804375 / 0.95047,
+      0.2126729, 0.7151522, 0.0721750,
+      0.0193339 / 1.08883, 0.1191920 / 1.08883, 0.9503041 / 1.08883 });
+  private static final int[] XYZ_TO_RGB = fixed(new double[] {
+      3.2404542 * 0.95047, -1.5371385, -0.4985314 * 1.08883,
+      -0.9692660 * 0.95047, 1.8760108, 0.0415560 * 1.08883,
+      0.0556434 * 0.95047, -0.2040259, 1.0572252 * 1.08883 });
+
+  static
+  {
+    for (int l_i = 0; l_i < 256; ++l_i)
+    {
+      final double l_c = l_i / 255.0;
+      final double l_linear = 0.04045 >= l_c
+          ? l_c / 12.92 : Math.pow((l_c + 0.055) / 1.055, 2.4);
+      SRGB_TO_LINEAR[l_i] = (int) Math.round(l_linear * LINEAR_ONE);
+    }
+
+    for (int l_i = 0; l_i < LINEAR_TO_SRGB.length; ++l_i)
+    {
+      final double l_linear = Math.min(1.0,
+          (double) (l_i << LINEAR_STEP_BITS) / LINEAR_ONE);
+      final double l_c = 0.0031308 >= l_linear
+          ? l_linear * 12.92 : 1.055 * Math.pow(l_linear, 1 / 2.4) - 0.055;
+      LINEAR_TO_SRGB[l_i] = (int) Math.round(l_c * 255);
+
+      final double l_t = (double) (l_i << LINEAR_STEP_BITS) / LINEAR_ONE;
+      final double l_f = 216.0 / 24389 < l_t
+          ? Math.cbrt(l_t) : (24389.0 / 27 * l_t + 16) / 116;
+      LAB_F[l_i] = (int) Math.round(l_f * (1 << 16));
+    }
+  }
+
+  private ColorConversion()
+  {
+  }
+
+  /**
+   * @return The 8 bit red channel of _color_.
+   */
+  public static int red(int color)
+  {
+    return (color >> 16) & 0xff;
+  }
+
+  /**
+   * @return The 8 bit green channel of _color_.
+   */
+  public static int green(int color)
+  {
+    return (color >> 8) & 0xff;
+  }
+
+  /**
+   * @return The 8 bit blue channel of _color_.
+   */
+  public static int blue(int color)
+  {
+    return color & 0xff;
+  }
+
+  /**
+   * @return The opaque color of the given 8 bit channels, which are clamped.
+   */
+  public static int rgb(int red, int green, int blue)
+  {
+    return 0xff000000 | (clamp(red, 255) << 16) | (clamp(green, 255) << 8)
+        | clamp(blue, 255);
+  }
+
+  /**
+   * @param channel An 8 bit sRGB channel value.
+   * @return The linear light of _channel_, 0..LINEAR_ONE.
+   */
+  public static int toLinear(int channel)
+  {
+    return SRGB_TO_LINEAR[channel & 0xff];
+  }
+
+  /**
+   * @param linear A linear light value, 0..LINEAR_ONE. It is clamped.
+   * @return The 8 bit sRGB channel value of _linear_.
+   */
+  public static int fromLinear(int linear)
+  {
+    return LINEAR_TO_SRGB[clamp(linear, LINEAR_ONE) >> LINEAR_STEP_BITS];
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives the linear R, G and B from _offset_ on.
+   */
+  public static void toLinear(int color, int[] out, int offset)
+  {
+    out[offset] = SRGB_TO_LINEAR[(color >> 16) & 0xff];
+    out[offset + 1] = SRGB_TO_LINEAR[(color >> 8) & 0xff];
+    out[offset + 2] = SRGB_TO_LINEAR[color & 0xff];
+  }
+
+  /**
+   * @param red The linear red, 0..LINEAR_ONE.
+   * @param green The linear green, 0..LINEAR_ONE.
+   * @param blue The linear blue, 0..LINEAR_ONE.
+   * @return The opaque sRGB color.
+   */
+  public static int fromLinear(int red, int green, int blue)
+  {
+    return 0xff000000 | (fromLinear(red) << 16) | (fromLinear(green) << 8)
+        | fromLinear(blue);
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives the white normalized X, Y and Z from _offset_ on.
+   */
+  public static void toXyz(int color, int[] out, int offset)
+  {
+    final int l_r = SRGB_TO_LINEAR[(color >> 16) & 0xff];
+    final int l_g = SRGB_TO_LINEAR[(color >> 8) & 0xff];
+    final int l_b = SRGB_TO_LINEAR[color & 0xff];
+
+    out[offset] = multiply(RGB_TO_XYZ, 0, l_r, l_g, l_b);
+    out[offset + 1] = multiply(RGB_TO_XYZ, 3, l_r, l_g, l_b);
+    out[offset + 2] = multiply(RGB_TO_XYZ, 6, l_r, l_g, l_b);
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives L, a and b, times LAB_SCALE, from _offset_ on.
+   */
+  public static void toLab(int color, int[] out, int offset)
+  {
+    final int l_r = SRGB_TO_LINEAR[(color >> 16) & 0xff];
+    final int l_g = SRGB_TO_LINEAR[(color >> 8) & 0xff];
+    final int l_b = SRGB_TO_LINEAR[color & 0xff];
+
+    final int l_fx = labF(multiply(RGB_TO_XYZ, 0, l_r, l_g, l_b));
+    final int l_fy = labF(multiply(RGB_TO_XYZ, 3, l_r, l_g, l_b));
+    final int l_fz = labF(multiply(RGB_TO_XYZ, 6, l_r, l_g, l_b));
+
+    out[offset] = (int) ((116L * LAB_SCALE * l_fy + (1 << 15)) >> 16)
+        - 16 * LAB_SCALE;
+    out[offset + 1] = (int) ((500L * LAB_SCALE * (l_fx - l_fy)) >> 16);
+    out[offset + 2] = (int) ((200L * LAB_SCALE * (l_fy - l_fz)) >> 16);
+  }
+
+  /**
+   * Convert colors to Lab in bulk.
+   *
+   * @param colors The colors.
+   * @param offset The index of the first color to convert.
+   * @param count The number of colors to convert.
+   * @param out Receives L, a and b, times LAB_SCALE, of each color in turn,
+   *            from _outOffset_ on.
+   * @param outOffset The index of the first value to write.
+   */
+  public static void toLab(int[] colors, int offset, int count, int[] out,
+      int outOffset)
+  {
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      toLab(colors[offset + l_i], out, outOffset + 3 * l_i);
+    }
+  }
+
+  /**
+   * @param l The L, times LAB_SCALE.
+   * @param a The a, times LAB_SCALE.
+   * @param b The b, times LAB_SCALE.
+   * @return The opaque sRGB color, clipped to the sRGB gamut.
+   */
+  public static int fromLab(int l, int a, int b)
+  {
+    // f(y) and friends, in 16 bit fixed point.
+    final long l_fy = (((long) (l + 16 * LAB_SCALE)) << 16) / (116 * LAB_SCALE);
+    final long l_fx = l_fy + (((long) a) << 16) / (500 * LAB_SCALE);
+    final long l_fz = l_fy - (((long) b) << 16) / (200 * LAB_SCALE);
+
+    final int l_x = labFInverse(l_fx);
+    final int l_y = labFInverse(l_fy);
+    final int l_z = labFInverse(l_fz);
+
+    return fromLinear(multiply(XYZ_TO_RGB, 0, l_x, l_y, l_z),
+        multiply(XYZ_TO_RGB, 3, l_x, l_y, l_z),
+        multiply(XYZ_TO_RGB, 6, l_x, l_y, l_z));
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives the hue, in tenths of degrees, and the saturation
+   *            and value, in permille, from _offset_ on.
+   */
+  public static void toHsv(int color, int[] out, int offset)
+  {
+    final int l_r = (color >> 16) & 0xff;
+    final int l_g = (color >> 8) & 0xff;
+    final int l_b = color & 0xff;
+
+    final int l_max = Math.max(l_r, Math.max(l_g, l_b));
+    final int l_min = Math.min(l_r, Math.min(l_g, l_b));
+
+    out[offset] = hue(l_r, l_g, l_b, l_max, l_max - l_min);
+    out[offset + 1] = 0 == l_max ? 0
+        : ((l_max - l_min) * PERMILLE + l_max / 2) / l_max;
+    out[offset + 2] = (l_max * PERMILLE + 127) / 255;
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives the hue, in tenths of degrees, and the saturation
+   *            and lightness, in permille, from _offset_ on.
+   */
+  public static void toHsl(int color, int[] out, int offset)
+  {
+    final int l_r = (color >> 16) & 0xff;
+    final int l_g = (color >> 8) & 0xff;
+    final int l_b = color & 0xff;
+
+    final int l_max = Math.max(l_r, Math.max(l_g, l_b));
+    final int l_min = Math.min(l_r, Math.min(l_g, l_b));
+    final int l_chroma = l_max - l_min;
+    final int l_sum = l_max + l_min;
+
+    // S = C / (1 - |2L - 1|), with L = (max + min) / 2.
+    final int l_divisor = 255 >= l_sum ? l_sum : 510 - l_sum;
+
+    out[offset] = hue(l_r, l_g, l_b, l_max, l_chroma);
+    out[offset + 1] = 0 == l_chroma ? 0
+        : (l_chroma * PERMILLE + l_divisor / 2) / l_divisor;
+    out[offset + 2] = (l_sum * PERMILLE + 255) / 510;
+  }
+
+  /**
+   * @param color The color.
+   * @param out Receives the naive (uncalibrated) C, M, Y and K, in
+   *            permille, from _offset_ on.
+   */
+  public static void toCmyk(int color, int[] out, int offset)
+  {
+    final int l_r = (color >> 16) & 0xff;
+    final int l_g = (color >> 8) & 0xff;
+    final int l_b = color & 0xff;
+
+    final int l_max = Math.max(l_r, Math.max(l_g, l_b));
+
+    out[offset + 3] = ((255 - l_max) * PERMILLE + 127) / 255;
+    if (0 == l_max)
+    {
+      out[offset] = 0;
+      out[offset + 1] = 0;
+      out[offset + 2] = 0;
+    }
+    else
+    {
+      out[offset] = ((l_max - l_r) * PERMILLE + l_max / 2) / l_max;
+      out[offset + 1] = ((l_max - l_g) * PERMILLE + l_max / 2) / l_max;
+      out[offset + 2] = ((l_max - l_b) * PERMILLE + l_max / 2) / l_max;
+    }
+  }
+
+  /**
+   * @return The hue, in tenths of degrees, of an RGB color with the given
+   *         maximum channel and chroma.
+   */
+  private static int hue(int r, int g, int b, int max, int chroma)
+  {
+    if (0 == chroma)
+    {
+      return 0;
+    }
+
+    // The sector offset goes into the numerator, which keeps it positive,
+    // so that dividing rounds rather than truncates towards zero.
+    final int l_hue;
+    if (max == r)
+    {
+      l_hue = (600 * (g - b) + 3600 * chroma + chroma / 2) / chroma;
+    }
+    else if (max == g)
+    {
+      l_hue = (600 * (b - r) + 1200 * chroma + chroma / 2) / chroma;
+    }
+    else
+    {
+      l_hue = (600 * (r - g) + 2400 * chroma + chroma / 2) / chroma;
+    }
+    return 3600 <= l_hue ? l_hue - 3600 : l_hue;
+  }
+
+  /**
+   * @return The CIELAB f(t), in 16 bit fixed point, of a normalized
+   *         XYZ component.
+   */
+  private static int labF(int t)
+  {
+    final int l_t = clamp(t, LINEAR_ONE);
+    final int l_index = l_t >> LINEAR_STEP_BITS;
+    final int l_fraction = l_t & ((1 << LINEAR_STEP_BITS) - 1);
+
+    return LAB_F[l_index] + (((LAB_F[l_index + 1] - LAB_F[l_index])
+        * l_fraction) >> LINEAR_STEP_BITS);
+  }
+
+  /**
+   * @return The normalized XYZ component, 0..LINEAR_ONE, of a CIELAB f(t)
+   *         given in 16 bit fixed point.
+   */
+  private static int labFInverse(long f)
+  {
+    final long l_t;
+    if (6L * (1 << 16) / 29 < f)
+    {
+      // t = f^3, keeping 16 fractional bits throughout.
+      l_t = (((f * f) >> 16) * f) >> 16;
+    }
+    else
+    {
+      l_t = ((f - (4L << 16) / 29) * 108) / 841;
+    }
+
+    return (int) Math.max(0, Math.min(LINEAR_ONE,
+        (l_t * LINEAR_ONE) >> 16));
+  }
+
+  private static int multiply(int[] matrix, int row, int x, int y, int z)
+  {
+    return (int) ((matrix[row] * (long) x + matrix[row + 1] * (long) y
+        + matrix[row + 2] * (long) z + (1 << (MATRIX_BITS - 1)))
+        >> MATRIX_BITS);
+  }
+
+  private static int[] fixed(double[] matrix)
+  {
+    final int[] l_fixed = new int[matrix.length];
+    for (int l_i = 0; l_i < matrix.length; ++l_i)
+    {
+      l_fixed[l_i] = (int) Math.round(matrix[l_i] * (1 << MATRIX_BITS));
+    }
+    return l_fixed;
+  }
+
+  private static int clamp(int value, int max)
+  {
+    return 0 > value ? 0 : (max < value ? max : value);
+  }
+}
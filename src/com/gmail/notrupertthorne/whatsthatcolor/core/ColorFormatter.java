@@ -0,0 +1,141 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for formatting colors as text into caller
+ * supplied character arrays, through lookup tables, so that showing a
+ * color allocates nothing.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorFormatter
+{
+  /**
+   * This field provides the length of a color formatted by formatHex().
+   */
+  public static final int HEX_LENGTH = 7;
+
+  /**
+   * This field provides the longest length of a color formatted by
+   * formatRgb().
+   */
+  public static final int RGB_MAX_LENGTH = 11;
+
+  /**
+   * This field holds the two lower case hexadecimal digits of each byte,
+   * in turn.
+   */
+  private static final char[] HEX = new char[2 * 256];
+
+  /**
+   * This field holds the three decimal digits, left padded with NUL, of
+   * each byte, in turn.
+   */
+  private static final char[] DECIMAL = new char[3 * 256];
+
+  static
+  {
+    final char[] l_digits = "0123456789abcdef".toCharArray();
+
+    for (int l_i = 0; l_i < 256; ++l_i)
+    {
+      HEX[2 * l_i] = l_digits[l_i >> 4];
+      HEX[2 * l_i + 1] = l_digits[l_i & 0xf];
+
+      DECIMAL[3 * l_i] = 100 <= l_i ? l_digits[l_i / 100] : 0;
+      DECIMAL[3 * l_i + 1] = 10 <= l_i ? l_digits[l_i / 10 % 10] : 0;
+      DECIMAL[3 * l_i + 2] = l_digits[l_i % 10];
+    }
+  }
+
+  private ColorFormatter()
+  {
+  }
+
+  /**
+   * Format a color on the #rrggbb form.
+   *
+   * @param color The color. Any alpha is ignored.
+   * @param out Receives the HEX_LENGTH characters from _offset_ on.
+   * @param offset The index of the first character.
+   * @return The number of characters written, i.e. HEX_LENGTH.
+   */
+  public static int formatHex(int color, char[] out, int offset)
+  {
+    out[offset] = '#';
+    hexByte(ColorConversion.red(color), out, offset + 1);
+    hexByte(ColorConversion.green(color), out, offset + 3);
+    hexByte(ColorConversion.blue(color), out, offset + 5);
+    return HEX_LENGTH;
+  }
+
+  /**
+   * Format a color as its space separated decimal R, G and B, e.g.
+   * "255 128 0".
+   *
+   * @param color The color. Any alpha is ignored.
+   * @param out Receives at most RGB_MAX_LENGTH characters from _offset_ on.
+   * @param offset The index of the first character.
+   * @return The number of characters written.
+   */
+  public static int formatRgb(int color, char[] out, int offset)
+  {
+    int l_end = decimalByte(ColorConversion.red(color), out, offset);
+    out[l_end++] = ' ';
+    l_end = decimalByte(ColorConversion.green(color), out, l_end);
+    out[l_end++] = ' ';
+    l_end = decimalByte(ColorConversion.blue(color), out, l_end);
+    return l_end - offset;
+  }
+
+  /**
+   * @return A new string of a color on the #rrggbb form, for where an
+   *         allocation does not matter.
+   */
+  public static String toHexString(int color)
+  {
+    final char[] l_text = new char[HEX_LENGTH];
+    formatHex(color, l_text, 0);
+    return new String(l_text);
+  }
+
+  private static void hexByte(int value, char[] out, int offset)
+  {
+    out[offset] = HEX[2 * value];
+    out[offset + 1] = HEX[2 * value + 1];
+  }
+
+  /**
+   * @return The index following the last character written.
+   */
+  private static int decimalByte(int value, char[] out, int offset)
+  {
+    int l_end = offset;
+    for (int l_i = 3 * value; l_i < 3 * value + 3; ++l_i)
+    {
+      if (0 != DECIMAL[l_i])
+      {
+        out[l_end++] = DECIMAL[l_i];
+      }
+    }
+    return l_end;
+  }
+}
@@ -0,0 +1,105 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This type is responsible for handing the latest sampled color over from
+ * a producing thread to a consuming one, without either ever blocking.
+ *
+ * The color, whether it is steady, and the palette index of its name are
+ * packed into a single long, so that a post is one atomic swap. Posts that
+ * are not taken in time are simply replaced by later ones, and only the
+ * post that finds the mailbox empty asks for the consumer to be woken, so
+ * the consumer is woken at most once per take.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorMailbox
+{
+  /**
+   * This field provides the value of an empty mailbox. A packed result
+   * never has its sign bit set, so can not be mistaken for it.
+   */
+  public static final long EMPTY = -1L;
+
+  private static final long LOCKED_BIT = 1L << 32;
+  private static final int NAME_SHIFT = 33;
+  private static final long NAME_MASK = (1L << 30) - 1;
+
+  private final AtomicLong m_slot = new AtomicLong(EMPTY);
+
+  /**
+   * Post a result, replacing any result not yet taken.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @param locked True if the color is steady.
+   * @param nameIndex The palette index of the color name, or -1 if none.
+   * @return True if the mailbox was empty, i.e. the consumer needs to be
+   *         woken to take the result.
+   */
+  public boolean post(int color, boolean locked, int nameIndex)
+  {
+    final long l_packed = (color & 0xffffffffL)
+        | (locked ? LOCKED_BIT : 0)
+        | ((nameIndex + 1L) & NAME_MASK) << NAME_SHIFT;
+
+    return EMPTY == m_slot.getAndSet(l_packed);
+  }
+
+  /**
+   * Take the latest result, emptying the mailbox.
+   *
+   * @return The packed result, or EMPTY if none has been posted since the
+   *         last take.
+   */
+  public long take()
+  {
+    return m_slot.getAndSet(EMPTY);
+  }
+
+  /**
+   * @param packed A result, as returned by take().
+   * @return The color, on the 0xAARRGGBB form.
+   */
+  public static int color(long packed)
+  {
+    return (int) packed;
+  }
+
+  /**
+   * @param packed A result, as returned by take().
+   * @return True if the color is steady.
+   */
+  public static boolean isLocked(long packed)
+  {
+    return 0 != (packed & LOCKED_BIT);
+  }
+
+  /**
+   * @param packed A result, as returned by take().
+   * @return The palette index of the color name, or -1 if none.
+   */
+  public static int nameIndex(long packed)
+  {
+    return (int) ((packed >>> NAME_SHIFT) & NAME_MASK) - 1;
+  }
+}
@@ -0,0 +1,460 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+/**
+ * This type is responsible for finding the perceptually nearest named color
+ * of a palette.
+ *
+ * The palette colors are indexed by a k-d tree over CIELAB, with the chroma
+ * compressed to approximate CIEDE2000. A query finds the few nearest entries
+ * by Euclidean distance through the tree, and picks the one nearest by
+ * CIEDE2000 among those. On top of that, lookup() answers from a table over
+ * RGB quantized to 5 bits per channel, which is filled in lazily, so that
+ * repeated queries of similar colors, as from consecutive preview frames,
+ * mostly cost a single array read; only cells on the border between
+ * entries pick among the few entries nearest points of the cell.
+ *
+ * Queries reuse internal scratch space, so an instance must only be queried
+ * from one thread at a time.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorNamer
+{
+  /**
+   * This field provides the number of Euclidean nearest candidates, in the
+   * search space, among which the CIEDE2000 nearest is picked.
+   */
+  private static final int CANDIDATES = 16;
+
+  private static final int LUT_BITS = 5;
+  private static final int LUT_SHIFT = 8 - LUT_BITS;
+  private static final int LUT_MASK = (1 << LUT_BITS) - 1;
+  private static final int UNKNOWN = -2;
+
+  /**
+   * This field provides the table value of the first candidate list; the
+   * lists are numbered down from there.
+   */
+  private static final int FIRST_LIST = -3;
+
+  /**
+   * This field provides the number of points of a quantization cell, its
+   * corners, the middles of its edges and faces, and its center, whose
+   * nearest entries are the candidates of the cell.
+   */
+  private static final int CELL_POINTS = 27;
+
+  private final ColorPalette m_palette;
+
+  /**
+   * This field holds the L, a and b of each palette entry, in turn.
+   */
+  private final float[] m_lab;
+
+  /**
+   * This field holds the coordinates of each palette entry in the search
+   * space of the k-d tree, in turn.
+   */
+  private final float[] m_space;
+
+  /**
+   * This field holds the palette entry indices, ordered as an implicit k-d
+   * tree; the root of each range is at its middle, and the split axis
+   * follows the depth.
+   */
+  private final int[] m_tree;
+
+  private int[] m_lut;
+
+  /**
+   * These fields hold the candidate lists of the cells whose points are
+   * not all nearest the same entry; each list is its length followed by
+   * that many entries.
+   */
+  private int[] m_lists = new int[0];
+  private int m_listsLength;
+  private final int[] m_cellEntries = new int[CELL_POINTS];
+
+  /**
+   * These fields are scratch space for the queries.
+   */
+  private final int[] m_fixedLab = new int[3];
+  private final double[] m_query = new double[3];
+  private final double[] m_point = new double[3];
+  private final int[] m_candidates = new int[CANDIDATES];
+  private final double[] m_distances = new double[CANDIDATES];
+  private int m_found;
+
+  /**
+   * @param palette The palette to look colors up in.
+   */
+  public ColorNamer(ColorPalette palette)
+  {
+    m_palette = palette;
+
+    final int l_size = palette.size();
+    final double[] l_lab = new double[3];
+
+    m_lab = new float[3 * l_size];
+    m_space = new float[3 * l_size];
+    m_tree = new int[l_size];
+
+    for (int l_i = 0; l_i < l_size; ++l_i)
+    {
+      toLab(palette.getColor(l_i), l_lab);
+      m_lab[3 * l_i] = (float) l_lab[0];
+      m_lab[3 * l_i + 1] = (float) l_lab[1];
+      m_lab[3 * l_i + 2] = (float) l_lab[2];
+
+      toSearchSpace(l_lab, l_lab);
+      m_space[3 * l_i] = (float) l_lab[0];
+      m_space[3 * l_i + 1] = (float) l_lab[1];
+      m_space[3 * l_i + 2] = (float) l_lab[2];
+
+      m_tree[l_i] = l_i;
+    }
+
+    build(0, l_size, 0);
+  }
+
+  /**
+   * @return The palette colors are looked up in.
+   */
+  public ColorPalette getPalette()
+  {
+    return m_palette;
+  }
+
+  /**
+   * Find the nearest palette entry of a color, through the quantized
+   * lookup table. Cells whose corners, and center, are not all nearest the
+   * same entry, e.g. on the border between entries of a large palette,
+   * keep each of those entries, and answer the one nearest by CIEDE2000,
+   * so that the answer is about as good as that of nearest().
+   *
+   * @param rgb The color, on the 0xRRGGBB form. Any alpha is ignored.
+   * @return The palette entry index, or -1 if the palette is empty.
+   */
+  public int lookup(int rgb)
+  {
+    if (null == m_lut)
+    {
+      m_lut = new int[1 << (3 * LUT_BITS)];
+      Arrays.fill(m_lut, UNKNOWN);
+    }
+
+    final int l_key = (((rgb >> 16) & 0xff) >> LUT_SHIFT) << (2 * LUT_BITS)
+        | (((rgb >> 8) & 0xff) >> LUT_SHIFT) << LUT_BITS
+        | ((rgb & 0xff) >> LUT_SHIFT);
+
+    int l_index = m_lut[l_key];
+    if (UNKNOWN == l_index)
+    {
+      l_index = resolve(l_key);
+      m_lut[l_key] = l_index;
+    }
+    return FIRST_LIST < l_index ? l_index : refine(rgb, FIRST_LIST - l_index);
+  }
+
+  /**
+   * @return The palette entry nearest all the corners, and the center, of
+   *         the quantization cell _key_, or the table value of a new list
+   *         of the entries nearest any of them.
+   */
+  private int resolve(int key)
+  {
+    final int l_red = (key >> (2 * LUT_BITS)) << LUT_SHIFT;
+    final int l_green = ((key >> LUT_BITS) & LUT_MASK) << LUT_SHIFT;
+    final int l_blue = (key & LUT_MASK) << LUT_SHIFT;
+    final int l_last = (1 << LUT_SHIFT) - 1;
+
+    int l_count = 0;
+    for (int l_point = 0; l_point < CELL_POINTS; ++l_point)
+    {
+      // Each channel is at the start, middle or end of the cell.
+      final int l_rgb = (l_red + l_last * (l_point / 9) / 2) << 16
+          | (l_green + l_last * (l_point / 3 % 3) / 2) << 8
+          | (l_blue + l_last * (l_point % 3) / 2);
+      final int l_entry = nearest(l_rgb);
+
+      int l_i = 0;
+      while (l_i < l_count && l_entry != m_cellEntries[l_i])
+      {
+        ++l_i;
+      }
+      if (l_i == l_count)
+      {
+        m_cellEntries[l_count++] = l_entry;
+      }
+    }
+    if (1 == l_count)
+    {
+      return m_cellEntries[0];
+    }
+
+    if (m_lists.length < m_listsLength + 1 + l_count)
+    {
+      m_lists = Arrays.copyOf(m_lists, Math.max(2 * m_lists.length,
+          m_listsLength + 1 + l_count));
+    }
+    final int l_list = m_listsLength;
+    m_lists[m_listsLength++] = l_count;
+    System.arraycopy(m_cellEntries, 0, m_lists, m_listsLength, l_count);
+    m_listsLength += l_count;
+    return FIRST_LIST - l_list;
+  }
+
+  /**
+   * @return The entry of the candidate list at _list_ of m_lists nearest
+   *         _rgb_ by CIEDE2000.
+   */
+  private int refine(int rgb, int list)
+  {
+    toLab(rgb, m_query);
+
+    int l_best = -1;
+    double l_bestDistance = Double.MAX_VALUE;
+    for (int l_i = list + 1; l_i <= list + m_lists[list]; ++l_i)
+    {
+      final int l_entry = 3 * m_lists[l_i];
+      final double l_distance = DeltaE.cie2000(
+          m_query[0], m_query[1], m_query[2],
+          m_lab[l_entry], m_lab[l_entry + 1], m_lab[l_entry + 2]);
+
+      if (l_distance < l_bestDistance)
+      {
+        l_bestDistance = l_distance;
+        l_best = m_lists[l_i];
+      }
+    }
+    return l_best;
+  }
+
+  /**
+   * Find the nearest palette entry of a color.
+   *
+   * @param rgb The color, on the 0xRRGGBB form. Any alpha is ignored.
+   * @return The palette entry index, or -1 if the palette is empty.
+   */
+  public int nearest(int rgb)
+  {
+    toLab(rgb, m_query);
+    toSearchSpace(m_query, m_point);
+
+    m_found = 0;
+    search(0, m_tree.length, 0);
+
+    int l_best = -1;
+    double l_bestDistance = Double.MAX_VALUE;
+
+    for (int l_i = 0; l_i < m_found; ++l_i)
+    {
+      final int l_entry = 3 * m_candidates[l_i];
+      final double l_distance = DeltaE.cie2000(
+          m_query[0], m_query[1], m_query[2],
+          m_lab[l_entry], m_lab[l_entry + 1], m_lab[l_entry + 2]);
+
+      if (l_distance < l_bestDistance)
+      {
+        l_bestDistance = l_distance;
+        l_best = m_candidates[l_i];
+      }
+    }
+    return l_best;
+  }
+
+  /**
+   * @param index The palette entry index, as returned by a query.
+   * @return The name of the entry, or null if _index_ is -1.
+   */
+  public String getName(int index)
+  {
+    return 0 > index ? null : m_palette.getName(index);
+  }
+
+  /**
+   * Convert a color to CIELAB, under the D65 illuminant.
+   *
+   * @param rgb The sRGB color, on the 0xRRGGBB form.
+   * @param out Receives L, a and b, in that order.
+   */
+  private void toLab(int rgb, double[] out)
+  {
+    ColorConversion.toLab(rgb, m_fixedLab, 0);
+    out[0] = (double) m_fixedLab[0] / ColorConversion.LAB_SCALE;
+    out[1] = (double) m_fixedLab[1] / ColorConversion.LAB_SCALE;
+    out[2] = (double) m_fixedLab[2] / ColorConversion.LAB_SCALE;
+  }
+
+  /**
+   * Map a Lab color into the space searched by the k-d tree. The chroma is
+   * compressed logarithmically, so that its derivative matches the 1 / S_C
+   * chroma weighting of CIEDE2000, making Euclidean distances in the search
+   * space track CIEDE2000 far better than plain Lab distances do.
+   */
+  private static void toSearchSpace(double[] lab, double[] out)
+  {
+    final double l_chroma = Math.sqrt(lab[1] * lab[1] + lab[2] * lab[2]);
+    final double l_scale = 0 == l_chroma ? 1
+        : Math.log(1 + 0.045 * l_chroma) / (0.045 * l_chroma);
+
+    out[0] = lab[0];
+    out[1] = lab[1] * l_scale;
+    out[2] = lab[2] * l_scale;
+  }
+
+  /**
+   * Order m_tree[from, to) as a k-d tree splitting on _axis_.
+   */
+  private void build(int from, int to, int axis)
+  {
+    if (1 >= to - from)
+    {
+      return;
+    }
+
+    final int l_middle = (from + to) >>> 1;
+    select(from, to, l_middle, axis);
+
+    build(from, l_middle, (axis + 1) % 3);
+    build(l_middle + 1, to, (axis + 1) % 3);
+  }
+
+  /**
+   * Partially sort m_tree[from, to) so that the _k_th entry is in place by
+   * _axis_, with no greater entry before it and no lesser after it.
+   */
+  private void select(int from, int to, int k, int axis)
+  {
+    int l_left = from;
+    int l_right = to - 1;
+
+    while (l_left < l_right)
+    {
+      final float l_pivot =
+          m_space[3 * m_tree[(l_left + l_right) >>> 1] + axis];
+      int l_i = l_left;
+      int l_j = l_right;
+
+      while (l_i <= l_j)
+      {
+        while (m_space[3 * m_tree[l_i] + axis] < l_pivot)
+        {
+          ++l_i;
+        }
+        while (m_space[3 * m_tree[l_j] + axis] > l_pivot)
+        {
+          --l_j;
+        }
+        if (l_i <= l_j)
+        {
+          final int l_swap = m_tree[l_i];
+          m_tree[l_i] = m_tree[l_j];
+          m_tree[l_j] = l_swap;
+          ++l_i;
+          --l_j;
+        }
+      }
+
+      if (k <= l_j)
+      {
+        l_right = l_j;
+      }
+      else if (k >= l_i)
+      {
+        l_left = l_i;
+      }
+      else
+      {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Collect the CANDIDATES nearest entries of m_point in the k-d tree over
+   * m_tree[from, to), splitting on _axis_.
+   */
+  private void search(int from, int to, int axis)
+  {
+    if (from >= to)
+    {
+      return;
+    }
+
+    final int l_middle = (from + to) >>> 1;
+    final int l_entry = m_tree[l_middle];
+    final int l_offset = 3 * l_entry;
+
+    final double l_dl = m_point[0] - m_space[l_offset];
+    final double l_da = m_point[1] - m_space[l_offset + 1];
+    final double l_db = m_point[2] - m_space[l_offset + 2];
+    offer(l_entry, l_dl * l_dl + l_da * l_da + l_db * l_db);
+
+    final double l_split = m_point[axis] - m_space[l_offset + axis];
+    final int l_next = (axis + 1) % 3;
+
+    // Descend on the query's side first, and only visit the other side
+    // if it may hold a closer entry than the farthest candidate.
+    if (0 > l_split)
+    {
+      search(from, l_middle, l_next);
+      if (CANDIDATES > m_found
+          || l_split * l_split < m_distances[m_found - 1])
+      {
+        search(l_middle + 1, to, l_next);
+      }
+    }
+    else
+    {
+      search(l_middle + 1, to, l_next);
+      if (CANDIDATES > m_found
+          || l_split * l_split < m_distances[m_found - 1])
+      {
+        search(from, l_middle, l_next);
+      }
+    }
+  }
+
+  /**
+   * Insert an entry among the candidates, kept sorted by distance.
+   */
+  private void offer(int entry, double distance)
+  {
+    if (CANDIDATES == m_found && distance >= m_distances[CANDIDATES - 1])
+    {
+      return;
+    }
+
+    int l_i = CANDIDATES == m_found ? CANDIDATES - 1 : m_found++;
+    while (0 < l_i && m_distances[l_i - 1] > distance)
+    {
+      m_distances[l_i] = m_distances[l_i - 1];
+      m_candidates[l_i] = m_candidates[l_i - 1];
+      --l_i;
+    }
+    m_distances[l_i] = distance;
+    m_candidates[l_i] = entry;
+  }
+}
@@ -0,0 +1,193 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * This type is responsible for holding a palette of named colors.
+ *
+ * Palettes are stored in a compact binary form; a header of the magic
+ * number "WTCP", a version short and an entry count int, followed by each
+ * entry as three bytes of RGB, an unsigned length byte, and that many bytes
+ * of UTF-8 name. All numbers are big endian.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorPalette
+{
+  private static final int MAGIC = 0x57544350;
+  private static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int[] m_colors;
+  private final String[] m_names;
+
+  /**
+   * @param colors The colors, on the 0xRRGGBB form.
+   * @param names The names, one per color.
+   */
+  public ColorPalette(int[] colors, String[] names)
+  {
+    if (colors.length != names.length)
+    {
+      throw new IllegalArgumentException("Colors and names differ in number");
+    }
+
+    m_colors = colors;
+    m_names = names;
+  }
+
+  /**
+   * Read a palette in the binary form.
+   *
+   * @param stream The stream to read from. It is not closed.
+   * @return The palette read.
+   * @throws IOException If the stream could not be read, or does not hold
+   *                     a palette.
+   */
+  public static ColorPalette read(InputStream stream) throws IOException
+  {
+    final DataInputStream l_in = new DataInputStream(stream);
+
+    if (MAGIC != l_in.readInt())
+    {
+      throw new IOException("Not a palette");
+    }
+    final int l_version = l_in.readUnsignedShort();
+    if (VERSION != l_version)
+    {
+      throw new IOException("Unsupported palette version " + l_version);
+    }
+
+    final int l_count = l_in.readInt();
+    if (0 > l_count)
+    {
+      throw new IOException("Corrupt palette");
+    }
+
+    final int[] l_colors = new int[l_count];
+    final String[] l_names = new String[l_count];
+    final byte[] l_name = new byte[255];
+
+    for (int l_i = 0; l_i < l_count; ++l_i)
+    {
+      l_colors[l_i] = (l_in.readUnsignedByte() << 16)
+          | (l_in.readUnsignedByte() << 8)
+          | l_in.readUnsignedByte();
+
+      final int l_length = l_in.readUnsignedByte();
+      l_in.readFully(l_name, 0, l_length);
+      l_names[l_i] = new String(l_name, 0, l_length, UTF8);
+    }
+
+    return new ColorPalette(l_colors, l_names);
+  }
+
+  /**
+   * Write the palette in the binary form.
+   *
+   * @param stream The stream to write to. It is flushed, but not closed.
+   * @throws IOException If the stream could not be written.
+   */
+  public void write(OutputStream stream) throws IOException
+  {
+    final DataOutputStream l_out = new DataOutputStream(stream);
+
+    l_out.writeInt(MAGIC);
+    l_out.writeShort(VERSION);
+    l_out.writeInt(m_colors.length);
+
+    for (int l_i = 0; l_i < m_colors.length; ++l_i)
+    {
+      final byte[] l_name = m_names[l_i].getBytes(UTF8);
+      final int l_length = Math.min(255, l_name.length);
+
+      l_out.writeByte(m_colors[l_i] >> 16);
+      l_out.writeByte(m_colors[l_i] >> 8);
+      l_out.writeByte(m_colors[l_i]);
+      l_out.writeByte(l_length);
+      l_out.write(l_name, 0, l_length);
+    }
+
+    l_out.flush();
+  }
+
+  /**
+   * Join palettes, e.g. a standard palette and custom brand palettes.
+   *
+   * @param palettes The palettes to join.
+   * @return A palette holding the entries of all _palettes_, in order.
+   */
+  public static ColorPalette join(ColorPalette... palettes)
+  {
+    int l_count = 0;
+    for (final ColorPalette l_palette : palettes)
+    {
+      l_count += l_palette.size();
+    }
+
+    final int[] l_colors = new int[l_count];
+    final String[] l_names = new String[l_count];
+
+    int l_offset = 0;
+    for (final ColorPalette l_palette : palettes)
+    {
+      System.arraycopy(l_palette.m_colors, 0, l_colors, l_offset,
+          l_palette.size());
+      System.arraycopy(l_palette.m_names, 0, l_names, l_offset,
+          l_palette.size());
+      l_offset += l_palette.size();
+    }
+
+    return new ColorPalette(l_colors, l_names);
+  }
+
+  /**
+   * @return The number of entries.
+   */
+  public int size()
+  {
+    return m_colors.length;
+  }
+
+  /**
+   * @param index The entry index.
+   * @return The color of the entry, on the 0xRRGGBB form.
+   */
+  public int getColor(int index)
+  {
+    return m_colors[index];
+  }
+
+  /**
+   * @param index The entry index.
+   * @return The name of the entry.
+   */
+  public String getName(int index)
+  {
+    return m_names[index];
+  }
+}
@@ -0,0 +1,223 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for steadying a stream of per frame color
+ * readings, and for deciding which of them are worth showing.
+ *
+ * The readings are smoothed by an exponential moving average in CIELAB,
+ * and their spread tracked by an exponentially weighted variance of their
+ * CIEDE2000 distance to the average, updated online without keeping any
+ * history. The spread is thus in the same units as the lock distance. Once
+ * it has stayed within the lock distance, the stabilizer locks on, and it
+ * unlocks again when the spread exceeds twice that distance.
+ *
+ * A reading is published when the lock is gained or lost, or when the
+ * smoothed color has moved at least the lock distance, by CIEDE2000, from
+ * the color last published. While unlocked, publishing is further limited
+ * to a few times per second.
+ *
+ * An instance is meant to be confined to the analysis thread; only the
+ * published colors are handed on.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class ColorStabilizer
+{
+  /**
+   * This field provides the default lock distance, in CIEDE2000 units,
+   * i.e. roughly a just noticeable difference.
+   */
+  public static final double DEFAULT_LOCK_DELTA_E = 2.0;
+
+  /**
+   * This field provides the default weight of each new reading.
+   */
+  public static final double DEFAULT_SMOOTHING = 0.25;
+
+  /**
+   * This field provides the number of readings, after a reset, before the
+   * spread is trusted enough to lock on.
+   */
+  public static final int WARMUP = 8;
+
+  /**
+   * This field provides the shortest time, in nanoseconds, between two
+   * publications while unlocked.
+   */
+  public static final long UNLOCKED_INTERVAL = 200000000L;
+
+  private final double m_smoothing;
+  private double m_lockDeltaE;
+
+  private int m_readings;
+  private boolean m_locked;
+  private long m_publishedAt;
+
+  /**
+   * These fields hold the moving average of L, a and b, the variance of
+   * the CIEDE2000 distance of the readings to it, and the L, a and b of the
+   * color last published.
+   */
+  private final double[] m_mean = new double[3];
+  private double m_variance;
+  private final double[] m_published = new double[3];
+
+  /**
+   * This field is scratch space for the conversion of the readings.
+   */
+  private final int[] m_lab = new int[3];
+
+  public ColorStabilizer()
+  {
+    this(DEFAULT_SMOOTHING, DEFAULT_LOCK_DELTA_E);
+  }
+
+  /**
+   * @param smoothing The weight of each new reading, 0 (exclusive) to 1.
+   * @param lockDeltaE The lock distance, in CIEDE2000 units.
+   */
+  public ColorStabilizer(double smoothing, double lockDeltaE)
+  {
+    if (0 >= smoothing || 1 < smoothing)
+    {
+      throw new IllegalArgumentException("Smoothing: " + smoothing);
+    }
+    m_smoothing = smoothing;
+    setLockDeltaE(lockDeltaE);
+  }
+
+  /**
+   * @param lockDeltaE The lock distance, in CIEDE2000 units. It also is
+   *                   the smallest change worth publishing.
+   */
+  public void setLockDeltaE(double lockDeltaE)
+  {
+    if (0 >= lockDeltaE)
+    {
+      throw new IllegalArgumentException("Lock distance: " + lockDeltaE);
+    }
+    m_lockDeltaE = lockDeltaE;
+  }
+
+  /**
+   * Forget all readings, e.g. when the sampling settings change.
+   */
+  public void reset()
+  {
+    m_readings = 0;
+    m_locked = false;
+  }
+
+  /**
+   * Add a reading.
+   *
+   * @param color The color read, on the 0xAARRGGBB form.
+   * @param time The time of the reading, in nanoseconds, of any monotonic
+   *             clock.
+   * @return True if the smoothed color, and the lock state, are to be
+   *         published.
+   */
+  public boolean offer(int color, long time)
+  {
+    ColorConversion.toLab(color, m_lab, 0);
+
+    final double l_l = (double) m_lab[0] / ColorConversion.LAB_SCALE;
+    final double l_a = (double) m_lab[1] / ColorConversion.LAB_SCALE;
+    final double l_b = (double) m_lab[2] / ColorConversion.LAB_SCALE;
+
+    if (0 == m_readings++)
+    {
+      m_mean[0] = l_l;
+      m_mean[1] = l_a;
+      m_mean[2] = l_b;
+      m_variance = 0;
+      return publish(time);
+    }
+
+    // The exponentially weighted variance is updated along with the mean,
+    // from the distance to the previous mean.
+    final double l_distance = DeltaE.cie2000(l_l, l_a, l_b, m_mean[0],
+        m_mean[1], m_mean[2]);
+    m_mean[0] += m_smoothing * (l_l - m_mean[0]);
+    m_mean[1] += m_smoothing * (l_a - m_mean[1]);
+    m_mean[2] += m_smoothing * (l_b - m_mean[2]);
+    m_variance = (1 - m_smoothing)
+        * (m_variance + m_smoothing * l_distance * l_distance);
+    final double l_spread = Math.sqrt(m_variance);
+
+    final boolean l_wasLocked = m_locked;
+    if (m_locked)
+    {
+      m_locked = 2 * m_lockDeltaE >= l_spread;
+    }
+    else
+    {
+      m_locked = WARMUP <= m_readings && m_lockDeltaE >= l_spread;
+    }
+
+    if (l_wasLocked != m_locked)
+    {
+      return publish(time);
+    }
+
+    if (!m_locked && UNLOCKED_INTERVAL > time - m_publishedAt)
+    {
+      return false;
+    }
+
+    if (m_lockDeltaE <= DeltaE.cie2000(m_mean[0], m_mean[1], m_mean[2],
+        m_published[0], m_published[1], m_published[2]))
+    {
+      return publish(time);
+    }
+    return false;
+  }
+
+  /**
+   * @return The smoothed color, on the 0xAARRGGBB form.
+   */
+  public int getColor()
+  {
+    return ColorConversion.fromLab(
+        (int) Math.round(m_mean[0] * ColorConversion.LAB_SCALE),
+        (int) Math.round(m_mean[1] * ColorConversion.LAB_SCALE),
+        (int) Math.round(m_mean[2] * ColorConversion.LAB_SCALE));
+  }
+
+  /**
+   * @return True if the readings have been stable within the lock
+   *         distance.
+   */
+  public boolean isLocked()
+  {
+    return m_locked;
+  }
+
+  private boolean publish(long time)
+  {
+    m_published[0] = m_mean[0];
+    m_published[1] = m_mean[1];
+    m_published[2] = m_mean[2];
+    m_publishedAt = time;
+    return true;
+  }
+}
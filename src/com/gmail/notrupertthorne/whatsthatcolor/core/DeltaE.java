@@ -0,0 +1,146 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for the perceptual distance between two CIELAB
+ * colors.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class DeltaE
+{
+  private static final double POW25_7 = 6103515625.0; // 25^7
+
+  private DeltaE()
+  {
+  }
+
+  /**
+   * @return The CIE76 color difference, i.e. the Euclidean distance in Lab.
+   */
+  public static double cie76(double l1, double a1, double b1,
+      double l2, double a2, double b2)
+  {
+    final double l_dl = l1 - l2;
+    final double l_da = a1 - a2;
+    final double l_db = b1 - b2;
+    return Math.sqrt(l_dl * l_dl + l_da * l_da + l_db * l_db);
+  }
+
+  /**
+   * Calculate the CIEDE2000 color difference, with unity parametric
+   * weights, as given by Sharma, Wu and Dalal.
+   *
+   * @return The CIEDE2000 color difference.
+   */
+  public static double cie2000(double l1, double a1, double b1,
+      double l2, double a2, double b2)
+  {
+    final double l_c1 = Math.sqrt(a1 * a1 + b1 * b1);
+    final double l_c2 = Math.sqrt(a2 * a2 + b2 * b2);
+    final double l_cMean7 = Math.pow((l_c1 + l_c2) / 2, 7);
+    final double l_g = 0.5 * (1 - Math.sqrt(l_cMean7 / (l_cMean7 + POW25_7)));
+
+    final double l_a1 = (1 + l_g) * a1;
+    final double l_a2 = (1 + l_g) * a2;
+    final double l_cp1 = Math.sqrt(l_a1 * l_a1 + b1 * b1);
+    final double l_cp2 = Math.sqrt(l_a2 * l_a2 + b2 * b2);
+    final double l_h1 = hue(b1, l_a1);
+    final double l_h2 = hue(b2, l_a2);
+
+    final double l_dL = l2 - l1;
+    final double l_dC = l_cp2 - l_cp1;
+
+    double l_dh = 0;
+    if (0 != l_cp1 * l_cp2)
+    {
+      l_dh = l_h2 - l_h1;
+      if (180 < l_dh)
+      {
+        l_dh -= 360;
+      }
+      else if (-180 > l_dh)
+      {
+        l_dh += 360;
+      }
+    }
+    final double l_dH = 2 * Math.sqrt(l_cp1 * l_cp2)
+        * Math.sin(Math.toRadians(l_dh / 2));
+
+    final double l_lMean = (l1 + l2) / 2;
+    final double l_cpMean = (l_cp1 + l_cp2) / 2;
+
+    double l_hMean = l_h1 + l_h2;
+    if (0 != l_cp1 * l_cp2)
+    {
+      if (180 >= Math.abs(l_h1 - l_h2))
+      {
+        l_hMean /= 2;
+      }
+      else if (360 > l_hMean)
+      {
+        l_hMean = (l_hMean + 360) / 2;
+      }
+      else
+      {
+        l_hMean = (l_hMean - 360) / 2;
+      }
+    }
+
+    final double l_t = 1
+        - 0.17 * Math.cos(Math.toRadians(l_hMean - 30))
+        + 0.24 * Math.cos(Math.toRadians(2 * l_hMean))
+        + 0.32 * Math.cos(Math.toRadians(3 * l_hMean + 6))
+        - 0.20 * Math.cos(Math.toRadians(4 * l_hMean - 63));
+
+    final double l_lMean50 = (l_lMean - 50) * (l_lMean - 50);
+    final double l_sL = 1 + 0.015 * l_lMean50 / Math.sqrt(20 + l_lMean50);
+    final double l_sC = 1 + 0.045 * l_cpMean;
+    final double l_sH = 1 + 0.015 * l_cpMean * l_t;
+
+    final double l_dTheta = 30 * Math.exp(
+        -((l_hMean - 275) / 25) * ((l_hMean - 275) / 25));
+    final double l_cpMean7 = Math.pow(l_cpMean, 7);
+    final double l_rT = -2 * Math.sqrt(l_cpMean7 / (l_cpMean7 + POW25_7))
+        * Math.sin(Math.toRadians(2 * l_dTheta));
+
+    final double l_termL = l_dL / l_sL;
+    final double l_termC = l_dC / l_sC;
+    final double l_termH = l_dH / l_sH;
+
+    return Math.sqrt(l_termL * l_termL + l_termC * l_termC
+        + l_termH * l_termH + l_rT * l_termC * l_termH);
+  }
+
+  /**
+   * @return The hue angle, in degrees, in the range [0, 360).
+   */
+  private static double hue(double b, double a)
+  {
+    if (0 == a && 0 == b)
+    {
+      return 0;
+    }
+
+    final double l_hue = Math.toDegrees(Math.atan2(b, a));
+    return 0 > l_hue ? l_hue + 360 : l_hue;
+  }
+}
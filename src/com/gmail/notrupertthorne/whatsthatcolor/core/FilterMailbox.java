@@ -0,0 +1,117 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+/**
+ * This type is responsible for handing the latest filtered preview image
+ * over from a producing thread to a consuming one, without either ever
+ * blocking.
+ *
+ * Images are passed in reusable buffers, as described by Mailbox.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class FilterMailbox extends Mailbox<FilterMailbox.Image>
+{
+  /**
+   * This type holds a filtered image, in image orientation, along with how
+   * it is shown.
+   */
+  public static final class Image
+  {
+    private final int[] m_pixels = new int[VisionFilter.MAX_PIXELS];
+    private int m_width;
+    private int m_height;
+    private int m_orientation;
+    private boolean m_mirrored;
+
+    /**
+     * @return The pixels, on the 0xAARRGGBB form, row by row, getWidth()
+     *         apart.
+     */
+    public int[] getPixels()
+    {
+      return m_pixels;
+    }
+
+    /**
+     * @return The width, in pixels.
+     */
+    public int getWidth()
+    {
+      return m_width;
+    }
+
+    /**
+     * @return The height, in pixels.
+     */
+    public int getHeight()
+    {
+      return m_height;
+    }
+
+    /**
+     * @return The clockwise rotation, in degrees, of the image as shown.
+     */
+    public int getOrientation()
+    {
+      return m_orientation;
+    }
+
+    /**
+     * @return True if the image is shown mirrored horizontally, before
+     *         being rotated.
+     */
+    public boolean isMirrored()
+    {
+      return m_mirrored;
+    }
+
+    /**
+     * @param width The width, in pixels.
+     * @param height The height, in pixels.
+     */
+    public void setSize(int width, int height)
+    {
+      m_width = width;
+      m_height = height;
+    }
+
+    /**
+     * @param orientation The clockwise rotation, in degrees, of the image
+     *                    as shown.
+     * @param mirrored True if the image is shown mirrored horizontally,
+     *                 before being rotated.
+     */
+    public void setOrientation(int orientation, boolean mirrored)
+    {
+      m_orientation = orientation;
+      m_mirrored = mirrored;
+    }
+  }
+
+  @Override
+  protected Image create()
+  {
+    return new Image();
+  }
+}
@@ -0,0 +1,459 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+/**
+ * This type is responsible for steering the focus, and metering, of the
+ * camera to the crosshair and the sample points, and for telling when the
+ * camera has settled on them, so that readings are only taken of frames
+ * focused and exposed for what is sampled.
+ *
+ * The points are mapped onto focus and metering areas, on the -1000..1000
+ * grid over the frame of Camera.Area, the crosshair weighing the most, and
+ * handed to the Device. Autofocus is only triggered when the areas change,
+ * or when the scene does, as told by the luma of the crosshair area drifting
+ * off the level it settled at. Once focused, the exposure is taken to have
+ * converged when that luma holds steady over a few frames, which holds for
+ * any camera, whether or not it reports the state of its exposure. Should
+ * the camera not answer, the states are left after a timeout, so that
+ * readings are delayed, never stopped.
+ *
+ * The frames are told on the analysis thread, and the focus results on
+ * the camera thread; the state is guarded by this.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class FocusController
+{
+  /**
+   * These fields provide the bounds, and the greatest weight, of the areas,
+   * as of Camera.Area.
+   */
+  public static final int AREA_MIN = -1000;
+  public static final int AREA_MAX = 1000;
+  public static final int MAX_WEIGHT = 1000;
+
+  /**
+   * This field provides the least side of an area, a tenth of the frame, so
+   * that there is texture enough to focus on however small the window
+   * sampled.
+   */
+  public static final int MIN_AREA_SIDE = 200;
+
+  /**
+   * This field provides the most areas; the crosshair and every sample
+   * point.
+   */
+  public static final int MAX_AREAS = 1 + MultiPointSampler.MAX_POINTS;
+
+  /**
+   * This type enumerates the states of the camera.
+   */
+  public enum State
+  {
+    /**
+     * No areas set; readings are not held back.
+     */
+    IDLE,
+
+    /**
+     * Focusing on the areas.
+     */
+    FOCUSING,
+
+    /**
+     * Focused, with the exposure converging.
+     */
+    SETTLING,
+
+    /**
+     * Focused, and exposed, for the areas.
+     */
+    SETTLED
+  }
+
+  /**
+   * This type is responsible for receiving the result of an autofocus.
+   */
+  public interface AutoFocusListener
+  {
+    /**
+     * @param focused True if the camera found focus.
+     */
+    void onAutoFocus(boolean focused);
+  }
+
+  /**
+   * This type is responsible for the camera, as steered by the controller.
+   * None of the methods may block.
+   */
+  public interface Device
+  {
+    /**
+     * @return The most focus areas the camera takes, or 0.
+     */
+    int getMaxFocusAreas();
+
+    /**
+     * @return The most metering areas the camera takes, or 0.
+     */
+    int getMaxMeteringAreas();
+
+    /**
+     * Set the focus, and metering, areas, kept until set anew.
+     *
+     * @param areas The areas, as quintuples of left, top, right, bottom and
+     *              weight. The array is reused once this returns.
+     * @param focusAreas The number of areas, from the first on, to focus
+     *                   on.
+     * @param meteringAreas The number of areas, from the first on, to meter
+     *                      on.
+     */
+    void setAreas(int[] areas, int focusAreas, int meteringAreas);
+
+    /**
+     * Focus once on the focus areas.
+     *
+     * @param listener The listener to receive the result. It is always
+     *                 called, unless the autofocus is cancelled, with false
+     *                 if the camera cannot focus.
+     */
+    void autoFocus(AutoFocusListener listener);
+
+    /**
+     * Cancel any autofocus in progress.
+     */
+    void cancelAutoFocus();
+  }
+
+  /**
+   * These fields provide the most change of luma, in levels, between
+   * frames, over how many frames in a row, for the exposure to be
+   * considered converged.
+   */
+  private static final int STEADY_LUMA = 2;
+  private static final int STEADY_FRAMES = 3;
+
+  /**
+   * These fields provide the least change of luma, in levels, from the
+   * settled level, over how many frames in a row, for the scene to be
+   * considered changed.
+   */
+  private static final int SCENE_CHANGE_LUMA = 24;
+  private static final int CHANGE_FRAMES = 3;
+
+  /**
+   * These fields provide the most nanoseconds to wait for the camera to
+   * focus, and for the exposure to converge.
+   */
+  private static final long FOCUS_TIMEOUT = 2000000000L;
+  private static final long SETTLE_TIMEOUT = 1000000000L;
+
+  /**
+   * This field provides the side of the grid the luma of the crosshair area
+   * is sampled on.
+   */
+  private static final int METER_GRID = 8;
+
+  private final Device m_device;
+
+  /**
+   * These fields are guarded by this.
+   */
+  private State m_state = State.IDLE;
+  private final int[] m_areas = new int[5 * MAX_AREAS];
+  private final int[] m_scratch = new int[5 * MAX_AREAS];
+  private int m_count;
+  private final int[] m_meter = new int[4];
+  private int m_generation;
+  private long m_since = -1;
+  private int m_lastLuma = -1;
+  private int m_steadyFrames;
+  private int m_settledLuma;
+  private int m_changedFrames;
+
+  /**
+   * @param device The camera to steer.
+   */
+  public FocusController(Device device)
+  {
+    m_device = device;
+  }
+
+  /**
+   * Map a point of a frame onto an area.
+   *
+   * @param x The column of the point, in pixels.
+   * @param y The row of the point, in pixels.
+   * @param size The side of the window around the point, in pixels.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param weight The weight of the area, 1..MAX_WEIGHT.
+   * @param out Receives the left, top, right, bottom and weight of the
+   *            area, from _offset_ on. The area is centered on the point,
+   *            and moved, not shrunk, to lie within the frame.
+   * @param offset The index in _out_ of the left.
+   */
+  public static void toArea(int x, int y, int size, int width, int height,
+      int weight, int[] out, int offset)
+  {
+    place(x, size, width, out, offset);
+    place(y, size, height, out, offset + 1);
+    out[offset + 4] = weight;
+  }
+
+  /**
+   * Set the points to focus, and meter, on. Nothing is done unless the
+   * areas they map onto have changed.
+   *
+   * @param points The points, as pairs of column and row in pixels of the
+   *               frame, the crosshair first.
+   * @param count The number of points, 1..MAX_AREAS.
+   * @param size The side of the window sampled around each point, in
+   *             pixels.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   */
+  public synchronized void setPoints(int[] points, int count, int size,
+      int width, int height)
+  {
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      toArea(points[2 * l_i], points[2 * l_i + 1], size, width, height,
+          0 == l_i ? MAX_WEIGHT : MAX_WEIGHT / 2, m_scratch, 5 * l_i);
+    }
+
+    if (count == m_count && State.IDLE != m_state && equal(5 * count))
+    {
+      return;
+    }
+
+    System.arraycopy(m_scratch, 0, m_areas, 0, 5 * count);
+    m_count = count;
+
+    // The crosshair area, in pixels, within the frame.
+    m_meter[0] = Math.max(0, (m_areas[0] - AREA_MIN) * width / 2000);
+    m_meter[1] = Math.max(0, (m_areas[1] - AREA_MIN) * height / 2000);
+    m_meter[2] = Math.min(width, (m_areas[2] - AREA_MIN) * width / 2000);
+    m_meter[3] = Math.min(height, (m_areas[3] - AREA_MIN) * height / 2000);
+
+    m_device.setAreas(m_areas, Math.min(count, m_device.getMaxFocusAreas()),
+        Math.min(count, m_device.getMaxMeteringAreas()));
+    focus();
+  }
+
+  /**
+   * Tell a preview frame, after the points have been set for it.
+   *
+   * @param frame The frame.
+   * @param time The time, as by System.nanoTime(), of the frame.
+   * @return True if readings may be taken of the frame, i.e. the camera
+   *         has settled on the areas, or none are set.
+   */
+  public synchronized boolean onFrame(YuvFrame frame, long time)
+  {
+    if (State.IDLE == m_state)
+    {
+      return true;
+    }
+
+    final int l_luma = meterLuma(frame);
+    if (0 > m_since)
+    {
+      m_since = time;
+    }
+
+    switch (m_state)
+    {
+      case FOCUSING:
+        if (FOCUS_TIMEOUT < time - m_since)
+        {
+          // The camera never answered, e.g. as the preview was restarted.
+          settle(time);
+        }
+        return false;
+
+      case SETTLING:
+        if (STEADY_LUMA >= Math.abs(l_luma - m_lastLuma))
+        {
+          ++m_steadyFrames;
+        }
+        else
+        {
+          m_steadyFrames = 0;
+        }
+        m_lastLuma = l_luma;
+
+        if (STEADY_FRAMES > m_steadyFrames
+            && SETTLE_TIMEOUT >= time - m_since)
+        {
+          return false;
+        }
+        m_state = State.SETTLED;
+        m_settledLuma = l_luma;
+        m_changedFrames = 0;
+        return true;
+
+      default:
+        if (SCENE_CHANGE_LUMA >= Math.abs(l_luma - m_settledLuma))
+        {
+          m_changedFrames = 0;
+          return true;
+        }
+
+        if (CHANGE_FRAMES <= ++m_changedFrames)
+        {
+          focus();
+        }
+        return false;
+    }
+  }
+
+  /**
+   * @return The state of the camera.
+   */
+  public synchronized State getState()
+  {
+    return m_state;
+  }
+
+  /**
+   * Forget the areas, e.g. as the camera has been reopened, so that they
+   * are set anew along with the next points.
+   */
+  public synchronized void reset()
+  {
+    m_state = State.IDLE;
+    m_count = 0;
+    ++m_generation;
+  }
+
+  /**
+   * Trigger an autofocus, cancelling any in progress.
+   */
+  private void focus()
+  {
+    if (State.FOCUSING == m_state)
+    {
+      m_device.cancelAutoFocus();
+    }
+
+    final int l_generation = ++m_generation;
+    m_state = State.FOCUSING;
+    m_since = -1;
+    m_device.autoFocus(new AutoFocusListener()
+    {
+      @Override
+      public void onAutoFocus(boolean focused)
+      {
+        focused(l_generation);
+      }
+    });
+  }
+
+  /**
+   * Leave focusing, unless the autofocus of _generation_ has since been
+   * superseded.
+   */
+  private synchronized void focused(int generation)
+  {
+    if (generation == m_generation && State.FOCUSING == m_state)
+    {
+      settle(-1);
+    }
+  }
+
+  /**
+   * Start waiting for the exposure to converge.
+   *
+   * @param time The time of the current frame, or -1 if none.
+   */
+  private void settle(long time)
+  {
+    m_state = State.SETTLING;
+    m_since = time;
+    m_lastLuma = -1;
+    m_steadyFrames = 0;
+  }
+
+  /**
+   * @return The mean luma of the crosshair area of a frame, as sampled on
+   *         a grid of METER_GRID by METER_GRID points.
+   */
+  private int meterLuma(YuvFrame frame)
+  {
+    final int l_width = Math.min(m_meter[2], frame.getWidth()) - m_meter[0];
+    final int l_height = Math.min(m_meter[3], frame.getHeight())
+        - m_meter[1];
+    if (0 >= l_width || 0 >= l_height)
+    {
+      return 0;
+    }
+
+    int l_sum = 0;
+    for (int l_j = 0; l_j < METER_GRID; ++l_j)
+    {
+      final int l_y = m_meter[1] + (2 * l_j + 1) * l_height / (2 * METER_GRID);
+      for (int l_i = 0; l_i < METER_GRID; ++l_i)
+      {
+        l_sum += frame.luma(
+            m_meter[0] + (2 * l_i + 1) * l_width / (2 * METER_GRID), l_y);
+      }
+    }
+    return l_sum / (METER_GRID * METER_GRID);
+  }
+
+  /**
+   * @return True if the first _length_ values of m_scratch equal those of
+   *         m_areas.
+   */
+  private boolean equal(int length)
+  {
+    for (int l_i = 0; l_i < length; ++l_i)
+    {
+      if (m_scratch[l_i] != m_areas[l_i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Place one axis of an area around a coordinate.
+   *
+   * @param out Receives the low end at _offset_, and the high end two
+   *            indices on.
+   */
+  private static void place(int coordinate, int size, int extent,
+      int[] out, int offset)
+  {
+    final int l_side = Math.min(AREA_MAX - AREA_MIN,
+        Math.max(MIN_AREA_SIDE, size * (AREA_MAX - AREA_MIN) / extent));
+    final int l_center = AREA_MIN
+        + (2 * coordinate + 1) * (AREA_MAX - AREA_MIN) / (2 * extent);
+    final int l_low = Math.max(AREA_MIN,
+        Math.min(l_center - l_side / 2, AREA_MAX - l_side));
+
+    out[offset] = l_low;
+    out[offset + 2] = l_low + l_side;
+  }
+}
@@ -0,0 +1,38 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+/**
+ * This type is responsible for analyzing preview frames, as delivered by a
+ * frame source, whether a camera or a SyntheticFrameSource. It is called
+ * on the analysis thread of the source.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public interface FrameAnalyzer
+{
+  /**
+   * @param frame The frame. It must not be retained after returning.
+   * @param arrived The time the frame arrived from the source, as by
+   *                System.nanoTime().
+   */
+  void analyze(YuvFrame frame, long arrived);
+}
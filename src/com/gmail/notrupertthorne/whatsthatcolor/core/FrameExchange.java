@@ -0,0 +1,128 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This type is responsible for handing preview frames over from the camera
+ * thread to the analysis thread, as whatever the frame source delivers
+ * them in, e.g. NV21 buffers or images.
+ *
+ * Only the latest frame is kept. Should the analysis fall behind, a frame
+ * that has not yet been taken is handed back as stale when a newer one is
+ * offered, rather than being queued. Neither side ever blocks or allocates.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class FrameExchange<T>
+{
+  private final AtomicReference<T> m_latest = new AtomicReference<T>();
+
+  private final AtomicLong m_received = new AtomicLong();
+  private final AtomicLong m_dropped = new AtomicLong();
+  private final AtomicLong m_analyzed = new AtomicLong();
+
+  /**
+   * This field holds the time of the latest offer, as by System.nanoTime().
+   */
+  private volatile long m_offerTime;
+
+  /**
+   * Offer a new frame for analysis.
+   *
+   * @param frame The frame.
+   * @return The stale frame that was replaced, if any, which is to be
+   *         recycled by the caller, or null.
+   */
+  public T offer(T frame)
+  {
+    m_received.incrementAndGet();
+    m_offerTime = System.nanoTime();
+
+    final T l_stale = m_latest.getAndSet(frame);
+    if (null != l_stale)
+    {
+      m_dropped.incrementAndGet();
+    }
+    return l_stale;
+  }
+
+  /**
+   * Take the latest frame, if any, for analysis.
+   *
+   * @return The frame, or null if there is no new frame.
+   */
+  public T take()
+  {
+    final T l_frame = m_latest.getAndSet(null);
+    if (null != l_frame)
+    {
+      m_analyzed.incrementAndGet();
+    }
+    return l_frame;
+  }
+
+  /**
+   * Take back the latest frame without analyzing it, e.g. when stopping the
+   * preview.
+   *
+   * @return The frame, or null if there is no pending frame.
+   */
+  public T clear()
+  {
+    return m_latest.getAndSet(null);
+  }
+
+  /**
+   * @return The time of the latest offer, as by System.nanoTime(). Read
+   *         right after take(), it is the time the frame taken was offered,
+   *         unless a newer frame has been offered in between.
+   */
+  public long getOfferTime()
+  {
+    return m_offerTime;
+  }
+
+  /**
+   * @return The number of frames offered.
+   */
+  public long getReceived()
+  {
+    return m_received.get();
+  }
+
+  /**
+   * @return The number of frames dropped since they went stale.
+   */
+  public long getDropped()
+  {
+    return m_dropped.get();
+  }
+
+  /**
+   * @return The number of frames taken for analysis.
+   */
+  public long getAnalyzed()
+  {
+    return m_analyzed.get();
+  }
+}
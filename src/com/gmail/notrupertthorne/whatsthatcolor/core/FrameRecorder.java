@@ -0,0 +1,307 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This type is responsible for recording preview frames to a file, so that
+ * they can be replayed through the analysis, by a FrameReplay, on a machine
+ * without a camera.
+ *
+ * A recording holds a header of the magic number "WTCF" and a version
+ * short, followed by each frame as its time in nanoseconds since the first
+ * frame as a long, its width and height as ints, its orientation as a
+ * short, a mirrored byte, a format byte, the length of its data as an int,
+ * and that many bytes of data. The only format is FORMAT_NV21, whatever
+ * the layout the frame came in; planar frames are interleaved as they are
+ * recorded. All numbers are big endian.
+ *
+ * The frames are copied on the analysis thread, into one of BUFFERS
+ * preallocated buffers, and written by a thread of the recorder's own, so
+ * that the analysis is not held up by the storage. Should the writer fall
+ * behind, frames are dropped rather than queued, and counted.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class FrameRecorder
+{
+  static final int MAGIC = 0x57544346;
+  static final int VERSION = 1;
+
+  /**
+   * This field provides the format of NV21 frames.
+   */
+  public static final int FORMAT_NV21 = 0;
+
+  /**
+   * This field provides the number of frames that may be waiting to be
+   * written at once.
+   */
+  public static final int BUFFERS = 4;
+
+  /**
+   * This type holds a frame waiting to be written.
+   */
+  private static final class Frame
+  {
+    byte[] m_data = new byte[0];
+    int m_length;
+    long m_time;
+    int m_width;
+    int m_height;
+    int m_orientation;
+    boolean m_mirrored;
+  }
+
+  /**
+   * This frame tells the writer to stop.
+   */
+  private static final Frame END = new Frame();
+
+  private final DataOutputStream m_out;
+  private final BlockingQueue<Frame> m_free =
+      new ArrayBlockingQueue<Frame>(BUFFERS);
+  private final BlockingQueue<Frame> m_queued =
+      new ArrayBlockingQueue<Frame>(BUFFERS + 1);
+  private final Thread m_writer;
+  private final AtomicInteger m_recorded = new AtomicInteger();
+  private final AtomicInteger m_dropped = new AtomicInteger();
+
+  /**
+   * This field holds the time of the first frame, and is only accessed on
+   * the recording thread.
+   */
+  private long m_start = -1;
+  private volatile boolean m_closed;
+
+  /**
+   * This field holds the first error writing, if any. It is set by the
+   * writer, and read once the writer has stopped.
+   */
+  private IOException m_writeError;
+
+  /**
+   * Create the recording, and start its writer.
+   *
+   * @param file The file to record to. It is replaced.
+   * @throws IOException If the file could not be created.
+   */
+  public FrameRecorder(File file) throws IOException
+  {
+    m_out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 1 << 16));
+    try
+    {
+      m_out.writeInt(MAGIC);
+      m_out.writeShort(VERSION);
+    }
+    catch (final IOException e)
+    {
+      m_out.close();
+      throw e;
+    }
+
+    for (int l_i = 0; l_i < BUFFERS; ++l_i)
+    {
+      m_free.add(new Frame());
+    }
+
+    m_writer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        write();
+      }
+    }, "FrameRecorder");
+    m_writer.setDaemon(true);
+    m_writer.start();
+  }
+
+  /**
+   * Record a frame, without blocking. This is called on one thread, e.g.
+   * the analysis thread, only.
+   *
+   * @param frame The frame.
+   * @param time The time, as by System.nanoTime(), the frame arrived.
+   * @return True if the frame was recorded, false if it was dropped, or
+   *         the recording has been closed.
+   */
+  public boolean record(YuvFrame frame, long time)
+  {
+    if (m_closed)
+    {
+      return false;
+    }
+
+    final Frame l_frame = m_free.poll();
+    if (null == l_frame)
+    {
+      m_dropped.incrementAndGet();
+      return false;
+    }
+
+    if (-1 == m_start)
+    {
+      m_start = time;
+    }
+
+    final int l_length = Nv21Sampler.bufferSize(frame.getWidth(),
+        frame.getHeight());
+    if (l_frame.m_data.length < l_length)
+    {
+      // The buffers grow to the frame size once, and are then reused.
+      l_frame.m_data = new byte[l_length];
+    }
+    frame.copyNv21(l_frame.m_data);
+    l_frame.m_length = l_length;
+    l_frame.m_time = time - m_start;
+    l_frame.m_width = frame.getWidth();
+    l_frame.m_height = frame.getHeight();
+    l_frame.m_orientation = frame.getOrientation();
+    l_frame.m_mirrored = frame.isMirrored();
+
+    m_queued.add(l_frame);
+    return true;
+  }
+
+  /**
+   * Stop recording, and wait for the frames recorded to be written. This
+   * may be called on any thread; a frame being recorded meanwhile may be
+   * left out.
+   *
+   * @throws IOException If the recording could not be written.
+   */
+  public void close() throws IOException
+  {
+    if (m_closed)
+    {
+      return;
+    }
+    m_closed = true;
+
+    m_queued.add(END);
+    boolean l_interrupted = false;
+    while (m_writer.isAlive())
+    {
+      try
+      {
+        m_writer.join();
+      }
+      catch (final InterruptedException e)
+      {
+        l_interrupted = true;
+      }
+    }
+    if (l_interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    try
+    {
+      m_out.close();
+    }
+    catch (final IOException e)
+    {
+      if (null == m_writeError)
+      {
+        m_writeError = e;
+      }
+    }
+
+    if (null != m_writeError)
+    {
+      throw m_writeError;
+    }
+  }
+
+  /**
+   * @return The number of frames recorded so far.
+   */
+  public int getRecorded()
+  {
+    return m_recorded.get();
+  }
+
+  /**
+   * @return The number of frames dropped so far, as the writer fell behind.
+   */
+  public int getDropped()
+  {
+    return m_dropped.get();
+  }
+
+  /**
+   * Write the queued frames until told to stop. Once writing has failed,
+   * the frames are only recycled.
+   */
+  private void write()
+  {
+    while (true)
+    {
+      final Frame l_frame;
+      try
+      {
+        l_frame = m_queued.take();
+      }
+      catch (final InterruptedException e)
+      {
+        // Only stopped by the END frame.
+        continue;
+      }
+
+      if (END == l_frame)
+      {
+        return;
+      }
+
+      if (null == m_writeError)
+      {
+        try
+        {
+          m_out.writeLong(l_frame.m_time);
+          m_out.writeInt(l_frame.m_width);
+          m_out.writeInt(l_frame.m_height);
+          m_out.writeShort(l_frame.m_orientation);
+          m_out.writeByte(l_frame.m_mirrored ? 1 : 0);
+          m_out.writeByte(FORMAT_NV21);
+          m_out.writeInt(l_frame.m_length);
+          m_out.write(l_frame.m_data, 0, l_frame.m_length);
+          m_recorded.incrementAndGet();
+        }
+        catch (final IOException e)
+        {
+          m_writeError = e;
+        }
+      }
+      m_free.add(l_frame);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This type is responsible for replaying a recording made by a
+ * FrameRecorder through a FrameAnalyzer, as if the frames came from the
+ * camera.
+ *
+ * The recording is memory-mapped, and each frame is handed to the analyzer
+ * as planes straight over the mapping, so that frames are neither read nor
+ * copied ahead of being analyzed, and recordings larger than the heap can
+ * be replayed. The frames are indexed once, as the recording is opened.
+ *
+ * Frames are replayed either at their original pace, sleeping until each
+ * frame is due, or as fast as the analyzer can take them, e.g. to profile
+ * it.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class FrameReplay
+{
+  /**
+   * This type tells the pace at which to replay the frames.
+   */
+  public enum Speed
+  {
+    ORIGINAL, MAXIMUM
+  }
+
+  /**
+   * This field provides the size, in bytes, of the header of each frame.
+   */
+  private static final int FRAME_HEADER = 8 + 4 + 4 + 2 + 1 + 1 + 4;
+
+  private final RandomAccessFile m_file;
+  private final MappedByteBuffer m_map;
+  private final YuvFrame m_frame = new YuvFrame();
+
+  /**
+   * These fields hold the offset of the data, the time, the width, the
+   * height and the orientation, and whether mirrored, of each frame.
+   */
+  private final int[] m_offsets;
+  private final long[] m_times;
+  private final int[] m_widths;
+  private final int[] m_heights;
+  private final int[] m_orientations;
+  private final boolean[] m_mirrored;
+
+  /**
+   * Open a recording, mapping and indexing it.
+   *
+   * @param file The recording.
+   * @throws IOException If the file could not be read, or does not hold a
+   *                     recording.
+   */
+  public FrameReplay(File file) throws IOException
+  {
+    m_file = new RandomAccessFile(file, "r");
+    try
+    {
+      final FileChannel l_channel = m_file.getChannel();
+      if (Integer.MAX_VALUE < l_channel.size())
+      {
+        throw new IOException("Recording too large to map: "
+            + l_channel.size() + " bytes");
+      }
+      m_map = l_channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          l_channel.size());
+
+      if (6 > m_map.limit() || FrameRecorder.MAGIC != m_map.getInt(0))
+      {
+        throw new IOException("Not a frame recording");
+      }
+      final int l_version = m_map.getShort(4) & 0xffff;
+      if (FrameRecorder.VERSION != l_version)
+      {
+        throw new IOException("Unsupported recording version " + l_version);
+      }
+
+      final List<Integer> l_offsets = new ArrayList<Integer>();
+      int l_offset = 6;
+      while (l_offset + FRAME_HEADER <= m_map.limit())
+      {
+        final int l_width = m_map.getInt(l_offset + 8);
+        final int l_height = m_map.getInt(l_offset + 12);
+        final int l_format = m_map.get(l_offset + 19);
+        final int l_length = m_map.getInt(l_offset + 20);
+
+        if (FrameRecorder.FORMAT_NV21 != l_format || 0 >= l_width
+            || 0 >= l_height
+            || Nv21Sampler.bufferSize(l_width, l_height) != l_length)
+        {
+          throw new IOException("Corrupt recording at " + l_offset);
+        }
+        if (l_offset + FRAME_HEADER + l_length > m_map.limit())
+        {
+          // The recording was cut short, e.g. by a crash; the partial
+          // frame is left out.
+          break;
+        }
+
+        l_offsets.add(l_offset);
+        l_offset += FRAME_HEADER + l_length;
+      }
+
+      final int l_count = l_offsets.size();
+      m_offsets = new int[l_count];
+      m_times = new long[l_count];
+      m_widths = new int[l_count];
+      m_heights = new int[l_count];
+      m_orientations = new int[l_count];
+      m_mirrored = new boolean[l_count];
+
+      for (int l_i = 0; l_i < l_count; ++l_i)
+      {
+        final int l_header = l_offsets.get(l_i);
+        m_offsets[l_i] = l_header + FRAME_HEADER;
+        m_times[l_i] = m_map.getLong(l_header);
+        m_widths[l_i] = m_map.getInt(l_header + 8);
+        m_heights[l_i] = m_map.getInt(l_header + 12);
+        m_orientations[l_i] = m_map.getShort(l_header + 16);
+        m_mirrored[l_i] = 0 != m_map.get(l_header + 18);
+      }
+    }
+    catch (final IOException e)
+    {
+      m_file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return The number of frames.
+   */
+  public int size()
+  {
+    return m_offsets.length;
+  }
+
+  /**
+   * @param index The frame index.
+   * @return The time of the frame, in nanoseconds since the first frame.
+   */
+  public long getTime(int index)
+  {
+    return m_times[index];
+  }
+
+  /**
+   * Set up a frame to be read straight out of the mapping. NV21 is read as
+   * planes; the chroma planes start one byte apart, and are interleaved.
+   *
+   * The frame is reused; it is only valid until the next call.
+   *
+   * @param index The frame index.
+   * @return The frame.
+   */
+  public YuvFrame getFrame(int index)
+  {
+    final int l_width = m_widths[index];
+    final int l_height = m_heights[index];
+    final int l_luma = m_offsets[index];
+    final int l_chroma = l_luma + l_width * l_height;
+
+    m_frame.setPlanes(l_width, l_height, slice(l_luma),
+        l_width, slice(l_chroma + 1), slice(l_chroma), l_width, 2);
+    m_frame.setOrientation(m_orientations[index], m_mirrored[index]);
+    return m_frame;
+  }
+
+  /**
+   * Replay all frames through an analyzer, on the calling thread.
+   *
+   * At the original pace, each frame is told to have arrived when it was
+   * due, so that a frame held up by the analysis of the previous one shows
+   * as capture latency, as it would with the camera.
+   *
+   * @param analyzer The analyzer.
+   * @param speed The pace of the replay.
+   * @return The time, in nanoseconds, the replay took.
+   * @throws InterruptedException If interrupted while waiting for a frame
+   *                              to be due.
+   */
+  public long replay(FrameAnalyzer analyzer, Speed speed)
+      throws InterruptedException
+  {
+    final long l_start = System.nanoTime();
+
+    for (int l_i = 0; l_i < m_offsets.length; ++l_i)
+    {
+      long l_arrived = System.nanoTime();
+      if (Speed.ORIGINAL == speed)
+      {
+        final long l_due = l_start + m_times[l_i];
+        final long l_wait = l_due - l_arrived;
+        if (0 < l_wait)
+        {
+          Thread.sleep(l_wait / 1000000, (int) (l_wait % 1000000));
+        }
+        l_arrived = l_due;
+      }
+
+      analyzer.analyze(getFrame(l_i), l_arrived);
+    }
+    return System.nanoTime() - l_start;
+  }
+
+  /**
+   * Close the recording. The mapping itself is released once no longer
+   * referenced.
+   *
+   * @throws IOException If the recording could not be closed.
+   */
+  public void close() throws IOException
+  {
+    m_file.close();
+  }
+
+  /**
+   * @return A view of the mapping starting at _offset_.
+   */
+  private ByteBuffer slice(int offset)
+  {
+    final ByteBuffer l_view = m_map.duplicate();
+    l_view.position(offset);
+    return l_view.slice();
+  }
+}
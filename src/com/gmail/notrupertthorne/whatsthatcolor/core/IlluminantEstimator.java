@@ -0,0 +1,409 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+/**
+ * This type is responsible for estimating the color of the light a frame
+ * was taken under, and for correcting sampled colors for it, so that they
+ * read as they would under a neutral, white light.
+ *
+ * The illuminant is estimated from a strided subsample of some
+ * TARGET_SAMPLES pixels of the frame, in linear light, accumulated in
+ * fixed point, by one of:
+ *
+ * - GRAY_WORLD, assuming the average color of the scene is gray;
+ * - WHITE_PATCH, assuming the brightest colors of the scene are white,
+ *   taking the WHITE_PERCENT percentile of each channel rather than its
+ *   maximum, so that single specular pixels do not throw it;
+ * - GRAY_EDGE, assuming the average color difference between neighboring
+ *   pixels is gray, which holds better for scenes dominated by a single
+ *   colored surface.
+ *
+ * Clipped and near black samples tell little of the light, and are left
+ * out. The correction is a von Kries scaling of each channel, in linear
+ * light, by a gain that maps the illuminant onto gray. The gains are
+ * smoothed across frames, so that the corrected colors do not flicker.
+ *
+ * Instances are not thread safe.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class IlluminantEstimator
+{
+  /**
+   * This type enumerates the assumptions the illuminant may be estimated
+   * by.
+   */
+  public enum Method
+  {
+    GRAY_WORLD, WHITE_PATCH, GRAY_EDGE
+  }
+
+  /**
+   * This field provides the number of pixels, roughly, sampled per frame.
+   */
+  public static final int TARGET_SAMPLES = 4096;
+
+  /**
+   * This field provides the percentile of each channel taken as white by
+   * WHITE_PATCH.
+   */
+  public static final int WHITE_PERCENT = 99;
+
+  /**
+   * These fields provide the range of 8 bit sRGB channel values of the
+   * samples used; outside of it, a sample is too dark, or clipped.
+   */
+  private static final int DARK = 8;
+  private static final int CLIPPED = 250;
+
+  /**
+   * This field provides the least number of samples an estimate is based
+   * on; with fewer, the gains are left as they were.
+   */
+  private static final int MIN_SAMPLES = 64;
+
+  /**
+   * These fields provide the fixed point scale of the gains, and their
+   * bounds, which keep a failed estimate from skewing colors beyond
+   * recognition.
+   */
+  private static final int GAIN_BITS = 16;
+  private static final int GAIN_ONE = 1 << GAIN_BITS;
+  private static final int MIN_GAIN = GAIN_ONE / 4;
+  private static final int MAX_GAIN = GAIN_ONE * 4;
+
+  /**
+   * This field provides the weight, as a shift, of each estimate in the
+   * smoothed gains, i.e. 1/4.
+   */
+  private static final int SMOOTHING_SHIFT = 2;
+
+  private Method m_method = Method.GRAY_WORLD;
+
+  /**
+   * This field holds the gains, red, green and blue, in GAIN_BITS fixed
+   * point.
+   */
+  private final int[] m_gains = { GAIN_ONE, GAIN_ONE, GAIN_ONE };
+  private boolean m_estimated;
+
+  /**
+   * These fields hold the linear light of the samples of the current, and
+   * the previous, subsample row, three ints a sample, with -1 for left out
+   * samples.
+   */
+  private int[] m_row = new int[0];
+  private int[] m_previousRow = new int[0];
+
+  /**
+   * These fields accumulate the current estimate; the channel sums, or
+   * edge sums, and the channel histograms.
+   */
+  private final long[] m_sums = new long[3];
+  private final int[] m_histogram = new int[3 * 256];
+  private int m_count;
+
+  /**
+   * This field is scratch space for the corrections.
+   */
+  private final int[] m_linear = new int[3];
+
+  /**
+   * @param method The assumption to estimate the illuminant by.
+   */
+  public void setMethod(Method method)
+  {
+    m_method = method;
+  }
+
+  /**
+   * @return The assumption the illuminant is estimated by.
+   */
+  public Method getMethod()
+  {
+    return m_method;
+  }
+
+  /**
+   * Forget the gains, so that the next estimate is taken as is.
+   */
+  public void reset()
+  {
+    m_gains[0] = GAIN_ONE;
+    m_gains[1] = GAIN_ONE;
+    m_gains[2] = GAIN_ONE;
+    m_estimated = false;
+  }
+
+  /**
+   * Estimate the illuminant of a preview frame.
+   *
+   * @param frame The frame.
+   * @return True if the gains were updated, false if too little of the
+   *         frame was usable.
+   */
+  public boolean estimate(YuvFrame frame)
+  {
+    final int l_width = frame.getWidth();
+    final int l_height = frame.getHeight();
+    final int l_step = step(l_width, l_height);
+    final int l_columns = (l_width + l_step - 1) / l_step;
+    begin(l_columns);
+
+    for (int l_y = 0; l_y < l_height; l_y += l_step)
+    {
+      int l_column = 0;
+      for (int l_x = 0; l_x < l_width; l_x += l_step)
+      {
+        store(l_column++, frame.pixel(l_x, l_y));
+      }
+      accumulateRow(l_columns);
+    }
+
+    return end();
+  }
+
+  /**
+   * Estimate the illuminant of a frame of colors, e.g. a downsampled still
+   * picture.
+   *
+   * @param pixels The colors, on the 0xAARRGGBB form.
+   * @param offset The index of the top left pixel.
+   * @param stride The distance between rows.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @return True if the gains were updated, false if too little of the
+   *         frame was usable.
+   */
+  public boolean estimate(int[] pixels, int offset, int stride, int width,
+      int height)
+  {
+    final int l_step = step(width, height);
+    final int l_columns = (width + l_step - 1) / l_step;
+    begin(l_columns);
+
+    for (int l_y = 0; l_y < height; l_y += l_step)
+    {
+      final int l_row = offset + l_y * stride;
+      int l_column = 0;
+      for (int l_x = 0; l_x < width; l_x += l_step)
+      {
+        store(l_column++, pixels[l_row + l_x]);
+      }
+      accumulateRow(l_columns);
+    }
+
+    return end();
+  }
+
+  /**
+   * Correct a color for the estimated illuminant.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @return The corrected, opaque color.
+   */
+  public int correct(int color)
+  {
+    ColorConversion.toLinear(color, m_linear, 0);
+
+    return ColorConversion.fromLinear(
+        (int) (((long) m_linear[0] * m_gains[0]) >> GAIN_BITS),
+        (int) (((long) m_linear[1] * m_gains[1]) >> GAIN_BITS),
+        (int) (((long) m_linear[2] * m_gains[2]) >> GAIN_BITS));
+  }
+
+  /**
+   * @param channel The channel; 0 for red, 1 for green and 2 for blue.
+   * @return The gain of _channel_, where 1 is unchanged.
+   */
+  public double getGain(int channel)
+  {
+    return (double) m_gains[channel] / GAIN_ONE;
+  }
+
+  /**
+   * @return The distance between samples, in pixels, that takes about
+   *         TARGET_SAMPLES samples of a frame.
+   */
+  private static int step(int width, int height)
+  {
+    return Math.max(1,
+        (int) Math.sqrt((double) width * height / TARGET_SAMPLES));
+  }
+
+  /**
+   * Start an estimate over _columns_ samples a row.
+   */
+  private void begin(int columns)
+  {
+    if (m_row.length < 3 * columns)
+    {
+      m_row = new int[3 * columns];
+      m_previousRow = new int[3 * columns];
+    }
+    // No row precedes the first.
+    Arrays.fill(m_previousRow, 0, 3 * columns, -1);
+
+    m_sums[0] = 0;
+    m_sums[1] = 0;
+    m_sums[2] = 0;
+    if (Method.WHITE_PATCH == m_method)
+    {
+      Arrays.fill(m_histogram, 0);
+    }
+    m_count = 0;
+  }
+
+  /**
+   * Store the sample of a column of the current row, in linear light, or
+   * -1 if it is to be left out.
+   */
+  private void store(int column, int color)
+  {
+    final int l_red = (color >> 16) & 0xff;
+    final int l_green = (color >> 8) & 0xff;
+    final int l_blue = color & 0xff;
+    final int l_index = 3 * column;
+
+    final int l_max = Math.max(l_red, Math.max(l_green, l_blue));
+    if (CLIPPED <= l_max || DARK > l_max)
+    {
+      m_row[l_index] = -1;
+      return;
+    }
+
+    if (Method.WHITE_PATCH == m_method)
+    {
+      ++m_histogram[l_red];
+      ++m_histogram[256 + l_green];
+      ++m_histogram[512 + l_blue];
+    }
+
+    m_row[l_index] = ColorConversion.toLinear(l_red);
+    m_row[l_index + 1] = ColorConversion.toLinear(l_green);
+    m_row[l_index + 2] = ColorConversion.toLinear(l_blue);
+  }
+
+  /**
+   * Accumulate the stored row, and make it the previous one.
+   */
+  private void accumulateRow(int columns)
+  {
+    final int[] l_row = m_row;
+    final int[] l_previous = m_previousRow;
+
+    if (Method.GRAY_EDGE == m_method)
+    {
+      for (int l_i = 3; l_i < 3 * columns; l_i += 3)
+      {
+        // The edges to the left, and upward, of each sample.
+        if (0 > l_row[l_i] || 0 > l_row[l_i - 3] || 0 > l_previous[l_i])
+        {
+          continue;
+        }
+        for (int l_c = 0; l_c < 3; ++l_c)
+        {
+          m_sums[l_c] += Math.abs(l_row[l_i + l_c] - l_row[l_i - 3 + l_c])
+              + Math.abs(l_row[l_i + l_c] - l_previous[l_i + l_c]);
+        }
+        ++m_count;
+      }
+    }
+    else
+    {
+      for (int l_i = 0; l_i < 3 * columns; l_i += 3)
+      {
+        if (0 > l_row[l_i])
+        {
+          continue;
+        }
+        m_sums[0] += l_row[l_i];
+        m_sums[1] += l_row[l_i + 1];
+        m_sums[2] += l_row[l_i + 2];
+        ++m_count;
+      }
+    }
+
+    m_row = l_previous;
+    m_previousRow = l_row;
+  }
+
+  /**
+   * Finish an estimate, updating the gains.
+   *
+   * @return True if the gains were updated.
+   */
+  private boolean end()
+  {
+    if (MIN_SAMPLES > m_count)
+    {
+      return false;
+    }
+
+    if (Method.WHITE_PATCH == m_method)
+    {
+      for (int l_c = 0; l_c < 3; ++l_c)
+      {
+        m_sums[l_c] = ColorConversion.toLinear(percentile(256 * l_c));
+      }
+    }
+
+    final long l_gray = (m_sums[0] + m_sums[1] + m_sums[2]) / 3;
+    if (0 >= m_sums[0] || 0 >= m_sums[1] || 0 >= m_sums[2])
+    {
+      return false;
+    }
+
+    for (int l_c = 0; l_c < 3; ++l_c)
+    {
+      final int l_gain = (int) Math.max(MIN_GAIN, Math.min(MAX_GAIN,
+          (l_gray << GAIN_BITS) / m_sums[l_c]));
+
+      m_gains[l_c] = m_estimated
+          ? m_gains[l_c] + ((l_gain - m_gains[l_c]) >> SMOOTHING_SHIFT)
+          : l_gain;
+    }
+    m_estimated = true;
+    return true;
+  }
+
+  /**
+   * @return The WHITE_PERCENT percentile of the channel histogram at
+   *         _offset_.
+   */
+  private int percentile(int offset)
+  {
+    final int l_rank = (int) ((long) m_count * WHITE_PERCENT / 100);
+
+    int l_seen = 0;
+    for (int l_value = 0; l_value < 256; ++l_value)
+    {
+      l_seen += m_histogram[offset + l_value];
+      if (l_seen > l_rank)
+      {
+        return l_value;
+      }
+    }
+    return 255;
+  }
+}
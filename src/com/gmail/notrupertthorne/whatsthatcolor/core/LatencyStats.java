@@ -0,0 +1,370 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This type is responsible for recording how long each stage of the color
+ * pipeline takes, from a tap, or a preview frame, to the color being shown.
+ *
+ * Each stage has a histogram of BUCKETS power of two buckets of
+ * microseconds; bucket 0 counts latencies below 1 us, and bucket _i_ those
+ * of 2^(i - 1) up to 2^i us. Along with the sum and maximum of each stage,
+ * the number of objects allocated, and the number of frames received and
+ * dropped, are kept. All counters are preallocated atomics, so any thread
+ * may record without locking or allocating, and recording is cheap enough
+ * to be left in the frame path; when disabled, it does nothing.
+ *
+ * The statistics can be written as a text report, for reading, and as a
+ * binary one, for comparing devices and releases. The binary report holds
+ * the magic number "WTCL", a version short and the stage and bucket counts
+ * as ints, followed by each stage as its UTF name, its bucket counts, its
+ * sum and its maximum, in nanoseconds, as longs, and then the frames
+ * received, the frames dropped, the allocations and the allocation samples
+ * as longs. All numbers are big endian.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class LatencyStats
+{
+  /**
+   * This type enumerates the stages of the pipeline.
+   */
+  public enum Stage
+  {
+    /**
+     * From a tap to the picture, or from a preview frame arriving to it
+     * being analyzed.
+     */
+    CAPTURE,
+    /**
+     * From a tap to the shutter.
+     */
+    SHUTTER,
+    /**
+     * Reading the pixels to sample, out of the picture or the frame.
+     */
+    DECODE,
+    /**
+     * Mapping the crosshair onto the picture or the frame.
+     */
+    ROTATE,
+    /**
+     * Reducing the pixels to a color, correcting and steadying it.
+     */
+    SAMPLE,
+    /**
+     * Naming the color.
+     */
+    FORMAT,
+    /**
+     * From the color being sent to it being delivered on the UI thread.
+     */
+    DELIVER,
+    /**
+     * Showing the color.
+     */
+    RENDER,
+    /**
+     * From a tap, or a preview frame arriving, to the color being shown.
+     */
+    TOTAL
+  }
+
+  public static final int BUCKETS = 32;
+
+  private static final int MAGIC = 0x5754434C;
+  private static final int VERSION = 1;
+
+  private static final int STAGES = Stage.values().length;
+
+  private final AtomicLongArray m_buckets =
+      new AtomicLongArray(STAGES * BUCKETS);
+  private final AtomicLongArray m_sums = new AtomicLongArray(STAGES);
+  private final AtomicLongArray m_maxima = new AtomicLongArray(STAGES);
+
+  private final AtomicLong m_allocations = new AtomicLong();
+  private final AtomicLong m_allocationSamples = new AtomicLong();
+
+  /**
+   * These fields hold the frame counts, as last set by the analysis thread.
+   */
+  private volatile long m_framesReceived;
+  private volatile long m_framesDropped;
+
+  private volatile boolean m_enabled;
+
+  /**
+   * @param enabled True if latencies are to be recorded.
+   */
+  public void setEnabled(boolean enabled)
+  {
+    m_enabled = enabled;
+  }
+
+  /**
+   * @return True if latencies are recorded.
+   */
+  public boolean isEnabled()
+  {
+    return m_enabled;
+  }
+
+  /**
+   * Record the latency of a stage.
+   *
+   * @param stage The stage.
+   * @param nanos The latency, in nanoseconds.
+   */
+  public void record(Stage stage, long nanos)
+  {
+    if (!m_enabled || 0 > nanos)
+    {
+      return;
+    }
+
+    final int l_stage = stage.ordinal();
+    m_buckets.incrementAndGet(l_stage * BUCKETS + bucket(nanos));
+    m_sums.addAndGet(l_stage, nanos);
+
+    long l_max = m_maxima.get(l_stage);
+    while (nanos > l_max && !m_maxima.compareAndSet(l_stage, l_max, nanos))
+    {
+      l_max = m_maxima.get(l_stage);
+    }
+  }
+
+  /**
+   * Record the latency of a stage, from a start time until now.
+   *
+   * @param stage The stage.
+   * @param startNanos The start time, as by System.nanoTime().
+   * @return The time now, as by System.nanoTime(), for starting the next
+   *         stage.
+   */
+  public long recordSince(Stage stage, long startNanos)
+  {
+    final long l_now = System.nanoTime();
+    record(stage, l_now - startNanos);
+    return l_now;
+  }
+
+  /**
+   * Record the number of objects allocated by a unit of work, e.g. the
+   * analysis of a frame.
+   *
+   * @param count The number of objects allocated.
+   */
+  public void recordAllocations(long count)
+  {
+    if (m_enabled)
+    {
+      m_allocations.addAndGet(count);
+      m_allocationSamples.incrementAndGet();
+    }
+  }
+
+  /**
+   * Set the frame counts. This is to be called on a single thread.
+   *
+   * @param received The number of frames received.
+   * @param dropped The number of frames dropped, unanalyzed.
+   */
+  public void setFrames(long received, long dropped)
+  {
+    m_framesReceived = received;
+    m_framesDropped = dropped;
+  }
+
+  /**
+   * Forget all latencies and allocations.
+   */
+  public void reset()
+  {
+    for (int l_i = 0; l_i < m_buckets.length(); ++l_i)
+    {
+      m_buckets.set(l_i, 0);
+    }
+    for (int l_i = 0; l_i < STAGES; ++l_i)
+    {
+      m_sums.set(l_i, 0);
+      m_maxima.set(l_i, 0);
+    }
+    m_allocations.set(0);
+    m_allocationSamples.set(0);
+  }
+
+  /**
+   * @param stage The stage.
+   * @return The number of latencies recorded for _stage_.
+   */
+  public long getCount(Stage stage)
+  {
+    long l_count = 0;
+    for (int l_i = 0; l_i < BUCKETS; ++l_i)
+    {
+      l_count += m_buckets.get(stage.ordinal() * BUCKETS + l_i);
+    }
+    return l_count;
+  }
+
+  /**
+   * @param stage The stage.
+   * @return The mean latency of _stage_, in nanoseconds, or 0 if none has
+   *         been recorded.
+   */
+  public long getMean(Stage stage)
+  {
+    final long l_count = getCount(stage);
+    return 0 == l_count ? 0 : m_sums.get(stage.ordinal()) / l_count;
+  }
+
+  /**
+   * @param stage The stage.
+   * @return The longest latency of _stage_, in nanoseconds.
+   */
+  public long getMax(Stage stage)
+  {
+    return m_maxima.get(stage.ordinal());
+  }
+
+  /**
+   * @param stage The stage.
+   * @param percent The percentile, 0..100.
+   * @return An upper bound of the _percent_ percentile latency of _stage_,
+   *         in nanoseconds, being the top of its bucket, or 0 if none has
+   *         been recorded.
+   */
+  public long getPercentile(Stage stage, int percent)
+  {
+    final long l_count = getCount(stage);
+    if (0 == l_count)
+    {
+      return 0;
+    }
+
+    final long l_rank = (l_count * percent + 99) / 100;
+    long l_seen = 0;
+    for (int l_i = 0; l_i < BUCKETS; ++l_i)
+    {
+      l_seen += m_buckets.get(stage.ordinal() * BUCKETS + l_i);
+      if (l_seen >= l_rank)
+      {
+        return 1000L << l_i;
+      }
+    }
+    return getMax(stage);
+  }
+
+  /**
+   * @return The mean number of objects allocated per unit of work, or 0 if
+   *         none has been recorded.
+   */
+  public double getAllocationsPerSample()
+  {
+    final long l_samples = m_allocationSamples.get();
+    return 0 == l_samples ? 0 : (double) m_allocations.get() / l_samples;
+  }
+
+  /**
+   * @return The share of the frames received that were dropped, 0..1.
+   */
+  public double getDropRate()
+  {
+    final long l_received = m_framesReceived;
+    return 0 == l_received ? 0 : (double) m_framesDropped / l_received;
+  }
+
+  /**
+   * Write the statistics as text, one stage a line, with the count, the
+   * mean, median, 99th percentile and maximum latencies, in microseconds.
+   *
+   * @param out Receives the text.
+   */
+  public void writeText(StringBuilder out)
+  {
+    out.append(String.format(Locale.US, "%-8s %7s %8s %8s %8s %8s%n",
+        "stage", "count", "mean", "p50", "p99", "max"));
+    for (final Stage l_stage : Stage.values())
+    {
+      if (0 == getCount(l_stage))
+      {
+        continue;
+      }
+      out.append(String.format(Locale.US,
+          "%-8s %7d %8.1f %8d %8d %8.1f%n", l_stage.name(),
+          getCount(l_stage), getMean(l_stage) / 1000.0,
+          getPercentile(l_stage, 50) / 1000,
+          getPercentile(l_stage, 99) / 1000, getMax(l_stage) / 1000.0));
+    }
+    out.append(String.format(Locale.US,
+        "frames %d, dropped %.1f%%, allocations %.1f/frame%n",
+        m_framesReceived, 100 * getDropRate(), getAllocationsPerSample()));
+  }
+
+  /**
+   * Write the statistics in the binary form.
+   *
+   * @param stream The stream to write to. It is flushed, but not closed.
+   * @throws IOException If the stream could not be written.
+   */
+  public void writeBinary(OutputStream stream) throws IOException
+  {
+    final DataOutputStream l_out = new DataOutputStream(stream);
+
+    l_out.writeInt(MAGIC);
+    l_out.writeShort(VERSION);
+    l_out.writeInt(STAGES);
+    l_out.writeInt(BUCKETS);
+
+    for (final Stage l_stage : Stage.values())
+    {
+      l_out.writeUTF(l_stage.name());
+      for (int l_i = 0; l_i < BUCKETS; ++l_i)
+      {
+        l_out.writeLong(m_buckets.get(l_stage.ordinal() * BUCKETS + l_i));
+      }
+      l_out.writeLong(m_sums.get(l_stage.ordinal()));
+      l_out.writeLong(m_maxima.get(l_stage.ordinal()));
+    }
+
+    l_out.writeLong(m_framesReceived);
+    l_out.writeLong(m_framesDropped);
+    l_out.writeLong(m_allocations.get());
+    l_out.writeLong(m_allocationSamples.get());
+
+    l_out.flush();
+  }
+
+  /**
+   * @return The bucket of a latency of _nanos_ nanoseconds.
+   */
+  private static int bucket(long nanos)
+  {
+    final long l_micros = nanos / 1000;
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(l_micros));
+  }
+}
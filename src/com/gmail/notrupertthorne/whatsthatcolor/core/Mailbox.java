@@ -0,0 +1,95 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This type is responsible for handing the latest result over from a
+ * producing thread to a consuming one, without either ever blocking.
+ *
+ * Results are passed in reusable buffers. The producer fills a buffer from
+ * acquire() and posts it, replacing any result not yet taken, whose buffer
+ * is then reused. The consumer takes the latest result, and releases its
+ * buffer once done with it. Only the post that finds the mailbox empty
+ * asks for the consumer to be woken.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ *
+ * @param <T> The type of the buffers.
+ */
+public abstract class Mailbox<T>
+{
+  private final AtomicReference<T> m_latest = new AtomicReference<T>();
+  private final AtomicReference<T> m_free = new AtomicReference<T>();
+
+  /**
+   * @return A new, empty buffer.
+   */
+  protected abstract T create();
+
+  /**
+   * @return A buffer to fill, reused if one has been released.
+   */
+  public final T acquire()
+  {
+    final T l_buffer = m_free.getAndSet(null);
+    return null == l_buffer ? create() : l_buffer;
+  }
+
+  /**
+   * Post a result, replacing any result not yet taken.
+   *
+   * @param buffer The result, in a buffer from acquire().
+   * @return True if the mailbox was empty, i.e. the consumer needs to be
+   *         woken to take the result.
+   */
+  public final boolean post(T buffer)
+  {
+    final T l_stale = m_latest.getAndSet(buffer);
+    if (null == l_stale)
+    {
+      return true;
+    }
+    m_free.set(l_stale);
+    return false;
+  }
+
+  /**
+   * Take the latest result, emptying the mailbox.
+   *
+   * @return The result, or null if none has been posted since the last
+   *         take.
+   */
+  public final T take()
+  {
+    return m_latest.getAndSet(null);
+  }
+
+  /**
+   * Hand the buffer of a taken result back for reuse.
+   *
+   * @param buffer The result, from take().
+   */
+  public final void release(T buffer)
+  {
+    m_free.set(buffer);
+  }
+}
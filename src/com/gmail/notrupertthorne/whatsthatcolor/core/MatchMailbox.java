@@ -0,0 +1,126 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+/**
+ * This type is responsible for handing the latest match mask over from a
+ * producing thread to a consuming one, without either ever blocking.
+ *
+ * Masks are passed in reusable buffers, as described by Mailbox.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class MatchMailbox extends Mailbox<MatchMailbox.Mask>
+{
+  /**
+   * This type holds a match mask, in image orientation, along with how it
+   * is shown.
+   */
+  public static final class Mask
+  {
+    private final byte[] m_strengths = new byte[MatchMapper.MAX_CELLS];
+    private int m_width;
+    private int m_height;
+    private int m_matches;
+    private int m_orientation;
+    private boolean m_mirrored;
+
+    /**
+     * @return The match strength of each cell, 0..255 as unsigned bytes,
+     *         row by row, getWidth() apart.
+     */
+    public byte[] getStrengths()
+    {
+      return m_strengths;
+    }
+
+    /**
+     * @return The number of columns.
+     */
+    public int getWidth()
+    {
+      return m_width;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int getHeight()
+    {
+      return m_height;
+    }
+
+    /**
+     * @return The number of matching cells.
+     */
+    public int getMatches()
+    {
+      return m_matches;
+    }
+
+    /**
+     * @return The clockwise rotation, in degrees, of the mask as shown.
+     */
+    public int getOrientation()
+    {
+      return m_orientation;
+    }
+
+    /**
+     * @return True if the mask is shown mirrored horizontally, before
+     *         being rotated.
+     */
+    public boolean isMirrored()
+    {
+      return m_mirrored;
+    }
+
+    /**
+     * @param width The number of columns.
+     * @param height The number of rows.
+     * @param matches The number of matching cells.
+     */
+    public void setSize(int width, int height, int matches)
+    {
+      m_width = width;
+      m_height = height;
+      m_matches = matches;
+    }
+
+    /**
+     * @param orientation The clockwise rotation, in degrees, of the mask
+     *                    as shown.
+     * @param mirrored True if the mask is shown mirrored horizontally,
+     *                 before being rotated.
+     */
+    public void setOrientation(int orientation, boolean mirrored)
+    {
+      m_orientation = orientation;
+      m_mirrored = mirrored;
+    }
+  }
+
+  @Override
+  protected Mask create()
+  {
+    return new Mask();
+  }
+}
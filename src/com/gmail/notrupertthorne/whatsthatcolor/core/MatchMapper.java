@@ -0,0 +1,400 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * This type is responsible for mapping how closely each part of a preview
+ * frame matches a reference color.
+ *
+ * The frame is point sampled on a coarse grid, and each sample given a
+ * match strength by its CIEDE2000 difference from the reference; 0 beyond
+ * the tolerance, and up to 255 for an exact match. Rather than converting
+ * each sample to Lab, the strength is looked up in a table over the RGB
+ * cube, quantized to TABLE_BITS per channel, which is only rebuilt when
+ * the reference or tolerance changes. Both the table, in slices of red,
+ * and the grid, in bands of rows, are split into tiles which run in
+ * parallel on an executor.
+ *
+ * Masks are written into caller provided arrays, so that mapping a frame
+ * does not allocate. An instance is meant to be confined to one thread,
+ * e.g. the analysis thread.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class MatchMapper
+{
+  /**
+   * This field provides the number of samples along the longer side of
+   * the frame.
+   */
+  public static final int GRID = 160;
+
+  /**
+   * This field provides the most samples of a mask.
+   */
+  public static final int MAX_CELLS = GRID * GRID;
+
+  /**
+   * This field provides the default tolerance, as a CIEDE2000 difference.
+   */
+  public static final double DEFAULT_TOLERANCE = 10.0;
+
+  /**
+   * This field provides the number of bits per channel of the table.
+   */
+  private static final int TABLE_BITS = 6;
+  private static final int TABLE_SIDE = 1 << TABLE_BITS;
+  private static final int TABLE_SHIFT = 8 - TABLE_BITS;
+
+  /**
+   * This field provides the ratio of CIE76 to CIEDE2000 differences beyond
+   * which colors are ruled out without calculating the latter. CIEDE2000
+   * differences stay well within thrice the CIE76 ones.
+   */
+  private static final int CIE76_BOUND = 3;
+
+  private final ExecutorService m_executor;
+  private final Tile[] m_tiles;
+  private final List<Tile> m_tasks;
+
+  /**
+   * This field holds the match strength of each cell of the RGB cube, red
+   * major.
+   */
+  private final byte[] m_table = new byte[TABLE_SIDE * TABLE_SIDE
+      * TABLE_SIDE];
+  private int m_reference;
+  private double m_tolerance = DEFAULT_TOLERANCE;
+  private boolean m_stale = true;
+
+  /**
+   * These fields hold the reference in Lab, both times
+   * ColorConversion.LAB_SCALE and as is.
+   */
+  private final int[] m_referenceLab = new int[3];
+  private double m_referenceL;
+  private double m_referenceA;
+  private double m_referenceB;
+
+  /**
+   * These fields describe the frame, and mask, being processed, for the
+   * tiles.
+   */
+  private YuvFrame m_frame;
+  private byte[] m_mask;
+  private int m_step;
+  private int m_gridWidth;
+  private int m_gridHeight;
+  private boolean m_building;
+
+  /**
+   * @param executor The executor to run the tiles on, or null to run them
+   *                 on the calling thread.
+   * @param tiles The number of tiles to split each frame into, e.g. the
+   *              number of threads of the executor.
+   */
+  public MatchMapper(ExecutorService executor, int tiles)
+  {
+    if (1 > tiles)
+    {
+      throw new IllegalArgumentException("Tiles: " + tiles);
+    }
+
+    m_executor = executor;
+    m_tiles = new Tile[tiles];
+    m_tasks = new ArrayList<Tile>(tiles);
+    for (int l_i = 0; l_i < tiles; ++l_i)
+    {
+      m_tiles[l_i] = new Tile();
+      m_tasks.add(m_tiles[l_i]);
+    }
+  }
+
+  /**
+   * Set the color to match. The table is rebuilt upon the next frame
+   * mapped, only if the reference, or tolerance, has changed.
+   *
+   * @param color The reference color, on the 0xAARRGGBB form. Any alpha is
+   *              ignored.
+   * @param tolerance The CIEDE2000 difference at, and beyond, which colors
+   *                  do not match.
+   */
+  public void setReference(int color, double tolerance)
+  {
+    if (0 >= tolerance)
+    {
+      throw new IllegalArgumentException("Tolerance: " + tolerance);
+    }
+
+    final int l_color = color & 0xffffff;
+    if (l_color != m_reference || tolerance != m_tolerance)
+    {
+      m_reference = l_color;
+      m_tolerance = tolerance;
+      m_stale = true;
+    }
+  }
+
+  /**
+   * @return The reference color, on the 0xRRGGBB form.
+   */
+  public int getReference()
+  {
+    return m_reference;
+  }
+
+  /**
+   * @return The match strength of a color; 0 if it does not match the
+   *         reference, up to 255 if it matches exactly, as looked up in
+   *         the table. The table must have been built, by mapping a frame.
+   */
+  public int strength(int color)
+  {
+    return m_table[index(color)] & 0xff;
+  }
+
+  /**
+   * Map how closely each part of a frame matches the reference color.
+   *
+   * @param frame The frame.
+   * @param mask Receives the match strength of each grid cell, 0..255 as
+   *             unsigned bytes, row by row, getWidth() apart, in image
+   *             orientation. It must hold at least MAX_CELLS.
+   * @return The number of matching cells, or 0 if interrupted.
+   */
+  public int map(YuvFrame frame, byte[] mask)
+  {
+    final int l_width = frame.getWidth();
+    final int l_height = frame.getHeight();
+    m_step = Math.max(1, (Math.max(l_width, l_height) + GRID - 1) / GRID);
+    m_gridWidth = l_width / m_step;
+    m_gridHeight = l_height / m_step;
+    m_frame = frame;
+    m_mask = mask;
+
+    try
+    {
+      if (m_stale)
+      {
+        ColorConversion.toLab(m_reference, m_referenceLab, 0);
+        m_referenceL = (double) m_referenceLab[0] / ColorConversion.LAB_SCALE;
+        m_referenceA = (double) m_referenceLab[1] / ColorConversion.LAB_SCALE;
+        m_referenceB = (double) m_referenceLab[2] / ColorConversion.LAB_SCALE;
+
+        for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+        {
+          m_tiles[l_i].setRange(TABLE_SIDE * l_i / m_tiles.length,
+              TABLE_SIDE * (l_i + 1) / m_tiles.length);
+        }
+        run(true);
+        m_stale = false;
+      }
+
+      for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+      {
+        m_tiles[l_i].setRange(m_gridHeight * l_i / m_tiles.length,
+            m_gridHeight * (l_i + 1) / m_tiles.length);
+      }
+      run(false);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    finally
+    {
+      m_frame = null;
+      m_mask = null;
+    }
+
+    int l_matches = 0;
+    for (final Tile l_tile : m_tiles)
+    {
+      l_matches += l_tile.m_matches;
+    }
+    return l_matches;
+  }
+
+  /**
+   * @return The number of columns of the latest mask.
+   */
+  public int getWidth()
+  {
+    return m_gridWidth;
+  }
+
+  /**
+   * @return The number of rows of the latest mask.
+   */
+  public int getHeight()
+  {
+    return m_gridHeight;
+  }
+
+  /**
+   * Run all tiles, and wait for them to finish.
+   */
+  private void run(boolean building) throws InterruptedException
+  {
+    m_building = building;
+
+    if (null == m_executor || 1 == m_tiles.length)
+    {
+      for (final Tile l_tile : m_tiles)
+      {
+        l_tile.call();
+      }
+      return;
+    }
+
+    for (final Future<Void> l_future : m_executor.invokeAll(m_tasks))
+    {
+      try
+      {
+        l_future.get();
+      }
+      catch (final ExecutionException e)
+      {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * @return The index in the table of the cell holding _color_.
+   */
+  private static int index(int color)
+  {
+    return (((color >> 16) & 0xff) >> TABLE_SHIFT << (2 * TABLE_BITS))
+        | (((color >> 8) & 0xff) >> TABLE_SHIFT << TABLE_BITS)
+        | ((color & 0xff) >> TABLE_SHIFT);
+  }
+
+  /**
+   * This type is responsible for a slice of the table, or a band of grid
+   * rows, depending on what is being run.
+   */
+  private final class Tile implements Callable<Void>
+  {
+    private int m_from;
+    private int m_to;
+    private int m_matches;
+    private final int[] m_lab = new int[3];
+
+    void setRange(int from, int to)
+    {
+      m_from = from;
+      m_to = to;
+    }
+
+    @Override
+    public Void call()
+    {
+      if (m_building)
+      {
+        build();
+      }
+      else
+      {
+        map();
+      }
+      return null;
+    }
+
+    /**
+     * Give each cell of the red slices m_from..m_to the strength of its
+     * center color.
+     */
+    private void build()
+    {
+      final int l_center = (1 << TABLE_SHIFT) >> 1;
+      final long l_bound = (long) Math.ceil(CIE76_BOUND * m_tolerance
+          * ColorConversion.LAB_SCALE);
+      final long l_bound2 = l_bound * l_bound;
+
+      int l_index = m_from * TABLE_SIDE * TABLE_SIDE;
+      for (int l_r = m_from; l_r < m_to; ++l_r)
+      {
+        for (int l_g = 0; l_g < TABLE_SIDE; ++l_g)
+        {
+          for (int l_b = 0; l_b < TABLE_SIDE; ++l_b)
+          {
+            ColorConversion.toLab(((l_r << TABLE_SHIFT | l_center) << 16)
+                | ((l_g << TABLE_SHIFT | l_center) << 8)
+                | (l_b << TABLE_SHIFT | l_center), m_lab, 0);
+
+            final long l_dl = m_lab[0] - m_referenceLab[0];
+            final long l_da = m_lab[1] - m_referenceLab[1];
+            final long l_db = m_lab[2] - m_referenceLab[2];
+            if (l_dl * l_dl + l_da * l_da + l_db * l_db > l_bound2)
+            {
+              m_table[l_index++] = 0;
+              continue;
+            }
+
+            final double l_deltaE = DeltaE.cie2000(m_referenceL,
+                m_referenceA, m_referenceB,
+                (double) m_lab[0] / ColorConversion.LAB_SCALE,
+                (double) m_lab[1] / ColorConversion.LAB_SCALE,
+                (double) m_lab[2] / ColorConversion.LAB_SCALE);
+            m_table[l_index++] = (byte) (m_tolerance <= l_deltaE ? 0
+                : 1 + (int) (254 * (m_tolerance - l_deltaE) / m_tolerance));
+          }
+        }
+      }
+    }
+
+    /**
+     * Look the strength of each sample of the grid rows m_from..m_to up,
+     * and count the matching ones.
+     */
+    private void map()
+    {
+      final int l_offset = m_step / 2;
+      int l_matches = 0;
+
+      for (int l_y = m_from; l_y < m_to; ++l_y)
+      {
+        final int l_frameY = l_y * m_step + l_offset;
+        int l_cell = l_y * m_gridWidth;
+        for (int l_x = 0; l_x < m_gridWidth; ++l_x)
+        {
+          final byte l_strength = m_table[index(m_frame.pixel(
+              l_x * m_step + l_offset, l_frameY))];
+          m_mask[l_cell++] = l_strength;
+          if (0 != l_strength)
+          {
+            ++l_matches;
+          }
+        }
+      }
+      m_matches = l_matches;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for sampling a number of points of a preview
+ * frame at once, e.g. to compare a swatch against a wall.
+ *
+ * The window around each point is clipped against the frame, and the
+ * windows sorted by their top rows. The frame is then swept once, top to
+ * bottom, over the rows covered by any window; each row's luma and chroma
+ * are read once, in order, for all windows overlapping it. The cost thus
+ * grows with the number of pixels sampled, not with the number of points
+ * times the frame, and the buffer is read as it is laid out. Finally, each
+ * window is reduced by the sampling kernel.
+ *
+ * Instances are not thread safe, and allocate nothing once created.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class MultiPointSampler
+{
+  /**
+   * This field provides the most points sampled at once.
+   */
+  public static final int MAX_POINTS = 8;
+
+  private final SamplingKernel m_kernel = new SamplingKernel();
+
+  /**
+   * These fields hold the pixels of each window, and each window as its
+   * left, top, width and height.
+   */
+  private final int[][] m_pixels =
+      new int[MAX_POINTS][SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+  private final int[] m_windows = new int[4 * MAX_POINTS];
+
+  /**
+   * These fields hold the windows, by index, in order of their top rows,
+   * and those covering the current row of the sweep.
+   */
+  private final int[] m_order = new int[MAX_POINTS];
+  private final int[] m_active = new int[MAX_POINTS];
+
+  private final int[] m_window = new int[4];
+
+  /**
+   * Set how the window around each point is sampled.
+   *
+   * @param size The side of the window, in pixels. It is clamped to
+   *             SamplingKernel.MIN_SIZE..SamplingKernel.MAX_SIZE.
+   * @param statistic The statistic the window is reduced by.
+   */
+  public void configure(int size, SamplingKernel.Statistic statistic)
+  {
+    m_kernel.configure(size, statistic);
+  }
+
+  /**
+   * Sample a number of points of a frame.
+   *
+   * @param frame The frame.
+   * @param points The points, as pairs of column and row.
+   * @param count The number of points, at most MAX_POINTS.
+   * @param out Receives the color of each point, on the 0xAARRGGBB form, in
+   *            the order of the points.
+   */
+  public void sample(YuvFrame frame, int[] points, int count, int[] out)
+  {
+    if (MAX_POINTS < count)
+    {
+      throw new IllegalArgumentException("Too many points: " + count);
+    }
+
+    final int l_size = m_kernel.getSize();
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      Nv21Sampler.clipSquare(frame.getWidth(), frame.getHeight(),
+          points[2 * l_i], points[2 * l_i + 1], l_size, m_window);
+      System.arraycopy(m_window, 0, m_windows, 4 * l_i, 4);
+      insert(l_i);
+    }
+
+    sweep(frame, count);
+
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      final int l_width = m_windows[4 * l_i + 2];
+      out[l_i] = m_kernel.sample(m_pixels[l_i], 0, l_width, l_width,
+          m_windows[4 * l_i + 3]);
+    }
+  }
+
+  /**
+   * Insert window _index_ into m_order, which holds the windows before it
+   * sorted by top row. There are few windows, so insertion sort it is.
+   */
+  private void insert(int index)
+  {
+    final int l_top = m_windows[4 * index + 1];
+
+    int l_i = index;
+    while (0 < l_i && l_top < m_windows[4 * m_order[l_i - 1] + 1])
+    {
+      m_order[l_i] = m_order[l_i - 1];
+      --l_i;
+    }
+    m_order[l_i] = index;
+  }
+
+  /**
+   * Read the windows, in a single sweep down the frame.
+   */
+  private void sweep(YuvFrame frame, int count)
+  {
+    int l_next = 0;
+    int l_activeCount = 0;
+    int l_row = 0;
+
+    while (l_next < count || 0 < l_activeCount)
+    {
+      if (0 == l_activeCount)
+      {
+        // Skip the rows between windows.
+        l_row = Math.max(l_row, m_windows[4 * m_order[l_next] + 1]);
+      }
+
+      while (l_next < count && m_windows[4 * m_order[l_next] + 1] <= l_row)
+      {
+        final int l_window = m_order[l_next++];
+        if (0 < m_windows[4 * l_window + 2]
+            && 0 < m_windows[4 * l_window + 3])
+        {
+          m_active[l_activeCount++] = l_window;
+        }
+      }
+
+      int l_kept = 0;
+      for (int l_i = 0; l_i < l_activeCount; ++l_i)
+      {
+        final int l_window = m_active[l_i];
+        final int l_left = m_windows[4 * l_window];
+        final int l_top = m_windows[4 * l_window + 1];
+        final int l_width = m_windows[4 * l_window + 2];
+
+        frame.readRow(l_left, l_row, l_width, m_pixels[l_window],
+            (l_row - l_top) * l_width);
+
+        // Keep the window active unless this was its last row.
+        if (l_row + 1 < l_top + m_windows[4 * l_window + 3])
+        {
+          m_active[l_kept++] = l_window;
+        }
+      }
+      l_activeCount = l_kept;
+      ++l_row;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for reading RGB colors straight out of an NV21
+ * (YCrCb 4:2:0, interleaved VU) preview buffer.
+ *
+ * Frames of odd width, or height, have their last column, or row, of pixels
+ * share chroma with no neighbor; the chroma rows are as wide as the frame
+ * rounded up to even, and there are half as many as luma rows, rounded up.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class Nv21Sampler
+{
+  /**
+   * Fixed point (16.16) coefficients of the full range BT.601 YCbCr to RGB
+   * transform, which is what the camera delivers its preview frames in.
+   */
+  private static final int CR_TO_R = 91881;
+  private static final int CB_TO_G = 22554;
+  private static final int CR_TO_G = 46802;
+  private static final int CB_TO_B = 116130;
+
+  private Nv21Sampler()
+  {
+  }
+
+  /**
+   * Convert a single YCbCr triplet to a packed, opaque RGB color.
+   *
+   * @param y The luma sample, 0..255.
+   * @param cb The blue difference chroma sample, 0..255.
+   * @param cr The red difference chroma sample, 0..255.
+   * @return The color on the 0xAARRGGBB form.
+   */
+  public static int toRgb(int y, int cb, int cr)
+  {
+    final int l_cb = cb - 128;
+    final int l_cr = cr - 128;
+
+    return ColorConversion.rgb(y + ((CR_TO_R * l_cr) >> 16),
+        y - ((CB_TO_G * l_cb + CR_TO_G * l_cr) >> 16),
+        y + ((CB_TO_B * l_cb) >> 16));
+  }
+
+  /**
+   * Convert the pixel at (x, y) of an NV21 buffer to RGB.
+   *
+   * @param data The NV21 buffer.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param x The pixel column.
+   * @param y The pixel row.
+   * @return The color on the 0xAARRGGBB form.
+   */
+  public static int pixel(byte[] data, int width, int height, int x, int y)
+  {
+    // The chroma plane follows the luma plane, with one interleaved VU pair
+    // for each 2x2 block of pixels.
+    final int l_chroma = width * height + (y >> 1) * chromaStride(width)
+        + (x & ~1);
+
+    return toRgb(data[y * width + x] & 0xff,
+        data[l_chroma + 1] & 0xff,
+        data[l_chroma] & 0xff);
+  }
+
+  /**
+   * Convert a rectangle of an NV21 buffer to RGB, in bulk.
+   *
+   * The rectangle must lie within the frame.
+   *
+   * @param data The NV21 buffer.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param left The leftmost column of the rectangle.
+   * @param top The topmost row of the rectangle.
+   * @param regionWidth The width of the rectangle, in pixels.
+   * @param regionHeight The height of the rectangle, in pixels.
+   * @param out Receives the colors, on the 0xAARRGGBB form, row by row.
+   */
+  public static void readRegion(byte[] data, int width, int height,
+      int left, int top, int regionWidth, int regionHeight, int[] out)
+  {
+    for (int l_y = 0; l_y < regionHeight; ++l_y)
+    {
+      readRow(data, width, height, left, top + l_y, regionWidth, out,
+          l_y * regionWidth);
+    }
+  }
+
+  /**
+   * Convert a run of pixels of a row of an NV21 buffer to RGB, in bulk.
+   *
+   * The run must lie within the frame.
+   *
+   * @param data The NV21 buffer.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param left The leftmost column of the run.
+   * @param row The row.
+   * @param count The number of pixels.
+   * @param out Receives the colors, on the 0xAARRGGBB form.
+   * @param offset The index in _out_ of the first color.
+   */
+  public static void readRow(byte[] data, int width, int height, int left,
+      int row, int count, int[] out, int offset)
+  {
+    final int l_luma = row * width;
+    final int l_chroma = width * height + (row >> 1) * chromaStride(width);
+    int l_out = offset;
+
+    for (int l_x = left; l_x < left + count; ++l_x)
+    {
+      final int l_pair = l_chroma + (l_x & ~1);
+
+      out[l_out++] = toRgb(data[l_luma + l_x] & 0xff,
+          data[l_pair + 1] & 0xff,
+          data[l_pair] & 0xff);
+    }
+  }
+
+  /**
+   * Clip a _size_ x _size_ square, centered on a point, against a frame.
+   *
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param centerX The column of the center of the square.
+   * @param centerY The row of the center of the square.
+   * @param size The side of the square, in pixels.
+   * @param out Receives the left, top, width and height of the clipped
+   *            square, in that order. The width and height are zero if
+   *            nothing remains.
+   */
+  public static void clipSquare(int width, int height, int centerX,
+      int centerY, int size, int[] out)
+  {
+    final int l_startX = Math.max(0, centerX - (size - 1) / 2);
+    final int l_startY = Math.max(0, centerY - (size - 1) / 2);
+    final int l_endX = Math.min(width, centerX - (size - 1) / 2 + size);
+    final int l_endY = Math.min(height, centerY - (size - 1) / 2 + size);
+
+    out[0] = l_startX;
+    out[1] = l_startY;
+    out[2] = Math.max(0, l_endX - l_startX);
+    out[3] = Math.max(0, l_endY - l_startY);
+  }
+
+  /**
+   * @param frameWidth The frame width, in pixels.
+   * @param frameHeight The frame height, in pixels.
+   * @return The size, in bytes, of an NV21 buffer holding such a frame.
+   */
+  public static int bufferSize(int frameWidth, int frameHeight)
+  {
+    return frameWidth * frameHeight
+        + chromaStride(frameWidth) * ((frameHeight + 1) >> 1);
+  }
+
+  /**
+   * @return The distance, in bytes, between the chroma rows of an NV21
+   *         buffer of a frame _width_ pixels wide.
+   */
+  private static int chromaStride(int width)
+  {
+    return (width + 1) & ~1;
+  }
+}
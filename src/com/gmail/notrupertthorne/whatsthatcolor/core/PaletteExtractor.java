@@ -0,0 +1,515 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * This type is responsible for extracting the dominant colors of whole
+ * preview frames.
+ *
+ * The frame is point sampled on a coarse grid, and the samples clustered
+ * by k-means in CIELAB. The grid rows are split into tiles, which sample,
+ * and assign samples to their nearest centroids, in parallel on an
+ * executor, each into its own partial sums, which are then merged.
+ *
+ * The centroids are kept from frame to frame, so that, as long as the
+ * scene changes gradually, a couple of iterations per frame suffice.
+ * Only the first frame, or one after a reset, is seeded from scratch, by
+ * farthest point seeding.
+ *
+ * An instance is meant to be confined to one thread, e.g. the analysis
+ * thread, and to one frame size at a time.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class PaletteExtractor
+{
+  public static final int MAX_COLORS = 16;
+
+  /**
+   * This field provides the number of samples along the longer side of
+   * the frame.
+   */
+  private static final int GRID = 128;
+
+  /**
+   * This field provides the number of k-means iterations per frame.
+   */
+  private static final int ITERATIONS = 2;
+
+  private final int m_clusters;
+  private final ExecutorService m_executor;
+  private final Tile[] m_tiles;
+  private final List<Tile> m_tasks;
+
+  /**
+   * These fields describe the frame being processed, for the tiles.
+   */
+  private YuvFrame m_frame;
+  private int m_step;
+  private int m_gridWidth;
+  private int m_gridHeight;
+  private boolean m_sampling;
+  private boolean m_assigning;
+
+  /**
+   * This field holds the L, a and b, times ColorConversion.LAB_SCALE, of
+   * each sample in turn.
+   */
+  private int[] m_samples = new int[0];
+
+  /**
+   * This field holds the L, a and b, times ColorConversion.LAB_SCALE, of
+   * each centroid in turn.
+   */
+  private final int[] m_centroids;
+  private final int[] m_counts;
+  private boolean m_seeded;
+
+  /**
+   * These fields are scratch space for the results.
+   */
+  private final int[] m_order;
+
+  /**
+   * @param clusters The number of colors to extract, 1..MAX_COLORS.
+   * @param executor The executor to run the tiles on, or null to run them
+   *                 on the calling thread.
+   * @param tiles The number of tiles to split each frame into, e.g. the
+   *              number of threads of the executor.
+   */
+  public PaletteExtractor(int clusters, ExecutorService executor, int tiles)
+  {
+    if (1 > clusters || MAX_COLORS < clusters)
+    {
+      throw new IllegalArgumentException("Clusters: " + clusters);
+    }
+    if (1 > tiles)
+    {
+      throw new IllegalArgumentException("Tiles: " + tiles);
+    }
+
+    m_clusters = clusters;
+    m_executor = executor;
+    m_centroids = new int[3 * clusters];
+    m_counts = new int[clusters];
+    m_order = new int[clusters];
+
+    m_tiles = new Tile[tiles];
+    m_tasks = new ArrayList<Tile>(tiles);
+    for (int l_i = 0; l_i < tiles; ++l_i)
+    {
+      m_tiles[l_i] = new Tile(clusters);
+      m_tasks.add(m_tiles[l_i]);
+    }
+  }
+
+  /**
+   * Forget the centroids of the previous frames, e.g. when the camera has
+   * been pointed elsewhere entirely.
+   */
+  public void reset()
+  {
+    m_seeded = false;
+  }
+
+  /**
+   * Extract the dominant colors of a frame.
+   *
+   * @param frame The frame.
+   * @param colors Receives the colors, on the 0xAARRGGBB form, most
+   *               dominant first.
+   * @param weights Receives the share of the frame of each color, in
+   *                permille.
+   * @return The number of colors extracted, at most the number of
+   *         clusters, or 0 if interrupted.
+   */
+  public int extract(YuvFrame frame, int[] colors, int[] weights)
+  {
+    m_frame = frame;
+    final int l_width = frame.getWidth();
+    final int l_height = frame.getHeight();
+    m_step = Math.max(1, (Math.max(l_width, l_height) + GRID - 1) / GRID);
+    m_gridWidth = l_width / m_step;
+    m_gridHeight = l_height / m_step;
+
+    final int l_samples = m_gridWidth * m_gridHeight;
+    if (m_samples.length < 3 * l_samples)
+    {
+      m_samples = new int[3 * l_samples];
+    }
+
+    for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+    {
+      m_tiles[l_i].setRows(m_gridHeight * l_i / m_tiles.length,
+          m_gridHeight * (l_i + 1) / m_tiles.length, m_gridWidth);
+    }
+
+    try
+    {
+      int l_iteration = 0;
+      if (!m_seeded || l_samples < m_clusters)
+      {
+        run(true, false);
+        seed(l_samples);
+        m_seeded = true;
+      }
+      else
+      {
+        run(true, true);
+        update();
+        ++l_iteration;
+      }
+
+      for (; l_iteration < ITERATIONS; ++l_iteration)
+      {
+        run(false, true);
+        update();
+      }
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    finally
+    {
+      m_frame = null;
+    }
+
+    return results(l_samples, colors, weights);
+  }
+
+  /**
+   * Run all tiles, and wait for them to finish.
+   */
+  private void run(boolean sampling, boolean assigning)
+      throws InterruptedException
+  {
+    m_sampling = sampling;
+    m_assigning = assigning;
+
+    if (null == m_executor || 1 == m_tiles.length)
+    {
+      for (final Tile l_tile : m_tiles)
+      {
+        l_tile.call();
+      }
+      return;
+    }
+
+    for (final Future<Void> l_future : m_executor.invokeAll(m_tasks))
+    {
+      try
+      {
+        l_future.get();
+      }
+      catch (final ExecutionException e)
+      {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Move each centroid to the mean of its samples. A centroid left without
+   * samples is moved onto the sample farthest from its own centroid.
+   */
+  private void update()
+  {
+    for (int l_cluster = 0; l_cluster < m_clusters; ++l_cluster)
+    {
+      long l_l = 0;
+      long l_a = 0;
+      long l_b = 0;
+      int l_count = 0;
+
+      for (final Tile l_tile : m_tiles)
+      {
+        l_l += l_tile.m_partialSums[3 * l_cluster];
+        l_a += l_tile.m_partialSums[3 * l_cluster + 1];
+        l_b += l_tile.m_partialSums[3 * l_cluster + 2];
+        l_count += l_tile.m_partialCounts[l_cluster];
+      }
+
+      m_counts[l_cluster] = l_count;
+      if (0 < l_count)
+      {
+        m_centroids[3 * l_cluster] = (int) (l_l / l_count);
+        m_centroids[3 * l_cluster + 1] = (int) (l_a / l_count);
+        m_centroids[3 * l_cluster + 2] = (int) (l_b / l_count);
+      }
+    }
+
+    for (int l_cluster = 0; l_cluster < m_clusters; ++l_cluster)
+    {
+      if (0 == m_counts[l_cluster])
+      {
+        // Take the farthest sample of any tile, and make sure no other
+        // empty cluster takes it too.
+        Tile l_farthest = m_tiles[0];
+        for (final Tile l_tile : m_tiles)
+        {
+          if (l_tile.m_farthestDistance > l_farthest.m_farthestDistance)
+          {
+            l_farthest = l_tile;
+          }
+        }
+        if (0 > l_farthest.m_farthestDistance)
+        {
+          continue;
+        }
+
+        System.arraycopy(m_samples, 3 * l_farthest.m_farthest, m_centroids,
+            3 * l_cluster, 3);
+        l_farthest.m_farthestDistance = -1;
+      }
+    }
+  }
+
+  /**
+   * Seed the centroids by farthest point seeding; the first centroid is
+   * the mean sample, and each next one the sample farthest from the
+   * centroids so far.
+   */
+  private void seed(int samples)
+  {
+    long l_l = 0;
+    long l_a = 0;
+    long l_b = 0;
+    for (int l_i = 0; l_i < samples; ++l_i)
+    {
+      l_l += m_samples[3 * l_i];
+      l_a += m_samples[3 * l_i + 1];
+      l_b += m_samples[3 * l_i + 2];
+    }
+
+    final int l_samples = Math.max(1, samples);
+    m_centroids[0] = (int) (l_l / l_samples);
+    m_centroids[1] = (int) (l_a / l_samples);
+    m_centroids[2] = (int) (l_b / l_samples);
+
+    for (int l_cluster = 1; l_cluster < m_clusters; ++l_cluster)
+    {
+      int l_farthest = -1;
+      long l_farthestDistance = -1;
+
+      for (int l_i = 0; l_i < samples; ++l_i)
+      {
+        long l_nearest = Long.MAX_VALUE;
+        for (int l_j = 0; l_j < l_cluster; ++l_j)
+        {
+          l_nearest = Math.min(l_nearest,
+              distance(m_samples, 3 * l_i, m_centroids, 3 * l_j));
+        }
+        if (l_nearest > l_farthestDistance)
+        {
+          l_farthestDistance = l_nearest;
+          l_farthest = l_i;
+        }
+      }
+
+      if (0 > l_farthest)
+      {
+        System.arraycopy(m_centroids, 0, m_centroids, 3 * l_cluster, 3);
+      }
+      else
+      {
+        System.arraycopy(m_samples, 3 * l_farthest, m_centroids,
+            3 * l_cluster, 3);
+      }
+    }
+  }
+
+  /**
+   * Order the nonempty clusters by their number of samples, and convert
+   * them to colors.
+   *
+   * @return The number of colors.
+   */
+  private int results(int samples, int[] colors, int[] weights)
+  {
+    int l_found = 0;
+    for (int l_cluster = 0; l_cluster < m_clusters; ++l_cluster)
+    {
+      if (0 == m_counts[l_cluster])
+      {
+        continue;
+      }
+
+      int l_i = l_found++;
+      while (0 < l_i && m_counts[m_order[l_i - 1]] < m_counts[l_cluster])
+      {
+        m_order[l_i] = m_order[l_i - 1];
+        --l_i;
+      }
+      m_order[l_i] = l_cluster;
+    }
+
+    for (int l_i = 0; l_i < l_found; ++l_i)
+    {
+      final int l_cluster = m_order[l_i];
+      colors[l_i] = ColorConversion.fromLab(m_centroids[3 * l_cluster],
+          m_centroids[3 * l_cluster + 1], m_centroids[3 * l_cluster + 2]);
+      weights[l_i] = (int) ((long) ColorConversion.PERMILLE
+          * m_counts[l_cluster] / samples);
+    }
+    return l_found;
+  }
+
+  /**
+   * @return The index of the centroid nearest a sample.
+   */
+  private int nearest(int[] samples, int offset)
+  {
+    int l_nearest = 0;
+    long l_nearestDistance = Long.MAX_VALUE;
+
+    for (int l_cluster = 0; l_cluster < m_clusters; ++l_cluster)
+    {
+      final long l_distance = distance(samples, offset, m_centroids,
+          3 * l_cluster);
+      if (l_distance < l_nearestDistance)
+      {
+        l_nearestDistance = l_distance;
+        l_nearest = l_cluster;
+      }
+    }
+    return l_nearest;
+  }
+
+  /**
+   * @return The squared Euclidean distance between two Lab colors.
+   */
+  private static long distance(int[] first, int firstOffset, int[] second,
+      int secondOffset)
+  {
+    final long l_dl = first[firstOffset] - second[secondOffset];
+    final long l_da = first[firstOffset + 1] - second[secondOffset + 1];
+    final long l_db = first[firstOffset + 2] - second[secondOffset + 2];
+    return l_dl * l_dl + l_da * l_da + l_db * l_db;
+  }
+
+  /**
+   * This type is responsible for a band of grid rows; sampling them, and
+   * assigning their samples to the nearest centroids.
+   */
+  private final class Tile implements Callable<Void>
+  {
+    private int m_from;
+    private int m_to;
+    private int[] m_row = new int[0];
+
+    /**
+     * These fields hold the partial sums, and counts, of the samples of
+     * this tile assigned to each cluster, and the sample of this tile
+     * farthest from its centroid.
+     */
+    private final long[] m_partialSums;
+    private final int[] m_partialCounts;
+    private int m_farthest;
+    private long m_farthestDistance;
+
+    Tile(int clusters)
+    {
+      m_partialSums = new long[3 * clusters];
+      m_partialCounts = new int[clusters];
+    }
+
+    void setRows(int from, int to, int gridWidth)
+    {
+      m_from = from;
+      m_to = to;
+      if (m_row.length < gridWidth)
+      {
+        m_row = new int[gridWidth];
+      }
+    }
+
+    @Override
+    public Void call()
+    {
+      if (m_sampling)
+      {
+        sample();
+      }
+      if (m_assigning)
+      {
+        assign();
+      }
+      return null;
+    }
+
+    private void sample()
+    {
+      final int l_offset = m_step / 2;
+
+      for (int l_y = m_from; l_y < m_to; ++l_y)
+      {
+        final int l_frameY = l_y * m_step + l_offset;
+        for (int l_x = 0; l_x < m_gridWidth; ++l_x)
+        {
+          m_row[l_x] = m_frame.pixel(l_x * m_step + l_offset, l_frameY);
+        }
+        ColorConversion.toLab(m_row, 0, m_gridWidth, m_samples,
+            3 * l_y * m_gridWidth);
+      }
+    }
+
+    private void assign()
+    {
+      for (int l_i = 0; l_i < m_partialSums.length; ++l_i)
+      {
+        m_partialSums[l_i] = 0;
+      }
+      for (int l_i = 0; l_i < m_partialCounts.length; ++l_i)
+      {
+        m_partialCounts[l_i] = 0;
+      }
+      m_farthest = -1;
+      m_farthestDistance = -1;
+
+      for (int l_i = m_from * m_gridWidth; l_i < m_to * m_gridWidth; ++l_i)
+      {
+        final int l_offset = 3 * l_i;
+        final int l_cluster = nearest(m_samples, l_offset);
+        final long l_distance = distance(m_samples, l_offset, m_centroids,
+            3 * l_cluster);
+
+        m_partialSums[3 * l_cluster] += m_samples[l_offset];
+        m_partialSums[3 * l_cluster + 1] += m_samples[l_offset + 1];
+        m_partialSums[3 * l_cluster + 2] += m_samples[l_offset + 2];
+        ++m_partialCounts[l_cluster];
+
+        if (l_distance > m_farthestDistance)
+        {
+          m_farthestDistance = l_distance;
+          m_farthest = l_i;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for handing the latest extracted palette over
+ * from a producing thread to a consuming one, without either ever
+ * blocking.
+ *
+ * Palettes are passed in reusable buffers, as described by Mailbox.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class PaletteMailbox extends Mailbox<PaletteMailbox.Palette>
+{
+  /**
+   * This type holds an extracted palette.
+   */
+  public static final class Palette
+  {
+    private final int[] m_colors = new int[PaletteExtractor.MAX_COLORS];
+    private final int[] m_weights = new int[PaletteExtractor.MAX_COLORS];
+    private int m_count;
+
+    /**
+     * @return The colors, on the 0xAARRGGBB form, most dominant first.
+     */
+    public int[] getColors()
+    {
+      return m_colors;
+    }
+
+    /**
+     * @return The share of the frame of each color, in permille.
+     */
+    public int[] getWeights()
+    {
+      return m_weights;
+    }
+
+    /**
+     * @return The number of colors.
+     */
+    public int getCount()
+    {
+      return m_count;
+    }
+
+    /**
+     * @param count The number of colors.
+     */
+    public void setCount(int count)
+    {
+      m_count = count;
+    }
+  }
+
+  @Override
+  protected Palette create()
+  {
+    return new Palette();
+  }
+}
@@ -0,0 +1,268 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.IOException;
+
+/**
+ * This type is responsible for sampling the color at a point, or of a
+ * region, of a still picture, without decoding more of it than needed.
+ *
+ * Only the window reduced by the sampling kernel is decoded at full
+ * resolution. Regions wider than the kernel are decoded subsampled, by the
+ * least power of two that brings them within SamplingKernel.MAX_SIZE a
+ * side. When white balancing is enabled, the light is estimated from a
+ * decode of the whole picture, subsampled to at most ILLUMINANT_SIDE pixels
+ * a side. The decoding is left to a Decoder, so that the same sampling
+ * serves both the camera and batch analysis of image files.
+ *
+ * It reuses preallocated scratch space, so an instance must only be used
+ * from one thread at a time.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class PictureSampler
+{
+  /**
+   * This type is responsible for decoding windows of a picture.
+   */
+  public interface Decoder
+  {
+    /**
+     * @return The width of the picture, in pixels.
+     */
+    int getWidth();
+
+    /**
+     * @return The height of the picture, in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Decode a window of the picture, keeping every _subsampling_th pixel of
+     * every _subsampling_th row.
+     *
+     * @param left The leftmost column of the window.
+     * @param top The topmost row of the window.
+     * @param width The width of the window, in pixels.
+     * @param height The height of the window, in pixels.
+     * @param subsampling The subsampling, a power of two.
+     * @param out Receives the decoded pixels, on the 0xAARRGGBB form, row
+     *            by row.
+     * @param size Receives the width and height of the decoded pixels.
+     * @return False if the window could not be decoded.
+     * @throws IOException If the picture could not be read.
+     */
+    boolean decode(int left, int top, int width, int height,
+        int subsampling, int[] out, int[] size) throws IOException;
+  }
+
+  /**
+   * This field provides the longest side, in pixels, of the decode of a
+   * picture the light is estimated from.
+   */
+  public static final int ILLUMINANT_SIDE = 256;
+
+  private final SamplingKernel m_kernel = new SamplingKernel();
+  private final IlluminantEstimator m_estimator = new IlluminantEstimator();
+  private IlluminantEstimator.Method m_whiteBalance;
+
+  /**
+   * These fields are scratch space for the decoded pixels; the larger one
+   * is only allocated once the light is first estimated.
+   */
+  private final int[] m_region =
+      new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+  private int[] m_illuminant;
+  private final int[] m_size = new int[2];
+
+  /**
+   * Set how the window around a point is sampled.
+   *
+   * @param size The side of the window, in pixels. It is clamped to
+   *             SamplingKernel.MIN_SIZE..SamplingKernel.MAX_SIZE.
+   * @param statistic The statistic the window, or region, is reduced by.
+   */
+  public void configure(int size, SamplingKernel.Statistic statistic)
+  {
+    m_kernel.configure(size, statistic);
+  }
+
+  /**
+   * @return The side, in pixels, of the window around a point.
+   */
+  public int getSize()
+  {
+    return m_kernel.getSize();
+  }
+
+  /**
+   * @param method The assumption to estimate the light by, or null to leave
+   *               the colors as the picture has them.
+   */
+  public void setWhiteBalance(IlluminantEstimator.Method method)
+  {
+    m_whiteBalance = method;
+  }
+
+  /**
+   * @return The assumption the light is estimated by, or null.
+   */
+  public IlluminantEstimator.Method getWhiteBalance()
+  {
+    return m_whiteBalance;
+  }
+
+  /**
+   * Estimate the light a picture was taken under, if white balancing is
+   * enabled. Each picture stands alone; it is not smoothed with the
+   * previous one.
+   *
+   * @param decoder The picture.
+   * @return True if the colors sampled from the picture are to be
+   *         corrected, by correct().
+   * @throws IOException If the picture could not be read.
+   */
+  public boolean estimateIlluminant(Decoder decoder) throws IOException
+  {
+    if (null == m_whiteBalance)
+    {
+      return false;
+    }
+
+    final int l_width = decoder.getWidth();
+    final int l_height = decoder.getHeight();
+    if (null == m_illuminant)
+    {
+      m_illuminant = new int[ILLUMINANT_SIDE * ILLUMINANT_SIDE];
+    }
+
+    if (!decoder.decode(0, 0, l_width, l_height,
+        subsampling(l_width, l_height, ILLUMINANT_SIDE), m_illuminant,
+        m_size))
+    {
+      return false;
+    }
+
+    m_estimator.setMethod(m_whiteBalance);
+    m_estimator.reset();
+    return m_estimator.estimate(m_illuminant, 0, m_size[0], m_size[0],
+        m_size[1]);
+  }
+
+  /**
+   * Correct a color for the light last estimated.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @return The corrected, opaque color.
+   */
+  public int correct(int color)
+  {
+    return m_estimator.correct(color);
+  }
+
+  /**
+   * Get the color of the window centered on a point, as reduced by the
+   * sampling kernel. The window is shifted, rather than clipped, to stay
+   * within the picture.
+   *
+   * @param decoder The picture.
+   * @param x The column of the point.
+   * @param y The row of the point.
+   * @return The color on the 0xAARRGGBB form, or 0 if the window could not
+   *         be decoded.
+   * @throws IOException If the picture could not be read.
+   */
+  public int samplePoint(Decoder decoder, int x, int y) throws IOException
+  {
+    final int l_width = decoder.getWidth();
+    final int l_height = decoder.getHeight();
+    final int l_size = m_kernel.getSize();
+
+    final int l_left = Math.max(0, Math.min(l_width - l_size,
+        x - (l_size - 1) / 2));
+    final int l_top = Math.max(0, Math.min(l_height - l_size,
+        y - (l_size - 1) / 2));
+
+    return sample(decoder, l_left, l_top, Math.min(l_width, l_size),
+        Math.min(l_height, l_size), 1);
+  }
+
+  /**
+   * Get the color of a region, as reduced by the sampling statistic. The
+   * region is clipped against the picture, and subsampled to at most
+   * SamplingKernel.MAX_SIZE pixels a side.
+   *
+   * @param decoder The picture.
+   * @param left The leftmost column of the region.
+   * @param top The topmost row of the region.
+   * @param width The width of the region, in pixels.
+   * @param height The height of the region, in pixels.
+   * @return The color on the 0xAARRGGBB form, or 0 if the region is empty,
+   *         or could not be decoded.
+   * @throws IOException If the picture could not be read.
+   */
+  public int sampleRegion(Decoder decoder, int left, int top, int width,
+      int height) throws IOException
+  {
+    final int l_left = Math.max(0, left);
+    final int l_top = Math.max(0, top);
+    final int l_width = Math.min(decoder.getWidth(), left + width) - l_left;
+    final int l_height = Math.min(decoder.getHeight(), top + height) - l_top;
+
+    return sample(decoder, l_left, l_top, l_width, l_height,
+        subsampling(l_width, l_height, SamplingKernel.MAX_SIZE));
+  }
+
+  /**
+   * Decode and reduce a window, which lies within the picture.
+   */
+  private int sample(Decoder decoder, int left, int top, int width,
+      int height, int subsampling) throws IOException
+  {
+    if (0 >= width || 0 >= height
+        || !decoder.decode(left, top, width, height, subsampling, m_region,
+            m_size))
+    {
+      return 0;
+    }
+
+    return m_kernel.sample(m_region, 0, m_size[0], m_size[0], m_size[1]);
+  }
+
+  /**
+   * @param width The width of a window, in pixels.
+   * @param height The height of a window, in pixels.
+   * @param side The longest side, in pixels, to subsample the window to.
+   * @return The least power of two subsampling the window to at most
+   *         _side_ pixels a side.
+   */
+  public static int subsampling(int width, int height, int side)
+  {
+    int l_subsampling = 1;
+    while (side < (Math.max(width, height) + l_subsampling - 1)
+        / l_subsampling)
+    {
+      l_subsampling *= 2;
+    }
+    return l_subsampling;
+  }
+}
@@ -0,0 +1,91 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for handing the latest colors of the sample
+ * points over from a producing thread to a consuming one, as one batch,
+ * without either ever blocking.
+ *
+ * Batches are passed in reusable buffers, as described by Mailbox.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class PointMailbox extends Mailbox<PointMailbox.Batch>
+{
+  /**
+   * This type holds the colors of the sample points of a frame.
+   */
+  public static final class Batch
+  {
+    private final float[] m_points =
+        new float[2 * MultiPointSampler.MAX_POINTS];
+    private final int[] m_colors = new int[MultiPointSampler.MAX_POINTS];
+    private final int[] m_nameIndices = new int[MultiPointSampler.MAX_POINTS];
+    private int m_count;
+
+    /**
+     * @return The points, as pairs of column and row, in fractions of the
+     *         view.
+     */
+    public float[] getPoints()
+    {
+      return m_points;
+    }
+
+    /**
+     * @return The color of each point, on the 0xAARRGGBB form.
+     */
+    public int[] getColors()
+    {
+      return m_colors;
+    }
+
+    /**
+     * @return The palette index of the name of each color, or -1 if none.
+     */
+    public int[] getNameIndices()
+    {
+      return m_nameIndices;
+    }
+
+    /**
+     * @return The number of points.
+     */
+    public int getCount()
+    {
+      return m_count;
+    }
+
+    /**
+     * @param count The number of points.
+     */
+    public void setCount(int count)
+    {
+      m_count = count;
+    }
+  }
+
+  @Override
+  protected Batch create()
+  {
+    return new Batch();
+  }
+}
@@ -0,0 +1,176 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for handing the latest neighbourhood of the
+ * crosshair over from a producing thread to a consuming one, without
+ * either ever blocking, so that the sampled pixels can be shown as they
+ * are.
+ *
+ * Regions are passed in reusable buffers, as described by Mailbox. The
+ * producer reads the pixels straight into a buffer from acquire(),
+ * samples them from there, and posts it. The consumer takes the latest
+ * region, and releases its buffer once done with it.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class RegionMailbox extends Mailbox<RegionMailbox.Region>
+{
+  /**
+   * This field provides the longest side, in pixels, of a region; that of
+   * the largest kernel, with a margin of a quarter of it on each side.
+   */
+  public static final int MAX_SIDE = SamplingKernel.MAX_SIZE * 3 / 2;
+
+  /**
+   * This type holds the pixels of a region, in image orientation, along
+   * with the window the kernel reduces, and how the region is shown.
+   */
+  public static final class Region
+  {
+    private final int[] m_pixels = new int[MAX_SIDE * MAX_SIDE];
+    private int m_width;
+    private int m_height;
+    private int m_kernelLeft;
+    private int m_kernelTop;
+    private int m_kernelWidth;
+    private int m_kernelHeight;
+    private int m_orientation;
+    private boolean m_mirrored;
+
+    /**
+     * @return The pixels, on the 0xAARRGGBB form, row by row, getWidth()
+     *         apart.
+     */
+    public int[] getPixels()
+    {
+      return m_pixels;
+    }
+
+    /**
+     * @return The width of the region, in pixels.
+     */
+    public int getWidth()
+    {
+      return m_width;
+    }
+
+    /**
+     * @return The height of the region, in pixels.
+     */
+    public int getHeight()
+    {
+      return m_height;
+    }
+
+    /**
+     * @return The leftmost column of the kernel window, within the region.
+     */
+    public int getKernelLeft()
+    {
+      return m_kernelLeft;
+    }
+
+    /**
+     * @return The topmost row of the kernel window, within the region.
+     */
+    public int getKernelTop()
+    {
+      return m_kernelTop;
+    }
+
+    /**
+     * @return The width of the kernel window, in pixels.
+     */
+    public int getKernelWidth()
+    {
+      return m_kernelWidth;
+    }
+
+    /**
+     * @return The height of the kernel window, in pixels.
+     */
+    public int getKernelHeight()
+    {
+      return m_kernelHeight;
+    }
+
+    /**
+     * @return The clockwise rotation, in degrees, of the region as shown.
+     */
+    public int getOrientation()
+    {
+      return m_orientation;
+    }
+
+    /**
+     * @return True if the region is shown mirrored horizontally, before
+     *         being rotated.
+     */
+    public boolean isMirrored()
+    {
+      return m_mirrored;
+    }
+
+    /**
+     * @param width The width of the region, in pixels.
+     * @param height The height of the region, in pixels.
+     */
+    public void setSize(int width, int height)
+    {
+      m_width = width;
+      m_height = height;
+    }
+
+    /**
+     * @param left The leftmost column of the kernel window, within the
+     *             region.
+     * @param top The topmost row of the kernel window, within the region.
+     * @param width The width of the kernel window, in pixels.
+     * @param height The height of the kernel window, in pixels.
+     */
+    public void setKernel(int left, int top, int width, int height)
+    {
+      m_kernelLeft = left;
+      m_kernelTop = top;
+      m_kernelWidth = width;
+      m_kernelHeight = height;
+    }
+
+    /**
+     * @param orientation The clockwise rotation, in degrees, of the region
+     *                    as shown.
+     * @param mirrored True if the region is shown mirrored horizontally,
+     *                 before being rotated.
+     */
+    public void setOrientation(int orientation, boolean mirrored)
+    {
+      m_orientation = orientation;
+      m_mirrored = mirrored;
+    }
+  }
+
+  @Override
+  protected Region create()
+  {
+    return new Region();
+  }
+}
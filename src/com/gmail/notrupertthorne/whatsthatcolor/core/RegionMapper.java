@@ -0,0 +1,125 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for mapping points between the preview view and
+ * the camera image, so that the image never has to be rotated in order to
+ * find the pixels under the crosshair.
+ *
+ * The view is assumed to show the whole image, scaled to fit, after the
+ * image has been mirrored horizontally (front facing cameras only), and then
+ * rotated clockwise by the camera display orientation.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class RegionMapper
+{
+  private RegionMapper()
+  {
+  }
+
+  /**
+   * Calculate the clockwise rotation, in degrees, to pass to
+   * Camera.setDisplayOrientation.
+   *
+   * @param sensorOrientation The CameraInfo.orientation of the camera.
+   * @param displayRotation The rotation of the display, in degrees, i.e. 0,
+   *                        90, 180 or 270.
+   * @param frontFacing True if the camera is facing the user.
+   * @return The display orientation, in degrees.
+   */
+  public static int displayOrientation(int sensorOrientation,
+      int displayRotation, boolean frontFacing)
+  {
+    if (frontFacing)
+    {
+      // Compensate for the preview being mirrored.
+      final int l_result = (sensorOrientation + displayRotation) % 360;
+      return (360 - l_result) % 360;
+    }
+    else
+    {
+      return (sensorOrientation - displayRotation + 360) % 360;
+    }
+  }
+
+  /**
+   * Map a point in the view to the image pixel shown there.
+   *
+   * @param x The view column.
+   * @param y The view row.
+   * @param viewWidth The view width, in pixels.
+   * @param viewHeight The view height, in pixels.
+   * @param imageWidth The image width, in pixels.
+   * @param imageHeight The image height, in pixels.
+   * @param orientation The display orientation, i.e. 0, 90, 180 or 270.
+   * @param mirrored True if the view is mirrored (front facing camera).
+   * @param out Receives the image column and row, in that order.
+   */
+  public static void toImage(int x, int y, int viewWidth, int viewHeight,
+      int imageWidth, int imageHeight, int orientation, boolean mirrored,
+      int[] out)
+  {
+    final int l_flippedX = viewWidth - 1 - x;
+    final int l_flippedY = viewHeight - 1 - y;
+
+    int l_imageX;
+    int l_imageY;
+
+    switch (orientation)
+    {
+      case 90:
+        l_imageX = scale(y, viewHeight, imageWidth);
+        l_imageY = scale(l_flippedX, viewWidth, imageHeight);
+        break;
+      case 180:
+        l_imageX = scale(l_flippedX, viewWidth, imageWidth);
+        l_imageY = scale(l_flippedY, viewHeight, imageHeight);
+        break;
+      case 270:
+        l_imageX = scale(l_flippedY, viewHeight, imageWidth);
+        l_imageY = scale(x, viewWidth, imageHeight);
+        break;
+      default:
+        l_imageX = scale(x, viewWidth, imageWidth);
+        l_imageY = scale(y, viewHeight, imageHeight);
+        break;
+    }
+
+    if (mirrored)
+    {
+      l_imageX = imageWidth - 1 - l_imageX;
+    }
+
+    out[0] = l_imageX;
+    out[1] = l_imageY;
+  }
+
+  /**
+   * Scale a pixel position between two extents, mapping pixel centers onto
+   * pixel centers.
+   */
+  private static int scale(int position, int from, int to)
+  {
+    final int l_position = Math.max(0, Math.min(from - 1, position));
+    return (int) (((2L * l_position + 1) * to) / (2L * from));
+  }
+}
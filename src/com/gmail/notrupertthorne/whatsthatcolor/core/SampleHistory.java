@@ -0,0 +1,330 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This type is responsible for keeping the history of sampled colors in a
+ * memory mapped, append only file.
+ *
+ * The file holds a header of the magic number "WTCH", a version short, the
+ * record size short and the record count int, padded to 16 bytes, followed
+ * by fixed width records of the color int, the time long, in milliseconds,
+ * L, a and b shorts, times ColorConversion.LAB_SCALE, and the palette index
+ * short of the color name, or -1. All numbers are big endian.
+ *
+ * Opening only maps the file and reads the header. Appending writes a
+ * record, and then the count, straight into the mapping, so a record is
+ * either wholly there or not at all, and is kept by the operating system
+ * should the process die. The mapping only grows, by doubling, when full.
+ *
+ * Appends are serialized. Queries take no lock, and see the records
+ * appended before the count they read; any number of threads may query
+ * while one appends. Records are kept in time order, so time ranges are
+ * found by binary search, while the nearest color is found by a scan of
+ * the packed Lab values.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class SampleHistory
+{
+  private static final int MAGIC = 0x57544348;
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 16;
+  private static final int COUNT_OFFSET = 8;
+
+  private static final int RECORD_SIZE = 20;
+  private static final int COLOR_OFFSET = 0;
+  private static final int TIME_OFFSET = 4;
+  private static final int LAB_OFFSET = 12;
+  private static final int NAME_OFFSET = 18;
+
+  /**
+   * This field provides the number of records the file initially has room
+   * for.
+   */
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private final RandomAccessFile m_file;
+  private final FileChannel m_channel;
+
+  /**
+   * These fields hold the current mapping, and the number of records
+   * appended, as published to the querying threads. A grown mapping is
+   * published before the count that needs it, so queries read the count
+   * first, and the mapping second.
+   */
+  private volatile MappedByteBuffer m_buffer;
+  private volatile int m_count;
+
+  private int m_capacity;
+  private long m_lastTime;
+  private boolean m_closed;
+
+  /**
+   * This field is scratch space for the appends.
+   */
+  private final int[] m_lab = new int[3];
+
+  /**
+   * Open a history, creating it if need be.
+   *
+   * @param file The file of the history.
+   * @throws IOException If the file could not be opened, or does not hold
+   *                     a history.
+   */
+  public SampleHistory(File file) throws IOException
+  {
+    m_file = new RandomAccessFile(file, "rw");
+    try
+    {
+      m_channel = m_file.getChannel();
+
+      final long l_length = m_file.length();
+      if (0 == l_length)
+      {
+        map(INITIAL_CAPACITY);
+        m_buffer.putInt(0, MAGIC);
+        m_buffer.putShort(4, (short) VERSION);
+        m_buffer.putShort(6, (short) RECORD_SIZE);
+        m_buffer.putInt(COUNT_OFFSET, 0);
+      }
+      else
+      {
+        if (HEADER_SIZE > l_length)
+        {
+          throw new IOException("Not a sample history");
+        }
+        map((int) ((l_length - HEADER_SIZE) / RECORD_SIZE));
+
+        if (MAGIC != m_buffer.getInt(0))
+        {
+          throw new IOException("Not a sample history");
+        }
+        if (VERSION != m_buffer.getShort(4)
+            || RECORD_SIZE != m_buffer.getShort(6))
+        {
+          throw new IOException("Unsupported sample history version: "
+              + m_buffer.getShort(4));
+        }
+
+        final int l_count = m_buffer.getInt(COUNT_OFFSET);
+        if (0 > l_count || m_capacity < l_count)
+        {
+          throw new IOException("Corrupt sample history");
+        }
+        m_count = l_count;
+        if (0 < l_count)
+        {
+          m_lastTime = getTime(l_count - 1);
+        }
+      }
+    }
+    catch (final IOException e)
+    {
+      m_file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Append a sample, in constant time, unless the file has to grow.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @param time The time of the sample, in milliseconds since the epoch.
+   *             Should the clock have gone backwards, the time of the
+   *             previous sample is used, keeping the records in order.
+   * @param nameIndex The palette index of the color name, or -1 if none.
+   * @throws IOException If the file could not grow.
+   */
+  public synchronized void append(int color, long time, int nameIndex)
+      throws IOException
+  {
+    if (m_closed)
+    {
+      return;
+    }
+
+    final int l_count = m_count;
+    if (m_capacity == l_count)
+    {
+      map(2 * m_capacity);
+    }
+
+    m_lastTime = Math.max(m_lastTime, time);
+    ColorConversion.toLab(color, m_lab, 0);
+
+    final MappedByteBuffer l_buffer = m_buffer;
+    final int l_record = HEADER_SIZE + l_count * RECORD_SIZE;
+    l_buffer.putInt(l_record + COLOR_OFFSET, color);
+    l_buffer.putLong(l_record + TIME_OFFSET, m_lastTime);
+    l_buffer.putShort(l_record + LAB_OFFSET, (short) m_lab[0]);
+    l_buffer.putShort(l_record + LAB_OFFSET + 2, (short) m_lab[1]);
+    l_buffer.putShort(l_record + LAB_OFFSET + 4, (short) m_lab[2]);
+    l_buffer.putShort(l_record + NAME_OFFSET, (short) nameIndex);
+
+    // Only count the record once written.
+    l_buffer.putInt(COUNT_OFFSET, l_count + 1);
+    m_count = l_count + 1;
+  }
+
+  /**
+   * @return The number of samples.
+   */
+  public int size()
+  {
+    return m_count;
+  }
+
+  /**
+   * @param index The index of a sample, 0..size() - 1.
+   * @return The color, on the 0xAARRGGBB form.
+   */
+  public int getColor(int index)
+  {
+    return m_buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + COLOR_OFFSET);
+  }
+
+  /**
+   * @param index The index of a sample, 0..size() - 1.
+   * @return The time of the sample, in milliseconds since the epoch.
+   */
+  public long getTime(int index)
+  {
+    return m_buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + TIME_OFFSET);
+  }
+
+  /**
+   * @param index The index of a sample, 0..size() - 1.
+   * @return The palette index of the color name, or -1 if none.
+   */
+  public int getNameIndex(int index)
+  {
+    return m_buffer.getShort(HEADER_SIZE + index * RECORD_SIZE
+        + NAME_OFFSET);
+  }
+
+  /**
+   * Find where a time falls among the samples, by binary search.
+   *
+   * @param time The time, in milliseconds since the epoch.
+   * @return The index of the first sample at, or after, _time_, or size()
+   *         if none.
+   */
+  public int indexOf(long time)
+  {
+    int l_low = 0;
+    int l_high = m_count;
+    final MappedByteBuffer l_buffer = m_buffer;
+
+    while (l_low < l_high)
+    {
+      final int l_middle = (l_low + l_high) >>> 1;
+      if (l_buffer.getLong(HEADER_SIZE + l_middle * RECORD_SIZE
+          + TIME_OFFSET) < time)
+      {
+        l_low = l_middle + 1;
+      }
+      else
+      {
+        l_high = l_middle;
+      }
+    }
+    return l_low;
+  }
+
+  /**
+   * Find the sample nearest a color, by CIE76, among a range of samples,
+   * e.g. as found by indexOf().
+   *
+   * @param lab The L, a and b of the color, times
+   *            ColorConversion.LAB_SCALE, from _offset_ on, as by
+   *            ColorConversion.toLab().
+   * @param offset The index of L.
+   * @param from The index of the first sample to consider.
+   * @param to The index following the last sample to consider. It is
+   *           clipped to size().
+   * @return The index of the nearest sample, or -1 if the range is empty.
+   */
+  public int nearest(int[] lab, int offset, int from, int to)
+  {
+    final int l_to = Math.min(to, m_count);
+    final MappedByteBuffer l_buffer = m_buffer;
+    final int l_l = lab[offset];
+    final int l_a = lab[offset + 1];
+    final int l_b = lab[offset + 2];
+
+    int l_nearest = -1;
+    long l_nearestDistance = Long.MAX_VALUE;
+
+    for (int l_i = Math.max(0, from); l_i < l_to; ++l_i)
+    {
+      final int l_offset = HEADER_SIZE + l_i * RECORD_SIZE + LAB_OFFSET;
+      final long l_dl = l_buffer.getShort(l_offset) - l_l;
+      final long l_da = l_buffer.getShort(l_offset + 2) - l_a;
+      final long l_db = l_buffer.getShort(l_offset + 4) - l_b;
+      final long l_distance = l_dl * l_dl + l_da * l_da + l_db * l_db;
+
+      if (l_distance < l_nearestDistance)
+      {
+        l_nearestDistance = l_distance;
+        l_nearest = l_i;
+      }
+    }
+    return l_nearest;
+  }
+
+  /**
+   * Flush the samples to storage, and close the file. Later appends are
+   * ignored.
+   *
+   * @throws IOException If the file could not be closed.
+   */
+  public synchronized void close() throws IOException
+  {
+    if (!m_closed)
+    {
+      m_closed = true;
+      m_buffer.force();
+      m_file.close();
+    }
+  }
+
+  /**
+   * (Re)map the file, with room for _capacity_ records.
+   */
+  private void map(int capacity) throws IOException
+  {
+    final long l_size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    if (Integer.MAX_VALUE < l_size)
+    {
+      throw new IOException("Sample history full");
+    }
+
+    m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, l_size);
+    m_capacity = capacity;
+  }
+}
@@ -0,0 +1,288 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for reducing a square window of pixels to a
+ * single representative color.
+ *
+ * Besides the plain mean, it offers statistics that resist outliers such as
+ * specular highlights; the per channel median, the per channel mean with
+ * the extreme quarters trimmed, and the mean of the most populated bin of
+ * colors quantized to 4 bits per channel. All of them run in time linear in
+ * the number of pixels, using counting histograms rather than sorting.
+ *
+ * The mean is taken through a summed-area table, which is kept, so that
+ * the means of any number of sub-windows of the last sampled window are
+ * then read in constant time.
+ *
+ * It reuses preallocated scratch space, so an instance must only be used
+ * from one thread at a time.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class SamplingKernel
+{
+  /**
+   * This type enumerates the statistics a kernel may reduce pixels by.
+   */
+  public enum Statistic
+  {
+    MEAN,
+    MEDIAN,
+    TRIMMED_MEAN,
+    MODE
+  }
+
+  public static final int MIN_SIZE = 3;
+  public static final int MAX_SIZE = 64;
+
+  /**
+   * This field provides the fraction, in percent, trimmed off of each end
+   * of each channel for the trimmed mean.
+   */
+  private static final int TRIM_PERCENT = 25;
+
+  private static final int MODE_BITS = 4;
+  private static final int MODE_BINS = 1 << (3 * MODE_BITS);
+
+  private int m_size = MIN_SIZE;
+  private Statistic m_statistic = Statistic.MEAN;
+
+  /**
+   * These fields are scratch space for the statistics.
+   */
+  private final int[] m_red = new int[256];
+  private final int[] m_green = new int[256];
+  private final int[] m_blue = new int[256];
+  private final int[] m_binCounts = new int[MODE_BINS];
+  private final int[] m_binSums = new int[3 * MODE_BINS];
+  private final int[] m_binsUsed = new int[MAX_SIZE * MAX_SIZE];
+  private final int[] m_pixels = new int[MAX_SIZE * MAX_SIZE];
+  private final SummedAreaTable m_table = new SummedAreaTable();
+
+  /**
+   * Set the window size and the statistic.
+   *
+   * @param size The side of the window, in pixels. It is clamped to
+   *             MIN_SIZE..MAX_SIZE.
+   * @param statistic The statistic to reduce the window by.
+   */
+  public void configure(int size, Statistic statistic)
+  {
+    m_size = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    m_statistic = statistic;
+  }
+
+  /**
+   * @return The side of the window, in pixels.
+   */
+  public int getSize()
+  {
+    return m_size;
+  }
+
+  /**
+   * @return The statistic the window is reduced by.
+   */
+  public Statistic getStatistic()
+  {
+    return m_statistic;
+  }
+
+  /**
+   * Reduce a window of pixels.
+   *
+   * @param pixels The pixels, on the 0xAARRGGBB form.
+   * @param offset The index of the top left pixel of the window.
+   * @param stride The distance between the starts of consecutive rows.
+   * @param width The width of the window, in pixels.
+   * @param height The height of the window, in pixels. At most
+   *               MAX_SIZE * MAX_SIZE pixels may be reduced.
+   * @return The representative opaque color, or opaque black if the window
+   *         is empty.
+   */
+  public int sample(int[] pixels, int offset, int stride, int width,
+      int height)
+  {
+    final int l_count = width * height;
+    if (0 >= width || 0 >= height)
+    {
+      return 0xff000000;
+    }
+
+    if (Statistic.MEAN == m_statistic)
+    {
+      m_table.build(pixels, offset, stride, width, height);
+      return m_table.mean(0, 0, width, height);
+    }
+
+    // Gather the window into consecutive scratch space.
+    for (int l_y = 0; l_y < height; ++l_y)
+    {
+      System.arraycopy(pixels, offset + l_y * stride, m_pixels, l_y * width,
+          width);
+    }
+
+    switch (m_statistic)
+    {
+      case MEDIAN:
+        histogram(m_pixels, l_count);
+        return ColorConversion.rgb(percentile(m_red, l_count / 2),
+            percentile(m_green, l_count / 2),
+            percentile(m_blue, l_count / 2));
+      case TRIMMED_MEAN:
+        histogram(m_pixels, l_count);
+        final int l_trim = l_count * TRIM_PERCENT / 100;
+        return ColorConversion.rgb(
+            trimmedMean(m_red, l_trim, l_count - l_trim),
+            trimmedMean(m_green, l_trim, l_count - l_trim),
+            trimmedMean(m_blue, l_trim, l_count - l_trim));
+      default:
+        return mode(m_pixels, l_count);
+    }
+  }
+
+  /**
+   * Get the mean color of a sub-window of the window last reduced by the
+   * mean, in constant time.
+   *
+   * @param left The leftmost column of the sub-window.
+   * @param top The topmost row of the sub-window.
+   * @param width The width of the sub-window, in pixels.
+   * @param height The height of the sub-window, in pixels.
+   * @return The mean color on the 0xAARRGGBB form, or opaque black if the
+   *         sub-window is empty.
+   */
+  public int mean(int left, int top, int width, int height)
+  {
+    return m_table.mean(left, top, width, height);
+  }
+
+  private void histogram(int[] pixels, int count)
+  {
+    for (int l_i = 0; l_i < 256; ++l_i)
+    {
+      m_red[l_i] = 0;
+      m_green[l_i] = 0;
+      m_blue[l_i] = 0;
+    }
+
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      final int l_pixel = pixels[l_i];
+
+      ++m_red[ColorConversion.red(l_pixel)];
+      ++m_green[ColorConversion.green(l_pixel)];
+      ++m_blue[ColorConversion.blue(l_pixel)];
+    }
+  }
+
+  /**
+   * @return The value of the _rank_th smallest sample of a histogram.
+   */
+  private static int percentile(int[] histogram, int rank)
+  {
+    int l_seen = 0;
+    for (int l_value = 0; l_value < 256; ++l_value)
+    {
+      l_seen += histogram[l_value];
+      if (l_seen > rank)
+      {
+        return l_value;
+      }
+    }
+    return 255;
+  }
+
+  /**
+   * @return The mean of the samples of a histogram ranked _from_ up to, but
+   *         not including, _to_.
+   */
+  private static int trimmedMean(int[] histogram, int from, int to)
+  {
+    int l_rank = 0;
+    int l_sum = 0;
+
+    for (int l_value = 0; l_value < 256 && l_rank < to; ++l_value)
+    {
+      final int l_count = histogram[l_value];
+
+      // The part of this bin that falls within [from, to).
+      final int l_taken = Math.min(to, l_rank + l_count)
+          - Math.max(from, l_rank);
+      if (0 < l_taken)
+      {
+        l_sum += l_taken * l_value;
+      }
+      l_rank += l_count;
+    }
+
+    return l_sum / (to - from);
+  }
+
+  private int mode(int[] pixels, int count)
+  {
+    int l_used = 0;
+    int l_best = 0;
+
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      final int l_pixel = pixels[l_i];
+      final int l_r = ColorConversion.red(l_pixel);
+      final int l_g = ColorConversion.green(l_pixel);
+      final int l_b = ColorConversion.blue(l_pixel);
+      final int l_bin = (l_r >> (8 - MODE_BITS)) << (2 * MODE_BITS)
+          | (l_g >> (8 - MODE_BITS)) << MODE_BITS
+          | (l_b >> (8 - MODE_BITS));
+
+      if (0 == m_binCounts[l_bin])
+      {
+        m_binsUsed[l_used++] = l_bin;
+      }
+      ++m_binCounts[l_bin];
+      m_binSums[3 * l_bin] += l_r;
+      m_binSums[3 * l_bin + 1] += l_g;
+      m_binSums[3 * l_bin + 2] += l_b;
+
+      if (m_binCounts[l_bin] > m_binCounts[l_best])
+      {
+        l_best = l_bin;
+      }
+    }
+
+    final int l_count = m_binCounts[l_best];
+    final int l_color = ColorConversion.rgb(m_binSums[3 * l_best] / l_count,
+        m_binSums[3 * l_best + 1] / l_count,
+        m_binSums[3 * l_best + 2] / l_count);
+
+    // Only clear the bins touched, keeping the cost linear in _count_.
+    for (int l_i = 0; l_i < l_used; ++l_i)
+    {
+      final int l_bin = m_binsUsed[l_i];
+      m_binCounts[l_bin] = 0;
+      m_binSums[3 * l_bin] = 0;
+      m_binSums[3 * l_bin + 1] = 0;
+      m_binSums[3 * l_bin + 2] = 0;
+    }
+
+    return l_color;
+  }
+}
@@ -0,0 +1,431 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This type is responsible for running the work of starting up in order of
+ * priority, so that nothing but the camera and preview stands between a
+ * start and the first reading, and for timing each phase of it.
+ *
+ * The preview is marked once the camera has started it. Then the crosshair
+ * tasks run, in order, upon the UI thread. The deferred tasks wait for the
+ * first preview frame and for the crosshair; then they run on the UI
+ * thread when it is idle, or on a background thread. Should the preview,
+ * or its first frame, not come, release() lets all of the tasks run
+ * regardless. Tasks added after their turn has come run at once, in the
+ * same way.
+ *
+ * Every phase is timed from begin(), which also tells a cold start, of a
+ * new process, from a warm one, of a new activity, and from a hot one,
+ * of a resumed activity. The timings of the latest start of each kind are
+ * kept for the report, and each phase is told to the listener as it is
+ * reached, on whichever thread reached it.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class StartupSequencer
+{
+  /**
+   * This type enumerates the kinds of start.
+   */
+  public enum Start
+  {
+    COLD, WARM, HOT
+  }
+
+  /**
+   * This type enumerates the phases of a start, in the order they are
+   * normally reached.
+   */
+  public enum Phase
+  {
+    PREVIEW, CROSSHAIR, FIRST_FRAME, FIRST_READING, DEFERRED
+  }
+
+  /**
+   * This type enumerates the priorities of the queued tasks.
+   */
+  public enum Priority
+  {
+    /**
+     * On the UI thread, once the preview has been started.
+     */
+    CROSSHAIR,
+
+    /**
+     * On the UI thread when idle, once the first frame has arrived.
+     */
+    IDLE,
+
+    /**
+     * On a background thread, once the first frame has arrived.
+     */
+    BACKGROUND
+  }
+
+  /**
+   * This type is responsible for receiving the phases as they are reached.
+   */
+  public interface Listener
+  {
+    /**
+     * @param start The kind of start.
+     * @param phase The phase reached.
+     * @param nanos The nanoseconds since the start began.
+     * @param overBudget True if the phase was reached later than allowed.
+     */
+    void onPhase(Start start, Phase phase, long nanos, boolean overBudget);
+  }
+
+  /**
+   * This field provides the most milliseconds, per kind of start, until
+   * the first preview frame is to have arrived, beyond which it is
+   * reported as over budget.
+   */
+  private static final long[] FIRST_FRAME_BUDGET_MS = { 1500, 1000, 700 };
+
+  private static final int PHASES = Phase.values().length;
+
+  private final Executor m_ui;
+  private final Executor m_idle;
+  private final Executor m_background;
+  private volatile Listener m_listener;
+
+  /**
+   * This field holds the time, as by System.nanoTime(), at which each
+   * phase of the current start was reached, or 0. It is read without
+   * locking, so that phases already reached are cheap to mark anew.
+   */
+  private final AtomicLongArray m_times = new AtomicLongArray(PHASES);
+
+  /**
+   * These fields are guarded by this.
+   */
+  private final List<Runnable> m_crosshairTasks = new ArrayList<Runnable>();
+  private final List<Runnable> m_idleTasks = new ArrayList<Runnable>();
+  private final List<Runnable> m_backgroundTasks = new ArrayList<Runnable>();
+  private final long[][] m_latest = new long[Start.values().length][PHASES];
+  private Start m_start = Start.COLD;
+  private long m_began;
+  private boolean m_released;
+  private int m_crosshairBatches;
+  private int m_deferredTasks;
+
+  /**
+   * @param ui The executor running tasks upon the UI thread.
+   * @param idle The executor running tasks upon the UI thread once idle.
+   * @param background The executor running tasks on background threads.
+   */
+  public StartupSequencer(Executor ui, Executor idle, Executor background)
+  {
+    m_ui = ui;
+    m_idle = idle;
+    m_background = background;
+  }
+
+  /**
+   * @param listener The listener to receive the phases, or null.
+   */
+  public void setListener(Listener listener)
+  {
+    m_listener = listener;
+  }
+
+  /**
+   * Begin timing a start. Tasks still queued from a previous start are
+   * kept, and wait for the phases of this one.
+   *
+   * @param start The kind of start.
+   */
+  public synchronized void begin(Start start)
+  {
+    m_start = start;
+    m_began = System.nanoTime();
+    m_released = false;
+    for (int l_i = 0; l_i < PHASES; ++l_i)
+    {
+      m_times.set(l_i, 0);
+      m_latest[start.ordinal()][l_i] = 0;
+    }
+  }
+
+  /**
+   * Queue a task.
+   *
+   * @param priority When, and where, to run the task.
+   * @param task The task.
+   */
+  public void add(Priority priority, Runnable task)
+  {
+    synchronized (this)
+    {
+      switch (priority)
+      {
+        case CROSSHAIR:
+          m_crosshairTasks.add(task);
+          break;
+        case IDLE:
+          m_idleTasks.add(task);
+          break;
+        default:
+          m_backgroundTasks.add(task);
+          break;
+      }
+    }
+    dispatch();
+  }
+
+  /**
+   * Mark a phase as reached, unless already reached in this start. This
+   * may be called on any thread.
+   *
+   * @param phase The phase.
+   */
+  public void mark(Phase phase)
+  {
+    if (isReached(phase))
+    {
+      return;
+    }
+
+    final long l_now = System.nanoTime();
+    final Start l_start;
+    final long l_nanos;
+    synchronized (this)
+    {
+      if (!m_times.compareAndSet(phase.ordinal(), 0, l_now))
+      {
+        return;
+      }
+      l_start = m_start;
+      l_nanos = l_now - m_began;
+      m_latest[l_start.ordinal()][phase.ordinal()] = l_nanos;
+    }
+
+    final Listener l_listener = m_listener;
+    if (null != l_listener)
+    {
+      l_listener.onPhase(l_start, phase, l_nanos, Phase.FIRST_FRAME == phase
+          && FIRST_FRAME_BUDGET_MS[l_start.ordinal()] * 1000000 < l_nanos);
+    }
+    dispatch();
+  }
+
+  /**
+   * Run the crosshair tasks, and the deferred tasks once the crosshair is
+   * up, even if the preview has not started, or no preview frame has
+   * arrived, e.g. since the camera could not be opened.
+   */
+  public void release()
+  {
+    synchronized (this)
+    {
+      m_released = true;
+    }
+    dispatch();
+  }
+
+  /**
+   * @param start The kind of start.
+   * @param phase The phase.
+   * @return The milliseconds into the latest start of the kind at which
+   *         the phase was reached, or -1 if it was not.
+   */
+  public synchronized long getMillis(Start start, Phase phase)
+  {
+    final long l_nanos = m_latest[start.ordinal()][phase.ordinal()];
+    return 0 == l_nanos ? -1 : l_nanos / 1000000;
+  }
+
+  /**
+   * Write the timings of the latest start of each kind, as a table of
+   * milliseconds, with - for phases not reached.
+   *
+   * @param out Receives the table.
+   */
+  public synchronized void writeText(StringBuilder out)
+  {
+    out.append(String.format(Locale.US, "%-8s", "start"));
+    for (final Phase l_phase : Phase.values())
+    {
+      out.append(String.format(Locale.US, " %13s", l_phase.name()));
+    }
+    out.append(String.format(Locale.US, "%n"));
+
+    for (final Start l_start : Start.values())
+    {
+      if (0 == m_latest[l_start.ordinal()][Phase.PREVIEW.ordinal()])
+      {
+        continue;
+      }
+
+      out.append(String.format(Locale.US, "%-8s", l_start.name()));
+      for (final Phase l_phase : Phase.values())
+      {
+        final long l_millis = getMillis(l_start, l_phase);
+        out.append(String.format(Locale.US, " %13s",
+            0 > l_millis ? "-" : Long.toString(l_millis)));
+      }
+      out.append(String.format(Locale.US, "%n"));
+    }
+  }
+
+  /**
+   * Hand the tasks whose turn has come to their executors, and mark the
+   * crosshair, and deferred, phases once all of their tasks have run.
+   */
+  private void dispatch()
+  {
+    final List<Runnable> l_crosshair;
+    List<Runnable> l_idle = null;
+    List<Runnable> l_background = null;
+    Phase l_reached = null;
+
+    synchronized (this)
+    {
+      if (!m_released && !isReached(Phase.PREVIEW))
+      {
+        return;
+      }
+
+      l_crosshair = take(m_crosshairTasks);
+      if (null != l_crosshair)
+      {
+        ++m_crosshairBatches;
+      }
+
+      if (!isReached(Phase.CROSSHAIR))
+      {
+        if (0 == m_crosshairBatches)
+        {
+          l_reached = Phase.CROSSHAIR;
+        }
+      }
+      else if (m_released || isReached(Phase.FIRST_FRAME))
+      {
+        l_idle = take(m_idleTasks);
+        l_background = take(m_backgroundTasks);
+        m_deferredTasks += (null == l_idle ? 0 : l_idle.size())
+            + (null == l_background ? 0 : l_background.size());
+        if (0 == m_deferredTasks && !isReached(Phase.DEFERRED))
+        {
+          l_reached = Phase.DEFERRED;
+        }
+      }
+    }
+
+    if (null != l_crosshair)
+    {
+      m_ui.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          for (final Runnable l_task : l_crosshair)
+          {
+            l_task.run();
+          }
+          synchronized (StartupSequencer.this)
+          {
+            --m_crosshairBatches;
+          }
+          dispatch();
+        }
+      });
+    }
+
+    if (null != l_idle)
+    {
+      for (final Runnable l_task : l_idle)
+      {
+        m_idle.execute(deferred(l_task));
+      }
+    }
+    if (null != l_background)
+    {
+      for (final Runnable l_task : l_background)
+      {
+        m_background.execute(deferred(l_task));
+      }
+    }
+
+    if (null != l_reached)
+    {
+      mark(l_reached);
+    }
+  }
+
+  /**
+   * @return True if _phase_ has been reached in the current start.
+   */
+  private boolean isReached(Phase phase)
+  {
+    return 0 != m_times.get(phase.ordinal());
+  }
+
+  /**
+   * @return _task_, counted as a deferred task under way until it has run.
+   */
+  private Runnable deferred(final Runnable task)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          task.run();
+        }
+        finally
+        {
+          synchronized (StartupSequencer.this)
+          {
+            --m_deferredTasks;
+          }
+          dispatch();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return The tasks of _tasks_, which is emptied, or null if there were
+   *         none.
+   */
+  private static List<Runnable> take(List<Runnable> tasks)
+  {
+    if (tasks.isEmpty())
+    {
+      return null;
+    }
+
+    final List<Runnable> l_tasks = new ArrayList<Runnable>(tasks);
+    tasks.clear();
+    return l_tasks;
+  }
+}
@@ -0,0 +1,202 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * This type is responsible for the summed-area tables of the red, green and
+ * blue channels of a rectangle of pixels.
+ *
+ * Once built, in a single pass over the pixels, the mean color of any
+ * window within the rectangle is read in constant time, from the four
+ * corners of the window.
+ *
+ * The tables are kept between builds, and only grow, so an instance must
+ * only be used from one thread at a time.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class SummedAreaTable
+{
+  /**
+   * This field provides the largest number of pixels a table may cover,
+   * so that the sums of 8 bit channels can not overflow.
+   */
+  public static final int MAX_PIXELS = Integer.MAX_VALUE / 255;
+
+  private int m_width;
+  private int m_height;
+
+  /**
+   * These fields hold the sums of each channel over the pixels above, and
+   * to the left of, each point of a (width + 1) x (height + 1) grid.
+   */
+  private int[] m_red = new int[0];
+  private int[] m_green = new int[0];
+  private int[] m_blue = new int[0];
+
+  /**
+   * Start building the tables of a rectangle, row by row.
+   *
+   * @param width The width of the rectangle, in pixels.
+   * @param height The height of the rectangle, in pixels.
+   * @throws IllegalArgumentException If the rectangle holds more than
+   *         MAX_PIXELS pixels.
+   */
+  public void reset(int width, int height)
+  {
+    if ((long) width * height > MAX_PIXELS)
+    {
+      throw new IllegalArgumentException("Too large: " + width + "x"
+          + height);
+    }
+
+    final int l_size = (width + 1) * (height + 1);
+    if (m_red.length < l_size)
+    {
+      m_red = new int[l_size];
+      m_green = new int[l_size];
+      m_blue = new int[l_size];
+    }
+
+    m_width = width;
+    m_height = height;
+
+    // The top row, and the left column, are all zero.
+    for (int l_x = 0; l_x <= width; ++l_x)
+    {
+      m_red[l_x] = 0;
+      m_green[l_x] = 0;
+      m_blue[l_x] = 0;
+    }
+  }
+
+  /**
+   * Add a row of pixels to the tables.
+   *
+   * @param row The index of the row, from 0 up to the height given to
+   *            reset(), in order.
+   * @param pixels The pixels, on the 0xAARRGGBB form.
+   * @param offset The index of the leftmost pixel of the row.
+   */
+  public void setRow(int row, int[] pixels, int offset)
+  {
+    final int l_stride = m_width + 1;
+    int l_above = row * l_stride;
+    int l_index = l_above + l_stride;
+
+    int l_r = 0;
+    int l_g = 0;
+    int l_b = 0;
+
+    m_red[l_index] = 0;
+    m_green[l_index] = 0;
+    m_blue[l_index] = 0;
+
+    for (int l_x = 0; l_x < m_width; ++l_x)
+    {
+      final int l_pixel = pixels[offset + l_x];
+
+      l_r += ColorConversion.red(l_pixel);
+      l_g += ColorConversion.green(l_pixel);
+      l_b += ColorConversion.blue(l_pixel);
+
+      ++l_index;
+      ++l_above;
+      m_red[l_index] = m_red[l_above] + l_r;
+      m_green[l_index] = m_green[l_above] + l_g;
+      m_blue[l_index] = m_blue[l_above] + l_b;
+    }
+  }
+
+  /**
+   * Build the tables of a rectangle of pixels in one go.
+   *
+   * @param pixels The pixels, on the 0xAARRGGBB form.
+   * @param offset The index of the top left pixel.
+   * @param stride The distance between the starts of consecutive rows.
+   * @param width The width of the rectangle, in pixels.
+   * @param height The height of the rectangle, in pixels.
+   */
+  public void build(int[] pixels, int offset, int stride, int width,
+      int height)
+  {
+    reset(width, height);
+    for (int l_y = 0; l_y < height; ++l_y)
+    {
+      setRow(l_y, pixels, offset + l_y * stride);
+    }
+  }
+
+  /**
+   * @return The width of the rectangle covered, in pixels.
+   */
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  /**
+   * @return The height of the rectangle covered, in pixels.
+   */
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  /**
+   * Get the mean color of a window of the rectangle.
+   *
+   * The window is clipped against the rectangle.
+   *
+   * @param left The leftmost column of the window.
+   * @param top The topmost row of the window.
+   * @param width The width of the window, in pixels.
+   * @param height The height of the window, in pixels.
+   * @return The mean color on the 0xAARRGGBB form, or opaque black if the
+   *         window is empty.
+   */
+  public int mean(int left, int top, int width, int height)
+  {
+    final int l_left = Math.max(0, left);
+    final int l_top = Math.max(0, top);
+    final int l_right = Math.min(m_width, left + width);
+    final int l_bottom = Math.min(m_height, top + height);
+
+    if (l_left >= l_right || l_top >= l_bottom)
+    {
+      return 0xff000000;
+    }
+
+    final int l_stride = m_width + 1;
+    final int l_topLeft = l_top * l_stride + l_left;
+    final int l_topRight = l_top * l_stride + l_right;
+    final int l_bottomLeft = l_bottom * l_stride + l_left;
+    final int l_bottomRight = l_bottom * l_stride + l_right;
+    final int l_pixels = (l_right - l_left) * (l_bottom - l_top);
+
+    return ColorConversion.rgb(
+        (m_red[l_bottomRight] - m_red[l_topRight] - m_red[l_bottomLeft]
+            + m_red[l_topLeft]) / l_pixels,
+        (m_green[l_bottomRight] - m_green[l_topRight] - m_green[l_bottomLeft]
+            + m_green[l_topLeft]) / l_pixels,
+        (m_blue[l_bottomRight] - m_blue[l_topRight] - m_blue[l_bottomLeft]
+            + m_blue[l_topLeft]) / l_pixels);
+  }
+}
@@ -0,0 +1,205 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * This type is responsible for delivering a fixed frame to a FrameAnalyzer,
+ * as a camera would, so that the analysis may be exercised, and
+ * benchmarked, without one.
+ *
+ * The frame is given as an NV21 buffer, e.g. a recorded preview frame, and
+ * laid out anew as the chosen Layout, in direct buffers with padded rows
+ * where planar, as an ImageReader delivers YUV_420_888, or in an array
+ * where YV12. The analysis should
+ * get the same colors out of every layout.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class SyntheticFrameSource
+{
+  /**
+   * This type enumerates the layouts a frame may be delivered in.
+   */
+  public enum Layout
+  {
+    /**
+     * The legacy camera buffer; luma, then interleaved V and U.
+     */
+    NV21,
+    /**
+     * Three separate planes, with a pixel stride of 1.
+     */
+    I420,
+    /**
+     * Luma, then interleaved U and V, read as two planes with a pixel
+     * stride of 2, as most devices deliver YUV_420_888.
+     */
+    NV12,
+    /**
+     * The planar legacy camera buffer; luma, then V, then U, with each row
+     * aligned on 16 bytes.
+     */
+    YV12
+  }
+
+  private final YuvFrame m_frame = new YuvFrame();
+
+  /**
+   * @param nv21 The frame, as an NV21 buffer. It is copied unless _layout_
+   *             is NV21.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param layout The layout to deliver the frame in.
+   * @param padding The number of bytes of padding at the end of each row of
+   *                each plane, when neither NV21 nor YV12.
+   */
+  public SyntheticFrameSource(byte[] nv21, int width, int height,
+      Layout layout, int padding)
+  {
+    if (Layout.NV21 == layout)
+    {
+      m_frame.setNv21(nv21, width, height);
+      return;
+    }
+    if (Layout.YV12 == layout)
+    {
+      m_frame.setYv12(toYv12(nv21, width, height), width, height);
+      return;
+    }
+
+    final int l_chromaWidth = (width + 1) / 2;
+    final int l_chromaHeight = (height + 1) / 2;
+    final int l_yRowStride = width + padding;
+
+    final ByteBuffer l_y = ByteBuffer.allocateDirect(l_yRowStride * height);
+    for (int l_row = 0; l_row < height; ++l_row)
+    {
+      l_y.position(l_row * l_yRowStride);
+      l_y.put(nv21, l_row * width, width);
+    }
+
+    final ByteBuffer l_u;
+    final ByteBuffer l_v;
+    final int l_uvRowStride;
+    final int l_uvPixelStride;
+
+    if (Layout.I420 == layout)
+    {
+      l_uvRowStride = l_chromaWidth + padding;
+      l_uvPixelStride = 1;
+      l_u = ByteBuffer.allocateDirect(l_uvRowStride * l_chromaHeight);
+      l_v = ByteBuffer.allocateDirect(l_uvRowStride * l_chromaHeight);
+    }
+    else
+    {
+      // The planes overlap, V starting a byte into U.
+      l_uvRowStride = 2 * l_chromaWidth + padding;
+      l_uvPixelStride = 2;
+      l_u = ByteBuffer.allocateDirect(l_uvRowStride * l_chromaHeight);
+      l_u.position(1);
+      l_v = l_u.slice();
+      l_u.position(0);
+    }
+
+    // NV21 holds a V and U pair for each 2x2 block of pixels.
+    final int l_chroma = width * height;
+    for (int l_row = 0; l_row < l_chromaHeight; ++l_row)
+    {
+      for (int l_column = 0; l_column < l_chromaWidth; ++l_column)
+      {
+        final int l_pair = l_chroma + l_row * width + 2 * l_column;
+        final int l_sample = l_row * l_uvRowStride
+            + l_column * l_uvPixelStride;
+        l_u.put(l_sample, nv21[l_pair + 1]);
+        l_v.put(l_sample, nv21[l_pair]);
+      }
+    }
+
+    m_frame.setPlanes(width, height, l_y, l_yRowStride, l_u, l_v,
+        l_uvRowStride, l_uvPixelStride);
+  }
+
+  /**
+   * Lay an NV21 buffer out as YV12.
+   */
+  private static byte[] toYv12(byte[] nv21, int width, int height)
+  {
+    final byte[] l_yv12 = new byte[YuvFrame.yv12BufferSize(width, height)];
+    final int l_yRowStride = (width + 15) & ~15;
+    final int l_uvRowStride = (l_yRowStride / 2 + 15) & ~15;
+    final int l_v = l_yRowStride * height;
+    final int l_u = l_v + l_uvRowStride * (height / 2);
+
+    for (int l_row = 0; l_row < height; ++l_row)
+    {
+      System.arraycopy(nv21, l_row * width, l_yv12, l_row * l_yRowStride,
+          width);
+    }
+
+    final int l_chroma = width * height;
+    for (int l_row = 0; l_row < height / 2; ++l_row)
+    {
+      for (int l_column = 0; l_column < width / 2; ++l_column)
+      {
+        final int l_pair = l_chroma + l_row * width + 2 * l_column;
+        final int l_sample = l_row * l_uvRowStride + l_column;
+        l_yv12[l_v + l_sample] = nv21[l_pair];
+        l_yv12[l_u + l_sample] = nv21[l_pair + 1];
+      }
+    }
+    return l_yv12;
+  }
+
+  /**
+   * Set how the frame is to be turned to show as the preview does.
+   *
+   * @param orientation The clockwise rotation, in degrees.
+   * @param mirrored True if the preview is mirrored.
+   */
+  public void setOrientation(int orientation, boolean mirrored)
+  {
+    m_frame.setOrientation(orientation, mirrored);
+  }
+
+  /**
+   * @return The frame.
+   */
+  public YuvFrame getFrame()
+  {
+    return m_frame;
+  }
+
+  /**
+   * Deliver the frame to an analyzer, on the calling thread.
+   *
+   * @param analyzer The analyzer.
+   * @param count The number of times to deliver the frame.
+   */
+  public void deliver(FrameAnalyzer analyzer, int count)
+  {
+    for (int l_i = 0; l_i < count; ++l_i)
+    {
+      analyzer.analyze(m_frame, System.nanoTime());
+    }
+  }
+}
@@ -0,0 +1,568 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * This type is responsible for filtering preview frames as seen with a
+ * color vision deficiency, or daltonized for one, so that colors told
+ * apart only by the hues the deficiency confuses are shifted into hues it
+ * does not.
+ *
+ * Deficiencies are simulated by the matrices of Machado et al. (2009), at
+ * full severity, on linear light. Daltonizing adds the error of the
+ * simulation, moved off red, onto green and blue, as of Fidaner et al.
+ * Rather than doing so per pixel, the filter is sampled on a lattice over
+ * the RGB cube, LATTICE_STEP levels apart, which is only rebuilt when the
+ * filter changes, and the pixels interpolated within it tetrahedrally; four
+ * lattice points per pixel, weighed in fixed point, with the channels of
+ * each point packed into a long so that they are weighed at once. The
+ * lattice holds the filtered colors in linear light, not yet clamped into
+ * the gamut, since the filters are linear there; only the interpolated
+ * color is clamped, and encoded as sRGB, by table.
+ *
+ * The frame is converted straight out of its buffer, in bands of rows which
+ * run in parallel on an executor, subsampled should it have more than
+ * MAX_PIXELS pixels. Images are written into caller provided arrays, so
+ * that filtering a frame does not allocate. An instance is meant to be
+ * confined to one thread, e.g. the analysis thread.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class VisionFilter
+{
+  /**
+   * This type enumerates the deficiencies; the lack of long, medium or
+   * short wavelength cones, respectively.
+   */
+  public enum Deficiency
+  {
+    PROTAN, DEUTAN, TRITAN
+  }
+
+  /**
+   * This field provides the most pixels of a filtered image.
+   */
+  public static final int MAX_PIXELS = 640 * 480;
+
+  /**
+   * These fields describe the lattice; LATTICE_STEP levels apart per
+   * channel, the last point of each channel clamped to 255, and stored red
+   * major.
+   */
+  private static final int LATTICE_BITS = 4;
+  private static final int LATTICE_STEP = 1 << LATTICE_BITS;
+  private static final int LATTICE_MASK = LATTICE_STEP - 1;
+  private static final int LATTICE_SIDE = (256 >> LATTICE_BITS) + 1;
+  private static final int RED_STRIDE = LATTICE_SIDE * LATTICE_SIDE;
+  private static final int GREEN_STRIDE = LATTICE_SIDE;
+
+  /**
+   * These fields describe how the filtered linear R, G and B of a lattice
+   * point are packed into the lanes of a long, so that the lattice points
+   * are weighed at once; halved, and offset by LANE_BIAS, since they may
+   * fall well outside of the gamut, to leave a weighed sum of them room in
+   * each lane.
+   */
+  private static final int LANE_BITS = 21;
+  private static final int LANE_BIAS = ColorConversion.LINEAR_ONE + 1;
+  private static final int LANE_MAX = (1 << (LANE_BITS - LATTICE_BITS)) - 1;
+  private static final long LANE_ROUNDING = (LATTICE_STEP / 2)
+      * ((1L << (2 * LANE_BITS)) + (1L << LANE_BITS) + 1);
+
+  /**
+   * This field maps a lane, in steps of 1 << ENCODE_BITS, to 8 bit sRGB,
+   * clamped into the gamut, just as ColorConversion.fromLinear() maps
+   * linear light in steps as wide, though without undoing the bias.
+   */
+  private static final int ENCODE_BITS = 3;
+  private static final int[] ENCODE = new int[(LANE_MAX >> ENCODE_BITS) + 1];
+
+  static
+  {
+    for (int l_i = 0; l_i < ENCODE.length; ++l_i)
+    {
+      ENCODE[l_i] = ColorConversion.fromLinear(
+          (l_i << (ENCODE_BITS + 1)) - LANE_BIAS);
+    }
+  }
+
+  /**
+   * This field provides the simulation matrix of each deficiency, on linear
+   * RGB, row major.
+   */
+  private static final double[][] SIMULATIONS = {
+      { 0.152286, 1.052583, -0.204868,
+        0.114503, 0.786281, 0.099216,
+        -0.003882, -0.048116, 1.051998 },
+      { 0.367322, 0.860646, -0.227968,
+        0.280085, 0.672501, 0.047413,
+        -0.011820, 0.042940, 0.968881 },
+      { 1.255528, -0.076749, -0.178779,
+        -0.078411, 0.930809, 0.147602,
+        0.004733, 0.691367, 0.303900 } };
+
+  /**
+   * This field provides the share of the red error of the simulation moved
+   * onto green, and onto blue, when daltonizing.
+   */
+  private static final double DALTONIZE_SHIFT = 0.7;
+
+  private final ExecutorService m_executor;
+  private final Tile[] m_tiles;
+  private final List<Tile> m_tasks;
+
+  /**
+   * This field holds the filtered linear R, G and B of each lattice point,
+   * packed.
+   */
+  private final long[] m_lattice =
+      new long[LATTICE_SIDE * LATTICE_SIDE * LATTICE_SIDE];
+  private Deficiency m_deficiency;
+  private boolean m_daltonize;
+  private boolean m_stale = true;
+
+  /**
+   * These fields describe the frame, and image, being processed, for the
+   * tiles.
+   */
+  private YuvFrame m_frame;
+  private int[] m_out;
+  private int m_scale;
+  private int m_width;
+  private int m_height;
+  private boolean m_building;
+
+  /**
+   * @param executor The executor to run the tiles on, or null to run them
+   *                 on the calling thread.
+   * @param tiles The number of tiles to split each frame into, e.g. the
+   *              number of threads of the executor.
+   */
+  public VisionFilter(ExecutorService executor, int tiles)
+  {
+    if (1 > tiles)
+    {
+      throw new IllegalArgumentException("Tiles: " + tiles);
+    }
+
+    m_executor = executor;
+    m_tiles = new Tile[tiles];
+    m_tasks = new ArrayList<Tile>(tiles);
+    for (int l_i = 0; l_i < tiles; ++l_i)
+    {
+      m_tiles[l_i] = new Tile();
+      m_tasks.add(m_tiles[l_i]);
+    }
+  }
+
+  /**
+   * Set the filter. The lattice is rebuilt upon the next frame filtered,
+   * only if the filter has changed.
+   *
+   * @param deficiency The deficiency.
+   * @param daltonize True if colors are to be daltonized for the
+   *                  deficiency, rather than seen with it.
+   */
+  public void configure(Deficiency deficiency, boolean daltonize)
+  {
+    if (deficiency != m_deficiency || daltonize != m_daltonize)
+    {
+      m_deficiency = deficiency;
+      m_daltonize = daltonize;
+      m_stale = true;
+    }
+  }
+
+  /**
+   * Filter a color exactly, without the lattice.
+   *
+   * @param deficiency The deficiency.
+   * @param daltonize True if the color is to be daltonized for the
+   *                  deficiency, rather than seen with it.
+   * @param color The color, on the 0xAARRGGBB form.
+   * @return The filtered color, on the 0xAARRGGBB form, opaque.
+   */
+  public static int filter(Deficiency deficiency, boolean daltonize,
+      int color)
+  {
+    final int[] l_linear = new int[3];
+    filter(deficiency, daltonize, color, l_linear, 0);
+    return ColorConversion.fromLinear(l_linear[0], l_linear[1], l_linear[2]);
+  }
+
+  /**
+   * Filter a color exactly, into linear light not clamped into the gamut.
+   */
+  private static void filter(Deficiency deficiency, boolean daltonize,
+      int color, int[] out, int offset)
+  {
+    final double[] l_matrix = SIMULATIONS[deficiency.ordinal()];
+    final double l_red = ColorConversion.toLinear(color >> 16);
+    final double l_green = ColorConversion.toLinear(color >> 8);
+    final double l_blue = ColorConversion.toLinear(color);
+
+    double l_outRed = l_matrix[0] * l_red + l_matrix[1] * l_green
+        + l_matrix[2] * l_blue;
+    double l_outGreen = l_matrix[3] * l_red + l_matrix[4] * l_green
+        + l_matrix[5] * l_blue;
+    double l_outBlue = l_matrix[6] * l_red + l_matrix[7] * l_green
+        + l_matrix[8] * l_blue;
+
+    if (daltonize)
+    {
+      final double l_redError = l_red - l_outRed;
+      l_outGreen = l_green + DALTONIZE_SHIFT * l_redError
+          + (l_green - l_outGreen);
+      l_outBlue = l_blue + DALTONIZE_SHIFT * l_redError
+          + (l_blue - l_outBlue);
+      l_outRed = l_red;
+    }
+
+    out[offset] = (int) Math.round(l_outRed);
+    out[offset + 1] = (int) Math.round(l_outGreen);
+    out[offset + 2] = (int) Math.round(l_outBlue);
+  }
+
+  /**
+   * Filter a color through the lattice, as the frames are.
+   *
+   * @param color The color, on the 0xAARRGGBB form.
+   * @return The filtered color, on the 0xAARRGGBB form, opaque.
+   */
+  public int lookup(int color)
+  {
+    build();
+    return interpolate(m_lattice, color);
+  }
+
+  /**
+   * Filter a frame.
+   *
+   * @param frame The frame.
+   * @param out Receives the filtered image, on the 0xAARRGGBB form, row by
+   *            row, getWidth() apart. It must hold MAX_PIXELS colors.
+   * @return False if interrupted.
+   */
+  public boolean filter(YuvFrame frame, int[] out)
+  {
+    m_scale = 1;
+    while (MAX_PIXELS < (frame.getWidth() / m_scale)
+        * (frame.getHeight() / m_scale))
+    {
+      ++m_scale;
+    }
+    m_width = frame.getWidth() / m_scale;
+    m_height = frame.getHeight() / m_scale;
+    m_frame = frame;
+    m_out = out;
+
+    try
+    {
+      build();
+      if (m_stale)
+      {
+        // Interrupted while building.
+        return false;
+      }
+
+      for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+      {
+        m_tiles[l_i].setRange(m_height * l_i / m_tiles.length,
+            m_height * (l_i + 1) / m_tiles.length);
+      }
+      run(false);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      m_frame = null;
+      m_out = null;
+    }
+    return true;
+  }
+
+  /**
+   * @return The width of the latest image, in pixels.
+   */
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  /**
+   * @return The height of the latest image, in pixels.
+   */
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  /**
+   * Rebuild the lattice, in slices of red, if the filter has changed.
+   */
+  private void build()
+  {
+    if (!m_stale)
+    {
+      return;
+    }
+    if (null == m_deficiency)
+    {
+      throw new IllegalStateException("Not configured");
+    }
+
+    for (int l_i = 0; l_i < m_tiles.length; ++l_i)
+    {
+      m_tiles[l_i].setRange(LATTICE_SIDE * l_i / m_tiles.length,
+          LATTICE_SIDE * (l_i + 1) / m_tiles.length);
+    }
+    try
+    {
+      run(true);
+    }
+    catch (final InterruptedException e)
+    {
+      // Left stale, to be built anew.
+      Thread.currentThread().interrupt();
+      return;
+    }
+    m_stale = false;
+  }
+
+  /**
+   * Run all tiles, and wait for them to finish.
+   */
+  private void run(boolean building) throws InterruptedException
+  {
+    m_building = building;
+
+    if (null == m_executor || 1 == m_tiles.length)
+    {
+      for (final Tile l_tile : m_tiles)
+      {
+        l_tile.call();
+      }
+      return;
+    }
+
+    for (final Future<Void> l_future : m_executor.invokeAll(m_tasks))
+    {
+      try
+      {
+        l_future.get();
+      }
+      catch (final ExecutionException e)
+      {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * @return The linear light _linear_, packed into a lane.
+   */
+  private static long toLane(int linear)
+  {
+    return Math.max(0, Math.min(LANE_MAX, (linear + LANE_BIAS) >> 1));
+  }
+
+  /**
+   * @return The weighed sum of lattice points in the lane at _shift_, as
+   *         sRGB.
+   */
+  private static int fromLane(long sum, int shift)
+  {
+    return ENCODE[(int) (sum >> (shift + LATTICE_BITS + ENCODE_BITS))
+        & (LANE_MAX >> ENCODE_BITS)];
+  }
+
+  /**
+   * Interpolate a color within the tetrahedron of its lattice cell that
+   * holds it; from the lower corner, along the channels in falling order
+   * of their fractions, to the upper corner.
+   */
+  private static int interpolate(long[] lattice, int color)
+  {
+    final int l_red = (color >> 16) & 0xff;
+    final int l_green = (color >> 8) & 0xff;
+    final int l_blue = color & 0xff;
+    final int l_fr = l_red & LATTICE_MASK;
+    final int l_fg = l_green & LATTICE_MASK;
+    final int l_fb = l_blue & LATTICE_MASK;
+    final int l_base = (l_red >> LATTICE_BITS) * RED_STRIDE
+        + (l_green >> LATTICE_BITS) * GREEN_STRIDE + (l_blue >> LATTICE_BITS);
+    final long l_low = lattice[l_base];
+    final long l_high = lattice[l_base + RED_STRIDE + GREEN_STRIDE + 1];
+
+    long l_sum;
+    if (l_fr >= l_fg)
+    {
+      if (l_fg >= l_fb)
+      {
+        l_sum = (LATTICE_STEP - l_fr) * l_low
+            + (l_fr - l_fg) * lattice[l_base + RED_STRIDE]
+            + (l_fg - l_fb) * lattice[l_base + RED_STRIDE + GREEN_STRIDE]
+            + l_fb * l_high;
+      }
+      else if (l_fr >= l_fb)
+      {
+        l_sum = (LATTICE_STEP - l_fr) * l_low
+            + (l_fr - l_fb) * lattice[l_base + RED_STRIDE]
+            + (l_fb - l_fg) * lattice[l_base + RED_STRIDE + 1]
+            + l_fg * l_high;
+      }
+      else
+      {
+        l_sum = (LATTICE_STEP - l_fb) * l_low
+            + (l_fb - l_fr) * lattice[l_base + 1]
+            + (l_fr - l_fg) * lattice[l_base + RED_STRIDE + 1]
+            + l_fg * l_high;
+      }
+    }
+    else if (l_fb >= l_fg)
+    {
+      l_sum = (LATTICE_STEP - l_fb) * l_low
+          + (l_fb - l_fg) * lattice[l_base + 1]
+          + (l_fg - l_fr) * lattice[l_base + GREEN_STRIDE + 1]
+          + l_fr * l_high;
+    }
+    else if (l_fb >= l_fr)
+    {
+      l_sum = (LATTICE_STEP - l_fg) * l_low
+          + (l_fg - l_fb) * lattice[l_base + GREEN_STRIDE]
+          + (l_fb - l_fr) * lattice[l_base + GREEN_STRIDE + 1]
+          + l_fr * l_high;
+    }
+    else
+    {
+      l_sum = (LATTICE_STEP - l_fg) * l_low
+          + (l_fg - l_fr) * lattice[l_base + GREEN_STRIDE]
+          + (l_fr - l_fb) * lattice[l_base + RED_STRIDE + GREEN_STRIDE]
+          + l_fb * l_high;
+    }
+
+    l_sum += LANE_ROUNDING;
+    return 0xff000000 | (fromLane(l_sum, 2 * LANE_BITS) << 16)
+        | (fromLane(l_sum, LANE_BITS) << 8) | fromLane(l_sum, 0);
+  }
+
+  /**
+   * This type is responsible for a slice of the lattice, or a band of image
+   * rows, depending on what is being run.
+   */
+  private final class Tile implements Callable<Void>
+  {
+    private int m_from;
+    private int m_to;
+    private final int[] m_linear = new int[3];
+
+    void setRange(int from, int to)
+    {
+      m_from = from;
+      m_to = to;
+    }
+
+    @Override
+    public Void call()
+    {
+      if (m_building)
+      {
+        buildSlices();
+      }
+      else
+      {
+        filterRows();
+      }
+      return null;
+    }
+
+    /**
+     * Filter the lattice points of the red slices m_from..m_to exactly.
+     */
+    private void buildSlices()
+    {
+      for (int l_r = m_from; l_r < m_to; ++l_r)
+      {
+        for (int l_g = 0; l_g < LATTICE_SIDE; ++l_g)
+        {
+          for (int l_b = 0; l_b < LATTICE_SIDE; ++l_b)
+          {
+            VisionFilter.filter(m_deficiency, m_daltonize,
+                ColorConversion.rgb(level(l_r), level(l_g), level(l_b)),
+                m_linear, 0);
+            m_lattice[l_r * RED_STRIDE + l_g * GREEN_STRIDE + l_b] =
+                (toLane(m_linear[0]) << (2 * LANE_BITS))
+                | (toLane(m_linear[1]) << LANE_BITS) | toLane(m_linear[2]);
+          }
+        }
+      }
+    }
+
+    /**
+     * Filter the image rows m_from..m_to, each read in bulk straight into
+     * the image and filtered in place, unless subsampled.
+     */
+    private void filterRows()
+    {
+      final long[] l_lattice = m_lattice;
+      final int[] l_out = m_out;
+
+      for (int l_y = m_from; l_y < m_to; ++l_y)
+      {
+        final int l_row = l_y * m_width;
+        if (1 == m_scale)
+        {
+          m_frame.readRow(0, l_y, m_width, l_out, l_row);
+          for (int l_i = l_row; l_i < l_row + m_width; ++l_i)
+          {
+            l_out[l_i] = interpolate(l_lattice, l_out[l_i]);
+          }
+        }
+        else
+        {
+          for (int l_x = 0; l_x < m_width; ++l_x)
+          {
+            l_out[l_row + l_x] = interpolate(l_lattice,
+                m_frame.pixel(l_x * m_scale, l_y * m_scale));
+          }
+        }
+      }
+    }
+
+    /**
+     * @return The channel level of lattice point _index_.
+     */
+    private int level(int index)
+    {
+      return Math.min(255, index << LATTICE_BITS);
+    }
+  }
+}
@@ -0,0 +1,401 @@
+package com.gmail.notrupertthorne.whatsthatcolor.core;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * This type is responsible for reading RGB colors straight out of a YCbCr
+ * 4:2:0 frame, whatever the layout of its planes.
+ *
+ * A frame is either an NV21 or a YV12 buffer, as delivered by the legacy
+ * camera, or three planes, as delivered in YUV_420_888 by an ImageReader,
+ * each with its own row stride, and the chroma planes with a pixel stride.
+ * The planes are read in place, through absolute gets, so that they need
+ * not be copied out of the direct buffers they come in. The NV21 layout is
+ * read through Nv21Sampler, and the YV12 layout by offsets, straight off
+ * the array.
+ *
+ * A frame also tells how it is to be turned to show as the preview does,
+ * so that points of the preview can be mapped onto it.
+ *
+ * A frame is a reusable view; it is set anew for each frame, and it must
+ * not be retained past the analysis of the frame it was set for.
+ *
+ * It has no Android dependencies, so that it can be exercised on a plain JVM.
+ */
+public final class YuvFrame
+{
+  private int m_width;
+  private int m_height;
+  private int m_orientation;
+  private boolean m_mirrored;
+
+  /**
+   * This field holds the NV21 buffer, or null if the frame is planar.
+   */
+  private byte[] m_nv21;
+
+  /**
+   * This field holds the YV12 buffer, or null if the frame is not YV12.
+   * The chroma planes start at m_vOffset and m_uOffset, with rows
+   * m_uvRowStride apart, and the luma rows are m_yRowStride apart.
+   */
+  private byte[] m_yv12;
+  private int m_vOffset;
+  private int m_uOffset;
+
+  /**
+   * These fields hold the planes, and their strides, of a planar frame.
+   */
+  private ByteBuffer m_y;
+  private ByteBuffer m_u;
+  private ByteBuffer m_v;
+  private int m_yRowStride;
+  private int m_uvRowStride;
+  private int m_uvPixelStride;
+
+  /**
+   * Set the frame to an NV21 buffer.
+   *
+   * @param data The NV21 buffer.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @return This frame.
+   */
+  public YuvFrame setNv21(byte[] data, int width, int height)
+  {
+    if (data.length < Nv21Sampler.bufferSize(width, height))
+    {
+      throw new IllegalArgumentException("NV21 buffer too small: "
+          + data.length);
+    }
+
+    m_nv21 = data;
+    m_yv12 = null;
+    m_y = null;
+    m_u = null;
+    m_v = null;
+    m_width = width;
+    m_height = height;
+    return this;
+  }
+
+  /**
+   * Set the frame to a YV12 buffer; luma, then V, then U, with each row
+   * aligned on 16 bytes, as delivered by the legacy camera.
+   *
+   * @param data The YV12 buffer.
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @return This frame.
+   */
+  public YuvFrame setYv12(byte[] data, int width, int height)
+  {
+    if (data.length < yv12BufferSize(width, height))
+    {
+      throw new IllegalArgumentException("YV12 buffer too small: "
+          + data.length);
+    }
+
+    m_yv12 = data;
+    m_nv21 = null;
+    m_y = null;
+    m_u = null;
+    m_v = null;
+    m_width = width;
+    m_height = height;
+    m_yRowStride = align16(width);
+    m_uvRowStride = align16(m_yRowStride / 2);
+    m_uvPixelStride = 1;
+    m_vOffset = m_yRowStride * height;
+    m_uOffset = m_vOffset + m_uvRowStride * (height / 2);
+    return this;
+  }
+
+  /**
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @return The size, in bytes, of a YV12 buffer.
+   */
+  public static int yv12BufferSize(int width, int height)
+  {
+    final int l_yRowStride = align16(width);
+    return l_yRowStride * height + 2 * align16(l_yRowStride / 2)
+        * (height / 2);
+  }
+
+  /**
+   * Set the frame to three planes. The luma plane has a pixel stride of 1,
+   * and the chroma planes share their strides, as with YUV_420_888.
+   *
+   * @param width The frame width, in pixels.
+   * @param height The frame height, in pixels.
+   * @param y The luma plane, read from index 0 regardless of its position.
+   * @param yRowStride The distance, in bytes, between rows of luma.
+   * @param u The blue difference chroma plane.
+   * @param v The red difference chroma plane.
+   * @param uvRowStride The distance, in bytes, between rows of chroma.
+   * @param uvPixelStride The distance, in bytes, between chroma samples of
+   *                      a row, e.g. 2 if the planes are interleaved.
+   * @return This frame.
+   */
+  public YuvFrame setPlanes(int width, int height, ByteBuffer y,
+      int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+      int uvPixelStride)
+  {
+    m_nv21 = null;
+    m_yv12 = null;
+    m_y = y;
+    m_u = u;
+    m_v = v;
+    m_yRowStride = yRowStride;
+    m_uvRowStride = uvRowStride;
+    m_uvPixelStride = uvPixelStride;
+    m_width = width;
+    m_height = height;
+    return this;
+  }
+
+  /**
+   * Set how the frame is to be turned to show as the preview does.
+   *
+   * @param orientation The clockwise rotation, in degrees.
+   * @param mirrored True if the preview is mirrored.
+   * @return This frame.
+   */
+  public YuvFrame setOrientation(int orientation, boolean mirrored)
+  {
+    m_orientation = orientation;
+    m_mirrored = mirrored;
+    return this;
+  }
+
+  /**
+   * @return The frame width, in pixels.
+   */
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  /**
+   * @return The frame height, in pixels.
+   */
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  /**
+   * @return The clockwise rotation, in degrees, of the preview.
+   */
+  public int getOrientation()
+  {
+    return m_orientation;
+  }
+
+  /**
+   * @return True if the preview is mirrored.
+   */
+  public boolean isMirrored()
+  {
+    return m_mirrored;
+  }
+
+  /**
+   * Convert the pixel at (x, y) to RGB.
+   *
+   * @param x The pixel column.
+   * @param y The pixel row.
+   * @return The color on the 0xAARRGGBB form.
+   */
+  public int pixel(int x, int y)
+  {
+    if (null != m_nv21)
+    {
+      return Nv21Sampler.pixel(m_nv21, m_width, m_height, x, y);
+    }
+    if (null != m_yv12)
+    {
+      final int l_chroma = (y >> 1) * m_uvRowStride + (x >> 1);
+      return Nv21Sampler.toRgb(m_yv12[y * m_yRowStride + x] & 0xff,
+          m_yv12[m_uOffset + l_chroma] & 0xff,
+          m_yv12[m_vOffset + l_chroma] & 0xff);
+    }
+
+    final int l_chroma = (y >> 1) * m_uvRowStride
+        + (x >> 1) * m_uvPixelStride;
+    return Nv21Sampler.toRgb(m_y.get(y * m_yRowStride + x) & 0xff,
+        m_u.get(l_chroma) & 0xff, m_v.get(l_chroma) & 0xff);
+  }
+
+  /**
+   * @param x The pixel column.
+   * @param y The pixel row.
+   * @return The luma of the pixel at (x, y), 0..255.
+   */
+  public int luma(int x, int y)
+  {
+    if (null != m_nv21)
+    {
+      return m_nv21[y * m_width + x] & 0xff;
+    }
+    if (null != m_yv12)
+    {
+      return m_yv12[y * m_yRowStride + x] & 0xff;
+    }
+    return m_y.get(y * m_yRowStride + x) & 0xff;
+  }
+
+  /**
+   * Convert a run of pixels of a row to RGB, in bulk.
+   *
+   * The run must lie within the frame.
+   *
+   * @param left The leftmost column of the run.
+   * @param row The row.
+   * @param count The number of pixels.
+   * @param out Receives the colors, on the 0xAARRGGBB form.
+   * @param offset The index in _out_ of the first color.
+   */
+  public void readRow(int left, int row, int count, int[] out, int offset)
+  {
+    if (null != m_nv21)
+    {
+      Nv21Sampler.readRow(m_nv21, m_width, m_height, left, row, count, out,
+          offset);
+      return;
+    }
+
+    final int l_luma = row * m_yRowStride;
+    final int l_chroma = (row >> 1) * m_uvRowStride;
+    int l_out = offset;
+
+    if (null != m_yv12)
+    {
+      for (int l_x = left; l_x < left + count; ++l_x)
+      {
+        final int l_sample = l_chroma + (l_x >> 1);
+
+        out[l_out++] = Nv21Sampler.toRgb(m_yv12[l_luma + l_x] & 0xff,
+            m_yv12[m_uOffset + l_sample] & 0xff,
+            m_yv12[m_vOffset + l_sample] & 0xff);
+      }
+      return;
+    }
+
+    for (int l_x = left; l_x < left + count; ++l_x)
+    {
+      final int l_sample = l_chroma + (l_x >> 1) * m_uvPixelStride;
+
+      out[l_out++] = Nv21Sampler.toRgb(m_y.get(l_luma + l_x) & 0xff,
+          m_u.get(l_sample) & 0xff, m_v.get(l_sample) & 0xff);
+    }
+  }
+
+  /**
+   * Copy the frame out as an NV21 buffer, e.g. to keep it past its
+   * analysis.
+   *
+   * @param out Receives the NV21 buffer; it must hold at least
+   *            Nv21Sampler.bufferSize(width, height) bytes.
+   */
+  public void copyNv21(byte[] out)
+  {
+    final int l_size = m_width * m_height;
+
+    if (null != m_nv21)
+    {
+      System.arraycopy(m_nv21, 0, out, 0, Nv21Sampler.bufferSize(m_width,
+          m_height));
+      return;
+    }
+
+    if (null != m_yv12)
+    {
+      for (int l_row = 0; l_row < m_height; ++l_row)
+      {
+        System.arraycopy(m_yv12, l_row * m_yRowStride, out,
+            l_row * m_width, m_width);
+      }
+    }
+    else
+    {
+      // The rows of luma are copied in bulk, off a view of the plane.
+      final ByteBuffer l_y = m_y.duplicate();
+      for (int l_row = 0; l_row < m_height; ++l_row)
+      {
+        l_y.position(l_row * m_yRowStride);
+        l_y.get(out, l_row * m_width, m_width);
+      }
+    }
+
+    // The chroma is interleaved as VU pairs.
+    int l_out = l_size;
+    for (int l_row = 0; l_row < (m_height + 1) / 2; ++l_row)
+    {
+      int l_sample = l_row * m_uvRowStride;
+      for (int l_x = 0; l_x < (m_width + 1) / 2; ++l_x)
+      {
+        if (null != m_yv12)
+        {
+          out[l_out++] = m_yv12[m_vOffset + l_sample];
+          out[l_out++] = m_yv12[m_uOffset + l_sample];
+        }
+        else
+        {
+          out[l_out++] = m_v.get(l_sample);
+          out[l_out++] = m_u.get(l_sample);
+        }
+        l_sample += m_uvPixelStride;
+      }
+    }
+  }
+
+  /**
+   * Convert a rectangle to RGB, in bulk.
+   *
+   * The rectangle must lie within the frame.
+   *
+   * @param left The leftmost column of the rectangle.
+   * @param top The topmost row of the rectangle.
+   * @param width The width of the rectangle, in pixels.
+   * @param height The height of the rectangle, in pixels.
+   * @param out Receives the colors, on the 0xAARRGGBB form, row by row.
+   */
+  public void readRegion(int left, int top, int width, int height,
+      int[] out)
+  {
+    for (int l_y = 0; l_y < height; ++l_y)
+    {
+      readRow(left, top + l_y, width, out, l_y * width);
+    }
+  }
+
+  /**
+   * @return _value_ rounded up to a multiple of 16.
+   */
+  private static int align16(int value)
+  {
+    return (value + 15) & ~15;
+  }
+}
@@ -0,0 +1,559 @@
+package com.gmail.notrupertthorne.whatsthatcolor.tools;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorFormatter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PictureSampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+
+/**
+ * This type is responsible for sampling image files in batch, on a plain,
+ * headless JVM, the way the app samples a picture it has taken.
+ *
+ * Each image is sampled at points, and over regions, given in fractions of
+ * its stored width and height; the EXIF orientation is not applied. By
+ * default, the center is sampled. Only the windows sampled are decoded at
+ * full resolution, through an ImageIoDecoder, so memory use does not grow
+ * with the size of the images.
+ *
+ * The images are sampled by a fixed pool of workers. At most two images per
+ * worker are queued or in progress; the directory walk blocks until a
+ * worker is free, so memory use does not grow with the number of images
+ * either. Each result is written as a tab separated line as soon as it is
+ * ready, in order of completion:
+ *
+ *   path width height #rrggbb name [#rrggbb name ...]
+ *
+ * with one color, and name, per point, then per region, in the order they
+ * were given. The names are left empty without a palette. An image that
+ * could not be sampled gets a line of its path and "error", followed by
+ * the reason.
+ *
+ * Usage: BatchSampler [options] output.tsv input...
+ *
+ * where each input is an image file, or a directory to search for them,
+ * and the options are:
+ *
+ *   -p x,y           Sample the point, e.g. 0.5,0.5 for the center.
+ *   -r l,t,r,b       Sample the region between the edges.
+ *   -s size          The side of the window around each point, in pixels.
+ *   -m statistic     MEAN, MEDIAN, TRIMMED_MEAN or MODE.
+ *   -w method        Estimate the light by GRAY_WORLD, WHITE_PATCH or
+ *                    GRAY_EDGE, and correct the colors for it.
+ *   -n palette.pal   Name the colors from the palette.
+ *   -j workers       The number of workers; one per core by default.
+ */
+public final class BatchSampler
+{
+  private static final String USAGE = "Usage: BatchSampler [-p x,y]... "
+      + "[-r l,t,r,b]... [-s size] [-m statistic] [-w method] "
+      + "[-n palette.pal] [-j workers] output.tsv input...";
+
+  /**
+   * This field provides the number of images per worker that may be queued
+   * or in progress at once.
+   */
+  private static final int QUEUED_PER_WORKER = 2;
+
+  /**
+   * These fields hold the points, as pairs of column and row, and the
+   * regions, as left, top, right and bottom, in fractions of the image.
+   */
+  private final float[] m_points;
+  private final float[] m_regions;
+
+  private final int m_size;
+  private final SamplingKernel.Statistic m_statistic;
+  private final IlluminantEstimator.Method m_whiteBalance;
+  private final ColorNamer m_namer;
+
+  /**
+   * This field holds a sampler per worker, since samplers reuse their
+   * scratch space.
+   */
+  private final ThreadLocal<PictureSampler> m_samplers =
+      new ThreadLocal<PictureSampler>()
+  {
+    @Override
+    protected PictureSampler initialValue()
+    {
+      final PictureSampler l_sampler = new PictureSampler();
+      l_sampler.configure(m_size, m_statistic);
+      l_sampler.setWhiteBalance(m_whiteBalance);
+      return l_sampler;
+    }
+  };
+
+  private final Writer m_out;
+  private IOException m_writeError;
+  private final Set<String> m_suffixes = new HashSet<String>();
+  private final AtomicInteger m_sampled = new AtomicInteger();
+  private final AtomicInteger m_failed = new AtomicInteger();
+
+  /**
+   * @param points The points, as pairs of column and row, in fractions of
+   *               the image.
+   * @param regions The regions, as left, top, right and bottom, in
+   *                fractions of the image.
+   * @param size The side of the window around each point, in pixels.
+   * @param statistic The statistic the windows are reduced by.
+   * @param whiteBalance The assumption to estimate the light by, or null.
+   * @param namer The namer of the colors, or null.
+   * @param out The writer of the results.
+   */
+  public BatchSampler(float[] points, float[] regions, int size,
+      SamplingKernel.Statistic statistic,
+      IlluminantEstimator.Method whiteBalance, ColorNamer namer, Writer out)
+  {
+    m_points = points;
+    m_regions = regions;
+    m_size = size;
+    m_statistic = statistic;
+    m_whiteBalance = whiteBalance;
+    m_namer = namer;
+    m_out = out;
+
+    for (final String l_suffix : ImageIO.getReaderFileSuffixes())
+    {
+      m_suffixes.add(l_suffix.toLowerCase(Locale.US));
+    }
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException
+  {
+    // Never try to open a display.
+    System.setProperty("java.awt.headless", "true");
+
+    final List<Float> l_points = new ArrayList<Float>();
+    final List<Float> l_regions = new ArrayList<Float>();
+    int l_size = SamplingKernel.MIN_SIZE;
+    SamplingKernel.Statistic l_statistic = SamplingKernel.Statistic.MEAN;
+    IlluminantEstimator.Method l_whiteBalance = null;
+    ColorNamer l_namer = null;
+    int l_workers = Runtime.getRuntime().availableProcessors();
+
+    int l_arg = 0;
+    try
+    {
+      for (; l_arg < args.length && args[l_arg].startsWith("-"); l_arg += 2)
+      {
+        if (l_arg + 1 == args.length)
+        {
+          usage();
+        }
+
+        final String l_value = args[l_arg + 1];
+        if ("-p".equals(args[l_arg]))
+        {
+          parseFractions(l_value, 2, l_points);
+        }
+        else if ("-r".equals(args[l_arg]))
+        {
+          parseFractions(l_value, 4, l_regions);
+        }
+        else if ("-s".equals(args[l_arg]))
+        {
+          l_size = Integer.parseInt(l_value);
+        }
+        else if ("-m".equals(args[l_arg]))
+        {
+          l_statistic = SamplingKernel.Statistic.valueOf(l_value);
+        }
+        else if ("-w".equals(args[l_arg]))
+        {
+          l_whiteBalance = IlluminantEstimator.Method.valueOf(l_value);
+        }
+        else if ("-n".equals(args[l_arg]))
+        {
+          l_namer = new ColorNamer(readPalette(new File(l_value)));
+        }
+        else if ("-j".equals(args[l_arg]))
+        {
+          l_workers = Math.max(1, Integer.parseInt(l_value));
+        }
+        else
+        {
+          usage();
+        }
+      }
+    }
+    catch (final IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      usage();
+    }
+
+    if (2 > args.length - l_arg)
+    {
+      usage();
+    }
+    if (l_points.isEmpty() && l_regions.isEmpty())
+    {
+      l_points.add(0.5f);
+      l_points.add(0.5f);
+    }
+
+    final Writer l_out = new OutputStreamWriter(new BufferedOutputStream(
+        new FileOutputStream(args[l_arg])), "UTF-8");
+    final BatchSampler l_batch = new BatchSampler(toArray(l_points),
+        toArray(l_regions), l_size, l_statistic, l_whiteBalance, l_namer,
+        l_out);
+    try
+    {
+      l_batch.run(Arrays.asList(args).subList(l_arg + 1, args.length),
+          l_workers);
+    }
+    finally
+    {
+      l_out.close();
+    }
+
+    System.out.println("Sampled " + l_batch.getSampled() + " images, "
+        + l_batch.getFailed() + " failed, into " + args[l_arg]);
+    if (0 < l_batch.getFailed())
+    {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Sample the image files, and those found in the directories, writing
+   * each result as it is ready.
+   *
+   * @param inputs The paths of image files and directories.
+   * @param workers The number of images to sample at once.
+   * @throws IOException If the results could not be written. The batch
+   *                     is still run to the end.
+   * @throws InterruptedException If interrupted while waiting for a worker.
+   */
+  public void run(List<String> inputs, int workers) throws IOException,
+      InterruptedException
+  {
+    final ExecutorService l_executor = Executors.newFixedThreadPool(workers);
+    final Semaphore l_queued = new Semaphore(QUEUED_PER_WORKER * workers);
+    try
+    {
+      for (final String l_input : inputs)
+      {
+        submit(new File(l_input), true, l_executor, l_queued);
+      }
+    }
+    finally
+    {
+      l_executor.shutdown();
+      l_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    synchronized (m_out)
+    {
+      if (null != m_writeError)
+      {
+        throw m_writeError;
+      }
+      m_out.flush();
+    }
+  }
+
+  /**
+   * @return The number of images sampled so far.
+   */
+  public int getSampled()
+  {
+    return m_sampled.get();
+  }
+
+  /**
+   * @return The number of images that could not be sampled so far.
+   */
+  public int getFailed()
+  {
+    return m_failed.get();
+  }
+
+  /**
+   * Submit an image file, or the image files of a directory and its
+   * subdirectories, in name order, to be sampled. This blocks while all
+   * workers are busy, and the queue is full.
+   *
+   * @param given True if the file was given as is, so that it is sampled
+   *              whatever its suffix.
+   */
+  private void submit(File file, boolean given, ExecutorService executor,
+      final Semaphore queued) throws InterruptedException
+  {
+    if (file.isDirectory())
+    {
+      final File[] l_files = file.listFiles();
+      if (null == l_files)
+      {
+        fail(file, "Could not list directory");
+        return;
+      }
+
+      Arrays.sort(l_files);
+      for (final File l_file : l_files)
+      {
+        submit(l_file, false, executor, queued);
+      }
+      return;
+    }
+
+    if (!given && !isImage(file))
+    {
+      return;
+    }
+
+    queued.acquire();
+    final File l_file = file;
+    executor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          sample(l_file);
+        }
+        finally
+        {
+          queued.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return True if the file has the suffix of an image ImageIO reads.
+   */
+  private boolean isImage(File file)
+  {
+    final String l_name = file.getName();
+    final int l_dot = l_name.lastIndexOf('.');
+    return 0 <= l_dot && m_suffixes.contains(
+        l_name.substring(l_dot + 1).toLowerCase(Locale.US));
+  }
+
+  /**
+   * Sample an image file, and write the result. This is called on a
+   * worker.
+   */
+  private void sample(File file)
+  {
+    final PictureSampler l_sampler = m_samplers.get();
+    final StringBuilder l_line = new StringBuilder(file.getPath());
+
+    try
+    {
+      final ImageIoDecoder l_decoder = new ImageIoDecoder(file);
+      try
+      {
+        final int l_width = l_decoder.getWidth();
+        final int l_height = l_decoder.getHeight();
+        l_line.append('\t').append(l_width).append('\t').append(l_height);
+
+        final boolean l_balanced = l_sampler.estimateIlluminant(l_decoder);
+
+        for (int l_i = 0; l_i < m_points.length; l_i += 2)
+        {
+          final int l_color = l_sampler.samplePoint(l_decoder,
+              (int) (m_points[l_i] * l_width),
+              (int) (m_points[l_i + 1] * l_height));
+          appendColor(l_line, l_sampler, l_color, l_balanced);
+        }
+
+        for (int l_i = 0; l_i < m_regions.length; l_i += 4)
+        {
+          final int l_left = (int) (m_regions[l_i] * l_width);
+          final int l_top = (int) (m_regions[l_i + 1] * l_height);
+          final int l_color = l_sampler.sampleRegion(l_decoder, l_left,
+              l_top, (int) (m_regions[l_i + 2] * l_width) - l_left,
+              (int) (m_regions[l_i + 3] * l_height) - l_top);
+          appendColor(l_line, l_sampler, l_color, l_balanced);
+        }
+      }
+      finally
+      {
+        l_decoder.close();
+      }
+    }
+    catch (final IOException e)
+    {
+      fail(file, e.getMessage());
+      return;
+    }
+    catch (final RuntimeException e)
+    {
+      // Corrupt images may throw about anything from within ImageIO.
+      fail(file, e.toString());
+      return;
+    }
+
+    m_sampled.incrementAndGet();
+    write(l_line);
+  }
+
+  /**
+   * Append a sampled color, and its name, to a result line.
+   */
+  private void appendColor(StringBuilder line, PictureSampler sampler,
+      int color, boolean balanced)
+  {
+    line.append('\t');
+    if (0 == color)
+    {
+      // The window could not be decoded.
+      line.append('\t');
+      return;
+    }
+
+    final int l_color = balanced ? sampler.correct(color) : color;
+    line.append(ColorFormatter.toHexString(l_color)).append('\t');
+    if (null != m_namer)
+    {
+      // The namer is not thread safe.
+      synchronized (m_namer)
+      {
+        final String l_name = m_namer.getName(m_namer.lookup(l_color));
+        line.append(null == l_name ? "" : l_name);
+      }
+    }
+  }
+
+  /**
+   * Record, and write, that an image could not be sampled.
+   */
+  private void fail(File file, String reason)
+  {
+    m_failed.incrementAndGet();
+    write(new StringBuilder(file.getPath()).append("\terror\t")
+        .append(reason));
+  }
+
+  /**
+   * Write a result line. This is called on the workers, so the lines are
+   * written whole, one at a time. Once writing has failed, the rest of the
+   * lines are dropped, and the failure is thrown by run().
+   */
+  private void write(CharSequence line)
+  {
+    synchronized (m_out)
+    {
+      if (null != m_writeError)
+      {
+        return;
+      }
+
+      try
+      {
+        m_out.append(line).append('\n');
+      }
+      catch (final IOException e)
+      {
+        m_writeError = e;
+      }
+    }
+  }
+
+  /**
+   * Parse fractions separated by commas.
+   *
+   * @param value The fractions.
+   * @param count The number of fractions expected.
+   * @param out Receives the fractions.
+   * @throws IllegalArgumentException If _value_ is not _count_ fractions
+   *                                  in 0..1.
+   */
+  private static void parseFractions(String value, int count,
+      List<Float> out)
+  {
+    final String[] l_parts = value.split(",");
+    if (count != l_parts.length)
+    {
+      throw new IllegalArgumentException("Expected " + count
+          + " fractions: " + value);
+    }
+
+    for (final String l_part : l_parts)
+    {
+      final float l_fraction = Float.parseFloat(l_part);
+      if (0 > l_fraction || 1 < l_fraction)
+      {
+        throw new IllegalArgumentException("Not a fraction: " + l_part);
+      }
+      out.add(l_fraction);
+    }
+  }
+
+  private static ColorPalette readPalette(File file) throws IOException
+  {
+    final InputStream l_in = new FileInputStream(file);
+    try
+    {
+      return ColorPalette.read(l_in);
+    }
+    finally
+    {
+      l_in.close();
+    }
+  }
+
+  private static float[] toArray(List<Float> values)
+  {
+    final float[] l_array = new float[values.size()];
+    for (int l_i = 0; l_i < l_array.length; ++l_i)
+    {
+      l_array[l_i] = values.get(l_i);
+    }
+    return l_array;
+  }
+
+  private static void usage()
+  {
+    System.err.println(USAGE);
+    System.exit(1);
+  }
+}
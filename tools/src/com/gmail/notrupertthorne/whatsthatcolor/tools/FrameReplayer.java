@@ -0,0 +1,401 @@
+package com.gmail.notrupertthorne.whatsthatcolor.tools;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorFormatter;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorNamer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorStabilizer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameAnalyzer;
+import com.gmail.notrupertthorne.whatsthatcolor.core.FrameReplay;
+import com.gmail.notrupertthorne.whatsthatcolor.core.IlluminantEstimator;
+import com.gmail.notrupertthorne.whatsthatcolor.core.LatencyStats;
+import com.gmail.notrupertthorne.whatsthatcolor.core.LatencyStats.Stage;
+import com.gmail.notrupertthorne.whatsthatcolor.core.Nv21Sampler;
+import com.gmail.notrupertthorne.whatsthatcolor.core.PaletteExtractor;
+import com.gmail.notrupertthorne.whatsthatcolor.core.RegionMapper;
+import com.gmail.notrupertthorne.whatsthatcolor.core.SamplingKernel;
+import com.gmail.notrupertthorne.whatsthatcolor.core.YuvFrame;
+
+/**
+ * This type is responsible for replaying frames recorded on a device
+ * through the live sampling of the app, on a plain, headless JVM, to
+ * profile it, and to check that it still gives the same colors.
+ *
+ * Each frame is analyzed as CameraPreview analyzes a preview frame; the
+ * crosshair is mapped onto the frame, the window around it read and
+ * reduced to a color, corrected for the light of the frame when white
+ * balancing, steadied across frames, and named. When asked to, the
+ * dominant colors of the frame are extracted too. The latency of each
+ * stage is recorded as on the device, and reported once done.
+ *
+ * When given an output, a tab separated line is written per frame:
+ *
+ *   index time #rrggbb #rrggbb locked name
+ *
+ * with the time of the frame in milliseconds since the first frame, the
+ * color read, the steadied color, whether it is steady, and its name, left
+ * empty without a palette. The lines depend on the frames and the options
+ * only, whatever the pace, so that two runs can be compared with diff.
+ *
+ * Usage: FrameReplayer [options] recording.wtcf [output.tsv]
+ *
+ * where the options are:
+ *
+ *   -o               Replay at the original pace, rather than flat out.
+ *   -s size          The side of the window around the crosshair, in
+ *                    pixels.
+ *   -m statistic     MEAN, MEDIAN, TRIMMED_MEAN or MODE.
+ *   -w method        Estimate the light by GRAY_WORLD, WHITE_PATCH or
+ *                    GRAY_EDGE, and correct the colors for it.
+ *   -n palette.pal   Name the colors from the palette.
+ *   -d               Extract the dominant colors too.
+ *   -l latency.bin   Write the latencies in the binary form of
+ *                    LatencyStats as well.
+ */
+public final class FrameReplayer implements FrameAnalyzer
+{
+  private static final String USAGE = "Usage: FrameReplayer [-o] [-s size] "
+      + "[-m statistic] [-w method] [-n palette.pal] [-d] [-l latency.bin] "
+      + "recording.wtcf [output.tsv]";
+
+  /**
+   * This field provides the number of dominant colors, as in the app.
+   */
+  private static final int PALETTE_COLORS = 6;
+
+  private final FrameReplay m_replay;
+  private final SamplingKernel m_kernel = new SamplingKernel();
+  private final ColorStabilizer m_stabilizer = new ColorStabilizer();
+  private final IlluminantEstimator m_estimator = new IlluminantEstimator();
+  private final IlluminantEstimator.Method m_whiteBalance;
+  private final ColorNamer m_namer;
+  private final PaletteExtractor m_extractor;
+  private final Writer m_out;
+  private final LatencyStats m_stats = new LatencyStats();
+
+  /**
+   * These fields are scratch space, as in the app.
+   */
+  private final int[] m_point = new int[2];
+  private final int[] m_window = new int[4];
+  private final int[] m_region =
+      new int[SamplingKernel.MAX_SIZE * SamplingKernel.MAX_SIZE];
+  private final int[] m_paletteColors = new int[PALETTE_COLORS];
+  private final int[] m_paletteWeights = new int[PALETTE_COLORS];
+  private final StringBuilder m_line = new StringBuilder();
+
+  private int m_frames;
+  private long m_paletteTime;
+
+  /**
+   * @param replay The replay, to tell the time of each frame.
+   * @param size The side of the window around the crosshair, in pixels.
+   * @param statistic The statistic the window is reduced by.
+   * @param whiteBalance The assumption to estimate the light by, or null.
+   * @param namer The namer of the colors, or null.
+   * @param extractor The extractor of the dominant colors, or null.
+   * @param out The writer of the colors, or null.
+   */
+  public FrameReplayer(FrameReplay replay, int size,
+      SamplingKernel.Statistic statistic,
+      IlluminantEstimator.Method whiteBalance, ColorNamer namer,
+      PaletteExtractor extractor, Writer out)
+  {
+    m_replay = replay;
+    m_kernel.configure(size, statistic);
+    m_whiteBalance = whiteBalance;
+    if (null != whiteBalance)
+    {
+      m_estimator.setMethod(whiteBalance);
+    }
+    m_namer = namer;
+    m_extractor = extractor;
+    m_out = out;
+    m_stats.setEnabled(true);
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException
+  {
+    FrameReplay.Speed l_speed = FrameReplay.Speed.MAXIMUM;
+    int l_size = SamplingKernel.MIN_SIZE;
+    SamplingKernel.Statistic l_statistic = SamplingKernel.Statistic.MEAN;
+    IlluminantEstimator.Method l_whiteBalance = null;
+    ColorNamer l_namer = null;
+    boolean l_palette = false;
+    String l_binary = null;
+
+    int l_arg = 0;
+    try
+    {
+      for (; l_arg < args.length && args[l_arg].startsWith("-"); ++l_arg)
+      {
+        if ("-o".equals(args[l_arg]))
+        {
+          l_speed = FrameReplay.Speed.ORIGINAL;
+          continue;
+        }
+        if ("-d".equals(args[l_arg]))
+        {
+          l_palette = true;
+          continue;
+        }
+
+        if (l_arg + 1 == args.length)
+        {
+          usage();
+        }
+
+        final String l_value = args[++l_arg];
+        if ("-s".equals(args[l_arg - 1]))
+        {
+          l_size = Integer.parseInt(l_value);
+        }
+        else if ("-m".equals(args[l_arg - 1]))
+        {
+          l_statistic = SamplingKernel.Statistic.valueOf(l_value);
+        }
+        else if ("-w".equals(args[l_arg - 1]))
+        {
+          l_whiteBalance = IlluminantEstimator.Method.valueOf(l_value);
+        }
+        else if ("-n".equals(args[l_arg - 1]))
+        {
+          l_namer = new ColorNamer(readPalette(new File(l_value)));
+        }
+        else if ("-l".equals(args[l_arg - 1]))
+        {
+          l_binary = l_value;
+        }
+        else
+        {
+          usage();
+        }
+      }
+    }
+    catch (final IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      usage();
+    }
+
+    final int l_remaining = args.length - l_arg;
+    if (1 > l_remaining || 2 < l_remaining)
+    {
+      usage();
+    }
+
+    final FrameReplay l_replay = new FrameReplay(new File(args[l_arg]));
+    final Writer l_out = 2 == l_remaining ? new OutputStreamWriter(
+        new BufferedOutputStream(new FileOutputStream(args[l_arg + 1])),
+        "UTF-8") : null;
+
+    final int l_tiles = Runtime.getRuntime().availableProcessors();
+    final ExecutorService l_executor = l_palette
+        ? Executors.newFixedThreadPool(l_tiles) : null;
+    final long l_elapsed;
+    final FrameReplayer l_replayer;
+    try
+    {
+      l_replayer = new FrameReplayer(l_replay, l_size, l_statistic,
+          l_whiteBalance, l_namer, l_palette ? new PaletteExtractor(
+              PALETTE_COLORS, l_executor, l_tiles) : null, l_out);
+      l_elapsed = l_replay.replay(l_replayer, l_speed);
+      if (null != l_out)
+      {
+        l_out.flush();
+      }
+    }
+    finally
+    {
+      if (null != l_executor)
+      {
+        l_executor.shutdown();
+      }
+      if (null != l_out)
+      {
+        l_out.close();
+      }
+      l_replay.close();
+    }
+
+    final StringBuilder l_text = new StringBuilder();
+    l_replayer.getLatencyStats().writeText(l_text);
+    System.out.print(l_text);
+    if (0 < l_replayer.getFrames())
+    {
+      System.out.println(String.format(Locale.US,
+          "%d frames in %.1f ms, %.1f us/frame",
+          l_replayer.getFrames(), l_elapsed / 1e6,
+          l_elapsed / 1e3 / l_replayer.getFrames()));
+    }
+    if (l_palette && 0 < l_replayer.getFrames())
+    {
+      System.out.println(String.format(Locale.US,
+          "dominant colors %.1f us/frame",
+          l_replayer.getPaletteTime() / 1e3 / l_replayer.getFrames()));
+    }
+
+    if (null != l_binary)
+    {
+      final OutputStream l_stream = new FileOutputStream(l_binary);
+      try
+      {
+        l_replayer.getLatencyStats().writeBinary(l_stream);
+      }
+      finally
+      {
+        l_stream.close();
+      }
+    }
+  }
+
+  /**
+   * Analyze a frame as the app does while sampling live.
+   */
+  @Override
+  public void analyze(YuvFrame frame, long arrived)
+  {
+    long l_time = m_stats.recordSince(Stage.CAPTURE, arrived);
+
+    // The crosshair is at the center of the preview, which is the frame
+    // turned as the display.
+    final boolean l_turned = 0 != frame.getOrientation() % 180;
+    final int l_viewWidth = l_turned ? frame.getHeight() : frame.getWidth();
+    final int l_viewHeight = l_turned ? frame.getWidth() : frame.getHeight();
+    RegionMapper.toImage(l_viewWidth / 2, l_viewHeight / 2, l_viewWidth,
+        l_viewHeight, frame.getWidth(), frame.getHeight(),
+        frame.getOrientation(), frame.isMirrored(), m_point);
+    Nv21Sampler.clipSquare(frame.getWidth(), frame.getHeight(), m_point[0],
+        m_point[1], m_kernel.getSize(), m_window);
+    l_time = m_stats.recordSince(Stage.ROTATE, l_time);
+
+    frame.readRegion(m_window[0], m_window[1], m_window[2], m_window[3],
+        m_region);
+    l_time = m_stats.recordSince(Stage.DECODE, l_time);
+
+    final int l_read = m_kernel.sample(m_region, 0, m_window[2],
+        m_window[2], m_window[3]);
+    int l_color = l_read;
+    if (null != m_whiteBalance)
+    {
+      m_estimator.estimate(frame);
+      l_color = m_estimator.correct(l_color);
+    }
+    m_stabilizer.offer(l_color, l_time);
+    final int l_steady = m_stabilizer.getColor();
+    l_time = m_stats.recordSince(Stage.SAMPLE, l_time);
+
+    String l_name = null;
+    if (null != m_namer)
+    {
+      l_name = m_namer.getName(m_namer.lookup(l_steady));
+    }
+    l_time = m_stats.recordSince(Stage.FORMAT, l_time);
+
+    if (null != m_extractor)
+    {
+      m_extractor.extract(frame, m_paletteColors, m_paletteWeights);
+      m_paletteTime += System.nanoTime() - l_time;
+    }
+
+    if (null != m_out)
+    {
+      m_line.setLength(0);
+      m_line.append(m_frames).append('\t')
+          .append(String.format(Locale.US, "%.3f",
+              m_replay.getTime(m_frames) / 1e6))
+          .append('\t').append(ColorFormatter.toHexString(l_read))
+          .append('\t').append(ColorFormatter.toHexString(l_steady))
+          .append('\t').append(m_stabilizer.isLocked())
+          .append('\t').append(null == l_name ? "" : l_name).append('\n');
+      try
+      {
+        m_out.append(m_line);
+      }
+      catch (final IOException e)
+      {
+        // The analyzer cannot throw; the replay is cut short instead.
+        throw new IllegalStateException("Error writing colors", e);
+      }
+    }
+
+    ++m_frames;
+    m_stats.setFrames(m_frames, 0);
+  }
+
+  /**
+   * @return The number of frames analyzed so far.
+   */
+  public int getFrames()
+  {
+    return m_frames;
+  }
+
+  /**
+   * @return The time, in nanoseconds, spent extracting dominant colors.
+   */
+  public long getPaletteTime()
+  {
+    return m_paletteTime;
+  }
+
+  /**
+   * @return The latency of each stage.
+   */
+  public LatencyStats getLatencyStats()
+  {
+    return m_stats;
+  }
+
+  private static ColorPalette readPalette(File file) throws IOException
+  {
+    final InputStream l_in = new FileInputStream(file);
+    try
+    {
+      return ColorPalette.read(l_in);
+    }
+    finally
+    {
+      l_in.close();
+    }
+  }
+
+  private static void usage()
+  {
+    System.err.println(USAGE);
+    System.exit(1);
+  }
+}
@@ -0,0 +1,129 @@
+package com.gmail.notrupertthorne.whatsthatcolor.tools;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.PictureSampler;
+
+/**
+ * This type is responsible for decoding windows of an image file, for the
+ * PictureSampler, through ImageIO.
+ *
+ * The file is streamed from disk rather than read into memory, and each
+ * window is decoded through a source region and subsampling, so that only
+ * the pixels kept are ever held, however large the image.
+ */
+final class ImageIoDecoder implements PictureSampler.Decoder
+{
+  private final ImageInputStream m_stream;
+  private final ImageReader m_reader;
+  private final int m_width;
+  private final int m_height;
+  private final Rectangle m_window = new Rectangle();
+
+  /**
+   * @param file The image file. It is open until close() is called.
+   * @throws IOException If the file could not be read, or is not an image.
+   */
+  ImageIoDecoder(File file) throws IOException
+  {
+    m_stream = ImageIO.createImageInputStream(file);
+    if (null == m_stream)
+    {
+      throw new IOException("Could not open " + file);
+    }
+
+    try
+    {
+      final Iterator<ImageReader> l_readers = ImageIO.getImageReaders(m_stream);
+      if (!l_readers.hasNext())
+      {
+        throw new IOException("Not an image");
+      }
+
+      m_reader = l_readers.next();
+      m_reader.setInput(m_stream, true, true);
+      m_width = m_reader.getWidth(0);
+      m_height = m_reader.getHeight(0);
+    }
+    catch (final IOException e)
+    {
+      m_stream.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return m_height;
+  }
+
+  @Override
+  public boolean decode(int left, int top, int width, int height,
+      int subsampling, int[] out, int[] size) throws IOException
+  {
+    final int l_width = (width + subsampling - 1) / subsampling;
+    final int l_height = (height + subsampling - 1) / subsampling;
+    if (out.length < l_width * l_height)
+    {
+      return false;
+    }
+
+    m_window.setBounds(left, top, width, height);
+    final ImageReadParam l_param = m_reader.getDefaultReadParam();
+    l_param.setSourceRegion(m_window);
+    l_param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+    final BufferedImage l_image = m_reader.read(0, l_param);
+    size[0] = l_image.getWidth();
+    size[1] = l_image.getHeight();
+    l_image.getRGB(0, 0, size[0], size[1], out, 0, size[0]);
+    return true;
+  }
+
+  /**
+   * Close the file.
+   *
+   * @throws IOException If the file could not be closed.
+   */
+  void close() throws IOException
+  {
+    m_reader.dispose();
+    m_stream.close();
+  }
+}
@@ -0,0 +1,110 @@
+package com.gmail.notrupertthorne.whatsthatcolor.tools;
+
+/*
+Copyright 2014 Niklas Thörne
+
+This file is part of What's That Color.
+
+What's That Color is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+What's That Color is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with What's That Color.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gmail.notrupertthorne.whatsthatcolor.core.ColorPalette;
+
+/**
+ * This type is responsible for compiling a text palette, with one
+ * "#rrggbb Name" entry per line, into the binary form read by the app.
+ *
+ * Usage: PaletteCompiler input.txt output.pal
+ */
+public final class PaletteCompiler
+{
+  private PaletteCompiler()
+  {
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (2 != args.length)
+    {
+      System.err.println("Usage: PaletteCompiler input.txt output.pal");
+      System.exit(1);
+    }
+
+    final List<Integer> l_colors = new ArrayList<Integer>();
+    final List<String> l_names = new ArrayList<String>();
+
+    final BufferedReader l_reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+    try
+    {
+      String l_line;
+      int l_number = 0;
+      while (null != (l_line = l_reader.readLine()))
+      {
+        ++l_number;
+        l_line = l_line.trim();
+
+        // Skip blank lines and comments.
+        if (l_line.isEmpty() || l_line.startsWith("# "))
+        {
+          continue;
+        }
+
+        final int l_space = l_line.indexOf(' ');
+        if (!l_line.startsWith("#") || 7 != l_space)
+        {
+          throw new IOException(args[0] + ":" + l_number
+              + ": expected \"#rrggbb Name\"");
+        }
+
+        l_colors.add(Integer.parseInt(l_line.substring(1, 7), 16));
+        l_names.add(l_line.substring(l_space + 1).trim());
+      }
+    }
+    finally
+    {
+      l_reader.close();
+    }
+
+    final int[] l_colorArray = new int[l_colors.size()];
+    for (int l_i = 0; l_i < l_colorArray.length; ++l_i)
+    {
+      l_colorArray[l_i] = l_colors.get(l_i);
+    }
+
+    final ColorPalette l_palette = new ColorPalette(l_colorArray,
+        l_names.toArray(new String[l_names.size()]));
+
+    final OutputStream l_out = new FileOutputStream(args[1]);
+    try
+    {
+      l_palette.write(l_out);
+    }
+    finally
+    {
+      l_out.close();
+    }
+
+    System.out.println("Wrote " + l_palette.size() + " colors to " + args[1]);
+  }
+}